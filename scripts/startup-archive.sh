@@ -0,0 +1,33 @@
+#!/usr/bin/env bash
+# Build an AppCDS archive for the stdio MCP server from a training run, so
+# the JVM maps pre-parsed classes instead of loading ~1800 of them from jars.
+#
+#   mvn -q package -DskipTests && scripts/startup-archive.sh
+#
+# On JDK 24+ the AOT cache (JEP 483) also keeps linked classes; pass
+# --aot to build one of those instead.
+set -euo pipefail
+
+JAR=${JAR:-$(ls target/sed-mcp-*.jar | grep -v '\.original$' | head -1)}
+OUT=${OUT:-target/startup}
+JAVA=${JAVA:-java}
+
+rm -rf "$OUT"
+# CDS only archives classes loaded from jars on a plain classpath, not from BOOT-INF
+"$JAVA" -Djarmode=tools -jar "$JAR" extract --destination "$OUT"
+APP="$OUT/$(basename "$JAR")"
+
+if [[ "${1:-}" == "--aot" ]]; then
+    "$JAVA" -XX:AOTMode=record -XX:AOTConfiguration="$OUT/sed-mcp.aotconf" -jar "$APP" --train
+    "$JAVA" -XX:AOTMode=create -XX:AOTConfiguration="$OUT/sed-mcp.aotconf" -XX:AOTCache="$OUT/sed-mcp.aot" -jar "$APP"
+    ARCHIVE="-XX:AOTCache=$OUT/sed-mcp.aot"
+else
+    "$JAVA" -XX:ArchiveClassesAtExit="$OUT/sed-mcp.jsa" -jar "$APP" --train
+    ARCHIVE="-XX:SharedArchiveFile=$OUT/sed-mcp.jsa"
+fi
+
+echo "Start the server with:"
+echo "  $JAVA $ARCHIVE -XX:TieredStopAtLevel=1 -XX:+UseSerialGC -jar $APP"
+echo
+echo "To refresh the native-image config after changing tools or dependencies:"
+echo "  $JAVA -agentlib:native-image-agent=config-merge-dir=src/main/resources/META-INF/native-image/dev.klawed/sed-mcp -jar $APP --train"
@@ -2,7 +2,6 @@ package dev.klawed.sedmcp;
 
 import dev.klawed.sedmcp.model.SedOperation;
 import dev.klawed.sedmcp.model.SedResult;
-import dev.klawed.sedmcp.service.SedEngine;
 import dev.klawed.sedmcp.service.impl.RealSedEngine;
 
 import org.slf4j.Logger;
@@ -12,11 +11,17 @@ import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.stereotype.Service;
 
 import jakarta.annotation.PostConstruct;
+import java.util.Arrays;
 import java.util.List;
+import java.util.stream.Collectors;
 
 /**
  * Main Spring Boot application for the sed MCP server.
  * This is the fallback Spring Boot application - the actual MCP server is in McpServer.java
+ *
+ * <p>Run with {@code --spring.profiles.active=lean} to skip the web server
+ * and create beans on first use (see {@code application-lean.properties});
+ * build with {@code -Paot} to have the context prepared ahead of time.
  */
 @SpringBootApplication
 public class Application {
@@ -34,17 +39,28 @@ public class Application {
 class SedService {
     
     private static final Logger logger = LoggerFactory.getLogger(SedService.class);
-    private final SedEngine engine;
+    private final RealSedEngine engine;
     
-    public SedService() {
-        this.engine = new RealSedEngine();
+    // the shared RealSedEngine bean, so its result cache and metrics are not duplicated
+    public SedService(RealSedEngine engine) {
+        this.engine = engine;
+    }
+    
+    /**
+     * The engine every MCP session on the HTTP transport runs on.
+     */
+    RealSedEngine getEngine() {
+        return engine;
     }
     
     @PostConstruct
     public void init() {
-        logger.info("Sed MCP Service initialized with RealSedEngine");
+        logger.info("Sed MCP Service initialized with {}", engine.getClass().getSimpleName());
         logger.info("Note: The main MCP server implementation is in McpServer.java");
-        logger.info("Supported operations: SUBSTITUTE, DELETE, PRINT");
+        logger.info("Supported operations: {}", Arrays.stream(SedOperation.OperationType.values())
+                .filter(engine::supportsOperation)
+                .map(Enum::name)
+                .collect(Collectors.joining(", ")));
     }
     
     public SedResult executeSedOperation(String content, SedOperation operation) {
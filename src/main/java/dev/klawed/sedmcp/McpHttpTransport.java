@@ -0,0 +1,317 @@
+package dev.klawed.sedmcp;
+
+import dev.klawed.sedmcp.service.impl.AdmissionControl;
+import dev.klawed.sedmcp.service.impl.ContentStore;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MCP Streamable HTTP transport, so one sed-mcp process can serve many
+ * agents instead of one per stdio pipe. Clients POST JSON-RPC messages to
+ * {@code /mcp}; {@code initialize} gets an {@code Mcp-Session-Id} header to
+ * send back on the rest, and is the only call allowed without one. Sessions
+ * idle for {@code sedmcp.http.session-idle-ms} are closed, and there are only
+ * as many as {@code sedmcp.http.session-store.total-bytes} has room for.
+ * Browsers are kept out as the spec asks: a request with an {@code Origin}
+ * other than a loopback one, or one listed in
+ * {@code sedmcp.http.allowed-origins}, gets 403.
+ *
+ * <p>Each session is a {@link McpServer} with its own previews, undo history
+ * and content refs, which between them get
+ * {@code sedmcp.http.session-store.max-bytes}: half for content, a quarter
+ * each for previews and undo. All on the one engine behind {@link SedService}, so the
+ * pattern and result caches are shared. Requests run on Tomcat's threads,
+ * which are virtual with {@code spring.threads.virtual.enabled}; a session
+ * handles one request at a time, different sessions run in parallel.
+ *
+ * <p>Bodies are streamed both ways: the request is parsed from the servlet
+ * reader and the response serialized into the servlet writer, chunked.
+ * Requests reserve memory against a shared {@link AdmissionControl} budget
+ * first; one that does not fit gets 413, one that waited too long 503.
+ * Clients that accept {@code text/event-stream} get SSE events, which lets
+ * progress notifications go out ahead of the response. A
+ * {@code notifications/cancelled} POSTed on the session stops the call in
+ * progress.
+ */
+@RestController
+@ConditionalOnWebApplication
+@ConditionalOnProperty(name = "sedmcp.http.enabled", matchIfMissing = true)
+class McpHttpTransport {
+
+    private static final Logger logger = LoggerFactory.getLogger(McpHttpTransport.class);
+
+    static final String SESSION_HEADER = "Mcp-Session-Id";
+
+    private static final long SESSION_IDLE_MILLIS = Long.getLong("sedmcp.http.session-idle-ms", 30 * 60 * 1000L);
+    // per session, for its content, previews and undo; there can be a thousand of them, so well under the stdio default
+    private static final long SESSION_STORE_BYTES = Long.getLong("sedmcp.http.session-store.max-bytes", 8L * 1024 * 1024);
+    // all sessions' stores together, on top of the admission budget for requests in flight
+    private static final long SESSION_STORES_TOTAL_BYTES = Long.getLong("sedmcp.http.session-store.total-bytes",
+            Runtime.getRuntime().maxMemory() / 4);
+    private static final int MAX_SESSIONS = (int) Math.max(1, Math.min(
+            Integer.getInteger("sedmcp.http.max-sessions", 1024), SESSION_STORES_TOTAL_BYTES / SESSION_STORE_BYTES));
+    // an initialize is a few hundred chars; one without a session that is longer than this is not one
+    private static final int MAX_INITIALIZE_CHARS = 64 * 1024;
+    // origins allowed besides loopback ones, or "*" for any
+    private static final Set<String> ALLOWED_ORIGINS = Set.of(
+            System.getProperty("sedmcp.http.allowed-origins", "").split("\\s*,\\s*"));
+
+    private final SedService sedService;
+    // one memory budget for every session, since they share the heap
+    private final AdmissionControl admission = AdmissionControl.fromSystemProperties();
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+    McpHttpTransport(SedService sedService) {
+        this.sedService = sedService;
+        sedService.getEngine().getMetrics().bindAdmission(admission);
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "sedmcp-session-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, Math.min(SESSION_IDLE_MILLIS / 4, 60_000));
+        sweeper.scheduleWithFixedDelay(this::expireIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @PostMapping("/mcp")
+    public void post(@RequestHeader(value = SESSION_HEADER, required = false) String sessionId,
+                     HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (!originAllowed(request.getHeader("Origin"))) {
+            // a web page the user happens to have open must not drive a local server
+            response.sendError(HttpServletResponse.SC_FORBIDDEN, "Origin not allowed");
+            return;
+        }
+        if (request.getCharacterEncoding() == null) {
+            request.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        }
+        Reader body = request.getReader();
+        long bodyChars = Math.max(request.getContentLengthLong(), 0);
+        
+        Session session;
+        if (sessionId == null) {
+            String initialize = readInitialize(body);
+            if (initialize == null) {
+                // a client that never sends the header back would otherwise open a session per call
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                        "Missing " + SESSION_HEADER + "; only initialize starts a session");
+                return;
+            }
+            session = open();
+            if (session == null) {
+                response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many sessions");
+                return;
+            }
+            response.setHeader(SESSION_HEADER, session.id);
+            body = new StringReader(initialize);
+            bodyChars = initialize.length();
+        } else {
+            session = sessions.get(sessionId);
+            if (session == null) {
+                // expired or never existed; the spec has the client start over
+                response.sendError(HttpServletResponse.SC_NOT_FOUND, "Unknown session");
+                return;
+            }
+        }
+        session.lastUsed = System.currentTimeMillis();
+
+        boolean sse = wantsEventStream(request.getHeader("Accept"));
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        response.setContentType(sse ? "text/event-stream" : "application/json");
+
+        Writer sink = sse ? new SseWriter(response.getWriter()) : response.getWriter();
+        try {
+            // nothing has been written if the status can still change, so a notification gets 202
+            if (!session.server.handle(body, bodyChars, sink, sse)) {
+                response.setStatus(HttpServletResponse.SC_ACCEPTED);
+                response.setContentType(null);
+            }
+        } catch (AdmissionControl.Rejected e) {
+            if (e.getReason() == AdmissionControl.Reason.TOO_LARGE) {
+                response.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            } else {
+                response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                response.setHeader("Retry-After", "5");
+            }
+            response.setContentType("application/json");
+            session.server.writeError(McpServer.errorCode(e), e.getMessage(), response.getWriter());
+        }
+    }
+
+    @DeleteMapping("/mcp")
+    public void delete(@RequestHeader(SESSION_HEADER) String sessionId,
+                       HttpServletRequest request, HttpServletResponse response) {
+        if (!originAllowed(request.getHeader("Origin"))) {
+            response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+        response.setStatus(sessions.remove(sessionId) != null
+                ? HttpServletResponse.SC_NO_CONTENT
+                : HttpServletResponse.SC_NOT_FOUND);
+    }
+
+    int sessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * Whether a request may come from this {@code Origin}: none at all, as
+     * from any client that is not a browser; a page served from this machine;
+     * or one of {@code sedmcp.http.allowed-origins}.
+     */
+    static boolean originAllowed(String origin) {
+        if (origin == null || ALLOWED_ORIGINS.contains("*") || ALLOWED_ORIGINS.contains(origin)) {
+            return true;
+        }
+        try {
+            String host = URI.create(origin).getHost();
+            return host != null && (host.equals("localhost") || host.equals("127.0.0.1") || host.equals("[::1]"));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * The whole body if it is an {@code initialize} request, otherwise null.
+     */
+    static String readInitialize(Reader body) throws IOException {
+        char[] buffer = new char[MAX_INITIALIZE_CHARS + 1];
+        int n = 0;
+        int read;
+        while (n < buffer.length && (read = body.read(buffer, n, buffer.length - n)) > 0) {
+            n += read;
+        }
+        if (n > MAX_INITIALIZE_CHARS) {
+            return null;
+        }
+        String message = new String(buffer, 0, n);
+        return "initialize".equals(McpServer.peekMethod(message)) ? message : null;
+    }
+
+    /**
+     * A new session, or null if there are too many even after dropping idle ones.
+     */
+    private Session open() {
+        if (sessions.size() >= MAX_SESSIONS) {
+            expireIdle();
+            if (sessions.size() >= MAX_SESSIONS) {
+                logger.warn("Refusing new MCP session: {} open", sessions.size());
+                return null;
+            }
+        }
+        Session session = new Session(UUID.randomUUID().toString(),
+                new McpServer(sedService.getEngine(), new ContentStore(SESSION_STORE_BYTES / 2, null, 0), admission,
+                        SESSION_STORE_BYTES / 4));
+        sessions.put(session.id, session);
+        return session;
+    }
+
+    private void expireIdle() {
+        long cutoff = System.currentTimeMillis() - SESSION_IDLE_MILLIS;
+        sessions.values().removeIf(s -> s.lastUsed < cutoff);
+    }
+
+    /**
+     * An event stream whenever the client takes one, as Streamable HTTP
+     * clients do: it is the only way to get progress notifications to them
+     * ahead of the response. Plain JSON otherwise, without progress.
+     */
+    static boolean wantsEventStream(String accept) {
+        return accept != null && accept.contains("text/event-stream");
+    }
+
+    private static final class Session {
+        final String id;
+        final McpServer server;
+        volatile long lastUsed;
+
+        Session(String id, McpServer server) {
+            this.id = id;
+            this.server = server;
+        }
+    }
+
+    /**
+     * Frames each line written through it as one SSE {@code message} event.
+     * The server writes one JSON message per line, and compact JSON never
+     * contains a raw newline, so nothing needs buffering.
+     */
+    static final class SseWriter extends FilterWriter {
+        private boolean lineStart = true;
+
+        SseWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            if (lineStart) {
+                out.write("event: message\ndata: ");
+                lineStart = false;
+            }
+            if (c == '\n') {
+                out.write("\n\n");
+                out.flush();
+                lineStart = true;
+            } else {
+                out.write(c);
+            }
+        }
+
+        @Override
+        public void write(char[] buf, int off, int len) throws IOException {
+            write(CharBuffer.wrap(buf), off, len);
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            write((CharSequence) str, off, len);
+        }
+
+        private void write(CharSequence chars, int off, int len) throws IOException {
+            int end = off + len;
+            while (off < end) {
+                int newline = off;
+                while (newline < end && chars.charAt(newline) != '\n') {
+                    newline++;
+                }
+                if (newline > off) {
+                    if (lineStart) {
+                        out.write("event: message\ndata: ");
+                        lineStart = false;
+                    }
+                    out.append(chars, off, newline);
+                }
+                if (newline == end) {
+                    break;
+                }
+                write('\n');
+                off = newline + 1;
+            }
+        }
+    }
+}
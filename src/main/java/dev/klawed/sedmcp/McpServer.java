@@ -1,18 +1,61 @@
 package dev.klawed.sedmcp;
 
+import dev.klawed.sedmcp.model.ContentHandle;
 import dev.klawed.sedmcp.model.SedOperation;
 import dev.klawed.sedmcp.model.SedResult;
+import dev.klawed.sedmcp.model.SplicedText;
+import dev.klawed.sedmcp.model.TextPatch;
+import dev.klawed.sedmcp.script.SedProgram;
+import dev.klawed.sedmcp.script.SedScriptParser;
+import dev.klawed.sedmcp.script.SedStreamExecutor;
+import dev.klawed.sedmcp.service.Progress;
+import dev.klawed.sedmcp.service.SedCancelledException;
+import dev.klawed.sedmcp.service.SedEngineException;
+import dev.klawed.sedmcp.service.impl.AdmissionControl;
+import dev.klawed.sedmcp.service.impl.ContentStore;
+import dev.klawed.sedmcp.service.impl.MatchLocator;
+import dev.klawed.sedmcp.service.impl.OffHeapText;
 import dev.klawed.sedmcp.service.impl.RealSedEngine;
+import dev.klawed.sedmcp.service.impl.ResultCache;
+import dev.klawed.sedmcp.service.impl.SedEvents;
+import dev.klawed.sedmcp.service.impl.SedMetrics;
+import dev.klawed.sedmcp.service.impl.UndoLog;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.StreamReadConstraints;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.PushbackReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Map;
 import java.util.List;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Standalone MCP Server that communicates via JSON-RPC over stdio
@@ -20,36 +63,473 @@ import java.util.HashMap;
  */
 public class McpServer {
     
-    private final ObjectMapper objectMapper = new ObjectMapper();
-    private final RealSedEngine sedEngine = new RealSedEngine();
-    private final PrintWriter out = new PrintWriter(System.out, true);
-    private final BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+    private static final int MAX_PENDING_PREVIEWS = 32;
+    private static final int MAX_COMPILED_PROGRAMS = 64;
+    private static final int SMALL_MESSAGE_CHARS = 1024;
+    private static final int MAX_EARLY_CANCELLATIONS = 64;
+    // JSON-RPC's range for server errors
+    static final int SERVER_BUSY = -32001;
+    static final int REQUEST_TOO_LARGE = -32002;
+    private static final Set<String> KNOWN_METHODS = Set.of("initialize", "tools/list", "tools/call");
+    private static final JsonFactory PEEK_FACTORY = new JsonFactory();
+    private static final Set<String> KNOWN_TOOLS = Set.of("sed_execute", "sed_preview", "sed_validate", "sed_undo", "sed_grep");
+    // what a client puts under capabilities.experimental in initialize to get results as fields
+    static final String RESULT_FORMAT = "sedResultFormat";
+    static final String STRUCTURED = "json";
     
+    // responses are streamed into the transport's writer, which is not ours to close;
+    // AdmissionControl decides how big a request may be, not Jackson's 20M-char string limit
+    private final ObjectMapper objectMapper = new ObjectMapper(JsonFactory.builder()
+            .streamReadConstraints(StreamReadConstraints.builder().maxStringLength(Integer.MAX_VALUE).build())
+            .build())
+            .configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false)
+            .registerModule(new SimpleModule()
+                    .addSerializer(SplicedText.class, new TextSerializer<>(SplicedText.class))
+                    .addSerializer(OffHeapText.class, new TextSerializer<>(OffHeapText.class)));
+    private final SedMetrics metrics;
+    private final RealSedEngine sedEngine;
+    private final UndoLog undoLog;
+    private final ContentStore contentStore;
+    private final AdmissionControl admission;
+    // pending previews by TextPatch size, held to the same budget as the undo log
+    private final long maxPreviewBytes;
+    private long previewBytes = 0;
+    private final Map<String, PendingPreview> previews = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PendingPreview> eldest) {
+            if (size() > MAX_PENDING_PREVIEWS) {
+                previewBytes -= eldest.getValue().weight;
+                return true;
+            }
+            return false;
+        }
+    };
+    private final Map<String, SedProgram> programs = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SedProgram> eldest) {
+            return size() > MAX_COMPILED_PROGRAMS;
+        }
+    };
+    // stdout, or the current HTTP response while handle() runs
+    private PrintWriter out;
+    // what the response being written is for; one request at a time per server
+    private String responseTag = "none";
+    private final BufferedReader in;
+    // progress of the tool calls running now, by request id, for notifications/cancelled; guards cancelledEarly too
+    private final Map<String, Progress> inFlight = new HashMap<>();
+    private final Map<String, Boolean> cancelledEarly = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_EARLY_CANCELLATIONS;
+        }
+    };
+    // false while handle() writes to a plain JSON response, which has room for the response only
+    private boolean progressAllowed = true;
+    // whether this session asked for results as fields instead of prose, in initialize
+    private boolean structuredResults;
+    
+    /**
+     * A canned session touching every tool and operation type, run by
+     * {@code --train} so a class-data archive or native-image config sees
+     * the classes a real client would load.
+     */
+    private static final List<String> TRAINING_SESSION = List.of(
+        "{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"initialize\",\"params\":{}}",
+        "{\"jsonrpc\":\"2.0\",\"id\":2,\"method\":\"tools/list\"}",
+        "{\"jsonrpc\":\"2.0\",\"id\":3,\"method\":\"tools/call\",\"params\":{\"name\":\"sed_execute\",\"arguments\":{\"content\":\"foo\\nbar\\nfoo\\n\",\"operation\":\"s\",\"pattern\":\"fo+\",\"replacement\":\"[$0]\",\"flags\":\"g\",\"documentId\":\"train\"}}}",
+        "{\"jsonrpc\":\"2.0\",\"id\":4,\"method\":\"tools/call\",\"params\":{\"name\":\"sed_execute\",\"arguments\":{\"content\":\"foo\\nbar\\n\",\"operation\":\"d\",\"pattern\":\"bar\"}}}",
+        "{\"jsonrpc\":\"2.0\",\"id\":5,\"method\":\"tools/call\",\"params\":{\"name\":\"sed_execute\",\"arguments\":{\"content\":\"foo\\nbar\\n\",\"operation\":\"a\",\"pattern\":\"foo\",\"text\":\"baz\"}}}",
+        "{\"jsonrpc\":\"2.0\",\"id\":6,\"method\":\"tools/call\",\"params\":{\"name\":\"sed_execute\",\"arguments\":{\"content\":\"/*\\n x\\n*/\\ny\\n\",\"operation\":\"d\",\"pattern\":\"/\\\\*[\\\\s\\\\S]*?\\\\*/\",\"window\":8}}}",
+        "{\"jsonrpc\":\"2.0\",\"id\":7,\"method\":\"tools/call\",\"params\":{\"name\":\"sed_execute\",\"arguments\":{\"content\":\"a\\nb\\n\",\"script\":\"1d;s/b/c/;$a end\"}}}",
+        "{\"jsonrpc\":\"2.0\",\"id\":8,\"method\":\"tools/call\",\"params\":{\"name\":\"sed_preview\",\"arguments\":{\"content\":\"foo\\n\",\"operation\":\"p\",\"pattern\":\"o\"}}}",
+        "{\"jsonrpc\":\"2.0\",\"id\":9,\"method\":\"tools/call\",\"params\":{\"name\":\"sed_validate\",\"arguments\":{\"operation\":\"s\",\"pattern\":\"(\",\"replacement\":\"x\"}}}",
+        "{\"jsonrpc\":\"2.0\",\"id\":10,\"method\":\"tools/call\",\"params\":{\"name\":\"sed_undo\",\"arguments\":{\"documentId\":\"train\",\"content\":\"[foo]\\nbar\\n[foo]\\n\"}}}",
+        "{\"jsonrpc\":\"2.0\",\"id\":11,\"method\":\"tools/call\",\"params\":{\"name\":\"sed_grep\",\"arguments\":{\"content\":\"foo\\nbar\\nfoo\\n\",\"pattern\":\"o+\",\"maxMatches\":1}}}"
+    );
+    
+    public McpServer() {
+        this(System.in, System.out);
+    }
+    
+    McpServer(InputStream in, OutputStream out) {
+        this(new RealSedEngine(
+                new ResultCache(Long.getLong("sedmcp.result-cache.max-bytes", ResultCache.DEFAULT_MAX_BYTES)),
+                SedStreamExecutor.Limits.fromSystemProperties(), SedMetrics.fromSystemProperties()),
+                ContentStore.fromSystemProperties(), AdmissionControl.fromSystemProperties(),
+                Long.getLong("sedmcp.undo.max-bytes", UndoLog.DEFAULT_MAX_BYTES), in, out);
+        metrics.bindAdmission(admission);
+    }
+    
+    /**
+     * One client session on a shared engine, for {@link McpHttpTransport}.
+     * Previews, compiled scripts, undo history and content refs belong to
+     * the session; the engine and its caches, and the memory budget, are
+     * shared by all of them.
+     *
+     * @param historyBytes Budget for the undo log, and again for pending previews
+     */
+    McpServer(RealSedEngine sedEngine, ContentStore contentStore, AdmissionControl admission, long historyBytes) {
+        this(sedEngine, contentStore, admission, historyBytes,
+                InputStream.nullInputStream(), OutputStream.nullOutputStream());
+    }
+    
+    McpServer(RealSedEngine sedEngine, ContentStore contentStore, AdmissionControl admission) {
+        this(sedEngine, contentStore, admission, UndoLog.DEFAULT_MAX_BYTES);
+    }
+    
+    McpServer(RealSedEngine sedEngine, ContentStore contentStore, AdmissionControl admission, long historyBytes,
+              InputStream in, OutputStream out) {
+        this.sedEngine = sedEngine;
+        this.metrics = sedEngine.getMetrics();
+        this.contentStore = contentStore;
+        this.admission = admission;
+        this.undoLog = new UndoLog(UndoLog.DEFAULT_DEPTH, UndoLog.DEFAULT_MAX_DOCUMENTS, historyBytes);
+        this.maxPreviewBytes = historyBytes;
+        this.in = new BufferedReader(new InputStreamReader(in));
+        this.out = new PrintWriter(out, true);
+    }
+    
+    /**
+     * Serves stdin. {@code --train} runs {@link #TRAINING_SESSION} and exits,
+     * for {@code -XX:ArchiveClassesAtExit} or the native-image agent (see
+     * {@code scripts/startup-archive.sh}). {@code --checkpoint} trains, then
+     * takes a CRaC checkpoint; the restored process serves stdin.
+     */
     public static void main(String[] args) {
-        new McpServer().run();
+        List<String> flags = List.of(args);
+        if (flags.contains("--train") || flags.contains("--checkpoint")) {
+            train();
+            if (!flags.contains("--checkpoint")) {
+                return;
+            }
+            checkpoint();
+        }
+        McpServer server = new McpServer();
+        // a client that kills us instead of closing stdin should not leave spilled content behind
+        Runtime.getRuntime().addShutdownHook(new Thread(server.contentStore::close, "content-store-cleanup"));
+        server.run();
+    }
+    
+    static void train() {
+        InputStream session = new ByteArrayInputStream(
+                String.join("\n", TRAINING_SESSION).getBytes(StandardCharsets.UTF_8));
+        new McpServer(session, OutputStream.nullOutputStream()).run();
+    }
+    
+    /**
+     * CRaC checkpoint through reflection, so the jar still runs on JDKs
+     * without {@code jdk.crac}; there the server just starts as usual.
+     */
+    private static void checkpoint() {
+        try {
+            Class.forName("jdk.crac.Core").getMethod("checkpointRestore").invoke(null);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            System.err.println("CRaC checkpoint unavailable, starting normally: " + e);
+        }
     }
     
     public void run() {
+        // requests run one at a time on the worker, which leaves this thread free to see a cancellation arrive
+        ExecutorService worker = daemonThread("mcp-worker");
+        // waits for memory for the one line that did not fit, so this thread can read on meanwhile
+        ExecutorService admitter = daemonThread("mcp-admission");
+        Future<?> waiting = null;
         try {
             String line;
             while ((line = in.readLine()) != null) {
-                handleMessage(line);
+                if (cancelIfCancellation(line)) {
+                    continue;
+                }
+                if (waiting != null) {
+                    // the line before is still waiting for memory; hold this one and read no more
+                    // until that is admitted, so unadmitted lines never pile up on the heap
+                    awaitQuietly(waiting);
+                }
+                waiting = dispatch(line, worker, admitter);
             }
         } catch (Exception e) {
-            sendError(-32603, "Internal error: " + e.getMessage(), null);
+            awaitQuietly(waiting);
+            worker.execute(() -> sendError(-32603, "Internal error: " + e.getMessage(), null));
+        } finally {
+            awaitQuietly(waiting);
+            admitter.shutdown();
+            worker.shutdown();
+            try {
+                worker.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            contentStore.close();
+        }
+    }
+    
+    private static ExecutorService daemonThread(String name) {
+        return Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    /**
+     * Hand a line to the worker with memory reserved for it, or, if there is
+     * none right now, to the admitter to wait for some and then hand it on.
+     * Everything queued for the worker holds a reservation, so the budget
+     * bounds it; only the one line waiting on the admitter does not.
+     *
+     * @return The wait, or null if the line went straight to the worker
+     */
+    private Future<?> dispatch(String message, ExecutorService worker, ExecutorService admitter)
+            throws InterruptedException {
+        long start = System.nanoTime();
+        AdmissionControl.Ticket ticket;
+        try {
+            ticket = admission.tryAdmit(message.length());
+        } catch (AdmissionControl.Rejected e) {
+            metrics.rejected(e.getReason());
+            worker.execute(() -> sendError(errorCode(e), e.getMessage(), peekId(message)));
+            return null;
+        }
+        if (ticket != null) {
+            metrics.admitted(System.nanoTime() - start);
+            worker.execute(() -> handleAdmitted(message, ticket));
+            return null;
+        }
+        return admitter.submit(() -> {
+            try {
+                AdmissionControl.Ticket admitted = admit(message.length(), start);
+                worker.execute(() -> handleAdmitted(message, admitted));
+            } catch (AdmissionControl.Rejected e) {
+                worker.execute(() -> sendError(errorCode(e), e.getMessage(), peekId(message)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+    
+    private void handleAdmitted(String message, AdmissionControl.Ticket ticket) {
+        try (ticket) {
+            handleMessage(message);
+        }
+    }
+    
+    private static void awaitQuietly(Future<?> future) {
+        if (future == null) {
+            return;
+        }
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // the task sends its own errors; nothing else to do here
+        }
+    }
+    
+    /**
+     * One request from a transport other than stdio: parsed straight from
+     * {@code body}, with responses streamed into {@code sink}, so neither is
+     * held as one more String. Calls are serialized; use one server per
+     * client session; only a cancellation gets past a call in progress.
+     * Returns false if nothing was written, as for a notification.
+     *
+     * @param bodyChars Request size for metrics, or 0 if not known
+     * @param streaming Whether {@code sink} can carry progress notifications
+     *                  ahead of the response, as an event stream can
+     * @throws AdmissionControl.Rejected if the memory budget has no room for the request,
+     *                                    also part way through a body of unknown length
+     */
+    boolean handle(Reader body, long bodyChars, Writer sink, boolean streaming) throws IOException {
+        // a cancellation is a few hundred chars; look for one before queueing for the lock
+        PushbackReader reader = new PushbackReader(body, SMALL_MESSAGE_CHARS);
+        char[] head = new char[SMALL_MESSAGE_CHARS];
+        int n = 0;
+        int read;
+        while (n < head.length && (read = reader.read(head, n, head.length - n)) > 0) {
+            n += read;
+        }
+        if (n < head.length && cancelIfCancellation(new String(head, 0, n))) {
+            return false;
+        }
+        reader.unread(head, 0, n);
+        
+        // without a Content-Length the size is not known up front; such a request reserves the
+        // minimum and grows its reservation as it is read, or is rejected when the budget runs out
+        try (AdmissionControl.Ticket ticket = admit(bodyChars)) {
+            return handleLocked(new BudgetedReader(reader, ticket, bodyChars), bodyChars, sink, streaming);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for admission");
+        }
+    }
+    
+    private synchronized boolean handleLocked(Reader reader, long bodyChars, Writer sink, boolean streaming) {
+        PrintWriter stdout = out;
+        CountingWriter counted = new CountingWriter(sink);
+        out = new PrintWriter(counted, true);
+        progressAllowed = streaming;
+        try {
+            handleMessage(() -> objectMapper.readTree(reader), bodyChars);
+            out.flush();
+            return counted.written > 0;
+        } finally {
+            out = stdout;
+            progressAllowed = true;
+        }
+    }
+    
+    private AdmissionControl.Ticket admit(long requestChars) throws InterruptedException {
+        return admit(requestChars, System.nanoTime());
+    }
+    
+    private AdmissionControl.Ticket admit(long requestChars, long start) throws InterruptedException {
+        try {
+            AdmissionControl.Ticket ticket = admission.admit(requestChars);
+            metrics.admitted(System.nanoTime() - start);
+            return ticket;
+        } catch (AdmissionControl.Rejected e) {
+            metrics.rejected(e.getReason());
+            throw e;
+        }
+    }
+    
+    static int errorCode(AdmissionControl.Rejected rejected) {
+        return rejected.getReason() == AdmissionControl.Reason.TOO_LARGE ? REQUEST_TOO_LARGE : SERVER_BUSY;
+    }
+    
+    /**
+     * The method of a request, or null if it has none or is not JSON; only
+     * the top level is looked at, everything else is skipped.
+     */
+    static String peekMethod(String message) {
+        try (JsonParser parser = PEEK_FACTORY.createParser(message)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if (name.equals("method")) {
+                    return value == JsonToken.VALUE_STRING ? parser.getText() : null;
+                }
+                parser.skipChildren();
+            }
+        } catch (IOException e) {
+            // not JSON, so not a request
+        }
+        return null;
+    }
+    
+    /**
+     * The id of a request that is not going to be parsed, found with the
+     * streaming parser, which skips over the content instead of copying it.
+     */
+    private Object peekId(String message) {
+        try (JsonParser parser = objectMapper.getFactory().createParser(message)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                parser.nextToken();
+                if (field.equals("id")) {
+                    return objectMapper.readTree(parser);
+                }
+                parser.skipChildren();
+            }
+        } catch (IOException e) {
+            // no id, then
+        }
+        return null;
+    }
+    
+    /**
+     * A JSON-RPC error with no id, for a transport turning away a request it
+     * has not read.
+     */
+    void writeError(int code, String message, Writer sink) throws IOException {
+        objectMapper.writeValue(sink, Map.of(
+            "jsonrpc", "2.0",
+            "error", Map.of("code", code, "message", message)
+        ));
+        sink.flush();
+    }
+    
+    /**
+     * Act on a {@code notifications/cancelled} as soon as it is read rather
+     * than behind the request it cancels. False if the message is something else.
+     */
+    private boolean cancelIfCancellation(String message) {
+        if (!message.contains("notifications/cancelled")) {
+            return false;
+        }
+        try {
+            JsonNode notification = objectMapper.readTree(message);
+            if (!"notifications/cancelled".equals(notification.path("method").asText())) {
+                return false;
+            }
+            cancel(notification.get("params"));
+            return true;
+        } catch (IOException e) {
+            // not JSON after all; the normal path reports that
+            return false;
+        }
+    }
+    
+    private void cancel(JsonNode params) {
+        if (params == null) {
+            return;
+        }
+        String key = params.path("requestId").toString();
+        synchronized (inFlight) {
+            Progress progress = inFlight.get(key);
+            if (progress != null) {
+                progress.cancel();
+            } else {
+                // most likely still queued on stdio; handleToolCall looks here first
+                cancelledEarly.put(key, Boolean.TRUE);
+            }
         }
     }
     
     private void handleMessage(String message) {
+        handleMessage(() -> objectMapper.readTree(message), message.length());
+    }
+    
+    private void handleMessage(RequestSource source, long messageChars) {
+        SedEvents.Request requestEvent = new SedEvents.Request();
+        requestEvent.begin();
+        responseTag = "none";
+        String methodTag = "unparsed";
         try {
-            JsonNode request = objectMapper.readTree(message);
+            SedEvents.JsonParse parseEvent = new SedEvents.JsonParse();
+            parseEvent.begin();
+            long parseStart = System.nanoTime();
+            JsonNode request = source.read();
             String method = request.get("method").asText();
+            methodTag = KNOWN_METHODS.contains(method) ? method : "other";
+            responseTag = methodTag;
+            metrics.jsonParsed(methodTag, System.nanoTime() - parseStart, messageChars);
+            parseEvent.end();
+            if (parseEvent.shouldCommit()) {
+                parseEvent.method = methodTag;
+                parseEvent.chars = messageChars;
+                parseEvent.commit();
+            }
             JsonNode params = request.get("params");
             Object id = request.has("id") ? request.get("id") : null;
             
+            if (id == null && method.startsWith("notifications/")) {
+                // notifications/initialized and friends: JSON-RPC says no reply
+                if (method.equals("notifications/cancelled")) {
+                    cancel(params);
+                }
+                return;
+            }
+            
             switch (method) {
                 case "initialize":
-                    handleInitialize(id);
+                    handleInitialize(params, id);
                     break;
                 case "tools/list":
                     handleToolsList(id);
@@ -60,16 +540,36 @@ public class McpServer {
                 default:
                     sendError(-32601, "Method not found", id);
             }
+        } catch (AdmissionControl.Rejected e) {
+            // a body that outgrew its reservation; the transport answers for it
+            throw e;
         } catch (Exception e) {
             sendError(-32700, "Parse error", null);
+        } finally {
+            requestEvent.end();
+            if (requestEvent.shouldCommit()) {
+                requestEvent.method = methodTag;
+                requestEvent.tool = responseTag;
+                requestEvent.requestChars = messageChars;
+                requestEvent.commit();
+            }
         }
     }
     
-    private void handleInitialize(Object id) {
+    /**
+     * Results come as prose unless the client asks for
+     * {@code capabilities.experimental.sedResultFormat: "json"}; the reply
+     * says which format this session got.
+     */
+    private void handleInitialize(JsonNode params, Object id) {
+        JsonNode requested = params != null ? params.path("capabilities").path("experimental").get(RESULT_FORMAT) : null;
+        structuredResults = requested != null && STRUCTURED.equals(requested.asText());
+        
         Map<String, Object> result = new HashMap<>();
         result.put("protocolVersion", "2024-11-05");
         result.put("capabilities", Map.of(
-            "tools", Map.of()
+            "tools", Map.of(),
+            "experimental", Map.of(RESULT_FORMAT, structuredResults ? STRUCTURED : "text")
         ));
         result.put("serverInfo", Map.of(
             "name", "sed-mcp",
@@ -80,90 +580,212 @@ public class McpServer {
     }
     
     private void handleToolsList(Object id) {
-        List<Map<String, Object>> tools = List.of(
+        sendResponse(Map.of("tools", ToolDefinitions.TOOLS), id);
+    }
+    
+    /**
+     * Tool schemas, built on the first tools/list instead of at startup or
+     * on every call. Class initialization makes that lazy and thread-safe.
+     */
+    private static final class ToolDefinitions {
+        static final List<Map<String, Object>> TOOLS = List.of(
             Map.of(
                 "name", "sed_execute",
-                "description", "Execute a sed operation on text content",
+                "description", "Execute a sed operation, or a whole sed script, on text content",
                 "inputSchema", Map.of(
                     "type", "object",
-                    "properties", Map.of(
-                        "content", Map.of("type", "string", "description", "Text content to process"),
-                        "operation", Map.of("type", "string", "description", "Sed operation (s, d, p)"),
-                        "pattern", Map.of("type", "string", "description", "Regex pattern"),
-                        "replacement", Map.of("type", "string", "description", "Replacement text"),
-                        "flags", Map.of("type", "string", "description", "Operation flags (g, i, m)")
-                    ),
-                    "required", List.of("content", "operation", "pattern")
+                    "properties", Map.ofEntries(
+                        Map.entry("content", Map.of("type", "string", "description", "Text content to process")),
+                        Map.entry("contentRef", Map.of("type", "string", "description", "Content ref from an earlier result, instead of content")),
+                        Map.entry("previewRef", Map.of("type", "string", "description", "Result ref of an accepted sed_preview; commits it without re-running")),
+                        Map.entry("operation", Map.of("type", "string", "description", "Sed operation (s, d, p, a, i, c)")),
+                        Map.entry("pattern", Map.of("type", "string", "description", "Regex pattern")),
+                        Map.entry("replacement", Map.of("type", "string", "description", "Replacement text")),
+                        Map.entry("flags", Map.of("type", "string", "description", "Operation flags (g, i, m; for s: N for only the Nth match, Ng for the Nth on, l to count per line)")),
+                        Map.entry("text", Map.of("type", "string", "description", "Text for a, i and c")),
+                        Map.entry("address", Map.of("type", "string", "description", "Lines for a, i and c: N, $, N,M or N,$")),
+                        Map.entry("window", Map.of("type", "integer", "description", "For s, d and p: let matches span up to this many lines, streamed through a sliding window")),
+                        Map.entry("script", Map.of("type", "string", "description", "Sed script, e.g. '/^#/d; s/foo/bar/g; 10,20p'; used instead of operation")),
+                        Map.entry("quiet", Map.of("type", "boolean", "description", "With script: suppress automatic printing, like sed -n")),
+                        Map.entry("extended", Map.of("type", "boolean", "description", "With script: use extended regex syntax, like sed -E")),
+                        Map.entry("documentId", Map.of("type", "string", "description", "Optional document id; records the edit so sed_undo can revert it"))
+                    )
                 )
             ),
             Map.of(
                 "name", "sed_preview",
-                "description", "Preview a sed operation without modifying content",
+                "description", "Preview a sed operation or script without modifying content",
+                "inputSchema", Map.of(
+                    "type", "object",
+                    "properties", Map.ofEntries(
+                        Map.entry("content", Map.of("type", "string", "description", "Text content to process")),
+                        Map.entry("contentRef", Map.of("type", "string", "description", "Content ref from an earlier result, instead of content")),
+                        Map.entry("operation", Map.of("type", "string", "description", "Sed operation (s, d, p, a, i, c)")),
+                        Map.entry("pattern", Map.of("type", "string", "description", "Regex pattern")),
+                        Map.entry("replacement", Map.of("type", "string", "description", "Replacement text")),
+                        Map.entry("flags", Map.of("type", "string", "description", "Operation flags (g, i, m; for s: N for only the Nth match, Ng for the Nth on, l to count per line)")),
+                        Map.entry("text", Map.of("type", "string", "description", "Text for a, i and c")),
+                        Map.entry("address", Map.of("type", "string", "description", "Lines for a, i and c: N, $, N,M or N,$")),
+                        Map.entry("window", Map.of("type", "integer", "description", "For s, d and p: let matches span up to this many lines, streamed through a sliding window")),
+                        Map.entry("script", Map.of("type", "string", "description", "Sed script; used instead of operation")),
+                        Map.entry("quiet", Map.of("type", "boolean", "description", "With script: suppress automatic printing, like sed -n")),
+                        Map.entry("extended", Map.of("type", "boolean", "description", "With script: use extended regex syntax, like sed -E"))
+                    )
+                )
+            ),
+            Map.of(
+                "name", "sed_validate",
+                "description", "Validate sed operation or script syntax",
                 "inputSchema", Map.of(
                     "type", "object",
                     "properties", Map.of(
-                        "content", Map.of("type", "string", "description", "Text content to process"),
-                        "operation", Map.of("type", "string", "description", "Sed operation (s, d, p)"),
+                        "operation", Map.of("type", "string", "description", "Sed operation (s, d, p, a, i, c)"),
                         "pattern", Map.of("type", "string", "description", "Regex pattern"),
                         "replacement", Map.of("type", "string", "description", "Replacement text"),
-                        "flags", Map.of("type", "string", "description", "Operation flags (g, i, m)")
+                        "flags", Map.of("type", "string", "description", "Operation flags (g, i, m; for s: N for only the Nth match, Ng for the Nth on, l to count per line)"),
+                        "text", Map.of("type", "string", "description", "Text for a, i and c"),
+                        "address", Map.of("type", "string", "description", "Lines for a, i and c: N, $, N,M or N,$"),
+                        "window", Map.of("type", "integer", "description", "For s, d and p: lines a match may span"),
+                        "script", Map.of("type", "string", "description", "Sed script; validated instead of operation"),
+                        "extended", Map.of("type", "boolean", "description", "With script: use extended regex syntax, like sed -E")
+                    )
+                )
+            ),
+            Map.of(
+                "name", "sed_undo",
+                "description", "Undo (or redo) the last sed_execute recorded for a document",
+                "inputSchema", Map.of(
+                    "type", "object",
+                    "properties", Map.of(
+                        "documentId", Map.of("type", "string", "description", "Document id passed to sed_execute"),
+                        "content", Map.of("type", "string", "description", "Current content of the document"),
+                        "contentRef", Map.of("type", "string", "description", "Content ref of the current content, instead of content"),
+                        "redo", Map.of("type", "boolean", "description", "Re-apply the last undone edit instead")
                     ),
-                    "required", List.of("content", "operation", "pattern")
+                    "required", List.of("documentId")
                 )
             ),
             Map.of(
-                "name", "sed_validate",
-                "description", "Validate sed operation syntax",
+                "name", "sed_grep",
+                "description", "Find where a pattern matches, line by line like p, without returning the lines; "
+                        + "gives [line, column, length] for each match, counting lines and columns from 1",
                 "inputSchema", Map.of(
                     "type", "object",
                     "properties", Map.of(
-                        "operation", Map.of("type", "string", "description", "Sed operation (s, d, p)"),
+                        "content", Map.of("type", "string", "description", "Text content to search"),
+                        "contentRef", Map.of("type", "string", "description", "Content ref from an earlier result, instead of content"),
                         "pattern", Map.of("type", "string", "description", "Regex pattern"),
-                        "replacement", Map.of("type", "string", "description", "Replacement text"),
-                        "flags", Map.of("type", "string", "description", "Operation flags (g, i, m)")
+                        "flags", Map.of("type", "string", "description", "Regex flags (i, m, s)"),
+                        "maxMatches", Map.of("type", "integer", "description",
+                                "Stop after this many matches (default " + MatchLocator.DEFAULT_MAX_MATCHES
+                                        + ", at most " + MatchLocator.MAX_MATCHES + ")")
                     ),
-                    "required", List.of("operation", "pattern")
+                    "required", List.of("pattern")
                 )
             )
         );
-        
-        sendResponse(Map.of("tools", tools), id);
     }
     
     private void handleToolCall(JsonNode params, Object id) {
+        long start = System.nanoTime();
+        Progress progress = newProgress(params);
+        String key = String.valueOf(id);
+        if (id != null) {
+            synchronized (inFlight) {
+                inFlight.put(key, progress);
+                if (cancelledEarly.remove(key) != null) {
+                    progress.cancel();
+                }
+            }
+        }
         try {
             String toolName = params.get("name").asText();
+            responseTag = KNOWN_TOOLS.contains(toolName) ? toolName : "unknown";
             JsonNode arguments = params.get("arguments");
             
             switch (toolName) {
                 case "sed_execute":
-                    handleSedExecute(arguments, id);
+                    handleSedExecute(arguments, id, progress);
                     break;
                 case "sed_preview":
-                    handleSedPreview(arguments, id);
+                    handleSedPreview(arguments, id, progress);
                     break;
                 case "sed_validate":
                     handleSedValidate(arguments, id);
                     break;
+                case "sed_undo":
+                    handleSedUndo(arguments, id);
+                    break;
+                case "sed_grep":
+                    handleSedGrep(arguments, id, progress);
+                    break;
                 default:
                     sendError(-32602, "Unknown tool: " + toolName, id);
             }
         } catch (Exception e) {
             sendError(-32603, "Tool execution error: " + e.getMessage(), id);
+        } finally {
+            if (id != null) {
+                synchronized (inFlight) {
+                    inFlight.remove(key);
+                }
+            }
+            metrics.toolCalled(responseTag, System.nanoTime() - start);
         }
     }
     
-    private void handleSedExecute(JsonNode args, Object id) {
+    /**
+     * Cancellable progress for a tool call, forwarded as
+     * {@code notifications/progress} if the client sent a progress token
+     * and the transport can deliver notifications before the response.
+     */
+    private Progress newProgress(JsonNode params) {
+        JsonNode token = params != null ? params.path("_meta").get("progressToken") : null;
+        if (token == null || !progressAllowed) {
+            return new Progress(null);
+        }
+        return new Progress((done, total) -> sendNotification("notifications/progress", Map.of(
+            "progressToken", token,
+            "progress", done,
+            "total", total,
+            "message", "Processed " + done + " of " + total + " chars"
+        )));
+    }
+    
+    private void handleSedExecute(JsonNode args, Object id, Progress progress) {
         try {
-            SedOperation operation = buildOperation(args);
-            String content = args.get("content").asText();
+            SedResult result;
+            if (args.has("previewRef")) {
+                result = commitPreview(args.get("previewRef").asText());
+            } else if (args.has("script")) {
+                SedProgram program = compileScript(args);
+                String content = resolveContent(args);
+                result = sedEngine.executeScript(content, program, isQuiet(args), progress);
+            } else {
+                SedOperation operation = buildOperation(args);
+                String content = resolveContent(args);
+                result = sedEngine.executeOperation(content, operation, progress);
+            }
+            if (progress.isCancelled()) {
+                // the client has moved on and is not expecting an answer
+                return;
+            }
+            
+            if (args.has("documentId") && result.isSuccess()) {
+                undoLog.record(args.get("documentId").asText(), result.getOriginalContent(), result.getModifiedContent());
+            }
+            
+            ContentHandle handle = contentStore.put(result.getModifiedText());
             
-            SedResult result = sedEngine.executeOperation(content, operation);
+            if (structuredResults) {
+                sendResponse(structuredResponse(result, handle, ""), id);
+                return;
+            }
             
             Map<String, Object> response = Map.of(
                 "content", List.of(Map.of(
                     "type", "text",
-                    "text", formatSedResult(result)
+                    "text", formatSedResult(result, handle)
                 ))
             );
             
@@ -173,17 +795,38 @@ public class McpServer {
         }
     }
     
-    private void handleSedPreview(JsonNode args, Object id) {
+    private void handleSedPreview(JsonNode args, Object id, Progress progress) {
         try {
-            SedOperation operation = buildOperation(args);
-            String content = args.get("content").asText();
+            String content;
+            SedResult result;
+            if (args.has("script")) {
+                SedProgram program = compileScript(args);
+                content = resolveContent(args);
+                result = sedEngine.executeScript(content, program, isQuiet(args), progress);
+            } else {
+                SedOperation operation = buildOperation(args);
+                content = resolveContent(args);
+                result = sedEngine.previewOperation(content, operation, progress);
+            }
+            if (progress.isCancelled()) {
+                return;
+            }
+            
+            ContentHandle handle = contentStore.put(result.getModifiedText());
+            if (result.isSuccess()) {
+                // the input goes with it as the edit, not as a second entry that could push the result out
+                keepPreview(handle.toString(), new PendingPreview(TextPatch.diff(content, result.getModifiedContent()), result));
+            }
             
-            SedResult result = sedEngine.previewOperation(content, operation);
+            if (structuredResults) {
+                sendResponse(structuredResponse(result, handle, "PREVIEW: "), id);
+                return;
+            }
             
             Map<String, Object> response = Map.of(
                 "content", List.of(Map.of(
                     "type", "text",
-                    "text", "PREVIEW: " + formatSedResult(result)
+                    "text", "PREVIEW: " + formatSedResult(result, handle)
                 ))
             );
             
@@ -195,13 +838,20 @@ public class McpServer {
     
     private void handleSedValidate(JsonNode args, Object id) {
         try {
-            SedOperation operation = buildOperation(args);
-            sedEngine.validateOperation(operation);
+            String message;
+            if (args.has("script")) {
+                SedProgram program = compileScript(args);
+                message = "✅ Script is valid: " + program.size() + " commands";
+            } else {
+                SedOperation operation = buildOperation(args);
+                sedEngine.validateOperation(operation);
+                message = "✅ Operation is valid: " + operation.getOperationType();
+            }
             
             Map<String, Object> response = Map.of(
                 "content", List.of(Map.of(
                     "type", "text",
-                    "text", "✅ Operation is valid: " + operation.getOperationType()
+                    "text", message
                 ))
             );
             
@@ -218,7 +868,129 @@ public class McpServer {
         }
     }
     
+    private void handleSedUndo(JsonNode args, Object id) {
+        try {
+            String documentId = args.get("documentId").asText();
+            String content = resolveContent(args);
+            boolean redo = args.has("redo") && args.get("redo").asBoolean();
+            
+            String restored = redo ? undoLog.redo(documentId, content) : undoLog.undo(documentId, content);
+            ContentHandle handle = contentStore.put(restored);
+            
+            StringBuilder sb = new StringBuilder();
+            sb.append("✅ ").append(redo ? "Redone" : "Undone").append(" last edit of ").append(documentId).append("\n");
+            sb.append("Undo steps left: ").append(undoLog.undoDepth(documentId)).append("\n");
+            sb.append("Redo steps left: ").append(undoLog.redoDepth(documentId)).append("\n");
+            sb.append("Content ref: ").append(handle).append("\n\n");
+            sb.append("Result:\n").append(restored);
+            
+            Map<String, Object> response = Map.of(
+                "content", List.of(Map.of(
+                    "type", "text",
+                    "text", sb.toString()
+                ))
+            );
+            
+            sendResponse(response, id);
+        } catch (Exception e) {
+            sendError(-32603, "Sed undo failed: " + e.getMessage(), id);
+        }
+    }
+    
+    private void handleSedGrep(JsonNode args, Object id, Progress progress) {
+        try {
+            int maxMatches = args.has("maxMatches") ? args.get("maxMatches").asInt() : MatchLocator.DEFAULT_MAX_MATCHES;
+            String pattern = args.has("pattern") ? args.get("pattern").asText() : null;
+            String flags = args.has("flags") ? args.get("flags").asText() : null;
+            MatchLocator.Matches matches = sedEngine.grep(resolveContent(args), pattern, flags, maxMatches, progress);
+            
+            Map<String, Object> response = Map.of(
+                "content", List.of(Map.of(
+                    "type", "text",
+                    "text", formatMatches(matches)
+                ))
+            );
+            
+            sendResponse(response, id);
+        } catch (SedCancelledException e) {
+            // nobody is waiting for it
+        } catch (Exception e) {
+            sendError(-32603, "Sed grep failed: " + e.getMessage(), id);
+        }
+    }
+    
+    /**
+     * Compact JSON, one [line, column, length] array per match; a thousand
+     * matches is a few KB instead of a thousand quoted lines, twice.
+     */
+    private static String formatMatches(MatchLocator.Matches matches) {
+        StringBuilder sb = new StringBuilder(40 + 16 * matches.getCount());
+        sb.append("{\"count\":").append(matches.getCount())
+          .append(",\"truncated\":").append(matches.isTruncated())
+          .append(",\"matches\":[");
+        for (int i = 0; i < matches.getCount(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append('[').append(matches.getLine(i))
+              .append(',').append(matches.getColumn(i))
+              .append(',').append(matches.getLength(i)).append(']');
+        }
+        return sb.append("]}").toString();
+    }
+    
+    /**
+     * Content comes either inline or as a ref to something we returned earlier.
+     */
+    private String resolveContent(JsonNode args) {
+        if (args.has("content")) {
+            return args.get("content").asText();
+        }
+        if (args.has("contentRef")) {
+            return contentStore.get(args.get("contentRef").asText());
+        }
+        throw new SedEngineException("Either content or contentRef is required");
+    }
+    
+    /**
+     * Turn an accepted preview into an executed result without running the operation again.
+     */
+    private SedResult commitPreview(String previewRef) {
+        PendingPreview preview = previews.remove(previewRef);
+        if (preview == null) {
+            throw new SedEngineException("Unknown or expired preview reference: " + previewRef);
+        }
+        previewBytes -= preview.weight;
+        String modified = contentStore.get(previewRef);
+        return SedResult.builder()
+                .success(true)
+                .originalContent(preview.edit.revert(modified))
+                .modifiedContent(modified)
+                .linesModified(preview.summary.getLinesModified())
+                .changesApplied(preview.summary.getChangesApplied())
+                .warnings(preview.summary.getWarnings())
+                .build();
+    }
+    
+    /**
+     * Compile the {@code script} argument, reusing the program if the same
+     * script was compiled recently.
+     */
+    private SedProgram compileScript(JsonNode args) {
+        boolean extended = args.has("extended") && args.get("extended").asBoolean();
+        String script = args.get("script").asText();
+        String key = (extended ? "E:" : "B:") + script;
+        return programs.computeIfAbsent(key, k -> new SedScriptParser(extended).parse(script));
+    }
+    
+    private boolean isQuiet(JsonNode args) {
+        return args.has("quiet") && args.get("quiet").asBoolean();
+    }
+    
     private SedOperation buildOperation(JsonNode args) {
+        if (!args.has("operation")) {
+            throw new SedEngineException("Either operation or script is required");
+        }
         String operationStr = args.get("operation").asText();
         SedOperation.OperationType type = SedOperation.OperationType.fromCommand(operationStr);
         
@@ -233,11 +1005,20 @@ public class McpServer {
         if (args.has("flags")) {
             builder.flags(args.get("flags").asText());
         }
+        if (args.has("text")) {
+            builder.text(args.get("text").asText());
+        }
+        if (args.has("address")) {
+            builder.address(args.get("address").asText());
+        }
+        if (args.has("window")) {
+            builder.window(args.get("window").asInt());
+        }
         
         return builder.build();
     }
     
-    private String formatSedResult(SedResult result) {
+    private String formatSedResult(SedResult result, ContentHandle handle) {
         if (!result.isSuccess()) {
             return "❌ Error: " + result.getError();
         }
@@ -246,8 +1027,15 @@ public class McpServer {
         sb.append("✅ Success!\n");
         sb.append("Modified: ").append(result.isModified()).append("\n");
         sb.append("Lines modified: ").append(result.getLinesModified()).append("\n");
-        sb.append("Execution time: ").append(result.getExecutionTimeMs()).append("ms\n\n");
-        sb.append("Result:\n").append(result.getModifiedContent());
+        sb.append("Execution time: ").append(result.getExecutionTimeMs()).append("ms\n");
+        sb.append("Content ref: ").append(handle).append("\n\n");
+        sb.append("Result:\n");
+        if (result.getModifiedText() instanceof SplicedText splice) {
+            // part by part; StringBuilder would otherwise take it a char at a time
+            splice.appendTo(sb);
+        } else {
+            sb.append(result.getModifiedText());
+        }
         
         if (!result.getChangesApplied().isEmpty()) {
             sb.append("\n\nChanges applied:\n");
@@ -257,6 +1045,113 @@ public class McpServer {
         return sb.toString();
     }
     
+    /**
+     * The result as fields: counts, changes, the diff against the input and
+     * the new text, which Jackson escapes on its way to the transport instead
+     * of after being pasted into a message. The text block is a one-line
+     * summary, not the text again.
+     */
+    private static Map<String, Object> structuredResponse(SedResult result, ContentHandle handle, String prefix) {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put("success", result.isSuccess());
+        if (!result.isSuccess()) {
+            fields.put("error", result.getError());
+            return Map.of(
+                "content", List.of(Map.of("type", "text", "text", prefix + "❌ Error: " + result.getError())),
+                "structuredContent", fields,
+                "isError", true
+            );
+        }
+        fields.put("modified", result.isModified());
+        fields.put("linesModified", result.getLinesModified());
+        fields.put("executionTimeMs", result.getExecutionTimeMs());
+        fields.put("contentRef", handle.toString());
+        fields.put("changes", result.getChangesApplied());
+        fields.put("warnings", result.getWarnings());
+        List<Map<String, Object>> diff = diff(result);
+        if (diff != null) {
+            fields.put("diff", diff);
+        }
+        fields.put("result", result.getModifiedText());
+        
+        String summary = prefix + "✅ Success: " + result.getLinesModified() + " lines modified, content ref " + handle;
+        return Map.of(
+            "content", List.of(Map.of("type", "text", "text", summary)),
+            "structuredContent", fields
+        );
+    }
+    
+    /**
+     * Changed spans as {beforeOffset, afterOffset, removed, inserted}. A
+     * splice already is its one hunk; anything else is diffed, unless it was
+     * big enough to be kept off the heap, where diffing would copy both texts
+     * back on just to describe them. Null then.
+     */
+    private static List<Map<String, Object>> diff(SedResult result) {
+        List<Map<String, Object>> hunks = new ArrayList<>();
+        if (!result.isModified()) {
+            return hunks;
+        }
+        if (result.getModifiedText() instanceof SplicedText splice) {
+            hunks.add(hunk(splice.getFrom(), splice.getFrom(),
+                    splice.getBase().subSequence(splice.getFrom(), splice.getTo()).toString(), splice.getInserted()));
+            return hunks;
+        }
+        if (!(result.getOriginalText() instanceof String original && result.getModifiedText() instanceof String modified)) {
+            return null;
+        }
+        for (TextPatch.Hunk hunk : TextPatch.diff(original, modified).getHunks()) {
+            hunks.add(hunk(hunk.getBeforeOffset(), hunk.getAfterOffset(), hunk.getRemoved(), hunk.getInserted()));
+        }
+        return hunks;
+    }
+    
+    private static Map<String, Object> hunk(int beforeOffset, int afterOffset, String removed, String inserted) {
+        Map<String, Object> hunk = new LinkedHashMap<>();
+        hunk.put("beforeOffset", beforeOffset);
+        hunk.put("afterOffset", afterOffset);
+        hunk.put("removed", removed);
+        hunk.put("inserted", inserted);
+        return hunk;
+    }
+    
+    /**
+     * A preview waiting to be accepted. Holds the edit and the change
+     * summary; the result itself lives in (and is evicted by) the content
+     * store, and the input is the edit reverted from it.
+     */
+    private void keepPreview(String ref, PendingPreview preview) {
+        PendingPreview replaced = previews.put(ref, preview);
+        previewBytes += preview.weight - (replaced != null ? replaced.weight : 0);
+        Iterator<PendingPreview> it = previews.values().iterator();
+        // the newest stays even if it alone is over
+        while (previewBytes > maxPreviewBytes && previews.size() > 1 && it.hasNext()) {
+            previewBytes -= it.next().weight;
+            it.remove();
+        }
+    }
+    
+    private static final class PendingPreview {
+        final TextPatch edit;
+        final SedResult summary;
+        final long weight;
+        
+        PendingPreview(TextPatch edit, SedResult result) {
+            this.edit = edit;
+            long changes = 0;
+            for (String change : result.getChangesApplied()) {
+                changes += 40 + 2L * change.length();
+            }
+            this.weight = edit.estimatedBytes() + changes;
+            this.summary = SedResult.builder()
+                    .success(true)
+                    .linesModified(result.getLinesModified())
+                    .changesApplied(result.getChangesApplied())
+                    .warnings(result.getWarnings())
+                    .build();
+        }
+    }
+    
     private void sendResponse(Object result, Object id) {
         try {
             Map<String, Object> response = new HashMap<>();
@@ -266,12 +1161,41 @@ public class McpServer {
                 response.put("id", id);
             }
             
-            out.println(objectMapper.writeValueAsString(response));
+            SedEvents.ResponseWrite event = new SedEvents.ResponseWrite();
+            event.begin();
+            long start = System.nanoTime();
+            // straight into the transport: a big result is not copied into one more String
+            CountingWriter json = new CountingWriter(out);
+            objectMapper.writeValue(json, response);
+            out.println();
+            metrics.jsonSerialized(responseTag, System.nanoTime() - start, json.written);
+            event.end();
+            if (event.shouldCommit()) {
+                event.tool = responseTag;
+                event.chars = json.written;
+                event.commit();
+            }
         } catch (Exception e) {
             sendError(-32603, "Response serialization error", id);
         }
     }
     
+    /**
+     * Progress is best effort: a notification that cannot be written is dropped.
+     */
+    private void sendNotification(String method, Map<String, Object> params) {
+        try {
+            Map<String, Object> notification = new HashMap<>();
+            notification.put("jsonrpc", "2.0");
+            notification.put("method", method);
+            notification.put("params", params);
+            objectMapper.writeValue(out, notification);
+            out.println();
+        } catch (IOException e) {
+            // dropped, see above
+        }
+    }
+    
     private void sendError(int code, String message, Object id) {
         try {
             Map<String, Object> error = Map.of(
@@ -292,4 +1216,129 @@ public class McpServer {
             out.println("{\"jsonrpc\":\"2.0\",\"error\":{\"code\":-32603,\"message\":\"Internal error\"}}");
         }
     }
-}
\ No newline at end of file
+    
+    /**
+     * Writes a text that is not a String as a JSON string, a chunk at a
+     * time, rather than building the String first (or letting Jackson take
+     * it for a bean).
+     */
+    private static final class TextSerializer<T extends CharSequence> extends StdSerializer<T> {
+        
+        TextSerializer(Class<T> type) {
+            super(type);
+        }
+        
+        @Override
+        public void serialize(T value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+            gen.writeString(new TextReader(value), value.length());
+        }
+    }
+    
+    /**
+     * Reads a CharSequence in chunks: String slices where it has them.
+     */
+    private static final class TextReader extends Reader {
+        private final CharSequence text;
+        private int position;
+        
+        TextReader(CharSequence text) {
+            this.text = text;
+        }
+        
+        @Override
+        public int read(char[] buf, int off, int len) {
+            int n = Math.min(len, text.length() - position);
+            if (n <= 0) {
+                return len == 0 ? 0 : -1;
+            }
+            CharSequence chunk = text.subSequence(position, position + n);
+            // a slice of a splice is mostly a slice of a String, and an off-heap slice copies out in bulk
+            chunk.toString().getChars(0, n, buf, off);
+            position += n;
+            return n;
+        }
+        
+        @Override
+        public void close() {
+        }
+    }
+    
+    private interface RequestSource {
+        JsonNode read() throws IOException;
+    }
+    
+    /**
+     * Counts the chars read through it, growing the request's reservation
+     * once they pass what it was admitted with.
+     */
+    private static final class BudgetedReader extends Reader {
+        private final Reader source;
+        private final AdmissionControl.Ticket ticket;
+        private long read;
+        private long reserved;
+        
+        BudgetedReader(Reader source, AdmissionControl.Ticket ticket, long reservedChars) {
+            this.source = source;
+            this.ticket = ticket;
+            this.reserved = reservedChars;
+        }
+        
+        @Override
+        public int read(char[] buf, int off, int len) throws IOException {
+            int n = source.read(buf, off, len);
+            if (n > 0) {
+                read += n;
+                if (read > reserved) {
+                    reserved = ticket.grow(read);
+                }
+            }
+            return n;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            source.close();
+        }
+    }
+    
+    /**
+     * Passes chars through to another writer, counting them.
+     */
+    private static final class CountingWriter extends Writer {
+        private final Writer target;
+        long written;
+        
+        CountingWriter(Writer target) {
+            this.target = target;
+        }
+        
+        @Override
+        public void write(int c) throws IOException {
+            target.write(c);
+            written++;
+        }
+        
+        @Override
+        public void write(char[] buf, int off, int len) throws IOException {
+            target.write(buf, off, len);
+            written += len;
+        }
+        
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            target.write(str, off, len);
+            written += len;
+        }
+        
+        @Override
+        public void flush() throws IOException {
+            target.flush();
+        }
+        
+        @Override
+        public void close() throws IOException {
+            // the target belongs to the caller
+            target.flush();
+        }
+    }
+}
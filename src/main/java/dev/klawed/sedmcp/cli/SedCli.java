@@ -4,7 +4,7 @@ import dev.klawed.sedmcp.model.SedOperation;
 import dev.klawed.sedmcp.model.SedResult;
 import dev.klawed.sedmcp.service.SedEngine;
 import dev.klawed.sedmcp.service.SedEngineException;
-import dev.klawed.sedmcp.service.impl.MockSedEngine;
+import dev.klawed.sedmcp.service.impl.RealSedEngine;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -14,6 +14,9 @@ import java.util.Scanner;
  * Command line interface for testing sed operations manually.
  * Because sometimes you want to poke at things directly without 
  * going through the whole MCP protocol dance.
+ * 
+ * With arguments it behaves like sed itself (see {@link SedCommandLine});
+ * without any it falls back to the interactive menu.
  */
 public class SedCli {
     
@@ -27,11 +30,16 @@ public class SedCli {
     }
     
     public static void main(String[] args) {
+        if (args.length > 0 && !args[0].equals("--interactive")) {
+            SedCommandLine commandLine = new SedCommandLine(new RealSedEngine(), System.in, System.out, System.err);
+            System.exit(commandLine.run(args));
+        }
+        
         System.out.println("=== Sed MCP CLI Tool ===");
         System.out.println("Because sometimes you need to test things the hard way.");
         System.out.println();
         
-        SedEngine engine = new MockSedEngine();
+        SedEngine engine = new RealSedEngine();
         SedCli cli = new SedCli(engine);
         cli.run();
     }
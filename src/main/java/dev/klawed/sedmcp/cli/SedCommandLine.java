@@ -0,0 +1,425 @@
+package dev.klawed.sedmcp.cli;
+
+import dev.klawed.sedmcp.script.SedProgram;
+import dev.klawed.sedmcp.script.SedScriptParser;
+import dev.klawed.sedmcp.script.SedStreamExecutor;
+import dev.klawed.sedmcp.service.SedEngineException;
+import dev.klawed.sedmcp.service.impl.RealSedEngine;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Non-interactive, sed-compatible command line: {@code sedmcp [-n] [-E]
+ * [-i[SUFFIX]] [-e script]... [-f file]... [script] [file...]}. Input is
+ * streamed through {@link RealSedEngine#executeStream} with large buffers, so
+ * {@code cat huge.log | sedmcp -n '/ERROR/p'} runs in constant memory and can
+ * be timed head to head against GNU sed.
+ */
+public class SedCommandLine {
+
+    static final int EXIT_OK = 0;
+    static final int EXIT_BAD_USAGE = 1;
+    static final int EXIT_BAD_INPUT = 2;
+    static final int EXIT_IO_ERROR = 4;
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final Charset CHARSET = Charset.forName(System.getProperty("sedmcp.cli.charset", "UTF-8"));
+
+    private final RealSedEngine engine;
+    private final InputStream stdin;
+    private final OutputStream stdout;
+    private final PrintStream stderr;
+
+    private boolean quiet = false;
+    private boolean extended = false;
+    private boolean separate = false;
+    private String inPlaceSuffix = null;
+    private final List<String> scripts = new ArrayList<>();
+    private final List<String> files = new ArrayList<>();
+
+    public SedCommandLine(RealSedEngine engine, InputStream stdin, OutputStream stdout, PrintStream stderr) {
+        this.engine = engine;
+        this.stdin = stdin;
+        this.stdout = stdout;
+        this.stderr = stderr;
+    }
+
+    /**
+     * Run with sed-style arguments.
+     *
+     * @return process exit status, following GNU sed's conventions
+     */
+    public int run(String[] args) {
+        SedProgram program;
+        try {
+            if (!parseArguments(args)) {
+                return EXIT_OK;
+            }
+            if (inPlaceSuffix != null && files.isEmpty()) {
+                throw new IllegalArgumentException("no input files");
+            }
+            program = new SedScriptParser(extended).parse(String.join("\n", scripts));
+        } catch (IllegalArgumentException | SedEngineException e) {
+            stderr.println("sedmcp: " + e.getMessage());
+            return EXIT_BAD_USAGE;
+        } catch (IOException e) {
+            stderr.println("sedmcp: " + e.getMessage());
+            return EXIT_BAD_INPUT;
+        }
+
+        try {
+            if (inPlaceSuffix != null) {
+                return editInPlace(program);
+            }
+            return separate ? streamSeparately(program) : streamConcatenated(program);
+        } catch (IOException e) {
+            stderr.println("sedmcp: " + e.getMessage());
+            return EXIT_IO_ERROR;
+        } catch (SedEngineException e) {
+            stderr.println("sedmcp: " + e.getMessage());
+            return EXIT_BAD_INPUT;
+        }
+    }
+
+    /**
+     * @return false if the arguments only asked for help
+     */
+    private boolean parseArguments(String[] args) throws IOException {
+        boolean optionsDone = false;
+        List<String> operands = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (optionsDone || !arg.startsWith("-") || arg.equals("-")) {
+                operands.add(arg);
+                continue;
+            }
+            if (arg.equals("--")) {
+                optionsDone = true;
+                continue;
+            }
+            if (arg.startsWith("--")) {
+                if (!parseLongOption(arg, args, i)) {
+                    return false;
+                }
+                if (arg.equals("--expression") || arg.equals("--file")) {
+                    i++;
+                }
+                continue;
+            }
+
+            for (int j = 1; j < arg.length(); j++) {
+                char c = arg.charAt(j);
+                switch (c) {
+                    case 'n' -> quiet = true;
+                    case 'E', 'r' -> extended = true;
+                    case 's' -> separate = true;
+                    case 'i' -> {
+                        inPlaceSuffix = arg.substring(j + 1);
+                        j = arg.length();
+                    }
+                    case 'e', 'f' -> {
+                        String value;
+                        if (j + 1 < arg.length()) {
+                            value = arg.substring(j + 1);
+                        } else if (i + 1 < args.length) {
+                            value = args[++i];
+                        } else {
+                            throw new IllegalArgumentException("option requires an argument -- '" + c + "'");
+                        }
+                        addScript(c == 'e' ? value : readScriptFile(value));
+                        j = arg.length();
+                    }
+                    case 'h' -> {
+                        printUsage();
+                        return false;
+                    }
+                    default -> throw new IllegalArgumentException("invalid option -- '" + c + "'");
+                }
+            }
+        }
+
+        if (scripts.isEmpty()) {
+            if (operands.isEmpty()) {
+                throw new IllegalArgumentException("no script specified (try --help)");
+            }
+            addScript(operands.remove(0));
+        }
+        files.addAll(operands);
+        return true;
+    }
+
+    private boolean parseLongOption(String arg, String[] args, int i) throws IOException {
+        String name = arg;
+        String value = null;
+        int eq = arg.indexOf('=');
+        if (eq > 0) {
+            name = arg.substring(0, eq);
+            value = arg.substring(eq + 1);
+        }
+
+        switch (name) {
+            case "--quiet", "--silent" -> quiet = true;
+            case "--regexp-extended" -> extended = true;
+            case "--separate" -> separate = true;
+            case "--in-place" -> inPlaceSuffix = value != null ? value : "";
+            case "--expression", "--file" -> {
+                if (value == null) {
+                    if (i + 1 >= args.length) {
+                        throw new IllegalArgumentException("option '" + name + "' requires an argument");
+                    }
+                    value = args[i + 1];
+                }
+                addScript(name.equals("--expression") ? value : readScriptFile(value));
+            }
+            case "--help" -> {
+                printUsage();
+                return false;
+            }
+            default -> throw new IllegalArgumentException("unrecognized option '" + arg + "'");
+        }
+        return true;
+    }
+
+    private void addScript(String script) {
+        scripts.add(script);
+    }
+
+    private String readScriptFile(String name) throws IOException {
+        if (name.equals("-")) {
+            return new String(stdin.readAllBytes(), CHARSET);
+        }
+        return Files.readString(Path.of(name), CHARSET);
+    }
+
+    private int streamConcatenated(SedProgram program) throws IOException {
+        List<String> inputs = files.isEmpty() ? List.of("-") : files;
+        int status = EXIT_OK;
+        List<Path> readable = new ArrayList<>();
+        for (String name : inputs) {
+            if (!name.equals("-") && !Files.isReadable(Path.of(name))) {
+                stderr.println("sedmcp: can't read " + name + ": No such file or directory");
+                status = EXIT_BAD_INPUT;
+                continue;
+            }
+            readable.add(name.equals("-") ? null : Path.of(name));
+        }
+
+        Writer out = openStdout();
+        try (Reader in = new ConcatenatingReader(readable)) {
+            SedStreamExecutor.Stats stats = engine.executeStream(in, out, program, quiet);
+            if (stats.getExitCode() != 0) {
+                status = stats.getExitCode();
+            }
+        }
+        out.flush();
+        return status;
+    }
+
+    private int streamSeparately(SedProgram program) throws IOException {
+        List<String> inputs = files.isEmpty() ? List.of("-") : files;
+        int status = EXIT_OK;
+        Writer out = openStdout();
+        for (String name : inputs) {
+            if (!name.equals("-") && !Files.isReadable(Path.of(name))) {
+                stderr.println("sedmcp: can't read " + name + ": No such file or directory");
+                status = EXIT_BAD_INPUT;
+                continue;
+            }
+            try (Reader in = name.equals("-") ? openStdin() : openFile(Path.of(name))) {
+                SedStreamExecutor.Stats stats = engine.executeStream(in, out, program, quiet);
+                if (stats.getExitCode() != 0) {
+                    status = stats.getExitCode();
+                }
+            }
+        }
+        out.flush();
+        return status;
+    }
+
+    private int editInPlace(SedProgram program) throws IOException {
+        int status = EXIT_OK;
+        for (String name : files) {
+            Path file = Path.of(name).toAbsolutePath();
+            if (!Files.isRegularFile(file) || !Files.isReadable(file)) {
+                stderr.println("sedmcp: can't read " + name + ": No such file or directory");
+                status = EXIT_BAD_INPUT;
+                continue;
+            }
+
+            Path tmp = Files.createTempFile(file.getParent(), "sedmcp", ".tmp");
+            try {
+                try {
+                    rewrite(file, tmp, program, CHARSET);
+                } catch (CharacterCodingException e) {
+                    // not text in our charset: edit it byte for byte, as GNU sed does in the C locale
+                    rewrite(file, tmp, program, StandardCharsets.ISO_8859_1);
+                }
+                copyPermissions(file, tmp);
+
+                if (!inPlaceSuffix.isEmpty()) {
+                    Files.move(file, backupPath(file), StandardCopyOption.REPLACE_EXISTING);
+                }
+                try {
+                    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Run the script over a file into tmp, decoding strictly, so that a byte
+     * the charset cannot read fails the run instead of being written back
+     * as U+FFFD. Scripts have no side effects, so running one again is safe.
+     */
+    private void rewrite(Path file, Path tmp, SedProgram program, Charset charset) throws IOException {
+        CharsetDecoder strict = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        try (Reader in = Channels.newReader(FileChannel.open(file, StandardOpenOption.READ), strict, BUFFER_SIZE);
+             Writer out = new BufferedWriter(new OutputStreamWriter(
+                     Files.newOutputStream(tmp, StandardOpenOption.TRUNCATE_EXISTING), charset), BUFFER_SIZE)) {
+            engine.executeStream(in, out, program, quiet);
+        }
+    }
+
+    /**
+     * GNU semantics: a '*' in the suffix is replaced by the file name,
+     * otherwise the suffix is appended.
+     */
+    private Path backupPath(Path file) {
+        String name = file.getFileName().toString();
+        String backup = inPlaceSuffix.contains("*") ? inPlaceSuffix.replace("*", name) : name + inPlaceSuffix;
+        return file.resolveSibling(backup);
+    }
+
+    private static void copyPermissions(Path from, Path to) {
+        try {
+            Files.setPosixFilePermissions(to, Files.getPosixFilePermissions(from));
+        } catch (UnsupportedOperationException | IOException e) {
+            // Not a POSIX filesystem; the temp file's defaults will have to do
+        }
+    }
+
+    private Writer openStdout() {
+        return new BufferedWriter(new OutputStreamWriter(stdout, CHARSET), BUFFER_SIZE);
+    }
+
+    private Reader openStdin() {
+        return Channels.newReader(Channels.newChannel(stdin), decoder(), BUFFER_SIZE);
+    }
+
+    private static Reader openFile(Path path) throws IOException {
+        return Channels.newReader(FileChannel.open(path, StandardOpenOption.READ), decoder(), BUFFER_SIZE);
+    }
+
+    /**
+     * Lenient decoder: a stray invalid byte in a log file should not abort the whole run.
+     * Only for output that goes to stdout; in-place edits decode strictly.
+     */
+    private static CharsetDecoder decoder() {
+        return CHARSET.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    private void printUsage() {
+        PrintStream out = new PrintStream(stdout, true, StandardCharsets.UTF_8);
+        out.println("Usage: sedmcp [OPTION]... {script-only-if-no-other-script} [input-file]...");
+        out.println();
+        out.println("  -n, --quiet, --silent    suppress automatic printing of pattern space");
+        out.println("  -e script, --expression=script");
+        out.println("                           add the script to the commands to be executed");
+        out.println("  -f file, --file=file     add the contents of file to the commands to be executed");
+        out.println("  -i[SUFFIX], --in-place[=SUFFIX]");
+        out.println("                           edit files in place (makes backup if SUFFIX supplied)");
+        out.println("  -E, -r, --regexp-extended");
+        out.println("                           use extended regular expressions in the script");
+        out.println("  -s, --separate           consider files as separate rather than as a single stream");
+        out.println("      --help               display this help and exit");
+        out.println();
+        out.println("Run without arguments for the interactive menu.");
+    }
+
+    /**
+     * Reads several inputs back to back as one stream, opening each only
+     * when the previous one is exhausted. Like sed, a file that does not end
+     * in a newline gets one before the next file starts.
+     */
+    private class ConcatenatingReader extends Reader {
+        private final List<Path> inputs;
+        private int next = 0;
+        private Reader current;
+        private boolean currentEndsWithNewline = true;
+        private boolean pendingNewline = false;
+
+        ConcatenatingReader(List<Path> inputs) {
+            this.inputs = inputs;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (true) {
+                if (pendingNewline) {
+                    pendingNewline = false;
+                    cbuf[off] = '\n';
+                    currentEndsWithNewline = true;
+                    return 1;
+                }
+                if (current == null) {
+                    if (next >= inputs.size()) {
+                        return -1;
+                    }
+                    Path path = inputs.get(next++);
+                    current = path == null ? openStdin() : openFile(path);
+                }
+                int n = current.read(cbuf, off, len);
+                if (n > 0) {
+                    currentEndsWithNewline = cbuf[off + n - 1] == '\n';
+                    return n;
+                }
+                current.close();
+                current = null;
+                if (!currentEndsWithNewline && next < inputs.size()) {
+                    pendingNewline = true;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (current != null) {
+                current.close();
+            }
+        }
+    }
+}
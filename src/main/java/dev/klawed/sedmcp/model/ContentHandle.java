@@ -0,0 +1,110 @@
+package dev.klawed.sedmcp.model;
+
+import java.util.Objects;
+
+/**
+ * Short reference to a piece of content the server has already seen, so
+ * clients can say "that text from before" instead of shipping megabytes of
+ * it back over the wire. Rendered as {@code <id>-<hash>}, where the hash lets
+ * the server notice if it is being handed a stale or foreign reference.
+ */
+public final class ContentHandle {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private final String id;
+    private final long hash;
+    private final int length;
+
+    public ContentHandle(String id, long hash, int length) {
+        this.id = Objects.requireNonNull(id, "Handle id cannot be null");
+        this.hash = hash;
+        this.length = length;
+    }
+
+    public String getId() { return id; }
+    public long getHash() { return hash; }
+    public int getLength() { return length; }
+
+    /**
+     * Parse a reference produced by {@link #toString()}. A bare id without a
+     * hash is accepted too; the hash is then reported as 0.
+     *
+     * @throws IllegalArgumentException if the reference is malformed
+     */
+    public static ContentHandle parse(String ref) {
+        if (ref == null || ref.isBlank()) {
+            throw new IllegalArgumentException("Content reference cannot be empty");
+        }
+        int dash = ref.lastIndexOf('-');
+        if (dash < 0) {
+            return new ContentHandle(ref, 0, -1);
+        }
+        try {
+            return new ContentHandle(ref.substring(0, dash), Long.parseUnsignedLong(ref.substring(dash + 1), 16), -1);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed content reference: " + ref);
+        }
+    }
+
+    /**
+     * 64-bit MurmurHash3-style hash of the characters of a text. Not
+     * cryptographic, just fast and well distributed enough to key caches.
+     */
+    public static long hash(CharSequence text) {
+        int length = text.length();
+        long h = 0x9e3779b97f4a7c15L ^ length;
+        int i = 0;
+
+        for (; i + 4 <= length; i += 4) {
+            long k = text.charAt(i)
+                    | (long) text.charAt(i + 1) << 16
+                    | (long) text.charAt(i + 2) << 32
+                    | (long) text.charAt(i + 3) << 48;
+            h ^= mixK(k);
+            h = Long.rotateLeft(h, 27) * 5 + 0x52dce729;
+        }
+
+        long tail = 0;
+        for (int shift = 0; i < length; i++, shift += 16) {
+            tail |= (long) text.charAt(i) << shift;
+        }
+        h ^= mixK(tail);
+
+        return fmix(h);
+    }
+
+    private static long mixK(long k) {
+        k *= C1;
+        k = Long.rotateLeft(k, 31);
+        return k * C2;
+    }
+
+    private static long fmix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ContentHandle that = (ContentHandle) o;
+        return hash == that.hash && id.equals(that.id);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id, hash);
+    }
+
+    @Override
+    public String toString() {
+        return id + "-" + Long.toHexString(hash);
+    }
+}
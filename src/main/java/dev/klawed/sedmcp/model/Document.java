@@ -0,0 +1,73 @@
+package dev.klawed.sedmcp.model;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The text a batch of operations works on. Wraps a {@link PieceTable} over
+ * the original content, so each operation reads the current text through
+ * {@link #text()}, describes its changes as edits, and applies them in
+ * place. Nothing is copied between steps; the final text is built once,
+ * by {@link #toString()}, or never, if you {@link #writeTo} it instead.
+ *
+ * <p>Not thread-safe. One batch, one document.
+ */
+public final class Document {
+
+    private final String original;
+    private final PieceTable table;
+    private int editsApplied;
+
+    public Document(String original) {
+        this.original = original;
+        this.table = new PieceTable(original);
+    }
+
+    /**
+     * Read-only view of the current text: the original String until the first
+     * edit, the piece table after that. Cheap to read sequentially, which is
+     * what regex matching does; fetch it again after each edit.
+     */
+    public CharSequence text() {
+        return editsApplied == 0 ? original : table;
+    }
+
+    public String getOriginal() {
+        return original;
+    }
+
+    public int length() {
+        return table.length();
+    }
+
+    /**
+     * Apply one operation's edits. Offsets refer to the text as it was before
+     * this call, sorted and non-overlapping; see {@link PieceTable#apply}.
+     */
+    public void apply(List<PieceTable.Edit> edits) {
+        table.apply(edits);
+        editsApplied += edits.size();
+    }
+
+    /**
+     * Number of edits applied so far. Zero means the text is still the original.
+     */
+    public int getEditsApplied() {
+        return editsApplied;
+    }
+
+    /**
+     * Stream the current text without materializing it.
+     */
+    public void writeTo(Appendable out) throws IOException {
+        table.writeTo(out);
+    }
+
+    /**
+     * The current text as a String, built once and cached until the next edit.
+     */
+    @Override
+    public String toString() {
+        return editsApplied == 0 ? original : table.toString();
+    }
+}
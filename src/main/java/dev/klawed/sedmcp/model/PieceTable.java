@@ -0,0 +1,310 @@
+package dev.klawed.sedmcp.model;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Editable text as a piece table: the original buffer is never copied or
+ * modified, inserted text goes into an append-only add buffer, and the
+ * document is a list of pieces pointing into one or the other. Inserting a
+ * line near the top of a 50 MB file costs the size of the line, not 50 MB.
+ *
+ * <p>Edits can be applied one at a time ({@link #insert}, {@link #delete},
+ * {@link #replace}) or, much cheaper when there are many, as a sorted batch
+ * through {@link #apply(List)}, which rebuilds the piece list in one pass.
+ * Nothing is materialized until {@link #toString()} or {@link #writeTo}.
+ *
+ * <p>Not thread-safe.
+ */
+public final class PieceTable implements CharSequence {
+
+    /**
+     * One edit against the current text: replace {@code length} chars at
+     * {@code offset} with {@code text}. Pure inserts have length 0, pure
+     * deletes have empty text.
+     */
+    public static final class Edit {
+        private final int offset;
+        private final int length;
+        private final String text;
+
+        private Edit(int offset, int length, String text) {
+            if (offset < 0 || length < 0) {
+                throw new IllegalArgumentException("Negative offset or length");
+            }
+            this.offset = offset;
+            this.length = length;
+            this.text = text;
+        }
+
+        public static Edit insert(int offset, String text) {
+            return new Edit(offset, 0, text);
+        }
+
+        public static Edit delete(int offset, int length) {
+            return new Edit(offset, length, "");
+        }
+
+        public static Edit replace(int offset, int length, String text) {
+            return new Edit(offset, length, text);
+        }
+
+        public int getOffset() { return offset; }
+        public int getLength() { return length; }
+        public String getText() { return text; }
+    }
+
+    private final String original;
+    private final StringBuilder added = new StringBuilder();
+
+    // pieces as parallel arrays: which buffer, where in it, how long
+    private boolean[] inAdded;
+    private int[] starts;
+    private int[] lengths;
+    private int count;
+
+    private int length;
+    // cumulative start offsets, rebuilt lazily for charAt
+    private int[] offsets;
+    // piece of the last charAt; regex matching reads mostly forwards
+    private int cursor;
+    private String materialized;
+
+    public PieceTable(String original) {
+        this.original = original;
+        int capacity = 8;
+        this.inAdded = new boolean[capacity];
+        this.starts = new int[capacity];
+        this.lengths = new int[capacity];
+        if (!original.isEmpty()) {
+            push(false, 0, original.length());
+        }
+        this.length = original.length();
+        this.materialized = original;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+        }
+        if (materialized != null) {
+            return materialized.charAt(index);
+        }
+        int piece = pieceAt(index);
+        int at = starts[piece] + (index - offsets[piece]);
+        return inAdded[piece] ? added.charAt(at) : original.charAt(at);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("range [" + start + ", " + end + "), length " + length);
+        }
+        StringBuilder sb = new StringBuilder(end - start);
+        appendRange(sb, start, end);
+        return sb.toString();
+    }
+
+    /**
+     * The whole text as a String. Cached until the next edit.
+     */
+    @Override
+    public String toString() {
+        if (materialized == null) {
+            StringBuilder sb = new StringBuilder(length);
+            appendRange(sb, 0, length);
+            materialized = sb.toString();
+        }
+        return materialized;
+    }
+
+    /**
+     * Stream the text without building it as one String first.
+     */
+    public void writeTo(Appendable out) throws IOException {
+        for (int i = 0; i < count; i++) {
+            CharSequence buffer = inAdded[i] ? added : original;
+            out.append(buffer, starts[i], starts[i] + lengths[i]);
+        }
+    }
+
+    public void insert(int offset, String text) {
+        apply(List.of(Edit.insert(offset, text)));
+    }
+
+    public void delete(int offset, int length) {
+        apply(List.of(Edit.delete(offset, length)));
+    }
+
+    public void replace(int offset, int length, String text) {
+        apply(List.of(Edit.replace(offset, length, text)));
+    }
+
+    /**
+     * Apply a batch of edits in one pass over the pieces. Offsets refer to
+     * the text before any of the edits; edits must be sorted by offset and
+     * must not overlap (two inserts at the same offset are fine and keep
+     * their order).
+     */
+    public void apply(List<Edit> edits) {
+        if (edits.isEmpty()) {
+            return;
+        }
+        int end = 0;
+        for (Edit edit : edits) {
+            if (edit.offset < end || edit.offset + edit.length > length) {
+                throw new IllegalArgumentException("Edits must be sorted, non-overlapping and within the text");
+            }
+            end = edit.offset + edit.length;
+        }
+
+        boolean[] oldInAdded = inAdded;
+        int[] oldStarts = starts;
+        int[] oldLengths = lengths;
+        int oldCount = count;
+
+        int capacity = Math.max(8, oldCount + edits.size() * 2 + 1);
+        inAdded = new boolean[capacity];
+        starts = new int[capacity];
+        lengths = new int[capacity];
+        count = 0;
+
+        int piece = 0;          // current old piece
+        int consumed = 0;       // chars of the current old piece already copied or skipped
+        int position = 0;       // offset in the old text we have reached
+        int newLength = length;
+
+        for (Edit edit : edits) {
+            // copy old text up to the edit
+            while (position < edit.offset) {
+                int available = oldLengths[piece] - consumed;
+                int take = Math.min(available, edit.offset - position);
+                push(oldInAdded[piece], oldStarts[piece] + consumed, take);
+                consumed += take;
+                position += take;
+                if (consumed == oldLengths[piece]) {
+                    piece++;
+                    consumed = 0;
+                }
+            }
+
+            if (!edit.text.isEmpty()) {
+                int start = added.length();
+                added.append(edit.text);
+                push(true, start, edit.text.length());
+            }
+
+            // skip the replaced span
+            int skip = edit.length;
+            while (skip > 0) {
+                int available = oldLengths[piece] - consumed;
+                int take = Math.min(available, skip);
+                consumed += take;
+                position += take;
+                skip -= take;
+                if (consumed == oldLengths[piece]) {
+                    piece++;
+                    consumed = 0;
+                }
+            }
+
+            newLength += edit.text.length() - edit.length;
+        }
+
+        // and the rest
+        if (piece < oldCount && consumed > 0) {
+            push(oldInAdded[piece], oldStarts[piece] + consumed, oldLengths[piece] - consumed);
+            piece++;
+        }
+        for (; piece < oldCount; piece++) {
+            push(oldInAdded[piece], oldStarts[piece], oldLengths[piece]);
+        }
+
+        length = newLength;
+        offsets = null;
+        materialized = null;
+    }
+
+    /**
+     * Number of pieces; a rough measure of how fragmented the table is.
+     */
+    public int pieceCount() {
+        return count;
+    }
+
+    /**
+     * Chars held in the add buffer, i.e. what edits have cost in memory so far.
+     */
+    public int addedLength() {
+        return added.length();
+    }
+
+    private void push(boolean fromAdded, int start, int len) {
+        if (len == 0) {
+            return;
+        }
+        // extend the previous piece when the new one continues it
+        if (count > 0 && inAdded[count - 1] == fromAdded && starts[count - 1] + lengths[count - 1] == start) {
+            lengths[count - 1] += len;
+            return;
+        }
+        if (count == starts.length) {
+            int capacity = count * 2;
+            inAdded = Arrays.copyOf(inAdded, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+        }
+        inAdded[count] = fromAdded;
+        starts[count] = start;
+        lengths[count] = len;
+        count++;
+    }
+
+    private int pieceAt(int index) {
+        if (offsets == null) {
+            offsets = new int[count];
+            int offset = 0;
+            for (int i = 0; i < count; i++) {
+                offsets[i] = offset;
+                offset += lengths[i];
+            }
+            cursor = 0;
+        }
+        if (index >= offsets[cursor]) {
+            if (index < offsets[cursor] + lengths[cursor]) {
+                return cursor;
+            }
+            if (cursor + 1 < count && index < offsets[cursor + 1] + lengths[cursor + 1]) {
+                return ++cursor;
+            }
+        }
+        int found = Arrays.binarySearch(offsets, 0, count, index);
+        cursor = found >= 0 ? found : -found - 2;
+        return cursor;
+    }
+
+    private void appendRange(StringBuilder sb, int start, int end) {
+        if (materialized != null) {
+            sb.append(materialized, start, end);
+            return;
+        }
+        int offset = 0;
+        for (int i = 0; i < count && offset < end; i++) {
+            int pieceEnd = offset + lengths[i];
+            if (pieceEnd > start) {
+                int from = Math.max(start, offset) - offset;
+                int to = Math.min(end, pieceEnd) - offset;
+                CharSequence buffer = inAdded[i] ? added : original;
+                sb.append(buffer, starts[i] + from, starts[i] + to);
+            }
+            offset = pieceEnd;
+        }
+    }
+}
@@ -42,6 +42,7 @@ public class SedOperation {
     private final String flags;
     private final String address;
     private final String text; // for insert/append/change operations
+    private final int window; // lines a s/d/p match may span, 0 for the default behaviour
     
     private SedOperation(Builder builder) {
         this.operation = Objects.requireNonNull(builder.operation, "Operation cannot be null");
@@ -50,6 +51,7 @@ public class SedOperation {
         this.flags = builder.flags != null ? builder.flags : "";
         this.address = builder.address;
         this.text = builder.text;
+        this.window = builder.window;
         
         validateOperation();
     }
@@ -84,11 +86,32 @@ public class SedOperation {
     public String getFlags() { return flags; }
     public String getAddress() { return address; }
     public String getText() { return text; }
+    public int getWindow() { return window; }
     
     public boolean hasFlag(char flag) {
         return flags.indexOf(flag) >= 0;
     }
-    
+
+    /**
+     * The match a substitution starts at, from a numeric flag: {@code 3}
+     * replaces the third match only, {@code 3g} the third and every one
+     * after it. Counted over the whole text, or within each line with
+     * {@code l}. 1 when there is no number; all digits in the flags are
+     * read as one number, so the engine rejects flags with two.
+     */
+    public int getOccurrence() {
+        long occurrence = 0;
+        boolean numbered = false;
+        for (int i = 0; i < flags.length(); i++) {
+            char c = flags.charAt(i);
+            if (c >= '0' && c <= '9') {
+                occurrence = Math.min(occurrence * 10 + (c - '0'), Integer.MAX_VALUE);
+                numbered = true;
+            }
+        }
+        return numbered ? (int) occurrence : 1;
+    }
+
     public static Builder builder() {
         return new Builder();
     }
@@ -100,6 +123,7 @@ public class SedOperation {
         private String flags;
         private String address;
         private String text;
+        private int window;
         
         public Builder operation(OperationType operation) {
             this.operation = operation;
@@ -131,6 +155,15 @@ public class SedOperation {
             return this;
         }
         
+        /**
+         * Match across up to this many lines, streaming through a sliding
+         * window instead of working on the whole content. s, d and p only.
+         */
+        public Builder window(int window) {
+            this.window = window;
+            return this;
+        }
+        
         public SedOperation build() {
             return new SedOperation(this);
         }
@@ -146,17 +179,18 @@ public class SedOperation {
                Objects.equals(replacement, that.replacement) &&
                Objects.equals(flags, that.flags) &&
                Objects.equals(address, that.address) &&
-               Objects.equals(text, that.text);
+               Objects.equals(text, that.text) &&
+               window == that.window;
     }
     
     @Override
     public int hashCode() {
-        return Objects.hash(operation, pattern, replacement, flags, address, text);
+        return Objects.hash(operation, pattern, replacement, flags, address, text, window);
     }
     
     @Override
     public String toString() {
-        return String.format("SedOperation{op=%s, pattern='%s', replacement='%s', flags='%s', address='%s', text='%s'}", 
-                             operation, pattern, replacement, flags, address, text);
+        return String.format("SedOperation{op=%s, pattern='%s', replacement='%s', flags='%s', address='%s', text='%s', window=%d}", 
+                             operation, pattern, replacement, flags, address, text, window);
     }
 }
\ No newline at end of file
@@ -7,11 +7,16 @@ import java.util.Objects;
 /**
  * Result of applying sed operations. Because we need to track every single 
  * change like some kind of obsessive text editing accountant.
+ * 
+ * The content may live off the heap (see
+ * {@link dev.klawed.sedmcp.service.impl.OffHeapText}) when it is large:
+ * {@link #getModifiedText()} is a view of it, while
+ * {@link #getModifiedContent()} copies it back into a String.
  */
 public class SedResult {
     
-    private final String originalContent;
-    private final String modifiedContent;
+    private final CharSequence originalContent;
+    private final CharSequence modifiedContent;
     private final List<String> changesApplied;
     private final int linesModified;
     private final boolean success;
@@ -30,8 +35,10 @@ public class SedResult {
         this.executionTimeMs = builder.executionTimeMs;
     }
     
-    public String getOriginalContent() { return originalContent; }
-    public String getModifiedContent() { return modifiedContent; }
+    public String getOriginalContent() { return originalContent.toString(); }
+    public String getModifiedContent() { return modifiedContent.toString(); }
+    public CharSequence getOriginalText() { return originalContent; }
+    public CharSequence getModifiedText() { return modifiedContent; }
     public List<String> getChangesApplied() { return new ArrayList<>(changesApplied); }
     public int getLinesModified() { return linesModified; }
     public boolean isSuccess() { return success; }
@@ -45,7 +52,11 @@ public class SedResult {
     }
     
     public boolean isModified() {
-        return !Objects.equals(originalContent, modifiedContent);
+        return !contentEquals(originalContent, modifiedContent);
+    }
+    
+    private static boolean contentEquals(CharSequence a, CharSequence b) {
+        return a == b || (a.length() == b.length() && CharSequence.compare(a, b) == 0);
     }
     
     public static Builder builder() {
@@ -70,8 +81,8 @@ public class SedResult {
     }
     
     public static class Builder {
-        private String originalContent = "";
-        private String modifiedContent = "";
+        private CharSequence originalContent = "";
+        private CharSequence modifiedContent = "";
         private List<String> changesApplied = new ArrayList<>();
         private int linesModified = 0;
         private boolean success = false;
@@ -80,11 +91,19 @@ public class SedResult {
         private long executionTimeMs = 0;
         
         public Builder originalContent(String originalContent) {
+            return originalText(originalContent);
+        }
+        
+        public Builder modifiedContent(String modifiedContent) {
+            return modifiedText(modifiedContent);
+        }
+        
+        public Builder originalText(CharSequence originalContent) {
             this.originalContent = originalContent != null ? originalContent : "";
             return this;
         }
         
-        public Builder modifiedContent(String modifiedContent) {
+        public Builder modifiedText(CharSequence modifiedContent) {
             this.modifiedContent = modifiedContent != null ? modifiedContent : "";
             return this;
         }
@@ -148,8 +167,8 @@ public class SedResult {
         return linesModified == sedResult.linesModified &&
                success == sedResult.success &&
                executionTimeMs == sedResult.executionTimeMs &&
-               Objects.equals(originalContent, sedResult.originalContent) &&
-               Objects.equals(modifiedContent, sedResult.modifiedContent) &&
+               contentEquals(originalContent, sedResult.originalContent) &&
+               contentEquals(modifiedContent, sedResult.modifiedContent) &&
                Objects.equals(changesApplied, sedResult.changesApplied) &&
                Objects.equals(errorMessage, sedResult.errorMessage) &&
                Objects.equals(warnings, sedResult.warnings);
@@ -157,7 +176,8 @@ public class SedResult {
     
     @Override
     public int hashCode() {
-        return Objects.hash(originalContent, modifiedContent, changesApplied, 
+        // lengths, not content: an off-heap CharSequence has no content hashCode
+        return Objects.hash(originalContent.length(), modifiedContent.length(), changesApplied, 
                           linesModified, success, errorMessage, warnings, executionTimeMs);
     }
     
@@ -0,0 +1,132 @@
+package dev.klawed.sedmcp.model;
+
+import java.util.Objects;
+
+/**
+ * A text with one span replaced, kept as the three parts instead of copied:
+ * what a substitution without {@code g} produces. Changing one word near the
+ * top of a 50 MB file is the word, plus two references to the original.
+ *
+ * <p>Reads as a {@link CharSequence}; a slice that falls within one part is
+ * a slice of that part. {@link #toString()} builds the whole text, once.
+ */
+public final class SplicedText implements CharSequence {
+
+    private final CharSequence base;
+    private final int from;
+    private final int to;
+    private final String insert;
+    private final int length;
+    private String materialized;
+
+    /**
+     * {@code base} with [{@code from}, {@code to}) replaced by {@code insert}.
+     */
+    public SplicedText(CharSequence base, int from, int to, String insert) {
+        Objects.checkFromToIndex(from, to, base.length());
+        this.base = base;
+        this.from = from;
+        this.to = to;
+        this.insert = insert;
+        this.length = base.length() - (to - from) + insert.length();
+    }
+
+    /**
+     * The same splice over another copy of the base text, such as one moved
+     * off the heap.
+     */
+    public SplicedText rebase(CharSequence copy) {
+        if (copy.length() != base.length()) {
+            throw new IllegalArgumentException("Base length " + copy.length() + ", expected " + base.length());
+        }
+        return new SplicedText(copy, from, to, insert);
+    }
+
+    public CharSequence getBase() {
+        return base;
+    }
+
+    public String getInserted() {
+        return insert;
+    }
+
+    /** Where the replaced span started in the base. */
+    public int getFrom() {
+        return from;
+    }
+
+    /** Where the replaced span ended in the base. */
+    public int getTo() {
+        return to;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        Objects.checkIndex(index, length);
+        if (index < from) {
+            return base.charAt(index);
+        }
+        int inInsert = index - from;
+        return inInsert < insert.length() ? insert.charAt(inInsert) : base.charAt(to + inInsert - insert.length());
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        Objects.checkFromToIndex(start, end, length);
+        int suffixStart = from + insert.length();
+        if (end <= from) {
+            return base.subSequence(start, end);
+        }
+        if (start >= suffixStart) {
+            return base.subSequence(to + start - suffixStart, to + end - suffixStart);
+        }
+        if (start >= from && end <= suffixStart) {
+            return insert.substring(start - from, end - from);
+        }
+        StringBuilder sb = new StringBuilder(end - start);
+        appendRange(sb, start, end);
+        return sb.toString();
+    }
+
+    /**
+     * Append the text part by part, without building it as one String first.
+     */
+    public void appendTo(StringBuilder out) {
+        if (materialized != null) {
+            out.append(materialized);
+        } else {
+            appendRange(out, 0, length);
+        }
+    }
+
+    /**
+     * The whole text as a String. Built on first call and kept.
+     */
+    @Override
+    public String toString() {
+        if (materialized == null) {
+            StringBuilder sb = new StringBuilder(length);
+            appendRange(sb, 0, length);
+            materialized = sb.toString();
+        }
+        return materialized;
+    }
+
+    private void appendRange(StringBuilder out, int start, int end) {
+        int suffixStart = from + insert.length();
+        if (start < from) {
+            out.append(base, start, Math.min(end, from));
+        }
+        if (start < suffixStart && end > from) {
+            out.append(insert, Math.max(start, from) - from, Math.min(end, suffixStart) - from);
+        }
+        if (end > suffixStart) {
+            out.append(base, to + Math.max(start, suffixStart) - suffixStart, to + end - suffixStart);
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package dev.klawed.sedmcp.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A compact, reversible description of how one text became another. Only the
+ * spans that actually changed are stored (with their offsets in both versions),
+ * so keeping a patch around costs memory proportional to the edit rather than
+ * to the document. Which matters when the document is a 50 MB log file and the
+ * edit was one character.
+ */
+public final class TextPatch {
+
+    /** Middles smaller than this are stored as a single hunk without line alignment. */
+    private static final int LINE_DIFF_THRESHOLD = 4096;
+
+    /** How many lines ahead we look for a resync point after a mismatch. */
+    private static final int RESYNC_WINDOW = 32;
+
+    /**
+     * One changed span: {@code removed} sat at {@code beforeOffset} in the old
+     * text and was replaced by {@code inserted} at {@code afterOffset} in the new one.
+     */
+    public static final class Hunk {
+        private final int beforeOffset;
+        private final int afterOffset;
+        private final String removed;
+        private final String inserted;
+
+        Hunk(int beforeOffset, int afterOffset, String removed, String inserted) {
+            this.beforeOffset = beforeOffset;
+            this.afterOffset = afterOffset;
+            this.removed = removed;
+            this.inserted = inserted;
+        }
+
+        public int getBeforeOffset() { return beforeOffset; }
+        public int getAfterOffset() { return afterOffset; }
+        public String getRemoved() { return removed; }
+        public String getInserted() { return inserted; }
+    }
+
+    private final List<Hunk> hunks;
+    private final int beforeLength;
+    private final int afterLength;
+    private final int beforeHash;
+    private final int afterHash;
+
+    private TextPatch(List<Hunk> hunks, String before, String after) {
+        this.hunks = Collections.unmodifiableList(hunks);
+        this.beforeLength = before.length();
+        this.afterLength = after.length();
+        this.beforeHash = before.hashCode();
+        this.afterHash = after.hashCode();
+    }
+
+    /**
+     * Compute the patch that turns {@code before} into {@code after}.
+     */
+    public static TextPatch diff(String before, String after) {
+        List<Hunk> hunks = new ArrayList<>();
+
+        int prefix = commonPrefix(before, 0, before.length(), after, 0, after.length());
+        int suffix = commonSuffix(before, prefix, before.length(), after, prefix, after.length());
+        int beforeEnd = before.length() - suffix;
+        int afterEnd = after.length() - suffix;
+
+        if (prefix < beforeEnd || prefix < afterEnd) {
+            if (beforeEnd - prefix < LINE_DIFF_THRESHOLD && afterEnd - prefix < LINE_DIFF_THRESHOLD) {
+                hunks.add(new Hunk(prefix, prefix, before.substring(prefix, beforeEnd), after.substring(prefix, afterEnd)));
+            } else {
+                diffLines(before, prefix, beforeEnd, after, prefix, afterEnd, hunks);
+            }
+        }
+
+        return new TextPatch(hunks, before, after);
+    }
+
+    /**
+     * Apply the patch forwards (redo).
+     *
+     * @throws IllegalStateException if {@code before} is not the text this patch was made from
+     */
+    public String apply(String before) {
+        if (!matches(before, beforeLength, beforeHash)) {
+            throw new IllegalStateException("Content does not match the state this patch was recorded against");
+        }
+        StringBuilder sb = new StringBuilder(afterLength);
+        int pos = 0;
+        for (Hunk hunk : hunks) {
+            sb.append(before, pos, hunk.beforeOffset).append(hunk.inserted);
+            pos = hunk.beforeOffset + hunk.removed.length();
+        }
+        sb.append(before, pos, before.length());
+        return sb.toString();
+    }
+
+    /**
+     * Apply the patch backwards (undo).
+     *
+     * @throws IllegalStateException if {@code after} is not the text this patch produced
+     */
+    public String revert(String after) {
+        if (!matches(after, afterLength, afterHash)) {
+            throw new IllegalStateException("Content has changed since this edit was recorded");
+        }
+        StringBuilder sb = new StringBuilder(beforeLength);
+        int pos = 0;
+        for (Hunk hunk : hunks) {
+            sb.append(after, pos, hunk.afterOffset).append(hunk.removed);
+            pos = hunk.afterOffset + hunk.inserted.length();
+        }
+        sb.append(after, pos, after.length());
+        return sb.toString();
+    }
+
+    public boolean canApply(String before) {
+        return matches(before, beforeLength, beforeHash);
+    }
+
+    public boolean canRevert(String after) {
+        return matches(after, afterLength, afterHash);
+    }
+
+    public List<Hunk> getHunks() { return hunks; }
+    public boolean isEmpty() { return hunks.isEmpty(); }
+
+    /**
+     * Rough heap footprint of the stored spans, in bytes.
+     */
+    public long estimatedBytes() {
+        long bytes = 32;
+        for (Hunk hunk : hunks) {
+            bytes += 48 + 2L * (hunk.removed.length() + hunk.inserted.length());
+        }
+        return bytes;
+    }
+
+    private static boolean matches(String text, int length, int hash) {
+        return text.length() == length && text.hashCode() == hash;
+    }
+
+    /**
+     * Line-aligned diff of the changed middle section: walk both sides line by
+     * line and, on a mismatch, look ahead a bounded window for the nearest pair
+     * of equal lines to resync on. Good enough for sed-shaped edits (in-line
+     * substitutions, deleted or inserted lines) and linear in the common case.
+     */
+    private static void diffLines(String before, int bStart, int bEnd, String after, int aStart, int aEnd,
+                                  List<Hunk> hunks) {
+        int[] bLines = lineStarts(before, bStart, bEnd);
+        int[] aLines = lineStarts(after, aStart, aEnd);
+        int bCount = bLines.length - 1;
+        int aCount = aLines.length - 1;
+
+        int i = 0;
+        int j = 0;
+        while (i < bCount || j < aCount) {
+            if (i < bCount && j < aCount && sameLine(before, bLines, i, after, aLines, j)) {
+                i++;
+                j++;
+                continue;
+            }
+
+            int hunkI = i;
+            int hunkJ = j;
+            int[] resync = findResync(before, bLines, i, bCount, after, aLines, j, aCount);
+            if (resync == null) {
+                i = bCount;
+                j = aCount;
+            } else {
+                i = resync[0];
+                j = resync[1];
+            }
+            addTrimmedHunk(before, bLines[hunkI], bLines[i], after, aLines[hunkJ], aLines[j], hunks);
+        }
+    }
+
+    private static int[] findResync(String before, int[] bLines, int i, int bCount,
+                                    String after, int[] aLines, int j, int aCount) {
+        for (int distance = 1; distance <= 2 * RESYNC_WINDOW; distance++) {
+            for (int di = Math.max(0, distance - RESYNC_WINDOW); di <= Math.min(distance, RESYNC_WINDOW); di++) {
+                int dj = distance - di;
+                int ni = i + di;
+                int nj = j + dj;
+                if (ni > bCount || nj > aCount) {
+                    continue;
+                }
+                if (ni == bCount && nj == aCount) {
+                    return new int[] {ni, nj};
+                }
+                if (ni < bCount && nj < aCount && sameLine(before, bLines, ni, after, aLines, nj)) {
+                    return new int[] {ni, nj};
+                }
+            }
+        }
+        return null;
+    }
+
+    private static void addTrimmedHunk(String before, int bFrom, int bTo, String after, int aFrom, int aTo,
+                                       List<Hunk> hunks) {
+        int prefix = commonPrefix(before, bFrom, bTo, after, aFrom, aTo);
+        int suffix = commonSuffix(before, bFrom + prefix, bTo, after, aFrom + prefix, aTo);
+        int bOffset = bFrom + prefix;
+        int aOffset = aFrom + prefix;
+        hunks.add(new Hunk(bOffset, aOffset, before.substring(bOffset, bTo - suffix), after.substring(aOffset, aTo - suffix)));
+    }
+
+    /** Line start offsets in [start, end), with {@code end} appended as a sentinel. */
+    private static int[] lineStarts(String text, int start, int end) {
+        int[] starts = new int[16];
+        int count = 0;
+        int pos = start;
+        while (pos < end) {
+            if (count + 1 >= starts.length) {
+                starts = Arrays.copyOf(starts, starts.length * 2);
+            }
+            starts[count++] = pos;
+            int nl = text.indexOf('\n', pos);
+            pos = (nl < 0 || nl >= end) ? end : nl + 1;
+        }
+        starts[count++] = end;
+        return Arrays.copyOf(starts, count);
+    }
+
+    private static boolean sameLine(String before, int[] bLines, int i, String after, int[] aLines, int j) {
+        int bLen = bLines[i + 1] - bLines[i];
+        int aLen = aLines[j + 1] - aLines[j];
+        return bLen == aLen && before.regionMatches(bLines[i], after, aLines[j], bLen);
+    }
+
+    private static int commonPrefix(String a, int aFrom, int aTo, String b, int bFrom, int bTo) {
+        int max = Math.min(aTo - aFrom, bTo - bFrom);
+        int n = 0;
+        while (n < max && a.charAt(aFrom + n) == b.charAt(bFrom + n)) {
+            n++;
+        }
+        return n;
+    }
+
+    private static int commonSuffix(String a, int aFrom, int aTo, String b, int bFrom, int bTo) {
+        int max = Math.min(aTo - aFrom, bTo - bFrom);
+        int n = 0;
+        while (n < max && a.charAt(aTo - 1 - n) == b.charAt(bTo - 1 - n)) {
+            n++;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,80 @@
+package dev.klawed.sedmcp.script;
+
+import java.util.regex.Pattern;
+
+/**
+ * One side of a sed address: a line number, the last line ({@code $}), a
+ * regular expression matched against the pattern space, or one of the GNU
+ * forms ({@code first~step}, {@code 0,/re/}, {@code addr,+N}, {@code addr,~N}).
+ *
+ * <p>A REGEX address with a null pattern means "the last regex used" ({@code //}).
+ */
+final class Address {
+
+    enum Kind {
+        LINE,
+        LAST,
+        REGEX,
+        /** {@code first~step} */
+        STEP,
+        /** Line 0, only valid as the start of {@code 0,/re/} */
+        ZERO,
+        /** {@code +N} as the end of a range */
+        RELATIVE,
+        /** {@code ~N} as the end of a range */
+        MULTIPLE
+    }
+
+    final Kind kind;
+    final long line;
+    final long step;
+    final Pattern regex;
+
+    private Address(Kind kind, long line, long step, Pattern regex) {
+        this.kind = kind;
+        this.line = line;
+        this.step = step;
+        this.regex = regex;
+    }
+
+    static Address line(long line) {
+        return new Address(Kind.LINE, line, 0, null);
+    }
+
+    static Address last() {
+        return new Address(Kind.LAST, 0, 0, null);
+    }
+
+    static Address regex(Pattern regex) {
+        return new Address(Kind.REGEX, 0, 0, regex);
+    }
+
+    static Address step(long first, long step) {
+        return new Address(Kind.STEP, first, step, null);
+    }
+
+    static Address zero() {
+        return new Address(Kind.ZERO, 0, 0, null);
+    }
+
+    static Address relative(long count) {
+        return new Address(Kind.RELATIVE, count, 0, null);
+    }
+
+    static Address multiple(long of) {
+        return new Address(Kind.MULTIPLE, of, 0, null);
+    }
+
+    @Override
+    public String toString() {
+        return switch (kind) {
+            case LINE -> Long.toString(line);
+            case LAST -> "$";
+            case REGEX -> "/" + (regex != null ? regex.pattern() : "") + "/";
+            case STEP -> line + "~" + step;
+            case ZERO -> "0";
+            case RELATIVE -> "+" + line;
+            case MULTIPLE -> "~" + line;
+        };
+    }
+}
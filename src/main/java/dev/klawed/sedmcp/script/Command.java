@@ -0,0 +1,169 @@
+package dev.klawed.sedmcp.script;
+
+import java.util.regex.Pattern;
+
+/**
+ * A single compiled sed command with its (optional) address range. Commands
+ * are immutable so a compiled {@link SedProgram} can be shared between
+ * threads; per-run state such as "are we inside this range" lives in the
+ * executor.
+ *
+ * <p>Blocks and branches are compiled down to jumps: {@code {} jumps past
+ * its matching {@code }} when its address does not match, and {@code b},
+ * {@code t} and {@code T} jump to the command following their label.
+ */
+final class Command {
+
+    final char name;
+    final Address from;
+    final Address to;
+    final boolean negated;
+
+    // s///
+    final Pattern regex;
+    final ReplacementTemplate replacement;
+    final boolean global;
+    // the match on the line to start at, from a numeric flag
+    final int occurrence;
+    final boolean print;
+
+    // a, i, c
+    final String text;
+
+    // b, t, T and {
+    final String label;
+    final int jump;
+
+    // q, Q exit code; l line length (-1 for the default)
+    final int argument;
+
+    // y
+    final String translateFrom;
+    final String translateTo;
+
+    private Command(Builder builder) {
+        this.name = builder.name;
+        this.from = builder.from;
+        this.to = builder.to;
+        this.negated = builder.negated;
+        this.regex = builder.regex;
+        this.replacement = builder.replacement;
+        this.global = builder.global;
+        this.occurrence = builder.occurrence;
+        this.print = builder.print;
+        this.text = builder.text;
+        this.label = builder.label;
+        this.jump = builder.jump;
+        this.argument = builder.argument;
+        this.translateFrom = builder.translateFrom;
+        this.translateTo = builder.translateTo;
+    }
+
+    static Builder builder(char name) {
+        return new Builder(name);
+    }
+
+    /**
+     * Copy of this command with its jump target resolved.
+     */
+    Command withJump(int target) {
+        Builder builder = new Builder(name);
+        builder.from = from;
+        builder.to = to;
+        builder.negated = negated;
+        builder.regex = regex;
+        builder.replacement = replacement;
+        builder.global = global;
+        builder.occurrence = occurrence;
+        builder.print = print;
+        builder.text = text;
+        builder.label = label;
+        builder.argument = argument;
+        builder.translateFrom = translateFrom;
+        builder.translateTo = translateTo;
+        builder.jump = target;
+        return builder.build();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        if (from != null) {
+            sb.append(from);
+            if (to != null) {
+                sb.append(',').append(to);
+            }
+        }
+        if (negated) {
+            sb.append('!');
+        }
+        sb.append(name);
+        if (label != null) {
+            sb.append(' ').append(label);
+        }
+        return sb.toString();
+    }
+
+    static final class Builder {
+        private final char name;
+        private Address from;
+        private Address to;
+        private boolean negated;
+        private Pattern regex;
+        private ReplacementTemplate replacement;
+        private boolean global;
+        private int occurrence = 1;
+        private boolean print;
+        private String text;
+        private String label;
+        private int jump = -1;
+        private int argument;
+        private String translateFrom;
+        private String translateTo;
+
+        private Builder(char name) {
+            this.name = name;
+        }
+
+        Builder address(Address from, Address to, boolean negated) {
+            this.from = from;
+            this.to = to;
+            this.negated = negated;
+            return this;
+        }
+
+        Builder substitution(Pattern regex, ReplacementTemplate replacement, boolean global, int occurrence, boolean print) {
+            this.regex = regex;
+            this.replacement = replacement;
+            this.global = global;
+            this.occurrence = occurrence;
+            this.print = print;
+            return this;
+        }
+
+        Builder text(String text) {
+            this.text = text;
+            return this;
+        }
+
+        Builder label(String label) {
+            this.label = label;
+            return this;
+        }
+
+        Builder argument(int argument) {
+            this.argument = argument;
+            return this;
+        }
+
+        Builder translate(String from, String to) {
+            this.translateFrom = from;
+            this.translateTo = to;
+            return this;
+        }
+
+        Command build() {
+            return new Command(this);
+        }
+    }
+}
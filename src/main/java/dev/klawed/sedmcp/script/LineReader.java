@@ -0,0 +1,102 @@
+package dev.klawed.sedmcp.script;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Line reader that, unlike {@link java.io.BufferedReader#readLine()},
+ * remembers whether the last line ended with a newline (sed preserves a
+ * missing trailing newline) and can tell whether the current line is the
+ * last one, which is what {@code $} addresses need.
+ */
+final class LineReader {
+
+    static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final Reader in;
+    private final char[] buffer;
+    private int pos = 0;
+    private int limit = 0;
+    private boolean eof = false;
+    private boolean lastHadNewline = true;
+    private long charsRead = 0;
+
+    LineReader(Reader in) {
+        this(in, DEFAULT_BUFFER_SIZE);
+    }
+
+    LineReader(Reader in, int bufferSize) {
+        this.in = in;
+        this.buffer = new char[bufferSize];
+    }
+
+    /**
+     * @return the next line without its terminator, or null at end of input
+     */
+    String readLine() throws IOException {
+        if (!hasMore()) {
+            return null;
+        }
+
+        StringBuilder sb = null;
+        while (true) {
+            for (int i = pos; i < limit; i++) {
+                if (buffer[i] == '\n') {
+                    String line = sb == null ? new String(buffer, pos, i - pos)
+                            : sb.append(buffer, pos, i - pos).toString();
+                    charsRead += i + 1 - pos;
+                    pos = i + 1;
+                    lastHadNewline = true;
+                    return line;
+                }
+            }
+
+            if (sb == null) {
+                sb = new StringBuilder(Math.max(16, (limit - pos) * 2));
+            }
+            sb.append(buffer, pos, limit - pos);
+            charsRead += limit - pos;
+            pos = limit;
+            if (!fill()) {
+                lastHadNewline = false;
+                return sb.toString();
+            }
+        }
+    }
+
+    /**
+     * True if there is at least one more line to read. May block to find out.
+     */
+    boolean hasMore() throws IOException {
+        return pos < limit || fill();
+    }
+
+    /**
+     * Whether the most recently returned line was terminated by a newline.
+     */
+    boolean lastHadNewline() {
+        return lastHadNewline;
+    }
+
+    long charsRead() {
+        return charsRead;
+    }
+
+    private boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+        int n;
+        do {
+            n = in.read(buffer, 0, buffer.length);
+        } while (n == 0);
+        if (n < 0) {
+            eof = true;
+            pos = limit = 0;
+            return false;
+        }
+        pos = 0;
+        limit = n;
+        return true;
+    }
+}
@@ -0,0 +1,153 @@
+package dev.klawed.sedmcp.script;
+
+import java.util.Map;
+
+/**
+ * Translates POSIX regular expressions (sed's basic syntax, or extended
+ * syntax with {@code -E}) into {@link java.util.regex.Pattern} syntax.
+ * Java regexes are close to POSIX ERE already; BRE is where the fun is,
+ * since half the metacharacters need a backslash to become special.
+ */
+public final class RegexTranslator {
+
+    private static final Map<String, String> POSIX_CLASSES = Map.ofEntries(
+            Map.entry("alpha", "\\p{Alpha}"),
+            Map.entry("digit", "\\p{Digit}"),
+            Map.entry("alnum", "\\p{Alnum}"),
+            Map.entry("upper", "\\p{Upper}"),
+            Map.entry("lower", "\\p{Lower}"),
+            Map.entry("space", "\\s"),
+            Map.entry("blank", "\\p{Blank}"),
+            Map.entry("punct", "\\p{Punct}"),
+            Map.entry("print", "\\p{Print}"),
+            Map.entry("graph", "\\p{Graph}"),
+            Map.entry("cntrl", "\\p{Cntrl}"),
+            Map.entry("xdigit", "\\p{XDigit}"));
+
+    private RegexTranslator() {
+    }
+
+    /**
+     * @param regex POSIX regular expression
+     * @param extended true for ERE ({@code sed -E}), false for BRE
+     * @return Equivalent Java regular expression
+     */
+    public static String toJava(String regex, boolean extended) {
+        StringBuilder sb = new StringBuilder(regex.length() + 8);
+        int i = 0;
+        int n = regex.length();
+        // Position in the output where '*' would still be literal in a BRE
+        int atomStart = 0;
+
+        while (i < n) {
+            char c = regex.charAt(i);
+
+            if (c == '[') {
+                i = translateBracket(regex, i, sb);
+                continue;
+            }
+
+            if (c == '\\' && i + 1 < n) {
+                char next = regex.charAt(i + 1);
+                i += 2;
+                switch (next) {
+                    case '(', ')', '{', '}', '|', '+', '?' -> {
+                        if (extended) {
+                            sb.append('\\').append(next);
+                        } else {
+                            sb.append(next);
+                            if (next == '(' || next == '|') {
+                                atomStart = sb.length();
+                            }
+                        }
+                    }
+                    case '<', '>' -> sb.append("\\b");
+                    case 'n' -> sb.append("\\n");
+                    case 't' -> sb.append("\\t");
+                    default -> sb.append('\\').append(next);
+                }
+                continue;
+            }
+
+            i++;
+            if (!extended) {
+                switch (c) {
+                    case '(', ')', '{', '}', '|', '+', '?' -> {
+                        sb.append('\\').append(c);
+                        continue;
+                    }
+                    case '*' -> {
+                        if (sb.length() == atomStart) {
+                            sb.append("\\*");
+                            continue;
+                        }
+                    }
+                    case '^' -> {
+                        if (sb.length() == atomStart) {
+                            sb.append('^');
+                            atomStart = sb.length();
+                            continue;
+                        }
+                        sb.append("\\^");
+                        continue;
+                    }
+                    default -> { }
+                }
+            } else if (c == '(' || c == '|') {
+                sb.append(c);
+                atomStart = sb.length();
+                continue;
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Copy a POSIX bracket expression starting at {@code start}. Backslash is
+     * literal inside POSIX brackets, and Java gives '[' and '&&' meanings that
+     * POSIX does not, so those get escaped.
+     */
+    private static int translateBracket(String regex, int start, StringBuilder sb) {
+        int n = regex.length();
+        int i = start + 1;
+        StringBuilder body = new StringBuilder();
+
+        if (i < n && regex.charAt(i) == '^') {
+            body.append('^');
+            i++;
+        }
+        if (i < n && regex.charAt(i) == ']') {
+            body.append("\\]");
+            i++;
+        }
+
+        while (i < n && regex.charAt(i) != ']') {
+            char c = regex.charAt(i);
+            if (c == '[' && i + 1 < n && regex.charAt(i + 1) == ':') {
+                int end = regex.indexOf(":]", i + 2);
+                if (end > 0) {
+                    String cls = POSIX_CLASSES.get(regex.substring(i + 2, end));
+                    if (cls != null) {
+                        body.append(cls);
+                        i = end + 2;
+                        continue;
+                    }
+                }
+            }
+            if (c == '\\' || c == '[' || c == '&') {
+                body.append('\\');
+            }
+            body.append(c);
+            i++;
+        }
+
+        if (i >= n) {
+            // Unterminated; leave it to Pattern.compile to complain
+            sb.append('[').append(body);
+            return n;
+        }
+        sb.append('[').append(body).append(']');
+        return i + 1;
+    }
+}
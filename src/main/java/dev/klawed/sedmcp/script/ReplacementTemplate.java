@@ -0,0 +1,97 @@
+package dev.klawed.sedmcp.script;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.MatchResult;
+
+/**
+ * Pre-parsed sed replacement text ({@code &}, {@code \1}..{@code \9},
+ * {@code \n}, escapes). Parsing once at compile time means a substitution
+ * applied to a million lines doesn't re-scan the replacement a million times.
+ */
+public final class ReplacementTemplate {
+
+    /** Literal text, or a group reference when {@code group >= 0}. */
+    private record Part(String literal, int group) {
+    }
+
+    private final List<Part> parts;
+    private final String literal;
+
+    private ReplacementTemplate(List<Part> parts) {
+        this.parts = parts;
+        this.literal = parts.size() == 1 && parts.get(0).group < 0 ? parts.get(0).literal
+                : parts.isEmpty() ? "" : null;
+    }
+
+    /**
+     * Parse sed replacement syntax.
+     */
+    public static ReplacementTemplate parse(String replacement) {
+        List<Part> parts = new ArrayList<>();
+        StringBuilder text = new StringBuilder();
+
+        for (int i = 0; i < replacement.length(); i++) {
+            char c = replacement.charAt(i);
+            if (c == '&') {
+                flush(text, parts);
+                parts.add(new Part(null, 0));
+            } else if (c == '\\' && i + 1 < replacement.length()) {
+                char next = replacement.charAt(++i);
+                if (next >= '0' && next <= '9') {
+                    flush(text, parts);
+                    parts.add(new Part(null, next - '0'));
+                } else if (next == 'n') {
+                    text.append('\n');
+                } else if (next == 't') {
+                    text.append('\t');
+                } else {
+                    text.append(next);
+                }
+            } else {
+                text.append(c);
+            }
+        }
+        flush(text, parts);
+        return new ReplacementTemplate(List.copyOf(parts));
+    }
+
+    private static void flush(StringBuilder text, List<Part> parts) {
+        if (text.length() > 0) {
+            parts.add(new Part(text.toString(), -1));
+            text.setLength(0);
+        }
+    }
+
+    /**
+     * Highest group number referenced, so the parser can reject
+     * {@code s/a/\1/} before it blows up at run time.
+     */
+    public int maxGroup() {
+        int max = 0;
+        for (Part part : parts) {
+            max = Math.max(max, part.group);
+        }
+        return max;
+    }
+
+    /**
+     * Append the expansion of this template for one match.
+     */
+    public void appendTo(StringBuilder sb, MatchResult match) {
+        if (literal != null) {
+            sb.append(literal);
+            return;
+        }
+        for (Part part : parts) {
+            if (part.group < 0) {
+                sb.append(part.literal);
+            } else {
+                String group = match.group(part.group);
+                if (group != null) {
+                    sb.append(group);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package dev.klawed.sedmcp.script;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A compiled, validated sed script. Parse once with {@link SedScriptParser},
+ * then run it as many times as you like (on as many threads as you like)
+ * through {@link SedStreamExecutor}.
+ *
+ * <p>Two programs are equal when they were compiled from the same source with
+ * the same regex dialect, which makes a program usable as a cache key.
+ */
+public final class SedProgram {
+
+    private final List<Command> commands;
+    private final boolean quiet;
+    private final String source;
+    private final boolean extendedRegex;
+
+    SedProgram(List<Command> commands, boolean quiet, String source, boolean extendedRegex) {
+        this.commands = List.copyOf(commands);
+        this.quiet = quiet;
+        this.source = source;
+        this.extendedRegex = extendedRegex;
+    }
+
+    List<Command> commands() {
+        return commands;
+    }
+
+    /**
+     * True if the script itself asked for {@code -n} behaviour via a leading {@code #n} line.
+     */
+    public boolean isQuiet() {
+        return quiet;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public boolean isExtendedRegex() {
+        return extendedRegex;
+    }
+
+    public int size() {
+        return commands.size();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        SedProgram that = (SedProgram) o;
+        return extendedRegex == that.extendedRegex && source.equals(that.source);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(source, extendedRegex);
+    }
+
+    @Override
+    public String toString() {
+        return "SedProgram" + commands;
+    }
+}
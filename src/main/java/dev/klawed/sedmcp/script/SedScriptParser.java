@@ -0,0 +1,514 @@
+package dev.klawed.sedmcp.script;
+
+import dev.klawed.sedmcp.service.SedEngineException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Parser for sed script text. Turns something like
+ * {@code /^#/d; s/foo/bar/g; 10,20p} into a {@link SedProgram}, compiling
+ * every regex and replacement exactly once and rejecting malformed scripts
+ * before a single line of input is read.
+ *
+ * <p>Supports the GNU sed grammar: line, {@code $}, regex, {@code first~step},
+ * {@code 0,/re/}, {@code addr,+N} and {@code addr,~N} addresses; {@code !};
+ * {@code {}} blocks; {@code :label} with {@code b}, {@code t} and {@code T};
+ * and the commands {@code s y a i c d D p P n N g G h H x = l q Q z F}.
+ * Anything that would read or write files or run a shell ({@code r R w W e})
+ * is rejected - this runs on behalf of a model, not a person at a terminal.
+ */
+public class SedScriptParser {
+
+    /** Commands that touch the filesystem or a shell. Not happening. */
+    private static final String FORBIDDEN_COMMANDS = "rRwWe";
+
+    private final boolean extendedRegex;
+
+    private String script;
+    private int pos;
+    private List<Command> commands;
+    private Deque<Integer> openBlocks;
+    private Map<String, Integer> labels;
+
+    public SedScriptParser() {
+        this(false);
+    }
+
+    /**
+     * @param extendedRegex Interpret regexes as POSIX ERE ({@code sed -E}) instead of BRE
+     */
+    public SedScriptParser(boolean extendedRegex) {
+        this.extendedRegex = extendedRegex;
+    }
+
+    /**
+     * Parse and compile a script.
+     *
+     * @throws SedEngineException describing the first error and where it is
+     */
+    public SedProgram parse(String script) {
+        this.script = script;
+        this.pos = 0;
+        this.commands = new ArrayList<>();
+        this.openBlocks = new ArrayDeque<>();
+        this.labels = new HashMap<>();
+
+        boolean quiet = script.startsWith("#n") && (script.length() == 2 || script.charAt(2) == '\n');
+
+        while (true) {
+            skipSeparators();
+            if (atEnd()) {
+                break;
+            }
+            char c = peek();
+            if (c == '#') {
+                skipComment();
+            } else if (c == '}') {
+                closeBlock();
+            } else if (c == ':') {
+                parseLabel();
+            } else {
+                commands.add(parseCommand());
+            }
+        }
+
+        if (!openBlocks.isEmpty()) {
+            throw error("unmatched `{'", script.length() - 1);
+        }
+
+        return new SedProgram(resolveJumps(), quiet, script, extendedRegex);
+    }
+
+    private Command parseCommand() {
+        int start = pos;
+        Address from = parseAddress(false);
+        Address to = null;
+        if (from != null) {
+            skipBlanks();
+            if (!atEnd() && peek() == ',') {
+                pos++;
+                skipBlanks();
+                to = parseAddress(true);
+                if (to == null) {
+                    throw error("unexpected `,'", start);
+                }
+            }
+        }
+        if (from != null && from.kind == Address.Kind.ZERO
+                && (to == null || to.kind != Address.Kind.REGEX)) {
+            throw error("invalid usage of line address 0", start);
+        }
+
+        skipBlanks();
+        boolean negated = false;
+        if (!atEnd() && peek() == '!') {
+            negated = true;
+            pos++;
+            skipBlanks();
+        }
+        if (atEnd()) {
+            throw error("missing command", start);
+        }
+
+        int commandPos = pos;
+        char name = script.charAt(pos++);
+        Command.Builder builder = Command.builder(name).address(from, to, negated);
+
+        if (FORBIDDEN_COMMANDS.indexOf(name) >= 0) {
+            throw error("command `" + name + "' is disabled: no file or shell access", commandPos);
+        }
+
+        switch (name) {
+            case '{' -> {
+                openBlocks.push(commands.size());
+                return builder.build();
+            }
+            case 's' -> parseSubstitution(builder);
+            case 'y' -> parseTranslation(builder);
+            case 'a', 'i', 'c' -> {
+                builder.text(readText(name));
+                return builder.build();
+            }
+            case 'b', 't', 'T' -> builder.label(readLabel());
+            case 'q', 'Q' -> {
+                if (to != null) {
+                    throw error("command only uses one address", commandPos);
+                }
+                skipBlanks();
+                if (!atEnd() && Character.isDigit(peek())) {
+                    long code = parseNumber();
+                    builder.argument((int) Math.min(code, 255));
+                }
+            }
+            case 'l' -> {
+                skipBlanks();
+                if (!atEnd() && Character.isDigit(peek())) {
+                    builder.argument((int) Math.min(parseNumber(), Integer.MAX_VALUE));
+                } else {
+                    builder.argument(-1);
+                }
+            }
+            case 'd', 'D', 'p', 'P', 'n', 'N', 'g', 'G', 'h', 'H', 'x', '=', 'z', 'F' -> { }
+            case 'v' -> {
+                // GNU version check; everything we support is already here
+                while (!atEnd() && peek() != ';' && peek() != '\n' && peek() != '}') {
+                    pos++;
+                }
+            }
+            case '}' -> throw error("unexpected `}'", commandPos);
+            default -> throw error("unknown command: `" + name + "'", commandPos);
+        }
+
+        endOfCommand();
+        return builder.build();
+    }
+
+    /**
+     * @param second true when parsing the end of a range, where {@code +N}
+     *               and {@code ~N} are allowed
+     */
+    private Address parseAddress(boolean second) {
+        if (atEnd()) {
+            return null;
+        }
+        char c = peek();
+        if (c >= '0' && c <= '9') {
+            int start = pos;
+            long line = parseNumber();
+            if (!atEnd() && peek() == '~' && !second) {
+                pos++;
+                long step = Character.isDigit(peekOr('x')) ? parseNumber() : 0;
+                return step > 0 ? Address.step(line, step) : (line == 0 ? Address.zero() : Address.line(line));
+            }
+            if (line == 0) {
+                if (second) {
+                    throw error("invalid usage of line address 0", start);
+                }
+                return Address.zero();
+            }
+            return Address.line(line);
+        }
+        if (second && (c == '+' || c == '~')) {
+            pos++;
+            if (atEnd() || !Character.isDigit(peek())) {
+                throw error("expected number after `" + c + "'", pos);
+            }
+            long n = parseNumber();
+            return c == '+' ? Address.relative(n) : Address.multiple(n);
+        }
+        if (c == '$') {
+            pos++;
+            return Address.last();
+        }
+        if (c == '/' || c == '\\') {
+            if (c == '\\') {
+                pos++;
+                if (atEnd()) {
+                    throw error("unexpected end of script", pos);
+                }
+            }
+            char delimiter = script.charAt(pos++);
+            String regex = readDelimited(delimiter, true);
+            int flags = 0;
+            while (!atEnd() && (peek() == 'I' || peek() == 'M')) {
+                flags |= script.charAt(pos++) == 'I' ? Pattern.CASE_INSENSITIVE : Pattern.MULTILINE;
+            }
+            return Address.regex(regex.isEmpty() ? null : compile(regex, flags));
+        }
+        return null;
+    }
+
+    private void parseSubstitution(Command.Builder builder) {
+        int start = pos - 1;
+        if (atEnd() || peek() == '\n' || peek() == '\\') {
+            throw error("unterminated `s' command", start);
+        }
+        char delimiter = script.charAt(pos++);
+        String regex = readDelimited(delimiter, true);
+        String replacement = readDelimited(delimiter, false);
+
+        boolean global = false;
+        boolean print = false;
+        int occurrence = 0;
+        int flags = 0;
+        while (!atEnd()) {
+            char c = peek();
+            if (c == 'g') {
+                if (global) {
+                    throw error("multiple `g' options to `s' command", pos);
+                }
+                global = true;
+            } else if (c >= '0' && c <= '9') {
+                if (occurrence > 0) {
+                    throw error("multiple number options to `s' command", pos);
+                }
+                int numberStart = pos;
+                long number = 0;
+                while (!atEnd() && peek() >= '0' && peek() <= '9') {
+                    number = Math.min(number * 10 + (script.charAt(pos++) - '0'), Integer.MAX_VALUE);
+                }
+                if (number == 0) {
+                    throw error("number option to `s' command may not be zero", numberStart);
+                }
+                occurrence = (int) number;
+                continue;
+            } else if (c == 'p') {
+                print = true;
+            } else if (c == 'i' || c == 'I') {
+                flags |= Pattern.CASE_INSENSITIVE;
+            } else if (c == 'm' || c == 'M') {
+                flags |= Pattern.MULTILINE;
+            } else if (c == ';' || c == '\n' || c == '}' || c == '#' || c == ' ' || c == '\t') {
+                break;
+            } else {
+                throw error("unknown option to `s': `" + c + "'", pos);
+            }
+            pos++;
+        }
+
+        ReplacementTemplate template = ReplacementTemplate.parse(replacement);
+        Pattern pattern = null;
+        if (!regex.isEmpty()) {
+            pattern = compile(regex, flags);
+            if (template.maxGroup() > pattern.matcher("").groupCount()) {
+                throw error("invalid reference \\" + template.maxGroup() + " on `s' command's RHS", start);
+            }
+        }
+        builder.substitution(pattern, template, global, Math.max(occurrence, 1), print);
+    }
+
+    private void parseTranslation(Command.Builder builder) {
+        int start = pos - 1;
+        if (atEnd() || peek() == '\n' || peek() == '\\') {
+            throw error("unterminated `y' command", start);
+        }
+        char delimiter = script.charAt(pos++);
+        String from = unescapeTranslation(readDelimited(delimiter, false), start);
+        String to = unescapeTranslation(readDelimited(delimiter, false), start);
+        if (from.length() != to.length()) {
+            throw error("strings for `y' command are different lengths", start);
+        }
+        builder.translate(from, to);
+    }
+
+    private String unescapeTranslation(String raw, int start) {
+        StringBuilder sb = new StringBuilder(raw.length());
+        for (int i = 0; i < raw.length(); i++) {
+            char c = raw.charAt(i);
+            if (c == '\\' && i + 1 < raw.length()) {
+                char next = raw.charAt(++i);
+                switch (next) {
+                    case 'n' -> sb.append('\n');
+                    case 't' -> sb.append('\t');
+                    case 'r' -> sb.append('\r');
+                    case '\\' -> sb.append('\\');
+                    default -> throw error("unknown escape `\\" + next + "' in `y' command", start);
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Text for {@code a}, {@code i} and {@code c}: either the classic
+     * {@code a\} followed by lines (each but the last ending in a backslash)
+     * or the GNU one-liner {@code a text}. Runs to the end of the line, so
+     * {@code a foo; p} appends "foo; p", same as sed.
+     */
+    private String readText(char name) {
+        int start = pos - 1;
+        skipBlanks();
+        if (!atEnd() && peek() == '\\') {
+            // "a\" then a newline is the classic form; "a\  text" keeps the blanks
+            pos++;
+            if (!atEnd() && peek() == '\n') {
+                pos++;
+            }
+        } else if (atEnd() || peek() == '\n') {
+            throw error("expected \\ after `a', `c' or `i'", start);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        while (!atEnd()) {
+            char c = script.charAt(pos++);
+            if (c == '\n') {
+                break;
+            }
+            if (c == '\\' && !atEnd()) {
+                char next = script.charAt(pos++);
+                sb.append(next == 't' ? '\t' : next);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Label for {@code b}, {@code t} and {@code T}. Like GNU sed, a
+     * semicolon ends it; an empty label means "end of script".
+     */
+    private String readLabel() {
+        skipBlanks();
+        int start = pos;
+        while (!atEnd() && peek() != ';' && peek() != '\n' && peek() != '}') {
+            pos++;
+        }
+        String label = script.substring(start, pos).trim();
+        return label.isEmpty() ? null : label;
+    }
+
+    private void parseLabel() {
+        int start = pos;
+        pos++;
+        skipBlanks();
+        int nameStart = pos;
+        while (!atEnd() && peek() != ';' && peek() != '\n') {
+            pos++;
+        }
+        String label = script.substring(nameStart, pos).trim();
+        if (label.isEmpty()) {
+            throw error("\":\" lacks a label", start);
+        }
+        if (labels.putIfAbsent(label, commands.size()) != null) {
+            throw error("duplicate label `" + label + "'", start);
+        }
+    }
+
+    private void closeBlock() {
+        if (openBlocks.isEmpty()) {
+            throw error("unexpected `}'", pos);
+        }
+        pos++;
+        int open = openBlocks.pop();
+        commands.set(open, commands.get(open).withJump(commands.size()));
+        endOfCommand();
+    }
+
+    private List<Command> resolveJumps() {
+        List<Command> resolved = new ArrayList<>(commands.size());
+        for (Command command : commands) {
+            if (command.name == 'b' || command.name == 't' || command.name == 'T') {
+                int target = commands.size();
+                if (command.label != null) {
+                    Integer index = labels.get(command.label);
+                    if (index == null) {
+                        throw new SedEngineException("sed script error: can't find label for jump to `"
+                                + command.label + "'");
+                    }
+                    target = index;
+                }
+                command = command.withJump(target);
+            }
+            resolved.add(command);
+        }
+        return resolved;
+    }
+
+    /**
+     * Read up to the next unescaped delimiter. In a regex, {@code \<delim>}
+     * becomes a literal delimiter and every other escape is kept for the regex
+     * translator; in a replacement, escapes are kept for the template parser.
+     */
+    private String readDelimited(char delimiter, boolean regex) {
+        int start = pos;
+        StringBuilder sb = new StringBuilder();
+        while (!atEnd()) {
+            char c = script.charAt(pos++);
+            if (c == delimiter) {
+                return sb.toString();
+            }
+            if (c == '\\' && !atEnd()) {
+                char next = script.charAt(pos++);
+                if (next == delimiter) {
+                    sb.append(delimiter);
+                } else if (next == '\n' && !regex) {
+                    sb.append("\\n");
+                } else {
+                    sb.append('\\').append(next);
+                }
+            } else if (c == '\n' && regex) {
+                break;
+            } else {
+                sb.append(c);
+            }
+        }
+        throw error("unterminated address regex or `s' command", start - 1);
+    }
+
+    private Pattern compile(String regex, int flags) {
+        try {
+            return Pattern.compile(RegexTranslator.toJava(regex, extendedRegex), flags);
+        } catch (PatternSyntaxException e) {
+            throw new SedEngineException("Invalid regex pattern: " + e.getDescription(), "script", regex);
+        }
+    }
+
+    private long parseNumber() {
+        int start = pos;
+        while (!atEnd() && Character.isDigit(peek())) {
+            pos++;
+        }
+        try {
+            return Long.parseLong(script.substring(start, pos));
+        } catch (NumberFormatException e) {
+            throw error("number too large", start);
+        }
+    }
+
+    private void endOfCommand() {
+        skipBlanks();
+        if (atEnd()) {
+            return;
+        }
+        char c = peek();
+        if (c == ';' || c == '\n') {
+            pos++;
+        } else if (c != '#' && c != '}') {
+            throw error("extra characters after command", pos);
+        }
+    }
+
+    private void skipSeparators() {
+        while (!atEnd() && (Character.isWhitespace(peek()) || peek() == ';')) {
+            pos++;
+        }
+    }
+
+    private void skipBlanks() {
+        while (!atEnd() && (peek() == ' ' || peek() == '\t')) {
+            pos++;
+        }
+    }
+
+    private void skipComment() {
+        while (!atEnd() && peek() != '\n') {
+            pos++;
+        }
+    }
+
+    private boolean atEnd() {
+        return pos >= script.length();
+    }
+
+    private char peek() {
+        return script.charAt(pos);
+    }
+
+    private char peekOr(char fallback) {
+        return atEnd() ? fallback : script.charAt(pos);
+    }
+
+    private SedEngineException error(String message, int at) {
+        return new SedEngineException("sed script error at char " + (at + 1) + ": " + message);
+    }
+}
@@ -0,0 +1,627 @@
+package dev.klawed.sedmcp.script;
+
+import dev.klawed.sedmcp.service.SedEngineException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs a {@link SedProgram} over a stream, one line at a time, the way sed
+ * does: read a line into the pattern space, run the commands, print the
+ * pattern space unless told not to, repeat. Memory use is bounded by the
+ * longest line, not by the size of the input - unless the script itself
+ * accumulates text with {@code N}, {@code G} or {@code H}, in which case it
+ * is bounded by {@link Limits}.
+ *
+ * <p>The pattern and hold spaces are plain Strings until something appends
+ * to them, then they become StringBuilders owned by exactly one of the two
+ * spaces, so slurping a file with {@code :a;N;$!ba} stays linear.
+ *
+ * <p>An executor holds per-run state (line number, range flags, pending
+ * appends) and is not thread-safe; create one per run. The program itself
+ * can be shared.
+ */
+public class SedStreamExecutor {
+
+    private static final int DEFAULT_LIST_WIDTH = 70;
+
+    private final SedProgram program;
+    private final List<Command> commands;
+    private final boolean quiet;
+    private final Limits limits;
+
+    private final boolean[] inRange;
+    private final long[] rangeEnd;
+
+    private LineReader reader;
+    private Writer out;
+    private CharSequence patternSpace;
+    private CharSequence holdSpace = "";
+    private boolean lastLine;
+    private boolean substituted;
+    private Pattern lastRegex;
+    private final List<String> appendQueue = new ArrayList<>();
+
+    private boolean outputMissingNewline = false;
+    // whether each space ends in a newline on output; only the last input line can lack one
+    private boolean patternHasNewline = true;
+    private boolean holdHasNewline = true;
+    private long lineNumber = 0;
+    private long linesWritten = 0;
+    private long substitutions = 0;
+    private boolean quit = false;
+    private int exitCode = 0;
+
+    /**
+     * @param program Compiled program to run
+     * @param quiet Suppress automatic printing of the pattern space ({@code sed -n})
+     */
+    public SedStreamExecutor(SedProgram program, boolean quiet) {
+        this(program, quiet, Limits.DEFAULT);
+    }
+
+    /**
+     * @param program Compiled program to run
+     * @param quiet Suppress automatic printing of the pattern space ({@code sed -n})
+     * @param limits Caps on how far {@code N}, {@code G} and {@code H} may grow the buffers
+     */
+    public SedStreamExecutor(SedProgram program, boolean quiet, Limits limits) {
+        this.program = program;
+        this.commands = program.commands();
+        this.quiet = quiet || program.isQuiet();
+        this.limits = limits;
+        this.inRange = new boolean[commands.size()];
+        this.rangeEnd = new long[commands.size()];
+
+        // 0,/re/ is a range that is already open before the first line
+        for (int i = 0; i < commands.size(); i++) {
+            Command command = commands.get(i);
+            inRange[i] = command.from != null && command.from.kind == Address.Kind.ZERO;
+        }
+    }
+
+    /**
+     * Process all of {@code in} (or until a {@code q} command) and write the
+     * result to {@code out}. The writer is flushed but not closed.
+     */
+    public Stats run(Reader in, Writer out) throws IOException {
+        this.out = out;
+        this.reader = new LineReader(in);
+
+        boolean restart = false;
+        while (!quit && (restart || readLine())) {
+            if (!restart) {
+                substituted = false;
+            }
+            Outcome outcome = execute();
+            if (outcome == Outcome.PRINT && !quiet) {
+                emit(patternSpace);
+            }
+            restart = outcome == Outcome.RESTART;
+            if (!restart) {
+                flushAppends();
+            }
+        }
+
+        out.flush();
+        return new Stats(lineNumber, linesWritten, substitutions, exitCode);
+    }
+
+    public long getLinesWritten() {
+        return linesWritten;
+    }
+
+    public long getSubstitutions() {
+        return substitutions;
+    }
+
+    private boolean readLine() throws IOException {
+        String line = reader.readLine();
+        if (line == null) {
+            return false;
+        }
+        patternSpace = line;
+        lineNumber++;
+        patternHasNewline = reader.lastHadNewline();
+        lastLine = !reader.hasMore();
+        return true;
+    }
+
+    /**
+     * Run the program over the current pattern space.
+     *
+     * @return how the cycle ends
+     */
+    private Outcome execute() throws IOException {
+        int pc = 0;
+        while (pc < commands.size()) {
+            Command command = commands.get(pc);
+            if (!selected(pc, command)) {
+                pc = command.name == '{' ? command.jump : pc + 1;
+                continue;
+            }
+
+            switch (command.name) {
+                case '{', 'v' -> { }
+                case 's' -> {
+                    CharSequence result = substitute(command, patternSpace);
+                    if (result != null) {
+                        patternSpace = checkPatternSpace(result);
+                        substituted = true;
+                        if (command.print) {
+                            emit(patternSpace);
+                        }
+                    }
+                }
+                case 'y' -> patternSpace = translate(command, patternSpace);
+                case 'a' -> appendQueue.add(command.text);
+                case 'i' -> emitText(command.text);
+                case 'c' -> {
+                    // a range only gets its text once, at the end
+                    if (command.to == null || command.negated || !inRange[pc]) {
+                        emitText(command.text);
+                    }
+                    return Outcome.DELETE;
+                }
+                case 'd' -> {
+                    return Outcome.DELETE;
+                }
+                case 'D' -> {
+                    int newline = indexOf(patternSpace, '\n');
+                    if (newline < 0) {
+                        return Outcome.DELETE;
+                    }
+                    patternSpace = patternSpace.subSequence(newline + 1, patternSpace.length()).toString();
+                    return Outcome.RESTART;
+                }
+                case 'p' -> emit(patternSpace);
+                case 'P' -> {
+                    int newline = indexOf(patternSpace, '\n');
+                    if (newline < 0) {
+                        emit(patternSpace);
+                    } else {
+                        emitText(patternSpace.subSequence(0, newline));
+                    }
+                }
+                case 'n' -> {
+                    if (lastLine) {
+                        // GNU: no next line means quit, autoprinting what we have
+                        quit = true;
+                        return Outcome.PRINT;
+                    }
+                    if (!quiet) {
+                        emit(patternSpace);
+                    }
+                    flushAppends();
+                    readLine();
+                }
+                case 'N' -> {
+                    if (lastLine) {
+                        quit = true;
+                        return Outcome.PRINT;
+                    }
+                    flushAppends();
+                    CharSequence previous = patternSpace;
+                    readLine();
+                    StringBuilder joined = mutable(previous);
+                    joined.append('\n').append(patternSpace);
+                    patternSpace = checkPatternSpace(joined);
+                }
+                case 'h' -> {
+                    holdSpace = patternSpace.toString();
+                    holdHasNewline = patternHasNewline;
+                }
+                case 'H' -> {
+                    StringBuilder hold = mutable(holdSpace);
+                    hold.append('\n').append(patternSpace);
+                    holdSpace = checkHoldSpace(hold);
+                    holdHasNewline = patternHasNewline;
+                }
+                case 'g' -> {
+                    patternSpace = holdSpace.toString();
+                    patternHasNewline = holdHasNewline;
+                }
+                case 'G' -> {
+                    StringBuilder pattern = mutable(patternSpace);
+                    pattern.append('\n').append(holdSpace);
+                    patternSpace = checkPatternSpace(pattern);
+                    patternHasNewline = holdHasNewline;
+                }
+                case 'x' -> {
+                    CharSequence swap = patternSpace;
+                    patternSpace = holdSpace;
+                    holdSpace = swap;
+                    boolean swapNewline = patternHasNewline;
+                    patternHasNewline = holdHasNewline;
+                    holdHasNewline = swapNewline;
+                }
+                case '=' -> emitText(Long.toString(lineNumber));
+                case 'l' -> list(patternSpace, command.argument < 0 ? DEFAULT_LIST_WIDTH : command.argument);
+                case 'z' -> patternSpace = "";
+                case 'F' -> emitText("-");
+                case 'b' -> {
+                    pc = command.jump;
+                    continue;
+                }
+                case 't' -> {
+                    if (substituted) {
+                        substituted = false;
+                        pc = command.jump;
+                        continue;
+                    }
+                }
+                case 'T' -> {
+                    if (!substituted) {
+                        pc = command.jump;
+                        continue;
+                    }
+                    substituted = false;
+                }
+                case 'q' -> {
+                    quit = true;
+                    exitCode = command.argument;
+                    return Outcome.PRINT;
+                }
+                case 'Q' -> {
+                    quit = true;
+                    exitCode = command.argument;
+                    appendQueue.clear();
+                    return Outcome.DELETE;
+                }
+                default -> throw new IllegalStateException("Unexpected command: " + command.name);
+            }
+            pc++;
+        }
+        return Outcome.PRINT;
+    }
+
+    /**
+     * The buffer behind a pattern or hold space, made appendable. A String
+     * is copied once; a StringBuilder is already exclusively ours.
+     */
+    private static StringBuilder mutable(CharSequence space) {
+        if (space instanceof StringBuilder builder) {
+            return builder;
+        }
+        StringBuilder builder = new StringBuilder(Math.max(16, space.length() * 2));
+        builder.append(space);
+        return builder;
+    }
+
+    private CharSequence checkPatternSpace(CharSequence space) {
+        if (space.length() > limits.getMaxPatternChars()) {
+            throw new SedEngineException("Pattern space exceeded " + limits.getMaxPatternChars()
+                    + " chars at line " + lineNumber + " (sedmcp.script.max-pattern-chars)");
+        }
+        return space;
+    }
+
+    private CharSequence checkHoldSpace(CharSequence space) {
+        if (space.length() > limits.getMaxHoldChars()) {
+            throw new SedEngineException("Hold space exceeded " + limits.getMaxHoldChars()
+                    + " chars at line " + lineNumber + " (sedmcp.script.max-hold-chars)");
+        }
+        return space;
+    }
+
+    private static int indexOf(CharSequence text, char c) {
+        if (text instanceof String string) {
+            return string.indexOf(c);
+        }
+        if (text instanceof StringBuilder builder) {
+            return builder.indexOf(String.valueOf(c));
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Address matching, including the range state machine: a range starts
+     * when its first address matches and ends on the line its second address
+     * matches (checked from the next line on for regexes, except after
+     * {@code 0,}).
+     */
+    private boolean selected(int index, Command command) {
+        if (command.from == null) {
+            return true;
+        }
+
+        boolean match;
+        Address to = command.to;
+        if (to == null) {
+            match = matches(command.from);
+        } else if (inRange[index]) {
+            match = true;
+            boolean ends = switch (to.kind) {
+                case LINE -> lineNumber >= to.line;
+                case LAST -> lastLine;
+                case REGEX -> matches(to);
+                case RELATIVE -> lineNumber >= rangeEnd[index];
+                case MULTIPLE -> to.line <= 0 || lineNumber % to.line == 0;
+                case STEP -> matches(to);
+                case ZERO -> true;
+            };
+            if (ends) {
+                inRange[index] = false;
+            }
+        } else if (matches(command.from)) {
+            match = true;
+            boolean endsNow = switch (to.kind) {
+                case LINE -> to.line <= lineNumber;
+                case LAST -> lastLine;
+                case REGEX, STEP -> false;
+                case RELATIVE -> to.line == 0;
+                case MULTIPLE -> to.line <= 0 || lineNumber % to.line == 0;
+                case ZERO -> true;
+            };
+            rangeEnd[index] = lineNumber + to.line;
+            inRange[index] = !endsNow;
+        } else {
+            match = false;
+        }
+
+        return match != command.negated;
+    }
+
+    private boolean matches(Address address) {
+        return switch (address.kind) {
+            case LINE -> lineNumber == address.line;
+            case LAST -> lastLine;
+            case REGEX -> regex(address.regex).matcher(patternSpace).find();
+            case STEP -> lineNumber >= address.line && (lineNumber - address.line) % address.step == 0;
+            case ZERO, RELATIVE, MULTIPLE -> false;
+        };
+    }
+
+    /**
+     * Resolve the empty regex ({@code //}) to the last regex used, and
+     * remember this one for the next empty regex.
+     */
+    private Pattern regex(Pattern pattern) {
+        if (pattern == null) {
+            if (lastRegex == null) {
+                throw new SedEngineException("no previous regular expression");
+            }
+            return lastRegex;
+        }
+        lastRegex = pattern;
+        return pattern;
+    }
+
+    /**
+     * @return the new pattern space, or null if nothing matched
+     */
+    private CharSequence substitute(Command command, CharSequence patternSpace) {
+        Pattern pattern = regex(command.regex);
+        Matcher matcher = pattern.matcher(patternSpace);
+        if (command.regex == null && command.replacement.maxGroup() > matcher.groupCount()) {
+            throw new SedEngineException("invalid reference \\" + command.replacement.maxGroup()
+                    + " on `s' command's RHS");
+        }
+        int length = patternSpace.length();
+        StringBuilder sb = null;
+        int last = 0;
+        int previousEnd = -1;
+        int searchFrom = 0;
+        int seen = 0;
+
+        while (searchFrom <= length && matcher.find(searchFrom)) {
+            int start = matcher.start();
+            int end = matcher.end();
+            if (start == end && start == previousEnd) {
+                // sed never matches the empty string right after the previous match
+                searchFrom = start + 1;
+                continue;
+            }
+            if (++seen < command.occurrence) {
+                previousEnd = end;
+                searchFrom = start == end ? end + 1 : end;
+                continue;
+            }
+
+            if (sb == null) {
+                sb = new StringBuilder(length + 16);
+            }
+            sb.append(patternSpace, last, start);
+            command.replacement.appendTo(sb, matcher);
+            last = end;
+            previousEnd = end;
+            substitutions++;
+
+            if (!command.global) {
+                break;
+            }
+            searchFrom = start == end ? end + 1 : end;
+        }
+
+        if (sb == null) {
+            return null;
+        }
+        return sb.append(patternSpace, last, length);
+    }
+
+    private static CharSequence translate(Command command, CharSequence patternSpace) {
+        char[] chars = null;
+        for (int i = 0; i < patternSpace.length(); i++) {
+            int index = command.translateFrom.indexOf(patternSpace.charAt(i));
+            if (index >= 0) {
+                if (chars == null) {
+                    chars = patternSpace.toString().toCharArray();
+                }
+                chars[i] = command.translateTo.charAt(index);
+            }
+        }
+        return chars == null ? patternSpace : new String(chars);
+    }
+
+    /**
+     * The {@code l} command: print the pattern space unambiguously, C-style
+     * escapes and octal bytes, wrapped at {@code width} with a trailing
+     * backslash and terminated by {@code $}.
+     */
+    private void list(CharSequence text, int width) throws IOException {
+        StringBuilder sb = new StringBuilder(text.length() + 8);
+        int column = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            String token = switch (c) {
+                case '\\' -> "\\\\";
+                case 0x07 -> "\\a";
+                case '\b' -> "\\b";
+                case '\f' -> "\\f";
+                case '\n' -> "\\n";
+                case '\r' -> "\\r";
+                case '\t' -> "\\t";
+                case 0x0b -> "\\v";
+                default -> c >= 0x20 && c < 0x7f ? String.valueOf(c) : octal(text, i);
+            };
+            if (Character.isHighSurrogate(c) && i + 1 < text.length()) {
+                i++;
+            }
+            if (width > 1 && column + token.length() > width - 1) {
+                sb.append("\\\n");
+                column = 0;
+            }
+            sb.append(token);
+            column += token.length();
+        }
+        emitText(sb.append('$').toString());
+    }
+
+    private static String octal(CharSequence text, int index) {
+        int end = Character.isHighSurrogate(text.charAt(index)) && index + 1 < text.length() ? index + 2 : index + 1;
+        StringBuilder sb = new StringBuilder();
+        for (byte b : text.subSequence(index, end).toString().getBytes(StandardCharsets.UTF_8)) {
+            sb.append('\\').append(String.format("%03o", b & 0xff));
+        }
+        return sb.toString();
+    }
+
+    private void flushAppends() throws IOException {
+        for (String text : appendQueue) {
+            emitText(text);
+        }
+        appendQueue.clear();
+    }
+
+    /**
+     * Write one line of output. A line without a trailing newline only stays
+     * that way if nothing else is written after it.
+     */
+    private void emit(CharSequence text) throws IOException {
+        if (outputMissingNewline) {
+            out.write('\n');
+            outputMissingNewline = false;
+        }
+        out.append(text);
+        linesWritten++;
+        if (patternHasNewline) {
+            out.write('\n');
+        } else {
+            outputMissingNewline = true;
+        }
+    }
+
+    /**
+     * Write text from {@code a}, {@code i}, {@code c}, {@code =} or
+     * {@code l}, which always ends with a newline whatever the input did.
+     */
+    private void emitText(CharSequence text) throws IOException {
+        if (outputMissingNewline) {
+            out.write('\n');
+            outputMissingNewline = false;
+        }
+        out.append(text);
+        out.write('\n');
+        linesWritten++;
+    }
+
+    @Override
+    public String toString() {
+        return "SedStreamExecutor{program=" + program + ", line=" + lineNumber + "}";
+    }
+
+    private enum Outcome {
+        /** End of script (or q): autoprint, then read the next line */
+        PRINT,
+        /** d, c or Q: skip the autoprint */
+        DELETE,
+        /** D with a newline left: run the script again without reading */
+        RESTART
+    }
+
+    /**
+     * Upper bounds, in chars, for the pattern and hold spaces. Only scripts
+     * that accumulate lines can get near them; when they do, the run fails
+     * with a {@link SedEngineException} instead of taking the heap down.
+     */
+    public static final class Limits {
+        public static final int DEFAULT_MAX_PATTERN_CHARS = 32 * 1024 * 1024;
+        public static final int DEFAULT_MAX_HOLD_CHARS = 32 * 1024 * 1024;
+
+        public static final Limits DEFAULT = new Limits(DEFAULT_MAX_PATTERN_CHARS, DEFAULT_MAX_HOLD_CHARS);
+
+        private final int maxPatternChars;
+        private final int maxHoldChars;
+
+        public Limits(int maxPatternChars, int maxHoldChars) {
+            if (maxPatternChars <= 0 || maxHoldChars <= 0) {
+                throw new IllegalArgumentException("Limits must be positive");
+            }
+            this.maxPatternChars = maxPatternChars;
+            this.maxHoldChars = maxHoldChars;
+        }
+
+        /**
+         * Limits from {@code sedmcp.script.max-pattern-chars} and
+         * {@code sedmcp.script.max-hold-chars}, defaulting to 32M chars each.
+         */
+        public static Limits fromSystemProperties() {
+            return new Limits(
+                    Integer.getInteger("sedmcp.script.max-pattern-chars", DEFAULT_MAX_PATTERN_CHARS),
+                    Integer.getInteger("sedmcp.script.max-hold-chars", DEFAULT_MAX_HOLD_CHARS));
+        }
+
+        public int getMaxPatternChars() { return maxPatternChars; }
+        public int getMaxHoldChars() { return maxHoldChars; }
+    }
+
+    /**
+     * What a run did. {@code exitCode} is whatever {@code q} or {@code Q}
+     * asked for, zero otherwise.
+     */
+    public static final class Stats {
+        private final long linesRead;
+        private final long linesWritten;
+        private final long substitutions;
+        private final int exitCode;
+
+        Stats(long linesRead, long linesWritten, long substitutions, int exitCode) {
+            this.linesRead = linesRead;
+            this.linesWritten = linesWritten;
+            this.substitutions = substitutions;
+            this.exitCode = exitCode;
+        }
+
+        public long getLinesRead() { return linesRead; }
+        public long getLinesWritten() { return linesWritten; }
+        public long getSubstitutions() { return substitutions; }
+        public int getExitCode() { return exitCode; }
+
+        @Override
+        public String toString() {
+            return "Stats{linesRead=" + linesRead + ", linesWritten=" + linesWritten
+                    + ", substitutions=" + substitutions + ", exitCode=" + exitCode + "}";
+        }
+    }
+}
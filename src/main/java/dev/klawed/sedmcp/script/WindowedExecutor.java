@@ -0,0 +1,223 @@
+package dev.klawed.sedmcp.script;
+
+import dev.klawed.sedmcp.service.SedEngineException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs one delete, print or substitute over a stream through a sliding
+ * window of K lines, so a pattern can match across line breaks (a comment
+ * block, a call split over three lines) while memory stays bounded by the
+ * window instead of the input. The multi-line cousin of {@code $!N}
+ * juggling, without the juggling.
+ *
+ * <p>A match has to start in the first line of the window, and can only see
+ * as far as the last one; {@code ^} and {@code $} match at line boundaries.
+ * {@code d} and {@code p} act on whole lines: every line a match touches is
+ * deleted or printed. {@code s} rewrites just the matched text, every match
+ * with {@code global}, otherwise the first one in the input.
+ *
+ * <p>Not thread-safe; one executor per run.
+ */
+public final class WindowedExecutor {
+
+    public static final int MAX_WINDOW_LINES = 1000;
+
+    public enum Mode { DELETE, PRINT, SUBSTITUTE }
+
+    private final Pattern regex;
+    private final Mode mode;
+    private final String replacement;
+    private final boolean global;
+    private final int windowLines;
+    private final SedStreamExecutor.Limits limits;
+
+    // current window: whole lines, terminators included
+    private final StringBuilder window = new StringBuilder();
+    private int linesInWindow;
+    private boolean eof;
+    private LineReader reader;
+
+    private long linesRead;
+    private long linesWritten;
+    private long matches;
+
+    /**
+     * @param regex Pattern to match; compiled with {@link Pattern#MULTILINE} added
+     * @param mode What to do with a match
+     * @param replacement Replacement for {@link Mode#SUBSTITUTE}, {@code $1} style; ignored otherwise
+     * @param global Substitute every match rather than the first
+     * @param windowLines Lines a match may span, 1 to {@link #MAX_WINDOW_LINES}
+     * @param limits {@code maxPatternChars} caps the window in chars, for inputs with enormous lines
+     */
+    public WindowedExecutor(Pattern regex, Mode mode, String replacement, boolean global,
+                            int windowLines, SedStreamExecutor.Limits limits) {
+        if (windowLines < 1 || windowLines > MAX_WINDOW_LINES) {
+            throw new IllegalArgumentException("Window must be 1 to " + MAX_WINDOW_LINES + " lines");
+        }
+        this.regex = Pattern.compile(regex.pattern(), regex.flags() | Pattern.MULTILINE);
+        this.mode = mode;
+        this.replacement = replacement;
+        this.global = global;
+        this.windowLines = windowLines;
+        this.limits = limits;
+    }
+
+    /**
+     * Stream {@code in} to {@code out}. {@code substitutions} in the returned
+     * stats counts matches acted on, whatever the mode.
+     */
+    public SedStreamExecutor.Stats run(Reader in, Writer out) throws IOException {
+        reader = new LineReader(in);
+        fill();
+        if (mode == Mode.SUBSTITUTE) {
+            substitute(out);
+        } else {
+            filterLines(out);
+        }
+        out.flush();
+        return new SedStreamExecutor.Stats(linesRead, linesWritten, matches, 0);
+    }
+
+    private void filterLines(Writer out) throws IOException {
+        Matcher matcher = regex.matcher(window);
+        while (linesInWindow > 0) {
+            int next = lineNext(0);
+            matcher.reset();
+            if (matcher.find() && matcher.start() <= lineEnd(0)) {
+                matches++;
+                // through the end of the line holding the match's last char
+                int last = Math.max(matcher.start(), matcher.end() - 1);
+                int cut = lineNext(last);
+                int lines = linesIn(cut);
+                if (mode == Mode.PRINT) {
+                    out.append(window, 0, cut);
+                    linesWritten += lines;
+                }
+                drop(cut, lines);
+                continue;
+            }
+            if (mode == Mode.DELETE) {
+                out.append(window, 0, next);
+                linesWritten++;
+            }
+            drop(next, 1);
+        }
+    }
+
+    private void substitute(Writer out) throws IOException {
+        Matcher matcher = regex.matcher(window);
+        // lookbehind and \b must see the whole window, ^ must not match mid-line
+        matcher.useAnchoringBounds(false).useTransparentBounds(true);
+        boolean literal = replacement.indexOf('$') < 0 && replacement.indexOf('\\') < 0;
+        StringBuilder expanded = new StringBuilder();
+        boolean done = false;
+        // chars of the first line already written
+        int emitted = 0;
+        boolean rescan = true;
+        int appendPosition = 0;
+
+        while (linesInWindow > 0) {
+            int next = lineNext(0);
+            if (rescan) {
+                matcher.region(emitted, window.length());
+                appendPosition = 0;
+                rescan = false;
+            }
+            if (!done && matcher.find() && matcher.start() <= lineEnd(0)) {
+                int start = matcher.start();
+                int end = matcher.end();
+                String text;
+                if (literal) {
+                    text = replacement;
+                } else {
+                    // appendReplacement also copies the text since the last match; skip that part
+                    expanded.setLength(0);
+                    matcher.appendReplacement(expanded, replacement);
+                    text = expanded.substring(start - appendPosition);
+                    appendPosition = end;
+                }
+                out.append(window, emitted, start).append(text);
+                emitted = end;
+                matches++;
+                done = !global;
+
+                if (end > lineEnd(0)) {
+                    // the match ran into later lines; they are settled up to where it ended
+                    int cut = window.lastIndexOf("\n", end - 1) + 1;
+                    int lines = linesIn(cut);
+                    linesWritten += lines;
+                    drop(cut, lines);
+                    emitted -= cut;
+                    rescan = true;
+                }
+                continue;
+            }
+            out.append(window, emitted, next);
+            linesWritten++;
+            drop(next, 1);
+            emitted = 0;
+            rescan = true;
+        }
+    }
+
+    private void fill() throws IOException {
+        while (linesInWindow < windowLines && !eof) {
+            String line = reader.readLine();
+            if (line == null) {
+                eof = true;
+                break;
+            }
+            window.append(line);
+            if (reader.lastHadNewline()) {
+                window.append('\n');
+            }
+            linesInWindow++;
+            linesRead++;
+            if (window.length() > limits.getMaxPatternChars()) {
+                throw new SedEngineException("Window exceeded " + limits.getMaxPatternChars()
+                        + " chars at line " + linesRead + " (sedmcp.script.max-pattern-chars)");
+            }
+        }
+    }
+
+    private void drop(int chars, int lines) throws IOException {
+        window.delete(0, chars);
+        linesInWindow -= lines;
+        fill();
+    }
+
+    /**
+     * Offset of the terminator of the line holding {@code index}, or the
+     * window's end if that line has none.
+     */
+    private int lineEnd(int index) {
+        int newline = window.indexOf("\n", index);
+        return newline < 0 ? window.length() : newline;
+    }
+
+    /**
+     * Offset just past the line holding {@code index}.
+     */
+    private int lineNext(int index) {
+        int end = lineEnd(index);
+        return end < window.length() ? end + 1 : end;
+    }
+
+    /**
+     * Lines in {@code [0, end)}, where {@code end} is a line boundary.
+     */
+    private int linesIn(int end) {
+        int lines = 0;
+        for (int i = 0; i < end; i++) {
+            if (window.charAt(i) == '\n') {
+                lines++;
+            }
+        }
+        return end > 0 && window.charAt(end - 1) != '\n' ? lines + 1 : lines;
+    }
+}
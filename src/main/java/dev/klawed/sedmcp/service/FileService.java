@@ -10,7 +10,8 @@ import java.nio.file.Path;
 public interface FileService {
     
     /**
-     * Read the entire content of a file as a string.
+     * Read the entire content of a file as a string, working out the
+     * encoding from a byte order mark or the bytes themselves.
      * 
      * @param filePath Path to the file
      * @return File content as string
@@ -0,0 +1,81 @@
+package dev.klawed.sedmcp.service;
+
+/**
+ * Progress reporting and cancellation for one engine call. The engine calls
+ * {@link #checkpoint} at chunk boundaries (every few thousand lines or
+ * matches, every 64K chars of script input or read by a regex, whether it
+ * matches or not); that is where a cancelled call
+ * stops, and where progress goes to the listener, by default at most every
+ * {@value #DEFAULT_REPORT_INTERVAL_MILLIS} ms so a fast run does not drown
+ * the client in notifications.
+ *
+ * <p>{@link #cancel()} may be called from any thread.
+ */
+public class Progress {
+
+    /**
+     * Never reports, never cancelled.
+     */
+    public static final Progress NONE = new Progress(null);
+
+    public static final long DEFAULT_REPORT_INTERVAL_MILLIS = 250;
+
+    @FunctionalInterface
+    public interface Listener {
+        /**
+         * @param done Chars of input processed so far
+         * @param total Chars of input in all
+         */
+        void progress(long done, long total);
+    }
+
+    private final Listener listener;
+    private final long intervalNanos;
+    private volatile boolean cancelled;
+    private long nextReport;
+
+    /**
+     * @param listener Where progress goes, or null to only support cancellation
+     */
+    public Progress(Listener listener) {
+        this(listener, DEFAULT_REPORT_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param listener Where progress goes, or null to only support cancellation
+     * @param reportIntervalMillis Least time between reports; the first comes one interval in
+     */
+    public Progress(Listener listener, long reportIntervalMillis) {
+        this.listener = listener;
+        this.intervalNanos = reportIntervalMillis * 1_000_000;
+        this.nextReport = System.nanoTime() + intervalNanos;
+    }
+
+    public void cancel() {
+        if (this != NONE) {
+            cancelled = true;
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Stop here if cancelled, otherwise report progress if it is time to.
+     *
+     * @throws SedCancelledException if {@link #cancel()} has been called
+     */
+    public void checkpoint(long done, long total) {
+        if (cancelled) {
+            throw new SedCancelledException(done, total);
+        }
+        if (listener != null) {
+            long now = System.nanoTime();
+            if (now - nextReport >= 0) {
+                nextReport = now + intervalNanos;
+                listener.progress(done, total);
+            }
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package dev.klawed.sedmcp.service;
+
+/**
+ * The caller gave up. Not really a failure, but it has to unwind the engine
+ * somehow.
+ */
+public class SedCancelledException extends SedEngineException {
+
+    public SedCancelledException(long done, long total) {
+        super(String.format("Cancelled after %d of %d chars", done, total));
+    }
+}
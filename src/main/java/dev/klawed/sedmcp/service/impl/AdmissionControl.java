@@ -0,0 +1,204 @@
+package dev.klawed.sedmcp.service.impl;
+
+import dev.klawed.sedmcp.service.SedEngineException;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Memory budget for requests in flight, so a few concurrent 500 MB payloads
+ * queue behind each other instead of parsing into the heap together and
+ * taking the JVM down.
+ *
+ * <p>Each request reserves an estimate of its working set before it is
+ * parsed: the request text, its JSON tree, the document, the result and the
+ * formatted response are all about the size of the content, so
+ * {@value #COPIES} copies at two bytes a char. A request that fits the free
+ * budget runs at once; one that fits the budget but not right now waits its
+ * turn, first come first served; one larger than the whole budget, or that
+ * waits too long, or finds too many ahead of it, is rejected.
+ *
+ * <p>Reservations are counted in KiB so that budgets past 2 GB fit a
+ * semaphore.
+ */
+public class AdmissionControl {
+
+    /**
+     * Copies of the content a request holds at its peak.
+     */
+    public static final int COPIES = 5;
+
+    public static final long DEFAULT_QUEUE_TIMEOUT_MILLIS = 30_000;
+    public static final int DEFAULT_MAX_QUEUED = 64;
+
+    public enum Reason { TOO_LARGE, QUEUE_FULL, TIMEOUT }
+
+    private final long maxBytes;
+    private final long queueTimeoutMillis;
+    private final int maxQueued;
+    private final Semaphore permits;
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /**
+     * @param maxBytes Budget for the working sets of all requests in flight
+     * @param queueTimeoutMillis Longest a request waits for room before it is rejected
+     * @param maxQueued Requests allowed to wait at once; more are rejected straight away
+     */
+    public AdmissionControl(long maxBytes, long queueTimeoutMillis, int maxQueued) {
+        this.maxBytes = maxBytes;
+        this.queueTimeoutMillis = queueTimeoutMillis;
+        this.maxQueued = maxQueued;
+        this.permits = new Semaphore(toKiB(maxBytes), true);
+    }
+
+    /**
+     * Budget from {@code sedmcp.admission.*} system properties; by default
+     * half the heap.
+     */
+    public static AdmissionControl fromSystemProperties() {
+        return new AdmissionControl(
+                Long.getLong("sedmcp.admission.max-bytes", Runtime.getRuntime().maxMemory() / 2),
+                Long.getLong("sedmcp.admission.queue-timeout-ms", DEFAULT_QUEUE_TIMEOUT_MILLIS),
+                Integer.getInteger("sedmcp.admission.max-queued", DEFAULT_MAX_QUEUED));
+    }
+
+    /**
+     * Estimated peak heap use of a request this many chars long.
+     */
+    public static long estimate(long requestChars) {
+        return requestChars * 2 * COPIES;
+    }
+
+    /**
+     * Reserve room for a request, waiting for it if need be. Close the ticket
+     * when the response has been written.
+     *
+     * @throws Rejected if the request is too large, or there is no room in time
+     */
+    public Ticket admit(long requestChars) throws InterruptedException {
+        Ticket ticket = tryAdmit(requestChars);
+        if (ticket != null) {
+            return ticket;
+        }
+
+        int kib = Math.max(1, toKiB(estimate(requestChars)));
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            throw new Rejected(Reason.QUEUE_FULL, "Server busy: " + maxQueued + " requests already waiting for memory");
+        }
+        try {
+            if (!permits.tryAcquire(kib, queueTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new Rejected(Reason.TIMEOUT, "Server busy: no memory for this request after "
+                        + queueTimeoutMillis + " ms");
+            }
+        } finally {
+            queued.decrementAndGet();
+        }
+        return new Ticket(kib);
+    }
+
+    /**
+     * Reserve room for a request if there is some now, behind anyone already
+     * waiting, but without waiting or queueing itself.
+     *
+     * @return The reservation, or null if the request would have to wait for one
+     * @throws Rejected if the request is larger than the whole budget
+     */
+    public Ticket tryAdmit(long requestChars) throws InterruptedException {
+        long bytes = estimate(requestChars);
+        if (bytes > maxBytes) {
+            throw tooLarge(bytes);
+        }
+        int kib = Math.max(1, toKiB(bytes));
+        // the timed form, unlike tryAcquire(int), does not jump the queue
+        return permits.tryAcquire(kib, 0, TimeUnit.MILLISECONDS) ? new Ticket(kib) : null;
+    }
+
+    private Rejected tooLarge(long bytes) {
+        return new Rejected(Reason.TOO_LARGE, String.format(
+                "Request too large: about %d MB to process, over the %d MB budget (sedmcp.admission.max-bytes); "
+                        + "split the content or pass a contentRef", bytes >> 20, maxBytes >> 20));
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getReservedBytes() {
+        return (toKiB(maxBytes) - (long) permits.availablePermits()) << 10;
+    }
+
+    public int getQueued() {
+        return queued.get();
+    }
+
+    private static int toKiB(long bytes) {
+        return (int) Math.min(Integer.MAX_VALUE, (bytes + 1023) >> 10);
+    }
+
+    /**
+     * A reservation; closing it more than once is harmless.
+     */
+    public final class Ticket implements AutoCloseable {
+        private int kib;
+
+        private Ticket(int kib) {
+            this.kib = kib;
+        }
+
+        /**
+         * Reserve enough for a request at least this many chars long, for one
+         * whose size was not known when it was admitted; up to twice that if
+         * there is room, so a body read in small pieces does not come back
+         * for each one. Does not wait: a request holding part of the budget
+         * and queueing for more could hold up the very request it waits for.
+         *
+         * @return How many chars the reservation now covers
+         * @throws Rejected if the request is now too large, or there is no room for it right now
+         */
+        public long grow(long requestChars) {
+            long bytes = estimate(requestChars);
+            if (bytes > maxBytes) {
+                throw tooLarge(bytes);
+            }
+            int needed = toKiB(bytes) - kib;
+            if (needed > 0) {
+                int wanted = toKiB(Math.min(estimate(2 * requestChars), maxBytes)) - kib;
+                if (permits.tryAcquire(wanted)) {
+                    kib += wanted;
+                } else if (permits.tryAcquire(needed)) {
+                    kib += needed;
+                } else {
+                    throw new Rejected(Reason.QUEUE_FULL, "Server busy: no memory for the rest of this request");
+                }
+            }
+            return ((long) kib << 10) / estimate(1);
+        }
+
+        public long getReservedBytes() {
+            return (long) kib << 10;
+        }
+
+        @Override
+        public void close() {
+            if (kib > 0) {
+                permits.release(kib);
+                kib = 0;
+            }
+        }
+    }
+
+    public static class Rejected extends SedEngineException {
+        private final Reason reason;
+
+        Rejected(Reason reason, String message) {
+            super(message);
+            this.reason = reason;
+        }
+
+        public Reason getReason() {
+            return reason;
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package dev.klawed.sedmcp.service.impl;
+
+import dev.klawed.sedmcp.model.SedOperation;
+import dev.klawed.sedmcp.model.SedResult;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Per-block memo for batches of line-local substitutions, so re-running the
+ * same twenty-step cleanup after a one-line edit costs about one block of
+ * work instead of the whole file twenty times.
+ *
+ * <p>The content is cut into blocks of whole lines at content-defined
+ * boundaries: after a line whose hash has its low bits clear, or after
+ * {@value #MAX_BLOCK_LINES} lines. An edit therefore only moves the
+ * boundaries next to it, and every other block hashes as it did last time.
+ * A block's output is remembered by (batch, block hash), so a block seen
+ * before, in this document or any other, is copied rather than recomputed.
+ * A hit is confirmed against the stored input; a collision costs a
+ * recompute, never a wrong answer.
+ *
+ * <p>Only batches for which block by block is the same as all at once
+ * qualify: global substitutions from the first match on (not {@code 3g},
+ * which counts across the whole text) whose pattern cannot match a newline
+ * or the empty string and does not look outside its match (anchors, word
+ * boundaries, lookaround). The check is syntactic and errs towards running
+ * the batch whole, as before.
+ */
+public class BlockMemo {
+
+    public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+    /** Below this, running the batch is cheaper than cutting it up. */
+    public static final int MIN_CONTENT_CHARS = 16 * 1024;
+
+    static final int MAX_BLOCK_LINES = 256;
+    // a boundary after one line in 32, on average
+    private static final int BOUNDARY_MASK = 31;
+    private static final long ENTRY_OVERHEAD = 160;
+    // escapes that can match a newline, match a position, or spell a newline by number
+    private static final String UNSAFE_ESCAPES = "nsvRWDHXpPbBAzZGxuc0N";
+
+    private final long maxBytes;
+    private final LinkedHashMap<Key, Block> blocks = new LinkedHashMap<>(256, 0.75f, true);
+    private long bytes = 0;
+    private long reused = 0;
+    private long computed = 0;
+
+    public BlockMemo(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Whether an operation gives the same result run line by line as run
+     * over the whole text.
+     */
+    static boolean isLineLocal(SedOperation operation, Pattern regex) {
+        if (operation.getOperationType() != SedOperation.OperationType.SUBSTITUTE
+                || operation.getWindow() > 0 || !operation.hasFlag('g') || operation.hasFlag('s')
+                || operation.getOccurrence() != 1) {
+            return false;
+        }
+        String pattern = operation.getPattern();
+        // the char before an unescaped '-', or -1; a range from it must not take in '\n'
+        int previous = -1;
+        int rangeFrom = -1;
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            int value = c;
+            if (c == '\\') {
+                if (++i == pattern.length() || UNSAFE_ESCAPES.indexOf(pattern.charAt(i)) >= 0) {
+                    return false;
+                }
+                value = escapedChar(pattern.charAt(i));
+            } else if (c == '^' || c == '$' || c == '\n'
+                    || (c == '(' && pattern.startsWith("?", i + 1) && !pattern.startsWith("?:", i + 1))) {
+                return false;
+            } else if (c == '-' && previous >= 0 && rangeFrom < 0) {
+                rangeFrom = previous;
+                continue;
+            }
+            if (rangeFrom >= 0) {
+                // outside a class this is a literal '-' and the check costs only a missed memo
+                if (value < 0 || (rangeFrom <= '\n' && value >= '\n')) {
+                    return false;
+                }
+                rangeFrom = -1;
+                value = -1;
+            }
+            previous = value;
+        }
+        // with nothing looking outside the match, matching empty anywhere means matching ""
+        return !regex.matcher("").find();
+    }
+
+    /**
+     * The char an escape (the part after the backslash) stands for, or -1 for
+     * a class like {@code \\d} that is not one char.
+     */
+    private static int escapedChar(char c) {
+        return switch (c) {
+            case 't' -> '\t';
+            case 'r' -> '\r';
+            case 'f' -> '\f';
+            case 'a' -> '\u0007';
+            case 'e' -> '\u001B';
+            default -> Character.isLetterOrDigit(c) ? -1 : c;
+        };
+    }
+
+    /**
+     * Run a batch of line-local substitutions, reusing what can be reused.
+     *
+     * @param operations Operations that all pass {@link #isLineLocal}
+     * @param regexes Their compiled patterns, in the same order
+     */
+    public SedResult apply(String content, List<SedOperation> operations, List<Pattern> regexes) {
+        int batchHash = operations.hashCode();
+        List<List<String>> changes = new ArrayList<>(operations.size());
+        for (int i = 0; i < operations.size(); i++) {
+            changes.add(new ArrayList<>());
+        }
+        StringBuilder out = new StringBuilder(content.length() + 16);
+        long blocksReused = 0;
+        long blocksComputed = 0;
+
+        int length = content.length();
+        int start = 0;
+        while (start < length) {
+            long hash = 0;
+            int lines = 0;
+            int end = start;
+            while (end < length) {
+                long lineHash = 0xcbf29ce484222325L;
+                char c;
+                do {
+                    c = content.charAt(end++);
+                    lineHash = (lineHash ^ c) * 0x100000001b3L;
+                } while (c != '\n' && end < length);
+                hash = Long.rotateLeft(hash, 23) ^ lineHash;
+                lines++;
+                if (((lineHash >>> 40) & BOUNDARY_MASK) == 0 || lines == MAX_BLOCK_LINES) {
+                    break;
+                }
+            }
+
+            Key key = new Key(operations, batchHash, hash);
+            Block block;
+            synchronized (this) {
+                block = blocks.get(key);
+            }
+            if (block != null && block.input.length() == end - start
+                    && content.regionMatches(start, block.input, 0, end - start)) {
+                blocksReused++;
+            } else {
+                block = compute(content.substring(start, end), operations, regexes);
+                blocksComputed++;
+                put(key, block);
+            }
+
+            out.append(block.output);
+            for (int i = 0; i < block.changes.length; i++) {
+                changes.get(i).addAll(block.changes[i]);
+            }
+            start = end;
+        }
+
+        synchronized (this) {
+            reused += blocksReused;
+            computed += blocksComputed;
+        }
+
+        List<String> allChanges = new ArrayList<>();
+        changes.forEach(allChanges::addAll);
+        return SedResult.builder()
+                .success(true)
+                .originalContent(content)
+                .modifiedContent(out.toString())
+                .linesModified(allChanges.size())
+                .changesApplied(allChanges)
+                .build();
+    }
+
+    public synchronized long getReusedBlocks() { return reused; }
+    public synchronized long getComputedBlocks() { return computed; }
+    public synchronized long getBytes() { return bytes; }
+
+    public synchronized void clear() {
+        blocks.clear();
+        bytes = 0;
+    }
+
+    private static Block compute(String input, List<SedOperation> operations, List<Pattern> regexes) {
+        String text = input;
+        @SuppressWarnings("unchecked")
+        List<String>[] changes = new List[operations.size()];
+        for (int i = 0; i < operations.size(); i++) {
+            changes[i] = new ArrayList<>();
+            text = substitute(text, regexes.get(i), operations.get(i).getReplacement(), changes[i]);
+            if (changes[i].isEmpty()) {
+                changes[i] = List.of();
+            }
+        }
+        return new Block(input, text.equals(input) ? input : text, changes);
+    }
+
+    /**
+     * The whole-text substitution's edits, on one block: same output, same
+     * change log.
+     */
+    private static String substitute(String text, Pattern regex, String replacement, List<String> changes) {
+        Matcher matcher = regex.matcher(text);
+        if (!matcher.find()) {
+            return text;
+        }
+        boolean literal = replacement.indexOf('$') < 0 && replacement.indexOf('\\') < 0;
+        StringBuilder out = new StringBuilder(text.length() + 16);
+        int last = 0;
+        do {
+            changes.add(String.format("Replaced '%s' with '%s'", matcher.group(), replacement));
+            if (literal) {
+                out.append(text, last, matcher.start()).append(replacement);
+                last = matcher.end();
+            } else {
+                matcher.appendReplacement(out, replacement);
+            }
+        } while (matcher.find());
+        if (literal) {
+            out.append(text, last, text.length());
+        } else {
+            matcher.appendTail(out);
+        }
+        return out.toString();
+    }
+
+    private synchronized void put(Key key, Block block) {
+        if (block.weight > maxBytes) {
+            return;
+        }
+        Block previous = blocks.put(key, block);
+        bytes += block.weight - (previous != null ? previous.weight : 0);
+        Iterator<Block> it = blocks.values().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            bytes -= it.next().weight;
+            it.remove();
+        }
+    }
+
+    private static final class Key {
+        final List<SedOperation> operations;
+        final int batchHash;
+        final long blockHash;
+
+        Key(List<SedOperation> operations, int batchHash, long blockHash) {
+            this.operations = operations;
+            this.batchHash = batchHash;
+            this.blockHash = blockHash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key other)) {
+                return false;
+            }
+            return blockHash == other.blockHash && batchHash == other.batchHash
+                    && (operations == other.operations || operations.equals(other.operations));
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(blockHash) * 31 + batchHash;
+        }
+    }
+
+    private static final class Block {
+        final String input;
+        final String output;
+        final List<String>[] changes;
+        final long weight;
+
+        Block(String input, String output, List<String>[] changes) {
+            this.input = input;
+            this.output = output;
+            this.changes = changes;
+            long weight = ENTRY_OVERHEAD + 2L * input.length() + (output != input ? 2L * output.length() : 0);
+            for (List<String> list : changes) {
+                for (String change : list) {
+                    weight += 48 + 2L * change.length();
+                }
+            }
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package dev.klawed.sedmcp.service.impl;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Works out what a file's bytes are and decodes them, without being told.
+ * A byte order mark settles it; otherwise the bytes are checked as UTF-8,
+ * and anything that is not valid UTF-8 falls back to Latin-1 (or
+ * {@code sedmcp.file.fallback-charset}), which decodes every byte as
+ * something rather than failing.
+ *
+ * <p>Most source files are pure ASCII, so that case is made cheap: eight
+ * bytes at a time are tested for a high bit with one mask, and an all-ASCII
+ * file becomes a String by array copy, with no per-char decoding at all.
+ * Anything else goes through the JDK's strict UTF-8 decoder once, which has
+ * its own ASCII fast path and doubles as the validator.
+ */
+public final class CharsetDetector {
+
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    private static final Charset UTF_32BE = Charset.forName("UTF-32BE");
+    private static final Charset UTF_32LE = Charset.forName("UTF-32LE");
+    private static final Charset FALLBACK = Charset.forName(
+            System.getProperty("sedmcp.file.fallback-charset", StandardCharsets.ISO_8859_1.name()));
+
+    private CharsetDetector() {
+    }
+
+    /**
+     * Decode with the configured fallback for bytes that are not UTF-8.
+     */
+    public static Decoded decode(byte[] bytes) {
+        return decode(bytes, FALLBACK);
+    }
+
+    /**
+     * @param bytes A whole file
+     * @param fallback Charset for bytes with no BOM that are not valid UTF-8
+     */
+    public static Decoded decode(byte[] bytes, Charset fallback) {
+        int n = bytes.length;
+        if (n >= 3 && (bytes[0] & 0xFF) == 0xEF && (bytes[1] & 0xFF) == 0xBB && (bytes[2] & 0xFF) == 0xBF) {
+            return new Decoded(new String(bytes, 3, n - 3, StandardCharsets.UTF_8), StandardCharsets.UTF_8, 3);
+        }
+        if (n >= 4 && bytes[0] == 0 && bytes[1] == 0 && (bytes[2] & 0xFF) == 0xFE && (bytes[3] & 0xFF) == 0xFF) {
+            return new Decoded(new String(bytes, 4, n - 4, UTF_32BE), UTF_32BE, 4);
+        }
+        // FF FE 00 00 could be UTF-16LE starting with a NUL, but a text file starting with NUL is rarer
+        if (n >= 4 && (bytes[0] & 0xFF) == 0xFF && (bytes[1] & 0xFF) == 0xFE && bytes[2] == 0 && bytes[3] == 0) {
+            return new Decoded(new String(bytes, 4, n - 4, UTF_32LE), UTF_32LE, 4);
+        }
+        if (n >= 2 && (bytes[0] & 0xFF) == 0xFE && (bytes[1] & 0xFF) == 0xFF) {
+            return new Decoded(new String(bytes, 2, n - 2, StandardCharsets.UTF_16BE), StandardCharsets.UTF_16BE, 2);
+        }
+        if (n >= 2 && (bytes[0] & 0xFF) == 0xFF && (bytes[1] & 0xFF) == 0xFE) {
+            return new Decoded(new String(bytes, 2, n - 2, StandardCharsets.UTF_16LE), StandardCharsets.UTF_16LE, 2);
+        }
+
+        if (skipAscii(bytes, 0, n) == n) {
+            // Latin-1 is a straight copy into a compact String, and ASCII is Latin-1
+            return new Decoded(new String(bytes, StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8, 0);
+        }
+        String utf8 = decodeUtf8(bytes);
+        if (utf8 != null) {
+            return new Decoded(utf8, StandardCharsets.UTF_8, 0);
+        }
+        return new Decoded(new String(bytes, fallback), fallback, 0);
+    }
+
+    /**
+     * Index of the first byte from {@code from} with its high bit set, or
+     * {@code to} if there is none.
+     */
+    static int skipAscii(byte[] bytes, int from, int to) {
+        int i = from;
+        while (i + Long.BYTES <= to && ((long) LONGS.get(bytes, i) & HIGH_BITS) == 0) {
+            i += Long.BYTES;
+        }
+        while (i < to && bytes[i] >= 0) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Strict UTF-8, no overlong forms, surrogates or anything past
+     * U+10FFFF, or null. Validating and decoding in one pass beats
+     * validating first and then decoding.
+     */
+    static String decodeUtf8(byte[] bytes) {
+        try {
+            return StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(bytes))
+                    .toString();
+        } catch (CharacterCodingException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Decoded text, the charset it was in, and how many bytes of BOM
+     * preceded it (not part of the text).
+     */
+    public static final class Decoded {
+        private final String text;
+        private final Charset charset;
+        private final int bomLength;
+
+        Decoded(String text, Charset charset, int bomLength) {
+            this.text = text;
+            this.charset = charset;
+            this.bomLength = bomLength;
+        }
+
+        public String getText() { return text; }
+        public Charset getCharset() { return charset; }
+        public int getBomLength() { return bomLength; }
+    }
+}
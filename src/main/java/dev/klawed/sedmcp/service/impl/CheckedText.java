@@ -0,0 +1,62 @@
+package dev.klawed.sedmcp.service.impl;
+
+import dev.klawed.sedmcp.service.Progress;
+
+/**
+ * A text as a regex sees it, checking in with the call's {@link Progress}
+ * every {@value #CHECK_CHARS} chars read. Checkpoints between lines or
+ * matches never come if there are none: one find() over 50 MB without a
+ * match, or backtracking for minutes over one stretch, would otherwise run
+ * to the end whether anyone still wants it or not.
+ *
+ * <p>Reads are counted, not positions, since backtracking reads the same
+ * chars again; progress reports the furthest position read at a check, so
+ * it never goes backwards.
+ */
+final class CheckedText implements CharSequence {
+
+    static final int CHECK_CHARS = 64 * 1024;
+
+    private final CharSequence text;
+    private final Progress progress;
+    private int untilCheck = CHECK_CHARS;
+    private int furthest;
+
+    private CheckedText(CharSequence text, Progress progress) {
+        this.text = text;
+        this.progress = progress;
+    }
+
+    /**
+     * {@code text} itself when there is nobody to report to and nothing
+     * can cancel it.
+     */
+    static CharSequence of(CharSequence text, Progress progress) {
+        return progress == Progress.NONE ? text : new CheckedText(text, progress);
+    }
+
+    @Override
+    public int length() {
+        return text.length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (--untilCheck == 0) {
+            untilCheck = CHECK_CHARS;
+            furthest = Math.max(furthest, index);
+            progress.checkpoint(furthest, text.length());
+        }
+        return text.charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return text.subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        return text.toString();
+    }
+}
@@ -0,0 +1,348 @@
+package dev.klawed.sedmcp.service.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed backup store. Every backup is named after the SHA-256 of
+ * its bytes, so backing up the same version of a file a thousand times costs
+ * one object on disk instead of a thousand copies.
+ *
+ * <p>Objects are copies, hashed as they are written, so a backup reads its
+ * source once whether it turns out to be new or not. Hard links to the
+ * source are cheaper still, but only safe when nobody rewrites the source in
+ * place: {@link LocalFileService} replaces files with an atomic move, an
+ * editor or a shell redirect may not. So they are opt-in, and with them an
+ * object is re-hashed before it is handed out again; copies need not be.
+ *
+ * <p>Retention is by total size and by age, least recently used first, so the
+ * backup directory stays bounded no matter how many edits go through it. When
+ * an object was last used is kept in the mtime of a {@code .<hash>.used}
+ * marker next to it, not of the object, which as a hard link shares its
+ * mtime with the source.
+ */
+public class ContentAddressedBackupStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(ContentAddressedBackupStore.class);
+
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+    public static final Duration DEFAULT_MAX_AGE = Duration.ofDays(7);
+
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+    private static final int AGE_PRUNE_INTERVAL = 64;
+
+    private final Path root;
+    private final Path objects;
+    private final long maxBytes;
+    private final Duration maxAge;
+    private final boolean hardLinksAllowed;
+
+    /** hash -> entry, in least-recently-used order. */
+    private final LinkedHashMap<String, Entry> index = new LinkedHashMap<>(64, 0.75f, true);
+    private boolean indexLoaded = false;
+    private boolean hardLinksWork = true;
+    private long totalBytes = 0;
+    private int backupsSincePrune = 0;
+
+    public ContentAddressedBackupStore(Path root) {
+        this(root, DEFAULT_MAX_BYTES, DEFAULT_MAX_AGE, false);
+    }
+
+    /**
+     * @param root Directory that holds the store (created on first use)
+     * @param maxBytes Upper bound on the total size of retained backups
+     * @param maxAge Backups not used for longer than this are dropped
+     * @param hardLinksAllowed Whether sources may be hard-linked instead of copied.
+     *                         Only enable this if sources are never modified in place.
+     */
+    public ContentAddressedBackupStore(Path root, long maxBytes, Duration maxAge, boolean hardLinksAllowed) {
+        this.root = Objects.requireNonNull(root, "Backup root cannot be null");
+        this.objects = root.resolve("objects");
+        this.maxBytes = maxBytes;
+        this.maxAge = Objects.requireNonNull(maxAge, "Max age cannot be null");
+        this.hardLinksAllowed = hardLinksAllowed;
+    }
+
+    /**
+     * Back up the current content of a file.
+     *
+     * @param source File to back up
+     * @return Path of the backup object; identical content always yields the same path
+     * @throws IOException if the source cannot be read or the backup cannot be written
+     */
+    public synchronized Path backup(Path source) throws IOException {
+        loadIndex();
+        Files.createDirectories(objects);
+
+        if (hardLinksAllowed && hardLinksWork) {
+            BasicFileAttributes before = Files.readAttributes(source, BasicFileAttributes.class);
+            String hash = hash(source);
+            Path target = objectPath(hash);
+            Entry existing = index.get(hash);
+            if (existing != null && Files.exists(target)) {
+                if (hash(target).equals(hash)) {
+                    return reuse(existing, source);
+                }
+                // a hard-linked source was written in place, and took its backup with it
+                logger.warn("Backup {} no longer matches its hash, replacing it", target);
+                remove(existing);
+                index.remove(hash);
+            }
+            Files.createDirectories(target.getParent());
+            if (tryLink(source, target, before)) {
+                return add(target);
+            }
+        }
+
+        // hashed on its way into the temp file: one read, and the object is named after what was copied
+        Path tmp = Files.createTempFile(objects, ".backup-", ".tmp");
+        try {
+            String hash = copyHashing(source, tmp);
+            Path target = objectPath(hash);
+            Entry existing = index.get(hash);
+            if (existing != null && Files.exists(target)) {
+                // a copy is never written in place, so it still is what it is named after
+                return reuse(existing, source);
+            }
+            Files.createDirectories(target.getParent());
+            try {
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return add(target);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private Path reuse(Entry existing, Path source) {
+        logger.debug("Backup of {} deduplicated to {}", source, existing.path);
+        existing.lastUsed = System.currentTimeMillis();
+        touch(existing);
+        return existing.path;
+    }
+
+    private Path add(Path target) throws IOException {
+        long size = Files.size(target);
+        Entry entry = new Entry(target, size, System.currentTimeMillis());
+        Entry previous = index.put(target.getFileName().toString(), entry);
+        totalBytes += size - (previous != null ? previous.size : 0);
+        touch(entry);
+
+        if (totalBytes > maxBytes || ++backupsSincePrune >= AGE_PRUNE_INTERVAL) {
+            // the caller is about to be handed this one, so it stays even if it alone is over budget
+            prune(entry);
+        }
+        return target;
+    }
+
+    /**
+     * Drop backups that are too old or push the store over its size budget.
+     *
+     * @return number of backups removed
+     */
+    public synchronized int prune() throws IOException {
+        return prune(null);
+    }
+
+    private int prune(Entry keep) throws IOException {
+        loadIndex();
+        backupsSincePrune = 0;
+
+        long cutoff = System.currentTimeMillis() - maxAge.toMillis();
+        int removed = 0;
+        Iterator<Map.Entry<String, Entry>> it = index.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next().getValue();
+            if (entry != keep && (entry.lastUsed < cutoff || totalBytes > maxBytes)) {
+                remove(entry);
+                it.remove();
+                removed++;
+            }
+        }
+
+        if (removed > 0) {
+            logger.debug("Pruned {} backups, {} bytes retained", removed, totalBytes);
+        }
+        return removed;
+    }
+
+    public synchronized long getTotalBytes() throws IOException {
+        loadIndex();
+        return totalBytes;
+    }
+
+    public synchronized int getBackupCount() throws IOException {
+        loadIndex();
+        return index.size();
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    private boolean tryLink(Path source, Path target, BasicFileAttributes before) throws IOException {
+        try {
+            Files.createLink(target, source);
+        } catch (FileAlreadyExistsException e) {
+            // Someone else already stored this content under the same hash
+            return true;
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            // Cross-device or a filesystem without links; stop trying for this store
+            logger.debug("Hard links unavailable for backups in {}: {}", root, e.getMessage());
+            hardLinksWork = false;
+            return false;
+        }
+
+        // The source changed while we were hashing it, so the link no longer matches its name
+        BasicFileAttributes after = Files.readAttributes(source, BasicFileAttributes.class);
+        if (after.size() != before.size() || !after.lastModifiedTime().equals(before.lastModifiedTime())) {
+            Files.deleteIfExists(target);
+            return false;
+        }
+        return true;
+    }
+
+    private static String copyHashing(Path source, Path target) throws IOException {
+        MessageDigest digest = sha256();
+        try (InputStream in = new DigestInputStream(Files.newInputStream(source), digest);
+             OutputStream out = Files.newOutputStream(target, StandardOpenOption.TRUNCATE_EXISTING)) {
+            in.transferTo(out);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private void remove(Entry entry) throws IOException {
+        Files.deleteIfExists(entry.path);
+        Files.deleteIfExists(markerPath(entry.path));
+        totalBytes -= entry.size;
+    }
+
+    /**
+     * Record when an entry was last used. Best effort: without the marker an
+     * object counts as used when the index is next loaded, which errs on
+     * the side of keeping it.
+     */
+    private void touch(Entry entry) {
+        Path marker = markerPath(entry.path);
+        try {
+            try {
+                Files.createFile(marker);
+            } catch (FileAlreadyExistsException e) {
+                // only its mtime matters
+            }
+            Files.setLastModifiedTime(marker, FileTime.fromMillis(entry.lastUsed));
+        } catch (IOException e) {
+            logger.debug("Could not mark {} as used: {}", entry.path, e.getMessage());
+        }
+    }
+
+    private static Path markerPath(Path object) {
+        return object.resolveSibling("." + object.getFileName() + ".used");
+    }
+
+    private Path objectPath(String hash) {
+        return objects.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private void loadIndex() throws IOException {
+        if (indexLoaded) {
+            return;
+        }
+        indexLoaded = true;
+        if (!Files.isDirectory(objects)) {
+            return;
+        }
+
+        try (Stream<Path> files = Files.walk(objects, 2)) {
+            files.filter(Files::isRegularFile)
+                 .filter(p -> !p.getFileName().toString().startsWith("."))
+                 .map(this::readEntry)
+                 .sorted((a, b) -> Long.compare(a.lastUsed, b.lastUsed))
+                 .forEach(e -> {
+                     index.put(e.path.getFileName().toString(), e);
+                     totalBytes += e.size;
+                 });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        logger.debug("Loaded {} existing backups ({} bytes) from {}", index.size(), totalBytes, root);
+    }
+
+    private Entry readEntry(Path path) {
+        try {
+            long size = Files.size(path);
+            Path marker = markerPath(path);
+            if (Files.exists(marker)) {
+                return new Entry(path, size, Files.getLastModifiedTime(marker).toMillis());
+            }
+            // from before markers; the object's own mtime may be its source's
+            Entry entry = new Entry(path, size, System.currentTimeMillis());
+            touch(entry);
+            return entry;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static String hash(Path file) throws IOException {
+        MessageDigest digest = sha256();
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(HASH_BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private static final class Entry {
+        final Path path;
+        final long size;
+        long lastUsed;
+
+        Entry(Path path, long size, long lastUsed) {
+            this.path = path;
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package dev.klawed.sedmcp.service.impl;
+
+import dev.klawed.sedmcp.model.ContentHandle;
+import dev.klawed.sedmcp.service.SedEngineException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Session store for content the server has recently received or produced,
+ * addressed by {@link ContentHandle}. Lets a client chain preview, execute and
+ * follow-up edits without resending the same text on every call.
+ *
+ * <p>The store is an LRU weighted by content size, so a handful of huge
+ * documents and a pile of small ones are both held to the same byte budget.
+ * When a spill directory is configured, evicted entries go to temp files
+ * (themselves bounded) and are read back on demand instead of being lost.
+ * Each store spills into its own locked subdirectory, removed by
+ * {@link #close()}; ids start again at c1 in every store, so sharing one
+ * directory between processes is safe only that way. Subdirectories whose
+ * lock nobody holds any more were left by a process that died, and go when
+ * the next store starts spilling.
+ * Large entries are held as {@link OffHeapText}, so the budget is mostly
+ * native memory rather than old generation.
+ */
+public class ContentStore implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ContentStore.class);
+
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    /** Rough per-entry overhead of the String, entry and map node. */
+    private static final long ENTRY_OVERHEAD = 96;
+    // spill directories of stores in this process: never probe their locks, closing the probe would drop them
+    private static final Set<Path> OPEN_SPILL_DIRS = ConcurrentHashMap.newKeySet();
+
+    private final long maxBytes;
+    private final Path spillDir;
+    private final long maxSpillBytes;
+    // this store's own directory under spillDir, and the lock that says it is in use; null until the first spill
+    private Path spillFiles;
+    private FileChannel lockChannel;
+    private FileLock lock;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final LinkedHashMap<String, Spilled> spilled = new LinkedHashMap<>(64, 0.75f, true);
+    private final Map<Long, String> idsByHash = new HashMap<>();
+    private long bytes = 0;
+    private long spilledBytes = 0;
+    private long nextId = 1;
+
+    public ContentStore() {
+        this(DEFAULT_MAX_BYTES, null, 0);
+    }
+
+    /**
+     * @param maxBytes Heap budget for stored content
+     * @param spillDir Directory for evicted content, or null to simply drop it
+     * @param maxSpillBytes Disk budget for spilled content
+     */
+    public ContentStore(long maxBytes, Path spillDir, long maxSpillBytes) {
+        this.maxBytes = maxBytes;
+        this.spillDir = spillDir;
+        this.maxSpillBytes = maxSpillBytes;
+    }
+
+    /**
+     * Store configured from {@code sedmcp.content-store.*} system properties.
+     */
+    public static ContentStore fromSystemProperties() {
+        long maxBytes = Long.getLong("sedmcp.content-store.max-bytes", DEFAULT_MAX_BYTES);
+        String spill = System.getProperty("sedmcp.content-store.spill-dir");
+        long maxSpill = Long.getLong("sedmcp.content-store.max-spill-bytes", 4 * maxBytes);
+        return new ContentStore(maxBytes, spill != null ? Path.of(spill) : null, maxSpill);
+    }
+
+    /**
+     * Store content and return its handle. Storing text that is already
+     * present returns the existing handle rather than a second copy.
+     */
+    public synchronized ContentHandle put(CharSequence content) {
+        long hash = ContentHandle.hash(content);
+
+        String existingId = idsByHash.get(hash);
+        if (existingId != null) {
+            Entry existing = entries.get(existingId);
+            if (existing != null && existing.content.length() == content.length()
+                    && CharSequence.compare(existing.content, content) == 0) {
+                return existing.handle;
+            }
+        }
+
+        ContentHandle handle = new ContentHandle("c" + Long.toString(nextId++, 36), hash, content.length());
+        Entry entry = new Entry(handle, content);
+        entries.put(handle.getId(), entry);
+        idsByHash.put(hash, handle.getId());
+        bytes += entry.weight;
+        evict();
+        return handle;
+    }
+
+    /**
+     * Resolve a reference produced by {@link ContentHandle#toString()}.
+     *
+     * @throws SedEngineException if the content is unknown, expired or does not match the reference's hash
+     */
+    public synchronized String get(String ref) {
+        ContentHandle requested;
+        try {
+            requested = ContentHandle.parse(ref);
+        } catch (IllegalArgumentException e) {
+            throw new SedEngineException(e.getMessage());
+        }
+
+        Entry entry = entries.get(requested.getId());
+        if (entry == null) {
+            entry = unspill(requested.getId());
+        }
+        if (entry == null) {
+            throw new SedEngineException("Unknown or expired content reference: " + ref);
+        }
+        if (requested.getHash() != 0 && requested.getHash() != entry.handle.getHash()) {
+            throw new SedEngineException("Content reference hash mismatch: " + ref);
+        }
+        return entry.content.toString();
+    }
+
+    public synchronized boolean contains(String ref) {
+        try {
+            String id = ContentHandle.parse(ref).getId();
+            return entries.containsKey(id) || spilled.containsKey(id);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    public synchronized long getBytes() { return bytes; }
+    public synchronized long getSpilledBytes() { return spilledBytes; }
+    public synchronized int size() { return entries.size(); }
+
+    private void evict() {
+        Iterator<Entry> it = entries.values().iterator();
+        // Always keep the newest entry, even if it alone is over budget
+        while (bytes > maxBytes && entries.size() > 1 && it.hasNext()) {
+            Entry eldest = it.next();
+            it.remove();
+            bytes -= eldest.weight;
+            idsByHash.remove(eldest.handle.getHash(), eldest.handle.getId());
+            spill(eldest);
+        }
+    }
+
+    private void spill(Entry entry) {
+        if (spillDir == null || 2L * entry.content.length() > maxSpillBytes) {
+            return;
+        }
+        try {
+            if (spillFiles == null) {
+                openSpillFiles();
+            }
+            Path file = spillFiles.resolve(entry.handle.getId() + ".txt");
+            Files.writeString(file, entry.content, StandardCharsets.UTF_8);
+            long size = Files.size(file);
+            spilled.put(entry.handle.getId(), new Spilled(entry.handle, file, size));
+            spilledBytes += size;
+
+            Iterator<Spilled> it = spilled.values().iterator();
+            while (spilledBytes > maxSpillBytes && it.hasNext()) {
+                Spilled eldest = it.next();
+                it.remove();
+                spilledBytes -= eldest.size;
+                Files.deleteIfExists(eldest.file);
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to spill content {} to {}: {}", entry.handle, spillDir, e.getMessage());
+        }
+    }
+
+    private Entry unspill(String id) {
+        Spilled s = spilled.remove(id);
+        if (s == null) {
+            return null;
+        }
+        spilledBytes -= s.size;
+        try {
+            String content = Files.readString(s.file, StandardCharsets.UTF_8);
+            Files.deleteIfExists(s.file);
+            if (content.length() != s.handle.getLength() || ContentHandle.hash(content) != s.handle.getHash()) {
+                logger.warn("Spilled content {} changed on disk, dropping it", s.handle);
+                return null;
+            }
+            Entry entry = new Entry(s.handle, content);
+            entries.put(id, entry);
+            idsByHash.put(s.handle.getHash(), id);
+            bytes += entry.weight;
+            evict();
+            return entry;
+        } catch (IOException e) {
+            logger.warn("Failed to read spilled content {}: {}", s.handle, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Delete everything spilled and this store's directory. The store still
+     * works afterwards, holding content in memory only until it spills again.
+     */
+    @Override
+    public synchronized void close() {
+        if (spillFiles == null) {
+            return;
+        }
+        spilled.clear();
+        spilledBytes = 0;
+        try {
+            lock.release();
+            lockChannel.close();
+        } catch (IOException e) {
+            logger.debug("Failed to unlock {}: {}", spillFiles, e.getMessage());
+        }
+        deleteTree(spillFiles);
+        OPEN_SPILL_DIRS.remove(spillFiles);
+        spillFiles = null;
+    }
+
+    private void openSpillFiles() throws IOException {
+        Files.createDirectories(spillDir);
+        removeAbandoned(spillDir);
+        Path dir = Files.createTempDirectory(spillDir, "store-");
+        OPEN_SPILL_DIRS.add(dir);
+        FileChannel channel = FileChannel.open(dir.resolve(".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        lock = channel.lock();
+        lockChannel = channel;
+        spillFiles = dir;
+    }
+
+    /**
+     * Remove store directories whose lock can be taken: their process is gone.
+     */
+    private static void removeAbandoned(Path spillDir) {
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(spillDir, "store-*")) {
+            for (Path dir : dirs) {
+                if (OPEN_SPILL_DIRS.contains(dir)) {
+                    continue;
+                }
+                boolean abandoned;
+                try (FileChannel channel = FileChannel.open(dir.resolve(".lock"), StandardOpenOption.WRITE);
+                     FileLock held = channel.tryLock()) {
+                    abandoned = held != null;
+                } catch (OverlappingFileLockException | IOException e) {
+                    // no lock file yet (still being set up), or not a store directory
+                    abandoned = false;
+                }
+                if (abandoned) {
+                    logger.info("Removing spilled content left by an earlier process: {}", dir);
+                    deleteTree(dir);
+                }
+            }
+        } catch (IOException e) {
+            logger.debug("Could not look for abandoned spill directories in {}: {}", spillDir, e.getMessage());
+        }
+    }
+
+    private static void deleteTree(Path dir) {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(dir);
+        } catch (IOException e) {
+            logger.warn("Failed to remove spill directory {}: {}", dir, e.getMessage());
+        }
+    }
+
+    private static final class Entry {
+        final ContentHandle handle;
+        final CharSequence content;
+        final long weight;
+
+        Entry(ContentHandle handle, CharSequence content) {
+            this.handle = handle;
+            this.content = OffHeapText.offload(content);
+            this.weight = ENTRY_OVERHEAD + 2L * content.length();
+        }
+    }
+
+    private static final class Spilled {
+        final ContentHandle handle;
+        final Path file;
+        final long size;
+
+        Spilled(ContentHandle handle, Path file, long size) {
+            this.handle = handle;
+            this.file = file;
+            this.size = size;
+        }
+    }
+}
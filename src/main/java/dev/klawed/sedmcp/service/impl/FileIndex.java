@@ -0,0 +1,324 @@
+package dev.klawed.sedmcp.service.impl;
+
+import dev.klawed.sedmcp.model.ContentHandle;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps recently used files under one base directory read, decoded and
+ * line-indexed, and re-reads them as soon as they change on disk, so the
+ * edit after someone else's edit starts warm instead of re-reading the file.
+ *
+ * <p>The directories of indexed files are watched with a {@link WatchService}
+ * on a daemon thread; a change to an indexed file re-reads it in the
+ * background, a change to anything else is ignored. Events arrive a little
+ * after the fact, so {@link #get} also compares size and modification time
+ * before trusting what it has: one stat, not a read.
+ */
+public class FileIndex implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileIndex.class);
+
+    public static final int DEFAULT_MAX_FILES = 256;
+
+    private final Path base;
+    private final int maxFiles;
+    private final WatchService watcher;
+    private final LinkedHashMap<Path, Snapshot> files = new LinkedHashMap<>(64, 0.75f, true);
+    private final Map<Path, WatchKey> watched = new HashMap<>();
+    private final Thread thread;
+    private long hits = 0;
+    private long misses = 0;
+    private long refreshes = 0;
+
+    /**
+     * @param base Directory the index is confined to
+     * @param maxFiles Files kept indexed before the least recently used is dropped
+     */
+    public FileIndex(Path base, int maxFiles) throws IOException {
+        this.base = base.toAbsolutePath().normalize();
+        this.maxFiles = maxFiles;
+        this.watcher = FileSystems.getDefault().newWatchService();
+        this.thread = new Thread(this::watch, "sedmcp-file-index");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Index of {@code sedmcp.watch.dir}, or null if that is not set or
+     * cannot be watched.
+     */
+    public static FileIndex fromSystemProperties() {
+        String dir = System.getProperty("sedmcp.watch.dir");
+        if (dir == null) {
+            return null;
+        }
+        try {
+            return new FileIndex(Path.of(dir), Integer.getInteger("sedmcp.watch.max-files", DEFAULT_MAX_FILES));
+        } catch (IOException e) {
+            logger.warn("Not watching {}: {}", dir, e.getMessage());
+            return null;
+        }
+    }
+
+    public Path getBase() {
+        return base;
+    }
+
+    public boolean covers(Path path) {
+        return path.toAbsolutePath().normalize().startsWith(base);
+    }
+
+    /**
+     * The file as it is now, read and indexed if it was not already.
+     *
+     * @throws SecurityException if the file is outside the base directory
+     */
+    public Snapshot get(Path path) throws IOException {
+        Path file = resolve(path);
+        Snapshot snapshot;
+        synchronized (this) {
+            snapshot = files.get(file);
+        }
+        if (snapshot != null && snapshot.isCurrent()) {
+            synchronized (this) {
+                hits++;
+            }
+            return snapshot;
+        }
+        snapshot = Snapshot.read(file);
+        synchronized (this) {
+            misses++;
+            put(file, snapshot);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Record content just written to a file, so reading it back is warm.
+     */
+    public void update(Path path, String content, Charset charset, int bomLength) throws IOException {
+        Path file = resolve(path);
+        Snapshot snapshot = new Snapshot(file, content, charset, bomLength,
+                Files.readAttributes(file, BasicFileAttributes.class));
+        synchronized (this) {
+            put(file, snapshot);
+        }
+    }
+
+    public synchronized void invalidate(Path path) {
+        files.remove(path.toAbsolutePath().normalize());
+    }
+
+    public synchronized int size() { return files.size(); }
+    public synchronized long getHits() { return hits; }
+    public synchronized long getMisses() { return misses; }
+    public synchronized long getRefreshes() { return refreshes; }
+
+    @Override
+    public void close() throws IOException {
+        watcher.close();
+        synchronized (this) {
+            files.clear();
+            watched.clear();
+        }
+    }
+
+    private Path resolve(Path path) {
+        Path file = path.toAbsolutePath().normalize();
+        if (!file.startsWith(base)) {
+            throw new SecurityException("Path outside watched base: " + path);
+        }
+        return file;
+    }
+
+    private void put(Path file, Snapshot snapshot) {
+        files.put(file, snapshot);
+        Path dir = file.getParent();
+        if (!watched.containsKey(dir)) {
+            try {
+                watched.put(dir, dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE));
+            } catch (IOException | ClosedWatchServiceException e) {
+                logger.debug("Cannot watch {}: {}", dir, e.getMessage());
+            }
+        }
+        while (files.size() > maxFiles) {
+            Path eldest = files.keySet().iterator().next();
+            files.remove(eldest);
+            unwatchIfUnused(eldest.getParent());
+        }
+    }
+
+    private void unwatchIfUnused(Path dir) {
+        for (Path file : files.keySet()) {
+            if (file.getParent().equals(dir)) {
+                return;
+            }
+        }
+        WatchKey key = watched.remove(dir);
+        if (key != null) {
+            key.cancel();
+        }
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                Path dir = (Path) key.watchable();
+                Set<Path> changed = new LinkedHashSet<>();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // lost track; everything indexed in this directory may have changed
+                        synchronized (this) {
+                            files.keySet().stream().filter(f -> f.getParent().equals(dir)).forEach(changed::add);
+                        }
+                    } else {
+                        changed.add(dir.resolve((Path) event.context()));
+                    }
+                }
+                // editors and atomic renames fire several events per save; one re-read each
+                for (Path file : changed) {
+                    refresh(file);
+                }
+                if (!key.reset()) {
+                    synchronized (this) {
+                        watched.remove(dir);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+
+    private void refresh(Path file) {
+        Snapshot old;
+        synchronized (this) {
+            old = files.get(file);
+        }
+        if (old == null || old.isCurrent()) {
+            return;
+        }
+        try {
+            Snapshot fresh = Snapshot.read(file);
+            synchronized (this) {
+                // only if nobody dropped or replaced it meanwhile
+                if (files.get(file) == old) {
+                    files.put(file, fresh);
+                    refreshes++;
+                }
+            }
+            logger.debug("Re-indexed {} after a change", file);
+        } catch (NoSuchFileException e) {
+            synchronized (this) {
+                files.remove(file, old);
+            }
+        } catch (IOException e) {
+            logger.debug("Dropping {} from the index: {}", file, e.getMessage());
+            synchronized (this) {
+                files.remove(file, old);
+            }
+        }
+    }
+
+    /**
+     * A file's decoded content with its line starts and content hash, as of
+     * the size and modification time it was read at.
+     */
+    public static final class Snapshot {
+        private final Path path;
+        private final String content;
+        private final Charset charset;
+        private final int bomLength;
+        private final long hash;
+        private final int[] lineStarts;
+        private final long size;
+        private final FileTime modified;
+
+        Snapshot(Path path, String content, Charset charset, int bomLength, BasicFileAttributes attributes) {
+            this.path = path;
+            this.content = content;
+            this.charset = charset;
+            this.bomLength = bomLength;
+            this.hash = ContentHandle.hash(content);
+            this.lineStarts = lineStarts(content);
+            this.size = attributes.size();
+            this.modified = attributes.lastModifiedTime();
+        }
+
+        static Snapshot read(Path file) throws IOException {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            CharsetDetector.Decoded decoded = CharsetDetector.decode(Files.readAllBytes(file));
+            return new Snapshot(file, decoded.getText(), decoded.getCharset(), decoded.getBomLength(), attributes);
+        }
+
+        boolean isCurrent() {
+            try {
+                BasicFileAttributes now = Files.readAttributes(path, BasicFileAttributes.class);
+                return now.size() == size && now.lastModifiedTime().equals(modified);
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        public Path getPath() { return path; }
+        public String getContent() { return content; }
+        public Charset getCharset() { return charset; }
+        public int getBomLength() { return bomLength; }
+        public long getHash() { return hash; }
+        public int getLineCount() { return lineStarts.length; }
+
+        /**
+         * Offset of the first char of a line, counting from 1.
+         */
+        public int lineStart(int line) {
+            return lineStarts[line - 1];
+        }
+
+        /**
+         * The line, counting from 1, that holds the char at {@code offset}.
+         */
+        public int lineOf(int offset) {
+            int i = Arrays.binarySearch(lineStarts, offset);
+            return i >= 0 ? i + 1 : -i - 1;
+        }
+
+        private static int[] lineStarts(String content) {
+            int[] starts = new int[16];
+            int lines = 1;
+            for (int i = content.indexOf('\n'); i >= 0 && i + 1 < content.length(); i = content.indexOf('\n', i + 1)) {
+                if (lines == starts.length) {
+                    starts = Arrays.copyOf(starts, lines * 2);
+                }
+                starts[lines++] = i + 1;
+            }
+            return Arrays.copyOf(starts, lines);
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package dev.klawed.sedmcp.service.impl;
+
+import dev.klawed.sedmcp.service.FileService;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * File service backed by the real filesystem. Writes always go through a
+ * temp file and an atomic rename, so readers never see half-written files
+ * and backups can safely share storage with the files they protect.
+ * With a {@link FileIndex}, reads under its base directory come from the
+ * index, and writes there update it.
+ *
+ * <p>A file read without naming an encoding is written back the way it was
+ * found: a Latin-1 file stays Latin-1 and a BOM stays in front. Encodings
+ * other than plain UTF-8 are remembered per path for the last
+ * {@value #MAX_REMEMBERED_ENCODINGS} files read.
+ */
+@Service
+public class LocalFileService implements FileService {
+
+    private static final Logger logger = LoggerFactory.getLogger(LocalFileService.class);
+
+    static final int MAX_REMEMBERED_ENCODINGS = 4096;
+    private static final Encoding PLAIN_UTF_8 = new Encoding(StandardCharsets.UTF_8, false);
+
+    private final ContentAddressedBackupStore backupStore;
+    private final FileIndex index;
+    // how files read outside the index were encoded, if not plain UTF-8; guarded by itself
+    private final Map<Path, Encoding> encodings = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Encoding> eldest) {
+            return size() > MAX_REMEMBERED_ENCODINGS;
+        }
+    };
+
+    public LocalFileService() {
+        this(defaultBackupStore(), FileIndex.fromSystemProperties());
+    }
+
+    public LocalFileService(ContentAddressedBackupStore backupStore) {
+        this(backupStore, null);
+    }
+
+    /**
+     * @param backupStore Where backups go
+     * @param index Index of hot files, or null to always read from disk
+     */
+    public LocalFileService(ContentAddressedBackupStore backupStore, FileIndex index) {
+        this.backupStore = backupStore;
+        this.index = index;
+    }
+
+    /**
+     * Backup store configured from {@code sedmcp.backup.*} system properties,
+     * falling back to a bounded store under the user's home directory.
+     * {@code sedmcp.backup.hard-links} is for trees nothing else writes to.
+     */
+    static ContentAddressedBackupStore defaultBackupStore() {
+        Path root = Path.of(System.getProperty("sedmcp.backup.dir",
+                Path.of(System.getProperty("user.home"), ".sed-mcp", "backups").toString()));
+        long maxBytes = Long.getLong("sedmcp.backup.max-bytes", ContentAddressedBackupStore.DEFAULT_MAX_BYTES);
+        Duration maxAge = Duration.ofHours(Long.getLong("sedmcp.backup.max-age-hours",
+                ContentAddressedBackupStore.DEFAULT_MAX_AGE.toHours()));
+        return new ContentAddressedBackupStore(root, maxBytes, maxAge, Boolean.getBoolean("sedmcp.backup.hard-links"));
+    }
+
+    @Override
+    public String readFile(Path filePath) throws IOException {
+        if (index != null && index.covers(filePath)) {
+            FileIndex.Snapshot snapshot = index.get(filePath);
+            remember(snapshot.getPath(), new Encoding(snapshot.getCharset(), snapshot.getBomLength() > 0));
+            return snapshot.getContent();
+        }
+        CharsetDetector.Decoded decoded = CharsetDetector.decode(Files.readAllBytes(filePath));
+        remember(filePath.toAbsolutePath().normalize(),
+                new Encoding(decoded.getCharset(), decoded.getBomLength() > 0));
+        return decoded.getText();
+    }
+
+    @Override
+    public String readFile(Path filePath, String encoding) throws IOException {
+        Charset charset = Charset.forName(encoding);
+        if (index != null && index.covers(filePath)) {
+            FileIndex.Snapshot snapshot = index.get(filePath);
+            if (snapshot.getCharset().equals(charset)) {
+                return snapshot.getContent();
+            }
+        }
+        return Files.readString(filePath, charset);
+    }
+
+    @Override
+    public void writeFile(Path filePath, String content) throws IOException {
+        Path absolute = filePath.toAbsolutePath().normalize();
+        write(absolute, content, encodingOf(absolute));
+    }
+
+    @Override
+    public void writeFile(Path filePath, String content, String encoding) throws IOException {
+        Path absolute = filePath.toAbsolutePath().normalize();
+        Encoding chosen = new Encoding(Charset.forName(encoding), false);
+        write(absolute, content, chosen);
+        remember(absolute, chosen);
+    }
+
+    /**
+     * How a file was encoded when last read, or plain UTF-8 for files we
+     * have not read.
+     */
+    private Encoding encodingOf(Path absolute) {
+        synchronized (encodings) {
+            return encodings.getOrDefault(absolute, PLAIN_UTF_8);
+        }
+    }
+
+    private void remember(Path absolute, Encoding encoding) {
+        synchronized (encodings) {
+            if (encoding.equals(PLAIN_UTF_8)) {
+                encodings.remove(absolute);
+            } else {
+                encodings.put(absolute, encoding);
+            }
+        }
+    }
+
+    private void write(Path absolute, String content, Encoding encoding) throws IOException {
+        // through a symlink, replace what it points at, not the link
+        Path target = Files.exists(absolute) ? absolute.toRealPath() : absolute;
+        // not createTempFile: that makes it 0600, and a new file should get the umask's mode like any other
+        Path tmp = target.resolveSibling("." + target.getFileName() + "."
+                + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+        try {
+            // strict encoder: text the charset cannot hold fails the write rather than turning into '?'
+            try (Writer writer = Files.newBufferedWriter(tmp, encoding.charset(),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                if (encoding.bom()) {
+                    writer.write('\uFEFF');
+                }
+                writer.write(content);
+            }
+            copyAttributes(target, tmp);
+            try {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        if (index != null && index.covers(absolute)) {
+            index.update(absolute, content, encoding.charset(), encoding.bom() ? bomLength(encoding.charset()) : 0);
+        }
+    }
+
+    private static int bomLength(Charset charset) {
+        return "\uFEFF".getBytes(charset).length;
+    }
+
+    /**
+     * The file being replaced keeps its mode and, where we are allowed to
+     * set them, its owner and group; the temp file starts out with the
+     * umask's mode and ours.
+     */
+    private static void copyAttributes(Path from, Path to) {
+        PosixFileAttributeView view = Files.getFileAttributeView(to, PosixFileAttributeView.class);
+        if (view == null || !Files.exists(from)) {
+            return;
+        }
+        PosixFileAttributes original;
+        try {
+            original = Files.readAttributes(from, PosixFileAttributes.class);
+            view.setPermissions(original.permissions());
+        } catch (UnsupportedOperationException | IOException e) {
+            logger.debug("Could not copy permissions of {}: {}", from, e.getMessage());
+            return;
+        }
+        try {
+            view.setGroup(original.group());
+            view.setOwner(original.owner());
+        } catch (IOException e) {
+            // only root can give a file away; the new file is ours, as an editor's would be
+            logger.debug("Could not copy owner of {}: {}", from, e.getMessage());
+        }
+    }
+
+    @Override
+    public Path createBackup(Path filePath) throws IOException {
+        if (!Files.isRegularFile(filePath)) {
+            throw new IOException("Cannot backup non-existent file: " + filePath);
+        }
+        Path backup = backupStore.backup(filePath);
+        logger.debug("Backed up {} to {}", filePath, backup);
+        return backup;
+    }
+
+    @Override
+    public boolean canRead(Path filePath) {
+        return Files.isRegularFile(filePath) && Files.isReadable(filePath);
+    }
+
+    @Override
+    public boolean canWrite(Path filePath) {
+        if (Files.exists(filePath)) {
+            return Files.isWritable(filePath);
+        }
+        Path parent = filePath.toAbsolutePath().getParent();
+        return parent != null && Files.isDirectory(parent) && Files.isWritable(parent);
+    }
+
+    @Override
+    public long getFileSize(Path filePath) throws IOException {
+        return Files.size(filePath);
+    }
+
+    @Override
+    public void validatePath(Path filePath, Path allowedBasePath) {
+        Path base = allowedBasePath.toAbsolutePath().normalize();
+        Path path = filePath.toAbsolutePath().normalize();
+
+        if (!path.startsWith(base)) {
+            throw new SecurityException("Path outside allowed base: " + filePath);
+        }
+
+        // Symlinks can still point outside the base, so check where they really go
+        try {
+            if (Files.exists(path) && !path.toRealPath().startsWith(base.toRealPath())) {
+                throw new SecurityException("Path resolves outside allowed base: " + filePath);
+            }
+        } catch (IOException e) {
+            throw new SecurityException("Cannot resolve path: " + filePath, e);
+        }
+    }
+
+    public ContentAddressedBackupStore getBackupStore() {
+        return backupStore;
+    }
+
+    /**
+     * The hot-file index, or null if there is none.
+     */
+    public FileIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * A charset, and whether the file starts with its byte order mark.
+     */
+    private record Encoding(Charset charset, boolean bom) {
+    }
+}
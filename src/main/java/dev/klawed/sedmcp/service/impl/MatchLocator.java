@@ -0,0 +1,226 @@
+package dev.klawed.sedmcp.service.impl;
+
+import dev.klawed.sedmcp.service.Progress;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds where a pattern matches, and nothing else: no lines copied out, no
+ * change log, just (line, column, length) for each match, stopping once it
+ * has as many as were asked for.
+ *
+ * <p>Lines are matched one at a time, as {@code p} and grep do, so {@code ^}
+ * and {@code $} are line starts and ends and no match spans a newline. That
+ * makes chunks of whole lines independent: past
+ * {@code sedmcp.grep.parallel-threshold-chars} they are searched on the
+ * common fork/join pool and merged in order, and a chunk that fills the cap
+ * on its own stops the ones after it.
+ */
+public final class MatchLocator {
+
+    public static final int DEFAULT_MAX_MATCHES = 1000;
+    // what a caller may ask for at most: three ints a match, so 1.2 MB of them
+    public static final int MAX_MATCHES = Integer.getInteger("sedmcp.grep.max-matches", 100_000);
+    public static final int DEFAULT_PARALLEL_THRESHOLD_CHARS = 1024 * 1024;
+
+    private static final int PARALLEL_THRESHOLD_CHARS = Integer.getInteger(
+            "sedmcp.grep.parallel-threshold-chars", DEFAULT_PARALLEL_THRESHOLD_CHARS);
+    static final int CHUNK_CHARS = 256 * 1024;
+
+    private MatchLocator() {
+    }
+
+    /**
+     * Up to {@code maxMatches} matches, in order.
+     *
+     * @throws dev.klawed.sedmcp.service.SedCancelledException if cancelled
+     */
+    public static Matches find(CharSequence text, Pattern regex, int maxMatches, Progress progress) {
+        boolean parallel = text.length() >= PARALLEL_THRESHOLD_CHARS && ForkJoinPool.getCommonPoolParallelism() > 1;
+        return find(text, regex, maxMatches, progress, parallel, CHUNK_CHARS);
+    }
+
+    static Matches find(CharSequence text, Pattern regex, int maxMatches, Progress progress,
+                        boolean parallel, int chunkChars) {
+        int length = text.length();
+        int[] bounds = chunkBounds(text, chunkChars);
+        int chunks = bounds.length - 1;
+        // one more than asked for, to tell "exactly N" from "N and then some"; long, as N may be MAX_VALUE
+        long wanted = maxMatches + 1L;
+        int wantedPerChunk = (int) Math.min(wanted, Integer.MAX_VALUE);
+        AtomicInteger lastNeeded = new AtomicInteger(Integer.MAX_VALUE);
+
+        List<CompletableFuture<Chunk>> pending = new ArrayList<>(chunks);
+        if (parallel && chunks > 1) {
+            for (int i = 0; i < chunks; i++) {
+                int index = i;
+                pending.add(CompletableFuture.supplyAsync(() -> scan(text, regex, index, bounds[index],
+                        bounds[index + 1], wantedPerChunk, lastNeeded, progress), ForkJoinPool.commonPool()));
+            }
+        }
+
+        Matches matches = new Matches((int) Math.min(wanted, 64));
+        int line = 1;
+        try {
+            for (int i = 0; i < chunks; i++) {
+                progress.checkpoint(bounds[i], length);
+                int need = (int) Math.min(wanted - matches.count, Integer.MAX_VALUE);
+                Chunk chunk = pending.isEmpty()
+                        ? scan(text, regex, i, bounds[i], bounds[i + 1], need, lastNeeded, progress)
+                        : join(pending.get(i));
+                matches.add(chunk, line, Math.min(chunk.count, need));
+                if (matches.count >= wanted) {
+                    break;
+                }
+                line += chunk.lines;
+            }
+        } finally {
+            // whatever is still running is not needed
+            lastNeeded.set(-1);
+        }
+        progress.checkpoint(length, length);
+        matches.truncated = matches.count > maxMatches;
+        matches.count = Math.min(matches.count, maxMatches);
+        return matches;
+    }
+
+    /**
+     * Chunk starts at line starts, roughly {@code chunkChars} apart, plus the end.
+     */
+    private static int[] chunkBounds(CharSequence text, int chunkChars) {
+        int length = text.length();
+        int[] bounds = new int[length / chunkChars + 2];
+        int n = 0;
+        bounds[n++] = 0;
+        int next = chunkChars;
+        while (next < length) {
+            int newline = indexOf(text, '\n', next, length);
+            if (newline < 0 || newline + 1 >= length) {
+                break;
+            }
+            bounds[n++] = newline + 1;
+            next = newline + 1 + chunkChars;
+        }
+        bounds[n++] = length;
+        return Arrays.copyOf(bounds, n);
+    }
+
+    /**
+     * Matches in the lines of [start, end), up to {@code wanted}, with lines
+     * counted from 0 at {@code start}.
+     */
+    private static Chunk scan(CharSequence text, Pattern regex, int index, int start, int end,
+                              int wanted, AtomicInteger lastNeeded, Progress progress) {
+        Matcher matcher = regex.matcher(text);
+        Chunk chunk = new Chunk(Math.min(wanted, 16));
+        int line = 0;
+        int lineStart = start;
+        while (lineStart < end) {
+            if (index > lastNeeded.get() || progress.isCancelled()) {
+                // an earlier chunk has enough, or nobody is waiting; the caller stops before using this
+                return chunk;
+            }
+            int newline = indexOf(text, '\n', lineStart, end);
+            int lineEnd = newline < 0 ? end : newline;
+            matcher.region(lineStart, lineEnd);
+            while (matcher.find()) {
+                chunk.add(line, matcher.start() - lineStart, matcher.end() - matcher.start());
+                if (chunk.count == wanted) {
+                    lastNeeded.accumulateAndGet(index, Math::min);
+                    return chunk;
+                }
+            }
+            line++;
+            lineStart = lineEnd + 1;
+        }
+        chunk.lines = line;
+        return chunk;
+    }
+
+    private static Chunk join(CompletableFuture<Chunk> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    private static int indexOf(CharSequence text, char c, int from, int to) {
+        if (text instanceof String s) {
+            int index = s.indexOf(c, from);
+            return index < to ? index : -1;
+        }
+        for (int i = from; i < to; i++) {
+            if (text.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * One chunk's matches as (line within the chunk, column, length), flat.
+     */
+    private static final class Chunk {
+        int[] found;
+        int count;
+        int lines;
+
+        Chunk(int capacity) {
+            found = new int[3 * Math.max(capacity, 1)];
+        }
+
+        void add(int line, int column, int length) {
+            if (3 * count == found.length) {
+                found = Arrays.copyOf(found, found.length * 2);
+            }
+            found[3 * count] = line;
+            found[3 * count + 1] = column;
+            found[3 * count + 2] = length;
+            count++;
+        }
+    }
+
+    /**
+     * Match locations, lines and columns counting from 1, columns and
+     * lengths in chars. Truncated if there were more than were asked for.
+     */
+    public static final class Matches {
+        private int[] found;
+        private int count;
+        private boolean truncated;
+
+        Matches(int capacity) {
+            found = new int[3 * Math.max(capacity, 1)];
+        }
+
+        public int getCount() { return count; }
+        public boolean isTruncated() { return truncated; }
+        public int getLine(int i) { return found[3 * i]; }
+        public int getColumn(int i) { return found[3 * i + 1]; }
+        public int getLength(int i) { return found[3 * i + 2]; }
+
+        private void add(Chunk chunk, int firstLine, int n) {
+            if (3 * (count + n) > found.length) {
+                found = Arrays.copyOf(found, Math.max(found.length * 2, 3 * (count + n)));
+            }
+            for (int i = 0; i < n; i++) {
+                found[3 * count] = firstLine + chunk.found[3 * i];
+                found[3 * count + 1] = chunk.found[3 * i + 1] + 1;
+                found[3 * count + 2] = chunk.found[3 * i + 2];
+                count++;
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package dev.klawed.sedmcp.service.impl;
+
+import dev.klawed.sedmcp.model.SplicedText;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Text kept outside the Java heap, as UTF-16 in a {@link MemorySegment}, so
+ * that a cached 500 MB result is not a 1 GB {@code byte[]} for the old
+ * generation to trace and copy. Reads as a {@link CharSequence}; slicing is
+ * free, {@link #toString()} copies the lot back onto the heap.
+ *
+ * <p>The memory is native by default, or a temp file mapped from
+ * {@code sedmcp.offheap.dir} when that is set, so the page cache rather than
+ * the process holds it. Either way it belongs to an automatic arena and goes
+ * when the text is garbage collected; the temp file is unlinked as soon as it
+ * is mapped.
+ */
+public final class OffHeapText implements CharSequence {
+
+    private static final Logger logger = LoggerFactory.getLogger(OffHeapText.class);
+
+    /** 8 MB of UTF-16, well past where G1 starts treating arrays as humongous. */
+    public static final int DEFAULT_THRESHOLD_CHARS = 4 * 1024 * 1024;
+
+    private static final int THRESHOLD_CHARS = Integer.getInteger("sedmcp.offheap.threshold-chars", DEFAULT_THRESHOLD_CHARS);
+    private static final String MAP_DIR = System.getProperty("sedmcp.offheap.dir");
+    private static final int CHUNK = 8192;
+
+    private final MemorySegment chars;
+
+    private OffHeapText(MemorySegment chars) {
+        this.chars = chars;
+    }
+
+    /**
+     * The text off the heap if it is at least {@code sedmcp.offheap.threshold-chars}
+     * long, otherwise the text itself.
+     */
+    public static CharSequence offload(CharSequence text) {
+        return offload(text, THRESHOLD_CHARS, MAP_DIR != null ? Path.of(MAP_DIR) : null);
+    }
+
+    static CharSequence offload(CharSequence text, int thresholdChars, Path mapDir) {
+        if (text instanceof OffHeapText || text.length() == 0 || text.length() < thresholdChars) {
+            return text;
+        }
+        if (mapDir != null) {
+            try {
+                return mapped(text, mapDir);
+            } catch (IOException e) {
+                logger.warn("Could not map {} chars in {}, using native memory: {}", text.length(), mapDir, e.getMessage());
+            }
+        }
+        return copyOf(text);
+    }
+
+    /**
+     * A copy of the text in native memory.
+     */
+    public static OffHeapText copyOf(CharSequence text) {
+        MemorySegment segment = Arena.ofAuto().allocate(2L * text.length(), 2);
+        fill(segment, text);
+        return new OffHeapText(segment);
+    }
+
+    /**
+     * A copy of the text in a memory-mapped temp file under {@code dir}.
+     */
+    public static OffHeapText mapped(CharSequence text, Path dir) throws IOException {
+        Files.createDirectories(dir);
+        Path file = Files.createTempFile(dir, "sedmcp-", ".utf16");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MemorySegment segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, 2L * text.length(), Arena.ofAuto());
+            fill(segment, text);
+            return new OffHeapText(segment);
+        } finally {
+            // the mapping outlives the name
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                file.toFile().deleteOnExit();
+            }
+        }
+    }
+
+    @Override
+    public int length() {
+        return (int) (chars.byteSize() >>> 1);
+    }
+
+    @Override
+    public char charAt(int index) {
+        Objects.checkIndex(index, length());
+        return chars.getAtIndex(ValueLayout.JAVA_CHAR, index);
+    }
+
+    @Override
+    public OffHeapText subSequence(int start, int end) {
+        Objects.checkFromToIndex(start, end, length());
+        return new OffHeapText(chars.asSlice(2L * start, 2L * (end - start)));
+    }
+
+    /**
+     * Write the text out a chunk at a time, without materializing it.
+     */
+    public void writeTo(Writer out) throws IOException {
+        char[] buffer = new char[Math.min(CHUNK, length())];
+        for (int from = 0; from < length(); from += buffer.length) {
+            int n = Math.min(buffer.length, length() - from);
+            MemorySegment.copy(chars, ValueLayout.JAVA_CHAR, 2L * from, buffer, 0, n);
+            out.write(buffer, 0, n);
+        }
+    }
+
+    /**
+     * Whether this is the same text as {@code other}, compared a chunk at a
+     * time instead of char by char through {@link #charAt(int)}.
+     */
+    public boolean contentEquals(String other) {
+        if (other.length() != length()) {
+            return false;
+        }
+        char[] mine = new char[Math.min(CHUNK, length())];
+        char[] theirs = new char[mine.length];
+        for (int from = 0; from < length(); from += mine.length) {
+            int n = Math.min(mine.length, length() - from);
+            MemorySegment.copy(chars, ValueLayout.JAVA_CHAR, 2L * from, mine, 0, n);
+            other.getChars(from, from + n, theirs, 0);
+            if (!Arrays.equals(mine, 0, n, theirs, 0, n)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return new String(chars.toArray(ValueLayout.JAVA_CHAR));
+    }
+
+    private static void fill(MemorySegment segment, CharSequence text) {
+        char[] buffer = new char[Math.min(CHUNK, text.length())];
+        for (int from = 0; from < text.length(); from += buffer.length) {
+            int n = Math.min(buffer.length, text.length() - from);
+            if (text instanceof String s) {
+                s.getChars(from, from + n, buffer, 0);
+            } else if (text instanceof SplicedText splice) {
+                // a slice of a splice is mostly a slice of a String
+                splice.subSequence(from, from + n).toString().getChars(0, n, buffer, 0);
+            } else {
+                for (int i = 0; i < n; i++) {
+                    buffer[i] = text.charAt(from + i);
+                }
+            }
+            MemorySegment.copy(buffer, 0, segment, ValueLayout.JAVA_CHAR, 2L * from, n);
+        }
+    }
+}
@@ -1,23 +1,43 @@
 package dev.klawed.sedmcp.service.impl;
 
+import dev.klawed.sedmcp.model.Document;
+import dev.klawed.sedmcp.model.PieceTable;
 import dev.klawed.sedmcp.model.SedOperation;
 import dev.klawed.sedmcp.model.SedResult;
+import dev.klawed.sedmcp.model.SplicedText;
+import dev.klawed.sedmcp.script.SedProgram;
+import dev.klawed.sedmcp.script.SedStreamExecutor;
+import dev.klawed.sedmcp.script.WindowedExecutor;
+import dev.klawed.sedmcp.service.Progress;
+import dev.klawed.sedmcp.service.SedCancelledException;
 import dev.klawed.sedmcp.service.SedEngine;
 import dev.klawed.sedmcp.service.SedEngineException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Locale;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
 /**
  * Real sed engine implementation that actually does sed operations.
- * Supports basic substitution, deletion, and print operations.
+ * Supports substitution, deletion, print, and append/insert/change.
  * 
  * Unlike the mock, this one actually performs regex operations and
  * modifies text content like a proper sed implementation should.
@@ -26,9 +46,83 @@ import java.util.regex.PatternSyntaxException;
 public class RealSedEngine implements SedEngine {
     
     private static final Logger logger = LoggerFactory.getLogger(RealSedEngine.class);
+    private static final int MAX_CACHED_PATTERNS = 256;
+    // lines or matches between progress/cancellation checks
+    private static final int CHECK_INTERVAL = 4096;
+    
+    private final ResultCache resultCache;
+    // compiled patterns by flags and source; clients sharing an engine repeat the same few a lot
+    private final Map<String, Pattern> patterns = Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Pattern> eldest) {
+                    return size() > MAX_CACHED_PATTERNS;
+                }
+            });
+    private final BlockMemo blockMemo = new BlockMemo(Long.getLong("sedmcp.block-memo.max-bytes", BlockMemo.DEFAULT_MAX_BYTES));
+    private final SedStreamExecutor.Limits scriptLimits;
+    private final SedMetrics metrics;
+    
+    public RealSedEngine() {
+        this(new ResultCache(Long.getLong("sedmcp.result-cache.max-bytes", ResultCache.DEFAULT_MAX_BYTES)));
+    }
+    
+    public RealSedEngine(ResultCache resultCache) {
+        this(resultCache, SedStreamExecutor.Limits.fromSystemProperties());
+    }
+    
+    /**
+     * @param resultCache Cache for repeated operations
+     * @param scriptLimits Pattern/hold space caps for scripts that accumulate lines
+     */
+    public RealSedEngine(ResultCache resultCache, SedStreamExecutor.Limits scriptLimits) {
+        this(resultCache, scriptLimits, SedMetrics.NOOP);
+    }
+    
+    /**
+     * Spring's constructor: meters go to the actuator's registry.
+     */
+    @Autowired
+    public RealSedEngine(MeterRegistry registry) {
+        this(new ResultCache(Long.getLong("sedmcp.result-cache.max-bytes", ResultCache.DEFAULT_MAX_BYTES)),
+                SedStreamExecutor.Limits.fromSystemProperties(), new SedMetrics(registry));
+    }
+    
+    /**
+     * @param resultCache Cache for repeated operations
+     * @param scriptLimits Pattern/hold space caps for scripts that accumulate lines
+     * @param metrics Where compile, match and output timings go
+     */
+    public RealSedEngine(ResultCache resultCache, SedStreamExecutor.Limits scriptLimits, SedMetrics metrics) {
+        this.resultCache = resultCache;
+        this.scriptLimits = scriptLimits;
+        this.metrics = metrics;
+        metrics.bindCache(resultCache);
+        metrics.bindBlockMemo(blockMemo);
+    }
+    
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+    
+    public BlockMemo getBlockMemo() {
+        return blockMemo;
+    }
+    
+    public SedMetrics getMetrics() {
+        return metrics;
+    }
     
     @Override
     public SedResult executeOperation(String content, SedOperation operation) {
+        return executeOperation(content, operation, Progress.NONE);
+    }
+    
+    /**
+     * {@link #executeOperation(String, SedOperation)} that reports progress and
+     * can be cancelled; a cancelled call returns a failed result.
+     */
+    public SedResult executeOperation(String content, SedOperation operation, Progress progress) {
         logger.debug("Executing sed operation: {} on content length: {}", 
                      operation.getOperationType(), content.length());
         
@@ -37,14 +131,15 @@ public class RealSedEngine implements SedEngine {
         try {
             validateOperation(operation);
             
-            SedResult result = performOperation(content, operation, false);
+            SedResult result = resultCache.get(content, operation, () -> performOperation(content, operation, progress));
+            metrics.transferred(tag(operation), content.length(), result.getModifiedText().length());
             
             long executionTime = System.currentTimeMillis() - startTime;
             
             return SedResult.builder()
                     .success(true)
                     .originalContent(content)
-                    .modifiedContent(result.getModifiedContent())
+                    .modifiedText(result.getModifiedText())
                     .linesModified(result.getLinesModified())
                     .changesApplied(result.getChangesApplied())
                     .warnings(result.getWarnings())
@@ -52,7 +147,7 @@ public class RealSedEngine implements SedEngine {
                     .build();
                     
         } catch (Exception e) {
-            logger.error("Error executing sed operation: {}", e.getMessage(), e);
+            logFailure("Error executing sed operation", e);
             return SedResult.builder()
                     .success(false)
                     .originalContent(content)
@@ -66,81 +161,298 @@ public class RealSedEngine implements SedEngine {
         }
     }
     
+    /**
+     * Run the operations one after another over a single {@link Document}.
+     * Each step edits the document in place, so a batch of small edits on a
+     * large file costs the edits, not one copy of the file per step; the
+     * result is materialized once, at the end. Batches are cached like
+     * single operations, keyed by the whole list.
+     * 
+     * Batches of line-local substitutions go through the {@link BlockMemo}
+     * instead, so a re-run after a small edit only redoes the blocks that
+     * changed.
+     */
     @Override
     public SedResult executeBatch(String content, List<SedOperation> operations) {
         logger.debug("Executing batch of {} sed operations", operations.size());
         
         long startTime = System.currentTimeMillis();
-        String currentContent = content;
-        List<String> allChanges = new ArrayList<>();
-        List<String> allWarnings = new ArrayList<>();
-        int totalLinesModified = 0;
-        boolean anyModified = false;
         
         try {
-            for (int i = 0; i < operations.size(); i++) {
-                SedOperation operation = operations.get(i);
-                logger.debug("Executing batch operation {}/{}: {}", i + 1, operations.size(), operation.getOperationType());
-                
-                SedResult result = executeOperation(currentContent, operation);
-                
-                if (!result.isSuccess()) {
-                    throw new SedEngineException("Batch operation failed at step " + (i + 1) + ": " + result.getError());
+            List<SedOperation> batch = List.copyOf(operations);
+            SedResult result = resultCache.get(content, batch, () -> performBatch(content, batch));
+            metrics.transferred("batch", content.length(), result.getModifiedText().length());
+            
+            return SedResult.builder()
+                    .success(true)
+                    .originalContent(content)
+                    .modifiedText(result.getModifiedText())
+                    .linesModified(result.getLinesModified())
+                    .changesApplied(result.getChangesApplied())
+                    .warnings(result.getWarnings())
+                    .executionTimeMs(System.currentTimeMillis() - startTime)
+                    .build();
+        
+        } catch (Exception e) {
+            logFailure("Error executing batch sed operations", e);
+            return SedResult.builder()
+                    .success(false)
+                    .originalContent(content)
+                    .modifiedContent(content)
+                    .linesModified(0)
+                    .changesApplied(List.of())
+                    .warnings(List.of())
+                    .executionTimeMs(System.currentTimeMillis() - startTime)
+                    .errorMessage(e.getMessage())
+                    .build();
+        }
+    }
+    
+    private SedResult performBatch(String content, List<SedOperation> operations) {
+        List<Pattern> regexes = lineLocalPatterns(content, operations);
+        if (regexes == null) {
+            Document document = new Document(content);
+            Step step = executeBatch(document, operations);
+            return buildResult(step, document, "batch");
+        }
+        
+        long start = System.nanoTime();
+        SedResult result = blockMemo.apply(content, operations, regexes);
+        metrics.matched("batch", System.nanoTime() - start, result.getLinesModified());
+        return result;
+    }
+    
+    /**
+     * The batch's compiled patterns if it can go through the block memo,
+     * otherwise null. Invalid operations are left for the whole-text path
+     * to report.
+     */
+    private List<Pattern> lineLocalPatterns(String content, List<SedOperation> operations) {
+        if (!blockMemo.isEnabled() || content.length() < BlockMemo.MIN_CONTENT_CHARS) {
+            return null;
+        }
+        List<Pattern> regexes = new ArrayList<>(operations.size());
+        for (SedOperation operation : operations) {
+            if (operation.getOperationType() != SedOperation.OperationType.SUBSTITUTE) {
+                return null;
+            }
+            try {
+                validateOperation(operation);
+                Pattern regex = compile(operation);
+                if (!BlockMemo.isLineLocal(operation, regex)) {
+                    return null;
                 }
-                
-                currentContent = result.getModifiedContent();
-                allChanges.addAll(result.getChangesApplied());
-                allWarnings.addAll(result.getWarnings());
-                totalLinesModified += result.getLinesModified();
-                anyModified = anyModified || result.isModified();
+                regexes.add(regex);
+            } catch (SedEngineException e) {
+                return null;
             }
+        }
+        return regexes;
+    }
+    
+    /**
+     * Batch form that leaves the result in the document, for callers that
+     * would rather {@link Document#writeTo stream} it than hold it as a String.
+     *
+     * @param document Text to edit; changed in place
+     * @param operations Operations to apply, in order
+     * @return what the batch did
+     * @throws SedEngineException on the first operation that is invalid or fails
+     */
+    public Step executeBatch(Document document, List<SedOperation> operations) {
+        Step total = new Step();
+        for (int i = 0; i < operations.size(); i++) {
+            SedOperation operation = operations.get(i);
+            logger.debug("Executing batch operation {}/{}: {}", i + 1, operations.size(), operation.getOperationType());
+            
+            try {
+                validateOperation(operation);
+                total.add(applyOperation(document, operation, Progress.NONE));
+            } catch (SedEngineException | IllegalArgumentException e) {
+                throw new SedEngineException("Batch operation failed at step " + (i + 1) + ": " + e.getMessage(), e);
+            }
+        }
+        return total;
+    }
+    
+    /**
+     * What one or more operations did to a {@link Document}: the change log,
+     * minus the text itself.
+     */
+    public static final class Step {
+        private final List<String> changes = new ArrayList<>();
+        private final List<String> warnings = new ArrayList<>();
+        private int linesModified;
+        // the whole result, when it is the input with one span replaced
+        private SplicedText splice;
+        
+        void add(Step other) {
+            changes.addAll(other.changes);
+            warnings.addAll(other.warnings);
+            linesModified += other.linesModified;
+        }
+        
+        public List<String> getChanges() { return changes; }
+        public List<String> getWarnings() { return warnings; }
+        public int getLinesModified() { return linesModified; }
+    }
+    
+    /**
+     * Streaming form of the engine: run a compiled sed program over a reader
+     * line by line and write the output as it is produced. Follows real sed
+     * semantics (auto-print, per-line substitution) and only ever holds the
+     * current line in memory, so input size is limited by patience, not heap.
+     * Scripts that gather lines with {@code N}, {@code G} or {@code H} are
+     * capped by the configured {@link SedStreamExecutor.Limits} instead.
+     *
+     * @param in Input text; wrap it in as large a buffer as you can afford
+     * @param out Output sink; flushed but not closed
+     * @param program Compiled sed program
+     * @param quiet Suppress automatic printing ({@code sed -n})
+     * @return what the run did, including the exit code a {@code q} asked for
+     */
+    public SedStreamExecutor.Stats executeStream(Reader in, Writer out, SedProgram program, boolean quiet) throws IOException {
+        logger.debug("Streaming sed program with {} commands", program.size());
+        return new SedStreamExecutor(program, quiet, scriptLimits).run(in, out);
+    }
+    
+    /**
+     * Streaming form of a single s, d or p with a {@link SedOperation#getWindow()
+     * window}: matches may span that many lines, and memory is bounded by the
+     * window, not the input. See {@link WindowedExecutor} for the rules.
+     *
+     * @param in Input text
+     * @param out Output sink; flushed but not closed
+     * @param operation Operation with a window of at least one line
+     * @return what the run did; {@code substitutions} counts matches
+     */
+    public SedStreamExecutor.Stats executeStream(Reader in, Writer out, SedOperation operation) throws IOException {
+        validateOperation(operation);
+        if (operation.getWindow() < 1) {
+            throw new SedEngineException("Streaming an operation needs a window of at least one line");
+        }
+        logger.debug("Streaming {} with a {}-line window", operation.getOperationType(), operation.getWindow());
+        return windowedExecutor(operation, compile(operation)).run(in, out);
+    }
+    
+    /**
+     * Run a whole compiled sed script over in-memory content in one pass, the
+     * way {@code sed -e '/^#/d; s/foo/bar/g; 10,20p'} would. Results go
+     * through the same cache as single operations, keyed by the program.
+     *
+     * @param content Text to process
+     * @param program Compiled program, see {@link dev.klawed.sedmcp.script.SedScriptParser}
+     * @param quiet Suppress automatic printing ({@code sed -n})
+     */
+    public SedResult executeScript(String content, SedProgram program, boolean quiet) {
+        return executeScript(content, program, quiet, Progress.NONE);
+    }
+    
+    /**
+     * {@link #executeScript(String, SedProgram, boolean)} that reports progress
+     * and can be cancelled, checked each time a chunk of input is read.
+     */
+    public SedResult executeScript(String content, SedProgram program, boolean quiet, Progress progress) {
+        logger.debug("Executing sed script with {} commands on content length: {}", program.size(), content.length());
+        
+        long startTime = System.currentTimeMillis();
+        
+        try {
+            SedResult result = resultCache.get(content, List.of(program, quiet), () -> performScript(content, program, quiet, progress));
+            metrics.transferred("script", content.length(), result.getModifiedText().length());
             
             return SedResult.builder()
                     .success(true)
                     .originalContent(content)
-                    .modifiedContent(currentContent)
-                    .linesModified(totalLinesModified)
-                    .changesApplied(allChanges)
-                    .warnings(allWarnings)
+                    .modifiedText(result.getModifiedText())
+                    .linesModified(result.getLinesModified())
+                    .changesApplied(result.getChangesApplied())
+                    .warnings(result.getWarnings())
                     .executionTimeMs(System.currentTimeMillis() - startTime)
                     .build();
                     
         } catch (Exception e) {
-            logger.error("Error executing batch sed operations: {}", e.getMessage(), e);
+            logFailure("Error executing sed script", e);
             return SedResult.builder()
                     .success(false)
                     .originalContent(content)
                     .modifiedContent(content)
                     .linesModified(0)
-                    .changesApplied(allChanges)
-                    .warnings(allWarnings)
+                    .changesApplied(List.of())
+                    .warnings(List.of())
                     .executionTimeMs(System.currentTimeMillis() - startTime)
                     .errorMessage(e.getMessage())
                     .build();
         }
     }
     
+    private SedResult performScript(String content, SedProgram program, boolean quiet, Progress progress) {
+        StringWriter out = new StringWriter(content.length() + 16);
+        SedStreamExecutor.Stats stats;
+        SedEvents.Execute event = new SedEvents.Execute();
+        event.begin();
+        long start = System.nanoTime();
+        try {
+            stats = new SedStreamExecutor(program, quiet, scriptLimits).run(new ProgressReader(content, progress), out);
+        } catch (IOException e) {
+            // StringReader and StringWriter don't do I/O
+            throw new SedEngineException("Unexpected I/O error running script: " + e.getMessage(), e);
+        }
+        metrics.matched("script", System.nanoTime() - start, stats.getSubstitutions());
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = "script";
+            event.pattern = SedEvents.truncate(program.getSource());
+            event.contentChars = content.length();
+            event.matches = stats.getSubstitutions();
+            event.commit();
+        }
+        
+        List<String> changes = new ArrayList<>();
+        changes.add(String.format("Ran %d commands over %d lines: %d substitutions, %d lines written",
+                program.size(), stats.getLinesRead(), stats.getSubstitutions(), stats.getLinesWritten()));
+        List<String> warnings = new ArrayList<>();
+        if (stats.getExitCode() != 0) {
+            warnings.add("Script quit with exit code " + stats.getExitCode());
+        }
+        
+        return SedResult.builder()
+                .success(true)
+                .originalContent(content)
+                .modifiedContent(out.toString())
+                .linesModified((int) Math.min(stats.getSubstitutions(), Integer.MAX_VALUE))
+                .changesApplied(changes)
+                .warnings(warnings)
+                .build();
+    }
+    
     @Override
     public SedResult previewOperation(String content, SedOperation operation) {
+        return previewOperation(content, operation, Progress.NONE);
+    }
+    
+    public SedResult previewOperation(String content, SedOperation operation, Progress progress) {
         logger.debug("Previewing sed operation: {}", operation.getOperationType());
+        long startTime = System.currentTimeMillis();
         
         try {
             validateOperation(operation);
             
-            SedResult result = performOperation(content, operation, true);
+            SedResult result = resultCache.get(content, operation, () -> performOperation(content, operation, progress));
+            metrics.transferred(tag(operation), content.length(), result.getModifiedText().length());
             
             return SedResult.builder()
                     .success(true)
                     .originalContent(content)
-                    .modifiedContent(result.getModifiedContent())
+                    .modifiedText(result.getModifiedText())
                     .linesModified(result.getLinesModified())
                     .changesApplied(result.getChangesApplied())
                     .warnings(result.getWarnings())
-                    .executionTimeMs(0) // Previews don't track execution time
+                    .executionTimeMs(System.currentTimeMillis() - startTime)
                     .build();
                     
         } catch (Exception e) {
-            logger.error("Error previewing sed operation: {}", e.getMessage(), e);
+            logFailure("Error previewing sed operation", e);
             return SedResult.builder()
                     .success(false)
                     .originalContent(content)
@@ -148,12 +460,43 @@ public class RealSedEngine implements SedEngine {
                     .linesModified(0)
                     .changesApplied(List.of())
                     .warnings(List.of())
-                    .executionTimeMs(0)
+                    .executionTimeMs(System.currentTimeMillis() - startTime)
                     .errorMessage(e.getMessage())
                     .build();
         }
     }
     
+    /**
+     * Where {@code pattern} matches, line by line like {@code p}, but only
+     * the locations: no lines copied, no change log, no cache entry. See
+     * {@link MatchLocator}.
+     *
+     * @param flags Regex flags (i, m, s), or null
+     * @param maxMatches Most matches to return, capped at {@link MatchLocator#MAX_MATCHES};
+     *                   the result says if there were more
+     */
+    public MatchLocator.Matches grep(CharSequence content, String pattern, String flags, int maxMatches, Progress progress) {
+        SedOperation operation = SedOperation.builder()
+                .operation(SedOperation.OperationType.PRINT)
+                .pattern(pattern)
+                .flags(flags)
+                .build();
+        validateOperation(operation);
+        if (maxMatches < 1) {
+            throw new SedEngineException("maxMatches must be at least 1");
+        }
+        
+        long compileStart = System.nanoTime();
+        Pattern regex = compile(operation);
+        metrics.regexCompiled("grep", System.nanoTime() - compileStart);
+        
+        long start = System.nanoTime();
+        MatchLocator.Matches matches = MatchLocator.find(content, regex,
+                Math.min(maxMatches, MatchLocator.MAX_MATCHES), progress);
+        metrics.matched("grep", System.nanoTime() - start, matches.getCount());
+        return matches;
+    }
+    
     @Override
     public void validateOperation(SedOperation operation) {
         if (operation == null) {
@@ -178,145 +521,568 @@ public class RealSedEngine implements SedEngine {
             case PRINT:
                 validatePrintOperation(operation);
                 break;
+            case APPEND:
+            case INSERT:
+            case CHANGE:
+                validateTextOperation(operation);
+                break;
             default:
                 throw new SedEngineException("Validation not implemented for operation type: " + operation.getOperationType());
         }
+        
+        validateWindow(operation);
     }
     
     @Override
     public boolean supportsOperation(SedOperation.OperationType operationType) {
         return switch (operationType) {
-            case SUBSTITUTE, DELETE, PRINT -> true;
-            default -> false;
+            case SUBSTITUTE, DELETE, PRINT, APPEND, INSERT, CHANGE -> true;
         };
     }
     
-    private SedResult performOperation(String content, SedOperation operation, boolean preview) {
-        return switch (operation.getOperationType()) {
-            case SUBSTITUTE -> performSubstitution(content, operation, preview);
-            case DELETE -> performDeletion(content, operation, preview);
-            case PRINT -> performPrint(content, operation, preview);
-            default -> throw new SedEngineException("Unsupported operation: " + operation.getOperationType());
+    private SedResult performOperation(String content, SedOperation operation, Progress progress) {
+        Document document = new Document(content);
+        Step step = applyOperation(document, operation, progress);
+        return buildResult(step, document, tag(operation));
+    }
+    
+    /**
+     * Compile, then match and edit, timing each separately.
+     */
+    private Step applyOperation(Document document, SedOperation operation, Progress progress) {
+        String tag = tag(operation);
+        Pattern regex = null;
+        if (operation.getPattern() != null) {
+            SedEvents.RegexCompile compileEvent = new SedEvents.RegexCompile();
+            compileEvent.begin();
+            long compileStart = System.nanoTime();
+            regex = compile(operation);
+            metrics.regexCompiled(tag, System.nanoTime() - compileStart);
+            compileEvent.end();
+            if (compileEvent.shouldCommit()) {
+                compileEvent.operation = tag;
+                compileEvent.pattern = SedEvents.truncate(operation.getPattern());
+                compileEvent.commit();
+            }
+        }
+        
+        progress.checkpoint(0, document.length());
+        SedEvents.Execute event = new SedEvents.Execute();
+        event.begin();
+        int contentChars = document.length();
+        long start = System.nanoTime();
+        Step step;
+        if (operation.getWindow() > 0) {
+            step = performWindowed(document, operation, regex, progress);
+        } else {
+            step = switch (operation.getOperationType()) {
+                case SUBSTITUTE -> performSubstitution(document, operation, regex, progress);
+                case DELETE -> performLineFilter(document, regex, false, progress);
+                case PRINT -> performLineFilter(document, regex, true, progress);
+                case APPEND, INSERT, CHANGE -> performTextOperation(document, operation, regex, progress);
+            };
+        }
+        metrics.matched(tag, System.nanoTime() - start, step.linesModified);
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = tag;
+            event.pattern = SedEvents.truncate(operation.getPattern());
+            event.contentChars = contentChars;
+            event.matches = step.linesModified;
+            event.commit();
+        }
+        return step;
+    }
+    
+    /**
+     * The result of one operation. One replaced span is returned as a splice
+     * of the input, so the untouched text is only copied if someone asks for
+     * it as a String.
+     */
+    private SedResult buildResult(Step step, Document document, String tag) {
+        long start = System.nanoTime();
+        CharSequence modified = step.splice != null ? step.splice : document.toString();
+        metrics.outputBuilt(tag, System.nanoTime() - start);
+        
+        return SedResult.builder()
+                .success(true)
+                .originalContent(document.getOriginal())
+                .modifiedText(modified)
+                .linesModified(step.linesModified)
+                .changesApplied(step.changes)
+                .warnings(step.warnings)
+                .build();
+    }
+    
+    private Pattern compile(SedOperation operation) {
+        int flags = getRegexFlags(operation.getFlags());
+        String key = flags + ":" + operation.getPattern();
+        Pattern cached = patterns.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        try {
+            Pattern regex = Pattern.compile(operation.getPattern(), flags);
+            patterns.put(key, regex);
+            return regex;
+        } catch (PatternSyntaxException e) {
+            throw new SedEngineException("Invalid regex pattern: " + e.getMessage(), e);
+        }
+    }
+    
+    private static String tag(SedOperation operation) {
+        return operation.getOperationType().name().toLowerCase(Locale.ROOT);
+    }
+    
+    /**
+     * s, d or p through a sliding window of lines, so a pattern can span line
+     * breaks without the whole text being matched as one string. Unlike the
+     * line-at-a-time d and p, lines keep their terminators, like sed.
+     */
+    private Step performWindowed(Document document, SedOperation operation, Pattern regex, Progress progress) {
+        String content = document.text().toString();
+        StringWriter out = new StringWriter(content.length() + 16);
+        SedStreamExecutor.Stats stats;
+        try {
+            stats = windowedExecutor(operation, regex).run(new ProgressReader(content, progress), out);
+        } catch (IOException e) {
+            // StringReader and StringWriter don't do I/O
+            throw new SedEngineException("Unexpected I/O error running windowed operation: " + e.getMessage(), e);
+        }
+        
+        String result = out.toString();
+        if (!result.equals(content)) {
+            document.apply(List.of(PieceTable.Edit.replace(0, content.length(), result)));
+        }
+        
+        Step step = new Step();
+        step.linesModified = (int) Math.min(stats.getSubstitutions(), Integer.MAX_VALUE);
+        step.changes.add(String.format("%s %d matches of '%s' in a %d-line window",
+                switch (operation.getOperationType()) {
+                    case DELETE -> "Deleted lines of";
+                    case PRINT -> "Printed lines of";
+                    default -> "Replaced";
+                },
+                stats.getSubstitutions(), operation.getPattern(), operation.getWindow()));
+        return step;
+    }
+    
+    private WindowedExecutor windowedExecutor(SedOperation operation, Pattern regex) {
+        WindowedExecutor.Mode mode = switch (operation.getOperationType()) {
+            case SUBSTITUTE -> WindowedExecutor.Mode.SUBSTITUTE;
+            case DELETE -> WindowedExecutor.Mode.DELETE;
+            case PRINT -> WindowedExecutor.Mode.PRINT;
+            default -> throw new SedEngineException("A window only applies to s, d and p");
         };
+        return new WindowedExecutor(regex, mode, operation.getReplacement(), operation.hasFlag('g'),
+                operation.getWindow(), scriptLimits);
     }
     
-    private SedResult performSubstitution(String content, SedOperation operation, boolean preview) {
-        String pattern = operation.getPattern();
+    /**
+     * Substitute against the document's current text. Each match becomes an
+     * edit; replacements without group references or escapes are used as-is
+     * instead of being expanded.
+     *
+     * <p>Matches are counted from the one {@link SedOperation#getOccurrence()}
+     * names, over the whole text or, with {@code l}, within each line as sed
+     * does. Without {@code g} matching stops at that match, or at the end of
+     * the line.
+     */
+    private Step performSubstitution(Document document, SedOperation operation, Pattern regex, Progress progress) {
+        CharSequence text = document.text();
+        // a find() that goes a long way without a match still stops when cancelled
+        Matcher matcher = regex.matcher(CheckedText.of(text, progress));
+        
+        Step step = new Step();
+        List<PieceTable.Edit> edits = new ArrayList<>();
+        if (operation.hasFlag('l')) {
+            int length = text.length();
+            int start = 0;
+            int lineNumber = 0;
+            while (start < length) {
+                int newline = indexOf(text, '\n', start, length);
+                int end = newline < 0 ? length : newline;
+                lineNumber++;
+                if (lineNumber % CHECK_INTERVAL == 0) {
+                    progress.checkpoint(start, length);
+                }
+                int before = edits.size();
+                replaceMatches(matcher.region(start, end), text, operation, edits, step.changes, Progress.NONE);
+                if (edits.size() > before) {
+                    step.linesModified++;
+                }
+                start = end + 1;
+            }
+        } else {
+            replaceMatches(matcher, text, operation, edits, step.changes, progress);
+            step.linesModified = step.changes.size();
+        }
+        
+        if (edits.size() == 1 && document.getEditsApplied() == 0 && text instanceof String original) {
+            PieceTable.Edit edit = edits.get(0);
+            step.splice = new SplicedText(original, edit.getOffset(), edit.getOffset() + edit.getLength(), edit.getText());
+        }
+        document.apply(edits);
+        return step;
+    }
+    
+    private static void replaceMatches(Matcher matcher, CharSequence text, SedOperation operation,
+                                       List<PieceTable.Edit> edits, List<String> changes, Progress progress) {
         String replacement = operation.getReplacement();
-        String flags = operation.getFlags() != null ? operation.getFlags() : "";
+        boolean literal = replacement.indexOf('$') < 0 && replacement.indexOf('\\') < 0;
+        boolean global = operation.hasFlag('g');
+        int occurrence = operation.getOccurrence();
+        StringBuilder expanded = literal ? null : new StringBuilder();
+        int seen = 0;
         
-        try {
-            Pattern regex = Pattern.compile(pattern, getRegexFlags(flags));
-            Matcher matcher = regex.matcher(content);
-            
-            List<String> changes = new ArrayList<>();
-            int linesModified = 0;
-            
-            String result;
-            if (flags.contains("g")) {
-                // Global replacement
-                StringBuffer sb = new StringBuffer();
-                while (matcher.find()) {
-                    matcher.appendReplacement(sb, replacement);
-                    changes.add(String.format("Replaced '%s' with '%s'", matcher.group(), replacement));
+        while (matcher.find()) {
+            if (++seen % CHECK_INTERVAL == 0) {
+                progress.checkpoint(matcher.start(), text.length());
+            }
+            if (seen < occurrence) {
+                continue;
+            }
+            String value = replacement;
+            if (!literal) {
+                expanded.setLength(0);
+                expand(matcher, text, replacement, expanded);
+                value = expanded.toString();
+            }
+            edits.add(PieceTable.Edit.replace(matcher.start(), matcher.end() - matcher.start(), value));
+            changes.add(String.format("Replaced '%s' with '%s'", matcher.group(), replacement));
+            if (!global) {
+                // nothing after the wanted match matters; leave the rest unscanned
+                break;
+            }
+        }
+    }
+    
+    /**
+     * Append {@code replacement} with {@code $n}, {@code ${name}} and
+     * {@code \x} expanded against the current match, the way
+     * {@link Matcher#appendReplacement} does it, but without also copying
+     * everything since the previous append, which after a
+     * {@link Matcher#region} is everything since the start of the text.
+     */
+    static void expand(Matcher matcher, CharSequence text, String replacement, StringBuilder out) {
+        int i = 0;
+        while (i < replacement.length()) {
+            char c = replacement.charAt(i++);
+            if (c == '\\') {
+                if (i == replacement.length()) {
+                    throw new IllegalArgumentException("character to be escaped is missing");
                 }
-                matcher.appendTail(sb);
-                result = sb.toString();
-                linesModified = changes.size();
-            } else {
-                // Replace only first occurrence
-                if (matcher.find()) {
-                    result = matcher.replaceFirst(replacement);
-                    changes.add(String.format("Replaced '%s' with '%s'", matcher.group(), replacement));
-                    linesModified = 1;
+                out.append(replacement.charAt(i++));
+            } else if (c == '$') {
+                if (i == replacement.length()) {
+                    throw new IllegalArgumentException("Illegal group reference: group index is missing");
+                }
+                int start;
+                int end;
+                if (replacement.charAt(i) == '{') {
+                    int close = replacement.indexOf('}', i);
+                    if (close < 0) {
+                        throw new IllegalArgumentException("named capturing group is missing trailing '}'");
+                    }
+                    String name = replacement.substring(i + 1, close);
+                    start = matcher.start(name);
+                    end = matcher.end(name);
+                    i = close + 1;
                 } else {
-                    result = content;
+                    int group = replacement.charAt(i) - '0';
+                    if (group < 0 || group > 9) {
+                        throw new IllegalArgumentException("Illegal group reference");
+                    }
+                    i++;
+                    // like Matcher: as many digits as still name a group
+                    while (i < replacement.length() && replacement.charAt(i) >= '0' && replacement.charAt(i) <= '9') {
+                        int next = group * 10 + (replacement.charAt(i) - '0');
+                        if (next > matcher.groupCount()) {
+                            break;
+                        }
+                        group = next;
+                        i++;
+                    }
+                    start = matcher.start(group);
+                    end = matcher.end(group);
                 }
+                if (start >= 0) {
+                    out.append(text, start, end);
+                }
+            } else {
+                out.append(c);
             }
-            
-            boolean modified = !content.equals(result);
-            
-            return SedResult.builder()
-                    .success(true)
-                    .originalContent(content)
-                    .modifiedContent(result)
-                    .linesModified(linesModified)
-                    .changesApplied(changes)
-                    .warnings(List.of())
-                    .build();
-                    
-        } catch (PatternSyntaxException e) {
-            throw new SedEngineException("Invalid regex pattern: " + e.getMessage(), e);
         }
     }
     
-    private SedResult performDeletion(String content, SedOperation operation, boolean preview) {
-        String pattern = operation.getPattern();
-        String flags = operation.getFlags() != null ? operation.getFlags() : "";
+    /**
+     * Delete matching lines, or with {@code keepMatches}, everything but the
+     * matching lines (print). Removed lines become delete edits, adjacent ones
+     * merged. As before, the result is the kept lines joined by newlines, so
+     * trailing newlines do not survive.
+     */
+    private Step performLineFilter(Document document, Pattern regex, boolean keepMatches, Progress progress) {
+        CharSequence text = document.text();
+        Matcher matcher = regex.matcher(CheckedText.of(text, progress));
+        int length = text.length();
+        int effectiveEnd = length;
+        while (effectiveEnd > 0 && text.charAt(effectiveEnd - 1) == '\n') {
+            effectiveEnd--;
+        }
         
-        try {
-            Pattern regex = Pattern.compile(pattern, getRegexFlags(flags));
-            String[] lines = content.split("\n");
-            List<String> resultLines = new ArrayList<>();
-            List<String> changes = new ArrayList<>();
+        Step step = new Step();
+        List<PieceTable.Edit> edits = new ArrayList<>();
+        int removedFrom = -1;
+        int lastKeptEnd = -1;
+        int lineNumber = 0;
+        int start = 0;
+        
+        // empty content is still one (empty) line
+        while (start < effectiveEnd || (length == 0 && lineNumber == 0)) {
+            int newline = indexOf(text, '\n', start, effectiveEnd);
+            int end = newline < 0 ? effectiveEnd : newline;
+            lineNumber++;
+            if (lineNumber % CHECK_INTERVAL == 0) {
+                progress.checkpoint(start, length);
+            }
             
-            for (int i = 0; i < lines.length; i++) {
-                String line = lines[i];
-                if (regex.matcher(line).find()) {
-                    changes.add(String.format("Deleted line %d: '%s'", i + 1, line));
-                } else {
-                    resultLines.add(line);
+            boolean matched = matcher.region(start, end).find();
+            if (matched) {
+                String line = text.subSequence(start, end).toString();
+                step.changes.add(keepMatches
+                        ? String.format("Matched line %d: '%s'", lineNumber, line)
+                        : String.format("Deleted line %d: '%s'", lineNumber, line));
+                step.linesModified++;
+            }
+            if (matched != keepMatches) {
+                if (removedFrom < 0) {
+                    removedFrom = start;
                 }
+            } else {
+                if (removedFrom >= 0) {
+                    edits.add(PieceTable.Edit.delete(removedFrom, start - removedFrom));
+                    removedFrom = -1;
+                }
+                lastKeptEnd = end;
             }
-            
-            String result = String.join("\n", resultLines);
-            boolean modified = !content.equals(result);
-            
-            return SedResult.builder()
-                    .success(true)
-                    .originalContent(content)
-                    .modifiedContent(result)
-                    .linesModified(changes.size())
-                    .changesApplied(changes)
-                    .warnings(List.of())
-                    .build();
-                    
-        } catch (PatternSyntaxException e) {
-            throw new SedEngineException("Invalid regex pattern: " + e.getMessage(), e);
+            start = end + 1;
+        }
+        
+        // the newline after the last kept line, any removed lines after it, trailing newlines
+        int tail = Math.max(lastKeptEnd, 0);
+        if (tail < length) {
+            edits.add(PieceTable.Edit.delete(tail, length - tail));
         }
+        
+        document.apply(edits);
+        return step;
     }
     
-    private SedResult performPrint(String content, SedOperation operation, boolean preview) {
-        String pattern = operation.getPattern();
-        String flags = operation.getFlags() != null ? operation.getFlags() : "";
+    /**
+     * Append, insert or change lines. The edits are collected in one pass over
+     * the document's current text and applied in place, so the unchanged text
+     * is referenced, not copied, and the cost is proportional to the inserted
+     * text. Lines are selected by {@code address} (N, $, N,M or N,$), by
+     * {@code pattern}, or both; with neither, every line is selected.
+     *
+     * <p>Like sed, a range given to {@code c} is replaced by one copy of the
+     * text. Unlike sed, a missing newline at the end of the content stays missing.
+     */
+    private Step performTextOperation(Document document, SedOperation operation, Pattern regex, Progress progress) {
+        SedOperation.OperationType type = operation.getOperationType();
+        LineAddress address = LineAddress.parse(operation.getAddress());
+        CharSequence content = document.text();
+        Matcher matcher = regex != null ? regex.matcher(CheckedText.of(content, progress)) : null;
+        String text = operation.getText();
         
-        try {
-            Pattern regex = Pattern.compile(pattern, getRegexFlags(flags));
-            String[] lines = content.split("\n");
-            List<String> matchedLines = new ArrayList<>();
-            List<String> changes = new ArrayList<>();
+        List<PieceTable.Edit> edits = new ArrayList<>();
+        Step step = new Step();
+        int length = content.length();
+        int lineCount = countLines(content);
+        int lineNumber = 0;
+        // a range given to c is replaced as one block, as long as no pattern picks lines out of it
+        boolean block = type == SedOperation.OperationType.CHANGE && address.isRange() && matcher == null;
+        int changeStart = -1;
+        int changeFirstLine = 0;
+        int start = 0;
+        
+        while (start < length) {
+            int newline = indexOf(content, '\n', start, length);
+            int end = newline < 0 ? length : newline;
+            int next = newline < 0 ? length : newline + 1;
+            lineNumber++;
+            if (lineNumber % CHECK_INTERVAL == 0) {
+                progress.checkpoint(start, length);
+            }
             
-            for (int i = 0; i < lines.length; i++) {
-                String line = lines[i];
-                if (regex.matcher(line).find()) {
-                    matchedLines.add(line);
-                    changes.add(String.format("Matched line %d: '%s'", i + 1, line));
+            boolean selected = address.matches(lineNumber, lineCount)
+                    && (matcher == null || matcher.region(start, end).find());
+            if (selected) {
+                switch (type) {
+                    case INSERT -> {
+                        edits.add(PieceTable.Edit.insert(start, text + "\n"));
+                        step.changes.add(String.format("Inserted before line %d", lineNumber));
+                    }
+                    case APPEND -> {
+                        edits.add(PieceTable.Edit.insert(next, newline < 0 ? "\n" + text : text + "\n"));
+                        step.changes.add(String.format("Appended after line %d", lineNumber));
+                    }
+                    case CHANGE -> {
+                        if (changeStart < 0) {
+                            changeStart = start;
+                            changeFirstLine = lineNumber;
+                        }
+                        if (!block || address.endsAt(lineNumber, lineCount)) {
+                            edits.add(PieceTable.Edit.replace(changeStart, end - changeStart, text));
+                            step.changes.add(changeFirstLine == lineNumber
+                                    ? String.format("Changed line %d", lineNumber)
+                                    : String.format("Changed lines %d-%d", changeFirstLine, lineNumber));
+                            changeStart = -1;
+                        }
+                    }
+                    default -> throw new SedEngineException("Not a text operation: " + type);
                 }
             }
-            
-            String result = String.join("\n", matchedLines);
-            
-            return SedResult.builder()
-                    .success(true)
-                    .originalContent(content)
-                    .modifiedContent(result)
-                    .linesModified(matchedLines.size())
-                    .changesApplied(changes)
-                    .warnings(List.of())
-                    .build();
-                    
-        } catch (PatternSyntaxException e) {
-            throw new SedEngineException("Invalid regex pattern: " + e.getMessage(), e);
+            start = next;
+        }
+        
+        document.apply(edits);
+        step.linesModified = step.changes.size();
+        return step;
+    }
+    
+    private static int countLines(CharSequence content) {
+        int length = content.length();
+        int lines = 0;
+        int index = -1;
+        while ((index = indexOf(content, '\n', index + 1, length)) >= 0) {
+            lines++;
+        }
+        if (length > 0 && content.charAt(length - 1) != '\n') {
+            lines++;
+        }
+        return lines;
+    }
+    
+    private static void logFailure(String message, Exception e) {
+        if (e instanceof SedCancelledException) {
+            logger.debug("{}: {}", message, e.getMessage());
+        } else {
+            logger.error("{}: {}", message, e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Input for the line-at-a-time executors that checks for cancellation
+     * and reports progress each time they pull in a chunk.
+     */
+    private static final class ProgressReader extends FilterReader {
+        private final Progress progress;
+        private final long total;
+        private long read;
+        
+        ProgressReader(String content, Progress progress) {
+            super(new StringReader(content));
+            this.progress = progress;
+            this.total = content.length();
+        }
+        
+        @Override
+        public int read(char[] buffer, int off, int len) throws IOException {
+            progress.checkpoint(read, total);
+            int n = super.read(buffer, off, len);
+            if (n > 0) {
+                read += n;
+            }
+            return n;
+        }
+    }
+    
+    private static int indexOf(CharSequence text, char c, int from, int to) {
+        if (text instanceof String s) {
+            int index = s.indexOf(c, from);
+            return index < to ? index : -1;
+        }
+        for (int i = from; i < to; i++) {
+            if (text.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * The line-number addresses a {@link SedOperation} can carry: {@code N},
+     * {@code $}, {@code N,M} and {@code N,$}. Regex selection goes through
+     * the operation's pattern instead. Null means every line.
+     */
+    private static final class LineAddress {
+        static final long LAST = -1;
+        
+        static final LineAddress ALL = new LineAddress(1, LAST, false, true);
+        
+        private final long from;
+        private final long to;
+        private final boolean range;
+        private final boolean all;
+        
+        private LineAddress(long from, long to, boolean range, boolean all) {
+            this.from = from;
+            this.to = to;
+            this.range = range;
+            this.all = all;
+        }
+        
+        static LineAddress parse(String address) {
+            if (address == null || address.isBlank()) {
+                return ALL;
+            }
+            String[] parts = address.trim().split("\\s*,\\s*", -1);
+            if (parts.length > 2) {
+                throw new SedEngineException("Invalid address: " + address);
+            }
+            long from = parseLine(parts[0], address);
+            if (parts.length == 1) {
+                return new LineAddress(from, from, false, false);
+            }
+            return new LineAddress(from, parseLine(parts[1], address), true, false);
+        }
+        
+        private static long parseLine(String part, String address) {
+            if (part.equals("$")) {
+                return LAST;
+            }
+            try {
+                long line = Long.parseLong(part);
+                if (line < 1) {
+                    throw new SedEngineException("Invalid line number in address: " + address);
+                }
+                return line;
+            } catch (NumberFormatException e) {
+                throw new SedEngineException("Unsupported address: " + address
+                        + " (use N, $, N,M or N,$; select by regex with pattern)");
+            }
+        }
+        
+        boolean isRange() {
+            return range;
+        }
+        
+        boolean matches(long line, long lastLine) {
+            if (all) {
+                return true;
+            }
+            long first = from == LAST ? lastLine : from;
+            long last = to == LAST ? lastLine : to;
+            if (!range || last < first) {
+                return line == first;
+            }
+            return line >= first && line <= last;
+        }
+        
+        boolean endsAt(long line, long lastLine) {
+            long last = to == LAST ? lastLine : to;
+            return line >= last || line >= lastLine;
         }
     }
     
@@ -343,12 +1109,17 @@ public class RealSedEngine implements SedEngine {
             throw new SedEngineException("Substitute operation requires a replacement (can be empty string)");
         }
         
-        // Validate regex pattern
-        try {
-            Pattern.compile(operation.getPattern());
-        } catch (PatternSyntaxException e) {
-            throw new SedEngineException("Invalid regex pattern: " + e.getMessage(), e);
+        String flags = operation.getFlags();
+        String digits = flags.replaceAll("[^0-9]+", " ").trim();
+        if (digits.indexOf(' ') >= 0) {
+            throw new SedEngineException("Multiple occurrence numbers in flags: " + flags);
         }
+        if (!digits.isEmpty() && (digits.length() > 9 || Integer.parseInt(digits) == 0)) {
+            throw new SedEngineException("Occurrence number must be 1 to 999999999: " + digits);
+        }
+        
+        // Validate regex pattern
+        compile(operation);
     }
     
     private void validateDeleteOperation(SedOperation operation) {
@@ -357,10 +1128,33 @@ public class RealSedEngine implements SedEngine {
         }
         
         // Validate regex pattern
-        try {
-            Pattern.compile(operation.getPattern());
-        } catch (PatternSyntaxException e) {
-            throw new SedEngineException("Invalid regex pattern: " + e.getMessage(), e);
+        compile(operation);
+    }
+    
+    private void validateWindow(SedOperation operation) {
+        int window = operation.getWindow();
+        if (window < 0 || window > WindowedExecutor.MAX_WINDOW_LINES) {
+            throw new SedEngineException("Window must be 0 to " + WindowedExecutor.MAX_WINDOW_LINES + " lines");
+        }
+        if (window > 0 && operation.getOperationType() != SedOperation.OperationType.SUBSTITUTE
+                && operation.getOperationType() != SedOperation.OperationType.DELETE
+                && operation.getOperationType() != SedOperation.OperationType.PRINT) {
+            throw new SedEngineException("A window only applies to s, d and p");
+        }
+        if (window > 0 && (operation.getOccurrence() != 1 || operation.hasFlag('l'))) {
+            throw new SedEngineException("Occurrence numbers and l do not apply with a window");
+        }
+    }
+    
+    private void validateTextOperation(SedOperation operation) {
+        if (operation.getText() == null) {
+            throw new SedEngineException(operation.getOperationType() + " operation requires text");
+        }
+        
+        LineAddress.parse(operation.getAddress());
+        
+        if (operation.getPattern() != null) {
+            compile(operation);
         }
     }
     
@@ -370,10 +1164,6 @@ public class RealSedEngine implements SedEngine {
         }
         
         // Validate regex pattern
-        try {
-            Pattern.compile(operation.getPattern());
-        } catch (PatternSyntaxException e) {
-            throw new SedEngineException("Invalid regex pattern: " + e.getMessage(), e);
-        }
+        compile(operation);
     }
 }
\ No newline at end of file
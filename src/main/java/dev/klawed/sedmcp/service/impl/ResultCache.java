@@ -0,0 +1,221 @@
+package dev.klawed.sedmcp.service.impl;
+
+import dev.klawed.sedmcp.model.ContentHandle;
+import dev.klawed.sedmcp.model.SedResult;
+import dev.klawed.sedmcp.model.SplicedText;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+/**
+ * Memoizes engine results by (content hash, operation). Agents love to
+ * preview and then execute the exact same thing, or retry a call that timed
+ * out, and there is no reason to run the same regex over the same megabytes
+ * twice.
+ *
+ * <p>Entries are weighted by the size of the content they hold and evicted
+ * least recently used first. A hit is confirmed by comparing the actual
+ * content, so a hash collision costs a cache miss, never a wrong answer.
+ * Large content is kept off the heap as {@link OffHeapText}, since a cache
+ * is exactly where multi-megabyte strings would otherwise grow old.
+ */
+public class ResultCache {
+
+    public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+    private static final long ENTRY_OVERHEAD = 128;
+
+    private final long maxBytes;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long savedNanos = 0;
+
+    public ResultCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    public ResultCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Return the cached result for this content and operation, computing and
+     * caching it on a miss. The computation runs outside the cache lock.
+     *
+     * @param content Input content
+     * @param operationKey Canonical description of the work, e.g. a {@code SedOperation}
+     * @param compute Produces the result on a miss; its {@code originalContent} must be {@code content}
+     */
+    public SedResult get(String content, Object operationKey, Supplier<SedResult> compute) {
+        if (maxBytes <= 0) {
+            return compute.get();
+        }
+
+        Key key = new Key(ContentHandle.hash(content), content.length(), operationKey);
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && sameContent(entry.result.getOriginalText(), content)) {
+                hits++;
+                savedNanos += entry.computeNanos;
+                return entry.result;
+            }
+            misses++;
+        }
+
+        long start = System.nanoTime();
+        SedResult result = compute.get();
+        long elapsed = System.nanoTime() - start;
+
+        Entry entry = new Entry(result, elapsed);
+        if (entry.weight <= maxBytes) {
+            // the caller has the result on the heap already; the copy kept for later need not be
+            entry = new Entry(offHeap(result), elapsed);
+            synchronized (this) {
+                Entry previous = entries.put(key, entry);
+                bytes += entry.weight - (previous != null ? previous.weight : 0);
+                evict();
+            }
+        }
+        return result;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(hits, misses, evictions, savedNanos, entries.size(), bytes);
+    }
+
+    private static boolean sameContent(CharSequence cached, String content) {
+        return cached instanceof OffHeapText offHeap ? offHeap.contentEquals(content) : content.equals(cached);
+    }
+
+    private static SedResult offHeap(SedResult result) {
+        CharSequence original = OffHeapText.offload(result.getOriginalText());
+        CharSequence modified;
+        if (result.getModifiedText() == result.getOriginalText()) {
+            modified = original;
+        } else if (isSpliceOfOriginal(result)) {
+            // one copy of the text, not two
+            SplicedText splice = (SplicedText) result.getModifiedText();
+            modified = original == result.getOriginalText() ? splice : splice.rebase(original);
+        } else {
+            modified = OffHeapText.offload(result.getModifiedText());
+        }
+        if (original == result.getOriginalText() && modified == result.getModifiedText()) {
+            return result;
+        }
+        return SedResult.builder()
+                .success(result.isSuccess())
+                .originalText(original)
+                .modifiedText(modified)
+                .linesModified(result.getLinesModified())
+                .changesApplied(result.getChangesApplied())
+                .warnings(result.getWarnings())
+                .errorMessage(result.getErrorMessage())
+                .executionTimeMs(result.getExecutionTimeMs())
+                .build();
+    }
+
+    private static boolean isSpliceOfOriginal(SedResult result) {
+        return result.getModifiedText() instanceof SplicedText splice && splice.getBase() == result.getOriginalText();
+    }
+
+    private void evict() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Entry eldest = it.next();
+            it.remove();
+            bytes -= eldest.weight;
+            evictions++;
+        }
+    }
+
+    /**
+     * Point-in-time cache statistics.
+     */
+    public static final class Stats {
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final long savedNanos;
+        private final int size;
+        private final long bytes;
+
+        Stats(long hits, long misses, long evictions, long savedNanos, int size, long bytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.savedNanos = savedNanos;
+            this.size = size;
+            this.bytes = bytes;
+        }
+
+        public long getHits() { return hits; }
+        public long getMisses() { return misses; }
+        public long getEvictions() { return evictions; }
+        public long getSavedNanos() { return savedNanos; }
+        public int getSize() { return size; }
+        public long getBytes() { return bytes; }
+
+        public double getHitRate() {
+            long total = hits + misses;
+            return total == 0 ? 0.0 : (double) hits / total;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("ResultCache{hits=%d, misses=%d, hitRate=%.2f, evictions=%d, saved=%dms, entries=%d, bytes=%d}",
+                    hits, misses, getHitRate(), evictions, savedNanos / 1_000_000, size, bytes);
+        }
+    }
+
+    private static final class Key {
+        final long hash;
+        final int length;
+        final Object operation;
+
+        Key(long hash, int length, Object operation) {
+            this.hash = hash;
+            this.length = length;
+            this.operation = operation;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key that = (Key) o;
+            return hash == that.hash && length == that.length && Objects.equals(operation, that.operation);
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(hash) * 31 + Objects.hashCode(operation);
+        }
+    }
+
+    private static final class Entry {
+        final SedResult result;
+        final long computeNanos;
+        final long weight;
+
+        Entry(SedResult result, long computeNanos) {
+            this.result = result;
+            this.computeNanos = computeNanos;
+            // a splice of the original costs its replacement text
+            long modified = isSpliceOfOriginal(result)
+                    ? ((SplicedText) result.getModifiedText()).getInserted().length()
+                    : result.getModifiedText().length();
+            this.weight = ENTRY_OVERHEAD + 2L * (result.getOriginalText().length() + modified);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package dev.klawed.sedmcp.service.impl;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JDK Flight Recorder events for one MCP request and the engine work inside
+ * it, so a slow {@code sed_execute} in a recording shows whether the time
+ * went to Jackson, {@code Pattern.compile}, matching, or writing the
+ * response. Open the recording in JMC and look under "sed-mcp".
+ *
+ * <p>Each event is a duration; the thread is recorded by JFR. They are
+ * cheap when nobody is recording: fields are only filled in after
+ * {@link Event#shouldCommit()} says yes. Stack traces are off, since the
+ * call sites are always the same.
+ *
+ * <pre>
+ * java -XX:StartFlightRecording=disk=true,maxage=1h,filename=sedmcp.jfr -jar sed-mcp.jar
+ * </pre>
+ */
+public final class SedEvents {
+
+    private SedEvents() {
+    }
+
+    /**
+     * Longest pattern or script text stored in an event; agents send big ones.
+     */
+    static final int MAX_PATTERN_CHARS = 256;
+
+    static String truncate(String pattern) {
+        if (pattern == null || pattern.length() <= MAX_PATTERN_CHARS) {
+            return pattern;
+        }
+        return pattern.substring(0, MAX_PATTERN_CHARS) + "...";
+    }
+
+    @Name("dev.klawed.sedmcp.Request")
+    @Label("MCP Request")
+    @Category("sed-mcp")
+    @Description("One JSON-RPC request, from the line being read to the response being written")
+    @StackTrace(false)
+    public static final class Request extends Event {
+        @Label("Method")
+        public String method;
+
+        @Label("Tool")
+        public String tool;
+
+        @Label("Request Chars")
+        public long requestChars;
+    }
+
+    @Name("dev.klawed.sedmcp.JsonParse")
+    @Label("JSON Parse")
+    @Category("sed-mcp")
+    @Description("objectMapper.readTree on a request")
+    @StackTrace(false)
+    public static final class JsonParse extends Event {
+        @Label("Method")
+        public String method;
+
+        @Label("Chars")
+        public long chars;
+    }
+
+    @Name("dev.klawed.sedmcp.RegexCompile")
+    @Label("Regex Compile")
+    @Category("sed-mcp")
+    @Description("Pattern.compile for one operation")
+    @StackTrace(false)
+    public static final class RegexCompile extends Event {
+        @Label("Operation")
+        public String operation;
+
+        @Label("Pattern")
+        public String pattern;
+    }
+
+    @Name("dev.klawed.sedmcp.Execute")
+    @Label("Execute")
+    @Category("sed-mcp")
+    @Description("Matching and editing for one operation or script, compile excluded")
+    @StackTrace(false)
+    public static final class Execute extends Event {
+        @Label("Operation")
+        public String operation;
+
+        @Label("Pattern")
+        public String pattern;
+
+        @Label("Content Chars")
+        public long contentChars;
+
+        @Label("Matches")
+        public long matches;
+    }
+
+    @Name("dev.klawed.sedmcp.ResponseWrite")
+    @Label("Response Write")
+    @Category("sed-mcp")
+    @Description("Serializing a response and writing it to the client")
+    @StackTrace(false)
+    public static final class ResponseWrite extends Event {
+        @Label("Tool")
+        public String tool;
+
+        @Label("Chars")
+        public long chars;
+    }
+}
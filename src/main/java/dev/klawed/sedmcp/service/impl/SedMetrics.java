@@ -0,0 +1,246 @@
+package dev.klawed.sedmcp.service.impl;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.prometheusmetrics.PrometheusConfig;
+import io.micrometer.prometheusmetrics.PrometheusMeterRegistry;
+
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micrometer meters for the engine and the MCP server, so "it was slow" can
+ * be narrowed down to regex compile, matching, building the output, or
+ * Jackson. Timers are recorded in nanoseconds and publish percentile
+ * histograms; everything is tagged by operation type or tool name.
+ *
+ * <p>Under Spring the registry comes from the actuator and shows up at
+ * {@code /actuator/prometheus}. The standalone server has no HTTP port, so
+ * {@link #fromSystemProperties()} can serve the Prometheus text format on
+ * {@code sedmcp.metrics.port} instead. Without either, {@link #NOOP} is
+ * used, which never touches Micrometer, so the stdio server does not pay
+ * for loading it on startup.
+ */
+public class SedMetrics {
+
+    private static final Logger logger = LoggerFactory.getLogger(SedMetrics.class);
+
+    public static final SedMetrics NOOP = new SedMetrics();
+
+    private final MeterRegistry registry;
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+
+    public SedMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    private SedMetrics() {
+        this.registry = null;
+    }
+
+    /**
+     * Prometheus-backed metrics served over HTTP at {@code /metrics} on
+     * {@code sedmcp.metrics.port} (loopback only), or {@link #NOOP} if the
+     * property is not set or the port cannot be bound.
+     */
+    public static SedMetrics fromSystemProperties() {
+        Integer port = Integer.getInteger("sedmcp.metrics.port");
+        if (port == null) {
+            return NOOP;
+        }
+        // in its own class so the verifier does not load Prometheus when metrics are off
+        return PrometheusEndpoint.serve(port);
+    }
+
+    /**
+     * The registry, or null for {@link #NOOP}.
+     */
+    public MeterRegistry getRegistry() {
+        return registry;
+    }
+
+    public boolean isEnabled() {
+        return registry != null;
+    }
+
+    /**
+     * Expose the result cache's counters, size and the compute time its hits
+     * saved as meters.
+     */
+    public void bindCache(ResultCache cache) {
+        if (registry == null) {
+            return;
+        }
+        FunctionCounter.builder("sedmcp.cache.hits", cache, c -> c.stats().getHits()).register(registry);
+        FunctionCounter.builder("sedmcp.cache.misses", cache, c -> c.stats().getMisses()).register(registry);
+        FunctionCounter.builder("sedmcp.cache.evictions", cache, c -> c.stats().getEvictions()).register(registry);
+        Gauge.builder("sedmcp.cache.bytes", cache, c -> c.stats().getBytes()).baseUnit("bytes").register(registry);
+        FunctionCounter.builder("sedmcp.cache.saved", cache, c -> c.stats().getSavedNanos()).baseUnit("nanoseconds").register(registry);
+    }
+
+    /**
+     * Expose how many batch blocks were reused and recomputed, and the memo's size.
+     */
+    public void bindBlockMemo(BlockMemo memo) {
+        if (registry == null) {
+            return;
+        }
+        FunctionCounter.builder("sedmcp.batch.blocks", memo, BlockMemo::getReusedBlocks).tag("outcome", "reused").register(registry);
+        FunctionCounter.builder("sedmcp.batch.blocks", memo, BlockMemo::getComputedBlocks).tag("outcome", "computed").register(registry);
+        Gauge.builder("sedmcp.batch.memo.bytes", memo, BlockMemo::getBytes).baseUnit("bytes").register(registry);
+    }
+
+    /**
+     * Expose the admission budget, what is reserved against it and how many
+     * requests are waiting, as gauges.
+     */
+    public void bindAdmission(AdmissionControl admission) {
+        if (registry == null) {
+            return;
+        }
+        Gauge.builder("sedmcp.admission.budget", admission, AdmissionControl::getMaxBytes).baseUnit("bytes").register(registry);
+        Gauge.builder("sedmcp.admission.reserved", admission, AdmissionControl::getReservedBytes).baseUnit("bytes").register(registry);
+        Gauge.builder("sedmcp.admission.queued", admission, AdmissionControl::getQueued).register(registry);
+    }
+
+    /**
+     * Time from a request arriving to it being admitted, queueing included.
+     */
+    public void admitted(long nanos) {
+        if (registry == null) {
+            return;
+        }
+        timer("sedmcp.admission.wait", "outcome", "admitted").record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void rejected(AdmissionControl.Reason reason) {
+        if (registry == null) {
+            return;
+        }
+        counter("sedmcp.admission.rejected", "reason", reason.name().toLowerCase(Locale.ROOT)).increment();
+    }
+
+    public void regexCompiled(String operation, long nanos) {
+        if (registry == null) {
+            return;
+        }
+        timer("sedmcp.regex.compile", "operation", operation).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * One operation's matching and edit building, compile excluded.
+     */
+    public void matched(String operation, long nanos, long matches) {
+        if (registry == null) {
+            return;
+        }
+        timer("sedmcp.match", "operation", operation).record(nanos, TimeUnit.NANOSECONDS);
+        counter("sedmcp.matches", "operation", operation).increment(matches);
+    }
+
+    /**
+     * Turning the edited document into the result text.
+     */
+    public void outputBuilt(String operation, long nanos) {
+        if (registry == null) {
+            return;
+        }
+        timer("sedmcp.output.build", "operation", operation).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Chars that went into and came out of an engine call, cache hits included.
+     */
+    public void transferred(String operation, long charsIn, long charsOut) {
+        if (registry == null) {
+            return;
+        }
+        counter("sedmcp.chars.in", "operation", operation).increment(charsIn);
+        counter("sedmcp.chars.out", "operation", operation).increment(charsOut);
+    }
+
+    /**
+     * Parsing one JSON-RPC request, tagged by its method since the tool is
+     * not known until the request has been parsed.
+     */
+    public void jsonParsed(String method, long nanos, long chars) {
+        if (registry == null) {
+            return;
+        }
+        timer("sedmcp.json.parse", "method", method).record(nanos, TimeUnit.NANOSECONDS);
+        counter("sedmcp.request.chars", "method", method).increment(chars);
+    }
+
+    public void jsonSerialized(String tool, long nanos, long chars) {
+        if (registry == null) {
+            return;
+        }
+        timer("sedmcp.json.serialize", "tool", tool).record(nanos, TimeUnit.NANOSECONDS);
+        counter("sedmcp.response.chars", "tool", tool).increment(chars);
+    }
+
+    /**
+     * A whole tool call, from dispatch to response written.
+     */
+    public void toolCalled(String tool, long nanos) {
+        if (registry == null) {
+            return;
+        }
+        timer("sedmcp.tool.call", "tool", tool).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    private Timer timer(String name, String tagKey, String tagValue) {
+        return timers.computeIfAbsent(name + '|' + tagValue, k -> Timer.builder(name)
+                .tag(tagKey, tagValue)
+                .publishPercentileHistogram()
+                .register(registry));
+    }
+
+    private Counter counter(String name, String tagKey, String tagValue) {
+        return counters.computeIfAbsent(name + '|' + tagValue, k -> Counter.builder(name)
+                .tag(tagKey, tagValue)
+                .register(registry));
+    }
+
+    private static final class PrometheusEndpoint {
+
+        static SedMetrics serve(int port) {
+            PrometheusMeterRegistry prometheus = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+            try {
+                HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+                server.createContext("/metrics", exchange -> {
+                    byte[] body = prometheus.scrape().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(body);
+                    }
+                });
+                // the default executor runs on the server's own thread, which is what we want: one scraper, no pool
+                server.start();
+                logger.info("Serving Prometheus metrics on http://{}:{}/metrics",
+                        InetAddress.getLoopbackAddress().getHostAddress(), port);
+            } catch (IOException e) {
+                logger.warn("Could not serve metrics on port {}: {}", port, e.getMessage());
+                prometheus.close();
+                return NOOP;
+            }
+            return new SedMetrics(prometheus);
+        }
+    }
+}
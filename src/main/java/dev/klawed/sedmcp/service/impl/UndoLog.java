@@ -0,0 +1,199 @@
+package dev.klawed.sedmcp.service.impl;
+
+import dev.klawed.sedmcp.model.TextPatch;
+import dev.klawed.sedmcp.service.SedEngineException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Undo/redo history for documents edited through the engine. Each edit is
+ * stored as a {@link TextPatch} holding only the spans that changed, in a
+ * bounded ring per document, so the cost of being able to change your mind
+ * scales with the size of the edit instead of the size of the file.
+ *
+ * <p>A whole-file rewrite is still a whole-file patch, so the log is held to
+ * a byte budget as well as a depth: over it, the oldest steps of the least
+ * recently edited documents go first. The newest edit is always kept.
+ */
+public class UndoLog {
+
+    private static final Logger logger = LoggerFactory.getLogger(UndoLog.class);
+
+    public static final int DEFAULT_DEPTH = 32;
+    public static final int DEFAULT_MAX_DOCUMENTS = 256;
+    public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+    private final int depth;
+    private final int maxDocuments;
+    private final long maxBytes;
+    private final LinkedHashMap<String, History> histories;
+    private long bytes = 0;
+
+    public UndoLog() {
+        this(DEFAULT_DEPTH, DEFAULT_MAX_DOCUMENTS, DEFAULT_MAX_BYTES);
+    }
+
+    public UndoLog(int depth, int maxDocuments) {
+        this(depth, maxDocuments, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param depth Number of edits remembered per document
+     * @param maxDocuments Number of documents tracked before the least recently used is forgotten
+     * @param maxBytes Budget for all stored patches, by {@link TextPatch#estimatedBytes()}
+     */
+    public UndoLog(int depth, int maxDocuments, long maxBytes) {
+        if (depth < 1 || maxDocuments < 1) {
+            throw new IllegalArgumentException("Undo depth and document count must be positive");
+        }
+        this.depth = depth;
+        this.maxDocuments = maxDocuments;
+        this.maxBytes = maxBytes;
+        this.histories = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, History> eldest) {
+                if (size() > UndoLog.this.maxDocuments) {
+                    bytes -= eldest.getValue().bytes();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Record an edit of a document. Clears that document's redo history.
+     *
+     * @param documentId Caller-chosen identifier of the document
+     * @param before Content before the edit
+     * @param after Content after the edit
+     */
+    public synchronized void record(String documentId, String before, String after) {
+        if (before.equals(after)) {
+            return;
+        }
+        TextPatch patch = TextPatch.diff(before, after);
+        History history = histories.computeIfAbsent(documentId, k -> new History());
+        bytes -= sum(history.redo);
+        history.redo.clear();
+        history.undo.push(patch);
+        bytes += patch.estimatedBytes();
+        if (history.undo.size() > depth) {
+            bytes -= history.undo.removeLast().estimatedBytes();
+        }
+        evict(patch);
+        logger.debug("Recorded edit of {} ({} hunks, ~{} bytes)", documentId, patch.getHunks().size(), patch.estimatedBytes());
+    }
+
+    /**
+     * Undo the most recent edit of a document.
+     *
+     * @param documentId Document to roll back
+     * @param current The document's current content, which must be what the last edit produced
+     * @return Content before the last edit
+     * @throws SedEngineException if there is nothing to undo or the content has drifted
+     */
+    public synchronized String undo(String documentId, String current) {
+        History history = histories.get(documentId);
+        if (history == null || history.undo.isEmpty()) {
+            throw new SedEngineException("Nothing to undo for document: " + documentId);
+        }
+        TextPatch patch = history.undo.peek();
+        if (!patch.canRevert(current)) {
+            throw new SedEngineException("Content of document " + documentId + " does not match its last recorded edit");
+        }
+        String previous = patch.revert(current);
+        history.undo.pop();
+        history.redo.push(patch);
+        return previous;
+    }
+
+    /**
+     * Re-apply the most recently undone edit of a document.
+     *
+     * @param documentId Document to roll forward
+     * @param current The document's current content, which must be what the last undo produced
+     * @return Content after re-applying the edit
+     * @throws SedEngineException if there is nothing to redo or the content has drifted
+     */
+    public synchronized String redo(String documentId, String current) {
+        History history = histories.get(documentId);
+        if (history == null || history.redo.isEmpty()) {
+            throw new SedEngineException("Nothing to redo for document: " + documentId);
+        }
+        TextPatch patch = history.redo.peek();
+        if (!patch.canApply(current)) {
+            throw new SedEngineException("Content of document " + documentId + " does not match its last undone edit");
+        }
+        String next = patch.apply(current);
+        history.redo.pop();
+        history.undo.push(patch);
+        return next;
+    }
+
+    public synchronized int undoDepth(String documentId) {
+        History history = histories.get(documentId);
+        return history != null ? history.undo.size() : 0;
+    }
+
+    public synchronized int redoDepth(String documentId) {
+        History history = histories.get(documentId);
+        return history != null ? history.redo.size() : 0;
+    }
+
+    /**
+     * Rough heap footprint of all stored patches, in bytes.
+     */
+    public synchronized long estimatedBytes() {
+        return bytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Drop the oldest steps, least recently edited documents first, until
+     * the log fits its budget or only {@code newest} is left.
+     */
+    private void evict(TextPatch newest) {
+        Iterator<History> it = histories.values().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            History history = it.next();
+            // redo steps are the furthest from where the document is now
+            while (bytes > maxBytes && !history.redo.isEmpty()) {
+                bytes -= history.redo.removeLast().estimatedBytes();
+            }
+            while (bytes > maxBytes && !history.undo.isEmpty() && history.undo.peekLast() != newest) {
+                bytes -= history.undo.removeLast().estimatedBytes();
+            }
+            if (history.undo.isEmpty() && history.redo.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    private static long sum(Deque<TextPatch> patches) {
+        long total = 0;
+        for (TextPatch patch : patches) {
+            total += patch.estimatedBytes();
+        }
+        return total;
+    }
+
+    private static final class History {
+        final Deque<TextPatch> undo = new ArrayDeque<>();
+        final Deque<TextPatch> redo = new ArrayDeque<>();
+
+        long bytes() {
+            return sum(undo) + sum(redo);
+        }
+    }
+}
@@ -1,8 +1,13 @@
 package dev.klawed.sedmcp;
 
+import dev.klawed.sedmcp.service.impl.RealSedEngine;
 import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.assertSame;
 
 @SpringBootTest
 @TestPropertySource(properties = {
@@ -11,9 +16,20 @@ import org.springframework.test.context.TestPropertySource;
 })
 class ApplicationTests {
 
+    @Autowired
+    private SedService sedService;
+
+    @Autowired
+    private RealSedEngine sedEngine;
+
     @Test
     void contextLoads() {
         // This test will pass if the Spring context loads successfully
         // It validates that all beans can be created and autowired properly
     }
+
+    @Test
+    void testSedServiceUsesTheEngineBean() {
+        assertSame(sedEngine, ReflectionTestUtils.getField(sedService, "engine"));
+    }
 }
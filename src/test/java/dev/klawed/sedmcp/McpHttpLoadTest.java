@@ -0,0 +1,105 @@
+package dev.klawed.sedmcp;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Throughput of the HTTP transport as concurrent clients go from 1 to twice
+ * the core count, each on its own session. Prints requests per second per
+ * level; on a multi-core box it should climb until the cores run out.
+ *
+ * <pre>
+ * mvn test -Dtest=McpHttpLoadTest -Dsedmcp.loadtest=true
+ * </pre>
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = "spring.threads.virtual.enabled=true")
+@EnabledIfSystemProperty(named = "sedmcp.loadtest", matches = "true")
+class McpHttpLoadTest {
+
+    private static final long MILLIS_PER_LEVEL = 3000;
+
+    @LocalServerPort
+    private int port;
+
+    private final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+
+    @Test
+    void testThroughputScalesWithClients() throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+        // ~50 KB of text per call, so the work is the engine and not HTTP overhead
+        String content = "the quick brown fox jumps over the lazy dog\\n".repeat(1200);
+
+        List<Integer> levels = new ArrayList<>();
+        for (int clients = 1; clients <= cores * 2; clients *= 2) {
+            levels.add(clients);
+        }
+        System.out.printf("%d cores%n%8s %12s%n", cores, "clients", "req/s");
+        for (int clients : levels) {
+            AtomicLong completed = new AtomicLong();
+            AtomicLong failed = new AtomicLong();
+            long deadline = System.currentTimeMillis() + MILLIS_PER_LEVEL;
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                List<Future<?>> futures = new ArrayList<>();
+                for (int c = 0; c < clients; c++) {
+                    int clientId = c;
+                    futures.add(executor.submit(() -> {
+                        String session = initialize();
+                        for (long n = 0; System.currentTimeMillis() < deadline; n++) {
+                            // a different replacement each time, so the result cache does not answer
+                            String body = "{\"jsonrpc\":\"2.0\",\"id\":" + n + ",\"method\":\"tools/call\",\"params\":{"
+                                    + "\"name\":\"sed_execute\",\"arguments\":{\"content\":\"" + content + "\","
+                                    + "\"operation\":\"s\",\"pattern\":\"o([a-z])\",\"replacement\":\"0$1" + clientId + "-" + n + "\","
+                                    + "\"flags\":\"g\"}}}";
+                            HttpResponse<String> response = post(session, body);
+                            if (response.statusCode() == 200 && response.body().contains("\"result\"")) {
+                                completed.incrementAndGet();
+                            } else {
+                                failed.incrementAndGet();
+                            }
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            }
+            System.out.printf("%8d %12.0f%n", clients, completed.get() * 1000.0 / MILLIS_PER_LEVEL);
+            assertEquals(0, failed.get());
+            assertTrue(completed.get() > 0);
+        }
+    }
+
+    private String initialize() throws Exception {
+        HttpResponse<String> response = post(null, "{\"jsonrpc\":\"2.0\",\"id\":0,\"method\":\"initialize\",\"params\":{}}");
+        assertEquals(200, response.statusCode());
+        return response.headers().firstValue(McpHttpTransport.SESSION_HEADER).orElseThrow();
+    }
+
+    private HttpResponse<String> post(String session, String body) throws Exception {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/mcp"))
+                .header("Content-Type", "application/json")
+                .header("Accept", "application/json, text/event-stream")
+                .POST(HttpRequest.BodyPublishers.ofString(body));
+        if (session != null) {
+            request.header(McpHttpTransport.SESSION_HEADER, session);
+        }
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+}
@@ -0,0 +1,54 @@
+package dev.klawed.sedmcp;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class McpHttpTransportTest {
+
+    @Test
+    void testSseWriterFramesEachLineAsAnEvent() {
+        StringWriter out = new StringWriter();
+        PrintWriter writer = new PrintWriter(new McpHttpTransport.SseWriter(out));
+        writer.write("{\"id\":1,");
+        writer.write("\"result\":{}}\n{\"id\":2}\n");
+        writer.flush();
+
+        assertEquals("event: message\ndata: {\"id\":1,\"result\":{}}\n\n"
+                + "event: message\ndata: {\"id\":2}\n\n", out.toString());
+    }
+
+    @Test
+    void testEventStreamIsPreferredWhenBothAreAccepted() {
+        assertTrue(McpHttpTransport.wantsEventStream("application/json, text/event-stream"));
+        assertFalse(McpHttpTransport.wantsEventStream("application/json"));
+        assertTrue(McpHttpTransport.wantsEventStream("text/event-stream"));
+        assertFalse(McpHttpTransport.wantsEventStream(null));
+    }
+
+    @Test
+    void testOnlyInitializeMayStartASession() throws Exception {
+        String initialize = "{\"jsonrpc\":\"2.0\",\"params\":{\"method\":\"x\"},\"id\":0,\"method\":\"initialize\"}";
+        assertEquals(initialize, McpHttpTransport.readInitialize(new StringReader(initialize)));
+        assertNull(McpHttpTransport.readInitialize(new StringReader(
+                "{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"tools/list\"}")));
+        assertNull(McpHttpTransport.readInitialize(new StringReader(
+                "{\"method\":\"initialize\",\"params\":{\"pad\":\"" + "x".repeat(100_000) + "\"}}")));
+        assertNull(McpHttpTransport.readInitialize(new StringReader("not json")));
+    }
+
+    @Test
+    void testOnlyLocalOriginsAreAllowed() {
+        assertTrue(McpHttpTransport.originAllowed(null));
+        assertTrue(McpHttpTransport.originAllowed("http://localhost:6274"));
+        assertTrue(McpHttpTransport.originAllowed("http://127.0.0.1"));
+        assertTrue(McpHttpTransport.originAllowed("http://[::1]:8080"));
+        assertFalse(McpHttpTransport.originAllowed("https://evil.example"));
+        assertFalse(McpHttpTransport.originAllowed("http://localhost.evil.example"));
+        assertFalse(McpHttpTransport.originAllowed("null"));
+    }
+}
@@ -0,0 +1,266 @@
+package dev.klawed.sedmcp;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import dev.klawed.sedmcp.service.impl.AdmissionControl;
+import dev.klawed.sedmcp.service.impl.ContentStore;
+import dev.klawed.sedmcp.service.impl.RealSedEngine;
+import dev.klawed.sedmcp.service.impl.UndoLog;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class McpServerTest {
+
+    private static final AdmissionControl UNLIMITED = new AdmissionControl(Long.MAX_VALUE / 4, 0, 0);
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private String[] serve(String... requests) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] in = String.join("\n", requests).getBytes(StandardCharsets.UTF_8);
+        new McpServer(new ByteArrayInputStream(in), out).run();
+        return out.toString(StandardCharsets.UTF_8).split("\n");
+    }
+
+    private JsonNode call(McpServer server, String tool, String arguments) throws Exception {
+        String request = "{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"tools/call\",\"params\":{\"name\":\"" + tool
+                + "\",\"arguments\":" + arguments + "}}";
+        StringWriter out = new StringWriter();
+        server.handle(new StringReader(request), request.length(), out, false);
+        return objectMapper.readTree(out.toString()).get("result");
+    }
+
+    private static String text(JsonNode result) {
+        return result.get("content").get(0).get("text").asText();
+    }
+
+    private static String contentRef(JsonNode result) {
+        Matcher m = Pattern.compile("Content ref: (\\S+)").matcher(text(result));
+        assertTrue(m.find(), text(result));
+        return m.group(1);
+    }
+
+    @Test
+    void testToolsListIsBuiltOnceAndReused() throws Exception {
+        String[] responses = serve(
+                "{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"tools/list\"}",
+                "{\"jsonrpc\":\"2.0\",\"id\":2,\"method\":\"tools/list\"}");
+
+        assertEquals(2, responses.length);
+        JsonNode first = objectMapper.readTree(responses[0]).get("result");
+        JsonNode second = objectMapper.readTree(responses[1]).get("result");
+        assertEquals(first, second);
+        assertEquals("sed_execute", first.get("tools").get(0).get("name").asText());
+    }
+
+    @Test
+    void testTrainingSessionRuns() {
+        assertDoesNotThrow(McpServer::train);
+    }
+
+    @Test
+    void testSessionsOnSharedEngineStreamResponses() throws Exception {
+        RealSedEngine engine = new RealSedEngine();
+        McpServer first = new McpServer(engine, new ContentStore(), UNLIMITED);
+        McpServer second = new McpServer(engine, new ContentStore(), UNLIMITED);
+        String call = "{\"jsonrpc\":\"2.0\",\"id\":7,\"method\":\"tools/call\",\"params\":{\"name\":\"sed_execute\","
+                + "\"arguments\":{\"content\":\"hello world\",\"operation\":\"s\",\"pattern\":\"world\",\"replacement\":\"there\"}}}";
+
+        StringWriter out = new StringWriter();
+        assertTrue(first.handle(new StringReader(call), call.length(), out, false));
+        assertTrue(second.handle(new StringReader(call), call.length(), new StringWriter(), false));
+
+        JsonNode response = objectMapper.readTree(out.toString());
+        assertEquals(7, response.get("id").asInt());
+        assertTrue(response.get("result").get("content").get(0).get("text").asText().contains("hello there"));
+        assertEquals(1, engine.getResultCache().stats().getHits());
+    }
+
+    @Test
+    void testContentRefChainsCalls() throws Exception {
+        McpServer server = new McpServer(new RealSedEngine(), new ContentStore(), UNLIMITED);
+
+        JsonNode first = call(server, "sed_execute",
+                "{\"content\":\"one two\\n\",\"operation\":\"s\",\"pattern\":\"one\",\"replacement\":\"1\"}");
+        JsonNode second = call(server, "sed_execute", "{\"contentRef\":\"" + contentRef(first)
+                + "\",\"operation\":\"s\",\"pattern\":\"two\",\"replacement\":\"2\"}");
+
+        assertTrue(text(second).contains("Result:\n1 2\n"), text(second));
+        // an error, not a result
+        assertNull(call(server, "sed_execute", "{\"contentRef\":\"c999\",\"operation\":\"d\",\"pattern\":\"x\"}"));
+    }
+
+    @Test
+    void testPreviewCommitsByRefAndUndoes() throws Exception {
+        // room for the result or the input, not both
+        McpServer server = new McpServer(new RealSedEngine(), new ContentStore(2000, null, 0), UNLIMITED);
+        String content = "a".repeat(500);
+
+        JsonNode preview = call(server, "sed_preview",
+                "{\"content\":\"" + content + "\",\"operation\":\"s\",\"pattern\":\"a\",\"replacement\":\"b\",\"flags\":\"g\"}");
+        JsonNode committed = call(server, "sed_execute",
+                "{\"previewRef\":\"" + contentRef(preview) + "\",\"documentId\":\"doc\"}");
+        assertTrue(text(committed).contains("Result:\n" + "b".repeat(500)), text(committed));
+
+        JsonNode undone = call(server, "sed_undo", "{\"documentId\":\"doc\",\"contentRef\":\"" + contentRef(committed) + "\"}");
+        assertTrue(text(undone).endsWith("Result:\n" + content), text(undone));
+
+        // a preview is committed once
+        assertNull(call(server, "sed_execute", "{\"previewRef\":\"" + contentRef(preview) + "\"}"));
+    }
+
+    @Test
+    void testPreviewsAreHeldToTheHistoryBudget() throws Exception {
+        McpServer server = new McpServer(new RealSedEngine(), new ContentStore(), UNLIMITED, 20_000);
+        String[] refs = new String[3];
+        for (int i = 0; i < refs.length; i++) {
+            // whole-text rewrites: a patch of a few KB, and a change logged per char
+            refs[i] = contentRef(call(server, "sed_preview", "{\"content\":\"" + "a".repeat(1000)
+                    + "\",\"operation\":\"s\",\"pattern\":\"a\",\"replacement\":\"" + i + "\",\"flags\":\"g\"}"));
+        }
+
+        assertNull(call(server, "sed_execute", "{\"previewRef\":\"" + refs[0] + "\"}"));
+        assertNotNull(call(server, "sed_execute", "{\"previewRef\":\"" + refs[2] + "\"}"));
+    }
+
+    @Test
+    void testGrepReturnsLocationsOnly() throws Exception {
+        String[] responses = serve(
+                "{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"tools/call\",\"params\":{\"name\":\"sed_grep\","
+                        + "\"arguments\":{\"content\":\"foo\\nbar foo\\nfoo\\n\",\"pattern\":\"foo\",\"maxMatches\":2}}}");
+
+        JsonNode text = objectMapper.readTree(objectMapper.readTree(responses[0])
+                .get("result").get("content").get(0).get("text").asText());
+        assertEquals(2, text.get("count").asInt());
+        assertTrue(text.get("truncated").asBoolean());
+        assertEquals("[[1,1,3],[2,5,3]]", text.get("matches").toString());
+    }
+
+    @Test
+    void testStructuredResultsAreNegotiatedInInitialize() throws Exception {
+        String call = "{\"jsonrpc\":\"2.0\",\"id\":2,\"method\":\"tools/call\",\"params\":{\"name\":\"sed_execute\","
+                + "\"arguments\":{\"content\":\"a \\\"quoted\\\" line\\nand another\\n\",\"operation\":\"s\","
+                + "\"pattern\":\"quoted\",\"replacement\":\"QUOTED\"}}}";
+        String[] responses = serve(
+                "{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"initialize\",\"params\":"
+                        + "{\"capabilities\":{\"experimental\":{\"sedResultFormat\":\"json\"}}}}",
+                call);
+
+        assertEquals("json", objectMapper.readTree(responses[0])
+                .get("result").get("capabilities").get("experimental").get("sedResultFormat").asText());
+        JsonNode fields = objectMapper.readTree(responses[1]).get("result").get("structuredContent");
+        assertTrue(fields.get("success").asBoolean());
+        assertEquals(1, fields.get("linesModified").asInt());
+        assertEquals("a \"QUOTED\" line\nand another\n", fields.get("result").asText());
+        assertEquals("[{\"beforeOffset\":3,\"afterOffset\":3,\"removed\":\"quoted\",\"inserted\":\"QUOTED\"}]",
+                fields.get("diff").toString());
+
+        // without asking, results stay prose
+        JsonNode plain = objectMapper.readTree(serve(call)[0]).get("result");
+        assertFalse(plain.has("structuredContent"));
+        assertTrue(plain.get("content").get(0).get("text").asText().contains("a \"QUOTED\" line"));
+    }
+
+    @Test
+    void testNotificationsGetNoResponse() throws Exception {
+        McpServer server = new McpServer(new RealSedEngine(), new ContentStore(), UNLIMITED);
+        String notification = "{\"jsonrpc\":\"2.0\",\"method\":\"notifications/initialized\"}";
+        StringWriter out = new StringWriter();
+
+        assertFalse(server.handle(new StringReader(notification), notification.length(), out, false));
+        assertEquals("", out.toString());
+    }
+
+    @Test
+    void testCancelledCallGetsNoResponse() throws Exception {
+        String content = "x\\n".repeat(500_000);
+        String[] responses = serve(
+                "{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"tools/call\",\"params\":{\"name\":\"sed_execute\","
+                        + "\"arguments\":{\"content\":\"" + content + "\",\"operation\":\"d\",\"pattern\":\"x\"}}}",
+                "{\"jsonrpc\":\"2.0\",\"method\":\"notifications/cancelled\",\"params\":{\"requestId\":1}}",
+                "{\"jsonrpc\":\"2.0\",\"id\":2,\"method\":\"tools/list\"}");
+
+        assertEquals(1, responses.length);
+        assertEquals(2, objectMapper.readTree(responses[0]).get("id").asInt());
+    }
+
+    @Test
+    void testOversizeRequestIsRejectedWithItsId() throws Exception {
+        String call = "{\"jsonrpc\":\"2.0\",\"params\":{\"name\":\"sed_execute\",\"arguments\":{\"content\":\""
+                + "x".repeat(10_000) + "\",\"operation\":\"d\",\"pattern\":\"x\"}},\"id\":\"big\",\"method\":\"tools/call\"}";
+        String[] responses;
+        System.setProperty("sedmcp.admission.max-bytes", "65536");
+        try {
+            responses = serve(call, "{\"jsonrpc\":\"2.0\",\"id\":2,\"method\":\"tools/list\"}");
+        } finally {
+            System.clearProperty("sedmcp.admission.max-bytes");
+        }
+
+        assertEquals(2, responses.length);
+        JsonNode rejected = objectMapper.readTree(responses[0]);
+        assertEquals("big", rejected.get("id").asText());
+        assertEquals(McpServer.REQUEST_TOO_LARGE, rejected.get("error").get("code").asInt());
+        assertEquals(2, objectMapper.readTree(responses[1]).get("id").asInt());
+    }
+
+    @Test
+    void testStdioLinesWaitForMemoryInOrder() throws Exception {
+        AdmissionControl admission = new AdmissionControl(AdmissionControl.estimate(1000), 200, 4);
+        String lines = "{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"tools/list\"}\n"
+                + "{\"jsonrpc\":\"2.0\",\"id\":2,\"method\":\"tools/list\"}\n";
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (AdmissionControl.Ticket hog = admission.admit(1000)) {
+            new McpServer(new RealSedEngine(), new ContentStore(), admission, UndoLog.DEFAULT_MAX_BYTES,
+                    new ByteArrayInputStream(lines.getBytes(StandardCharsets.UTF_8)), out).run();
+        }
+        String[] busy = out.toString(StandardCharsets.UTF_8).split("\n");
+        assertEquals(2, busy.length);
+        for (int i = 0; i < 2; i++) {
+            JsonNode error = objectMapper.readTree(busy[i]);
+            assertEquals(i + 1, error.get("id").asInt());
+            assertEquals(McpServer.SERVER_BUSY, error.get("error").get("code").asInt());
+        }
+
+        out.reset();
+        new McpServer(new RealSedEngine(), new ContentStore(), admission, UndoLog.DEFAULT_MAX_BYTES,
+                new ByteArrayInputStream(lines.getBytes(StandardCharsets.UTF_8)), out).run();
+        String[] served = out.toString(StandardCharsets.UTF_8).split("\n");
+        assertEquals(1, objectMapper.readTree(served[0]).get("id").asInt());
+        assertEquals(2, objectMapper.readTree(served[1]).get("id").asInt());
+        assertEquals(0, admission.getReservedBytes());
+    }
+
+    @Test
+    void testSessionRequestOverBudgetThrows() {
+        McpServer server = new McpServer(new RealSedEngine(), new ContentStore(), new AdmissionControl(1024, 0, 0));
+        String call = "{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"tools/list\"}";
+
+        AdmissionControl.Rejected e = assertThrows(AdmissionControl.Rejected.class,
+                () -> server.handle(new StringReader(call), 1000, new StringWriter(), false));
+        assertEquals(AdmissionControl.Reason.TOO_LARGE, e.getReason());
+    }
+
+    @Test
+    void testBodyOfUnknownLengthIsHeldToTheBudget() {
+        AdmissionControl admission = new AdmissionControl(AdmissionControl.estimate(4096), 0, 0);
+        McpServer server = new McpServer(new RealSedEngine(), new ContentStore(), admission);
+        String call = "{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"tools/call\",\"params\":{\"name\":\"sed_execute\","
+                + "\"arguments\":{\"content\":\"" + "x".repeat(10_000) + "\",\"operation\":\"d\",\"pattern\":\"x\"}}}";
+
+        AdmissionControl.Rejected e = assertThrows(AdmissionControl.Rejected.class,
+                () -> server.handle(new StringReader(call), 0, new StringWriter(), false));
+        assertEquals(AdmissionControl.Reason.TOO_LARGE, e.getReason());
+        assertEquals(0, admission.getReservedBytes());
+    }
+}
@@ -0,0 +1,103 @@
+package dev.klawed.sedmcp.cli;
+
+import dev.klawed.sedmcp.service.impl.RealSedEngine;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SedCommandLineTest {
+
+    @TempDir
+    Path tempDir;
+
+    private final ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+
+    private int run(String input, String... args) {
+        SedCommandLine commandLine = new SedCommandLine(new RealSedEngine(),
+                new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)),
+                stdout, new PrintStream(stderr, true, StandardCharsets.UTF_8));
+        return commandLine.run(args);
+    }
+
+    private String output() {
+        return stdout.toString(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void testQuietPrintFromStdin() {
+        int status = run("INFO ok\nERROR boom\nINFO fine\nERROR again\n", "-n", "/ERROR/p");
+
+        assertEquals(0, status);
+        assertEquals("ERROR boom\nERROR again\n", output());
+    }
+
+    @Test
+    void testMultipleExpressionsRunInOnePass() {
+        int status = run("# comment\nfoo\nfoo foo\n", "-e", "/^#/d", "-e", "s/foo/bar/g");
+
+        assertEquals(0, status);
+        assertEquals("bar\nbar bar\n", output());
+    }
+
+    @Test
+    void testBasicAndExtendedRegexSyntax() {
+        run("aaa b\n", "s/\\(a\\+\\)/[\\1]/");
+        run("aaa b\n", "-E", "s/(a+) (b)/\\2\\1/");
+
+        assertEquals("[aaa] b\nbaaa\n", output());
+    }
+
+    @Test
+    void testMissingTrailingNewlineIsPreserved() {
+        run("one\ntwo", "s/o/0/g");
+
+        assertEquals("0ne\ntw0", output());
+    }
+
+    @Test
+    void testLineAddressesAndQuit() {
+        run("1\n2\n3\n4\n5\n", "2,3d;4q");
+
+        assertEquals("1\n4\n", output());
+    }
+
+    @Test
+    void testInPlaceEditWithBackup() throws Exception {
+        Path file = Files.writeString(tempDir.resolve("config.txt"), "debug=true\nport=80\n");
+
+        int status = run("", "-i.bak", "s/debug=true/debug=false/", file.toString());
+
+        assertEquals(0, status);
+        assertEquals("debug=false\nport=80\n", Files.readString(file));
+        assertEquals("debug=true\nport=80\n", Files.readString(tempDir.resolve("config.txt.bak")));
+    }
+
+    @Test
+    void testInPlaceEditKeepsBytesThatAreNotUtf8() throws Exception {
+        Path file = Files.write(tempDir.resolve("latin1.txt"),
+                "foo caf\u00e9\nna\u00efve\n".getBytes(StandardCharsets.ISO_8859_1));
+
+        int status = run("", "-i", "s/foo/bar/", file.toString());
+
+        assertEquals(0, status);
+        assertArrayEquals("bar caf\u00e9\nna\u00efve\n".getBytes(StandardCharsets.ISO_8859_1), Files.readAllBytes(file));
+    }
+
+    @Test
+    void testScriptErrorsAndMissingFiles() {
+        assertEquals(1, run("", "s/unterminated"));
+        assertEquals(2, run("", "p", tempDir.resolve("missing.txt").toString()));
+        assertTrue(stderr.toString(StandardCharsets.UTF_8).contains("can't read"));
+        assertEquals(1, run("", "-i", "s/a/b/"));
+        assertTrue(stderr.toString(StandardCharsets.UTF_8).contains("sedmcp: no input files"));
+    }
+}
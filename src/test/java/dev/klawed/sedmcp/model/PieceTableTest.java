@@ -0,0 +1,64 @@
+package dev.klawed.sedmcp.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.StringWriter;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PieceTableTest {
+
+    @Test
+    void testSingleEditsReferenceTheOriginal() {
+        PieceTable table = new PieceTable("hello world");
+
+        table.insert(5, ",");
+        table.replace(7, 5, "there");
+        table.delete(0, 1);
+
+        assertEquals("ello, there", table.toString());
+        assertEquals(11, table.length());
+        assertEquals('t', table.charAt(6));
+        assertEquals("lo, t", table.subSequence(2, 7).toString());
+        assertEquals(6, table.addedLength());
+    }
+
+    @Test
+    void testBatchEditsUseOffsetsFromBeforeTheBatch() {
+        PieceTable table = new PieceTable("a\nb\nc\n");
+
+        table.apply(List.of(
+                PieceTable.Edit.insert(0, "top\n"),
+                PieceTable.Edit.replace(2, 1, "B"),
+                PieceTable.Edit.insert(6, "end\n"),
+                PieceTable.Edit.insert(6, "more\n")));
+
+        assertEquals("top\na\nB\nc\nend\nmore\n", table.toString());
+    }
+
+    @Test
+    void testInsertNearTopOfLargeTextStaysSmall() throws Exception {
+        String big = "line\n".repeat(200_000);
+        PieceTable table = new PieceTable(big);
+
+        table.insert(5, "inserted\n");
+
+        assertEquals(3, table.pieceCount());
+        assertEquals(9, table.addedLength());
+        StringWriter out = new StringWriter();
+        table.writeTo(out);
+        assertEquals("line\ninserted\n" + big.substring(5), out.toString());
+    }
+
+    @Test
+    void testRejectsUnsortedOrOverlappingEditsWithoutChangingText() {
+        PieceTable table = new PieceTable("abcdef");
+
+        assertThrows(IllegalArgumentException.class, () -> table.apply(List.of(
+                PieceTable.Edit.insert(3, "x"),
+                PieceTable.Edit.delete(1, 1))));
+        assertThrows(IllegalArgumentException.class, () -> table.delete(4, 5));
+        assertEquals("abcdef", table.toString());
+    }
+}
@@ -0,0 +1,47 @@
+package dev.klawed.sedmcp.model;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SplicedTextTest {
+
+    @Test
+    void testReadsAsTheSplicedString() {
+        String base = "hello world, hello";
+        SplicedText splice = new SplicedText(base, 6, 11, "there");
+        String expected = "hello there, hello";
+
+        assertEquals(expected.length(), splice.length());
+        for (int i = 0; i < expected.length(); i++) {
+            assertEquals(expected.charAt(i), splice.charAt(i));
+        }
+        for (int start = 0; start <= expected.length(); start++) {
+            for (int end = start; end <= expected.length(); end++) {
+                assertEquals(expected.substring(start, end), splice.subSequence(start, end).toString());
+            }
+        }
+        StringBuilder sb = new StringBuilder(">");
+        splice.appendTo(sb);
+        assertEquals(">" + expected, sb.toString());
+        assertEquals(expected, splice.toString());
+        assertSame(splice.toString(), splice.toString());
+    }
+
+    @Test
+    void testInsertsAndDeletesAtTheEdges() {
+        assertEquals("xabc", new SplicedText("abc", 0, 0, "x").toString());
+        assertEquals("abcx", new SplicedText("abc", 3, 3, "x").toString());
+        assertEquals("", new SplicedText("abc", 0, 3, "").toString());
+        assertThrows(IndexOutOfBoundsException.class, () -> new SplicedText("abc", 2, 4, ""));
+    }
+
+    @Test
+    void testRebaseKeepsTheSplice() {
+        SplicedText splice = new SplicedText("abcdef", 2, 4, "XY");
+        SplicedText rebased = splice.rebase(new StringBuilder("abcdef"));
+
+        assertEquals("abXYef", rebased.toString());
+        assertThrows(IllegalArgumentException.class, () -> splice.rebase("abc"));
+    }
+}
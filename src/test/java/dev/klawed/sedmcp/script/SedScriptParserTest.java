@@ -0,0 +1,149 @@
+package dev.klawed.sedmcp.script;
+
+import dev.klawed.sedmcp.service.SedEngineException;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SedScriptParserTest {
+
+    private static final String LINES = "1\n2\n3\n4\n5\n6\n";
+
+    private String run(String script, String input) throws IOException {
+        return run(script, input, false);
+    }
+
+    private String run(String script, String input, boolean quiet) throws IOException {
+        SedProgram program = new SedScriptParser().parse(script);
+        StringWriter out = new StringWriter();
+        new SedStreamExecutor(program, quiet).run(new StringReader(input), out);
+        return out.toString();
+    }
+
+    @Test
+    void testSemicolonSeparatedPipelineRunsInOnePass() throws IOException {
+        String output = run("/^#/d; s/foo/bar/g; 2,3p", "# header\nfoo foo\nkeep\nfoo\n");
+
+        assertEquals("bar bar\nbar bar\nkeep\nkeep\nbar\n", output);
+    }
+
+    @Test
+    void testGnuAddressForms() throws IOException {
+        assertEquals("2\n4\n6\n", run("0~2p", LINES, true));
+        assertEquals("3\n4\n5\n", run("3,+2p", LINES, true));
+        assertEquals("2\n3\n4\n", run("2,~4p", LINES, true));
+        assertEquals("4\n5\n6\n", run("0,/3/d", LINES));
+    }
+
+    @Test
+    void testBlocksAndNegation() throws IOException {
+        assertEquals("2\n2\n3\nx4\nx5\n6\n", run("2p; 4,5{s/^/x/}; 1d", LINES));
+        assertEquals("1\n6\n", run("2,5!p", LINES, true));
+    }
+
+    @Test
+    void testLabelsAndConditionalBranches() throws IOException {
+        assertEquals("f00 b0x\n", run(":a; s/o/0/; ta", "foo box\n"));
+        assertEquals("x\nb!\n", run("s/a/x/; t; s/$/!/", "a\nb\n"));
+        assertEquals("x!\nb\n", run("s/a/x/; T; s/$/!/", "a\nb\n"));
+    }
+
+    @Test
+    void testAppendInsertAndChange() throws IOException {
+        assertEquals("1\nafter\n2\n", run("1a after", "1\n2\n"));
+        assertEquals("before\n  1\n2\n", run("1i\\\nbefore\n1s/^/  /", "1\n2\n"));
+        assertEquals("1\nC\n4\n", run("2,3c\\\nC", "1\n2\n3\n4\n"));
+        assertEquals("x\nappended\n", run("$a appended", "x"));
+    }
+
+    @Test
+    void testLineNumbersTranslateAndQuit() throws IOException {
+        assertEquals("3\n", run("$=", "a\nb\nc\n", true));
+        assertEquals("ABc\n", run("y/ab/AB/", "abc\n"));
+        assertEquals("1\n2\n", run("2q", LINES));
+        assertEquals("1\n", run("2Q", LINES));
+        assertEquals("a\\tb$\n", run("l", "a\tb\n", true));
+    }
+
+    @Test
+    void testHoldSpaceCommands() throws IOException {
+        assertEquals("3\n2\n1\n", run("1!G; h; $!d", "1\n2\n3\n"));
+        assertEquals("1,2,3\n", run("H; ${x; s/\\n/,/g; s/^,//; p}", "1\n2\n3\n", true));
+        assertEquals("a\n\nb\n\n", run("G", "a\nb\n"));
+        assertEquals("\na\n", run("x", "a\nb\n"));
+    }
+
+    @Test
+    void testMultiLinePatternSpace() throws IOException {
+        assertEquals("1-2\n3-4\n5\n", run("$!N; s/\\n/-/", "1\n2\n3\n4\n5\n"));
+        assertEquals("1+2+3", run(":a; N; $!ba; s/\\n/+/g", "1\n2\n3"));
+        // classic "delete consecutive duplicate lines"
+        assertEquals("a\nb\na\n", run("$!N; /^\\(.*\\)\\n\\1$/!P; D", "a\na\nb\nb\na\n"));
+    }
+
+    @Test
+    void testHoldSpaceCapStopsRunawayAccumulation() {
+        SedProgram program = new SedScriptParser().parse("H; $!d; x");
+        SedStreamExecutor executor = new SedStreamExecutor(program, false, new SedStreamExecutor.Limits(1000, 64));
+        String input = "0123456789\n".repeat(20);
+
+        SedEngineException e = assertThrows(SedEngineException.class,
+                () -> executor.run(new StringReader(input), new StringWriter()));
+        assertTrue(e.getMessage().contains("Hold space exceeded 64 chars"));
+    }
+
+    @Test
+    void testQuitExitCodeIsReported() throws IOException {
+        SedProgram program = new SedScriptParser().parse("3q5");
+        SedStreamExecutor.Stats stats = new SedStreamExecutor(program, false)
+                .run(new StringReader(LINES), new StringWriter());
+
+        assertEquals(5, stats.getExitCode());
+        assertEquals(3, stats.getLinesRead());
+    }
+
+    @Test
+    void testEmptyRegexReusesTheLastOne() throws IOException {
+        assertEquals("X bar\nqux\n", run("/foo/s//X/", "foo bar\nqux\n"));
+    }
+
+    @Test
+    void testNumericFlagsCountMatchesPerLine() throws IOException {
+        assertEquals("a a X a\nb\na a\n", run("s/a/X/3", "a a a a\nb\na a\n"));
+        assertEquals("a X X\na X\n", run("s/a/X/2g", "a a a\na a\n"));
+        assertEquals("xbXxX\n", run("s/a*/X/3g", "xbx\n"));
+
+        SedScriptParser parser = new SedScriptParser();
+        assertThrows(SedEngineException.class, () -> parser.parse("s/a/b/0"));
+        assertThrows(SedEngineException.class, () -> parser.parse("s/a/b/2g3"));
+        assertThrows(SedEngineException.class, () -> parser.parse("s/a/b/gg"));
+    }
+
+    @Test
+    void testProgramsCompiledFromSameSourceAreEqual() {
+        SedProgram first = new SedScriptParser().parse("s/a/b/; 2d");
+        SedProgram second = new SedScriptParser().parse("s/a/b/; 2d");
+
+        assertEquals(first, second);
+        assertEquals(first.hashCode(), second.hashCode());
+        assertNotEquals(first, new SedScriptParser(true).parse("s/a/b/; 2d"));
+    }
+
+    @Test
+    void testMalformedScriptsAreRejectedBeforeRunning() {
+        SedScriptParser parser = new SedScriptParser();
+
+        assertThrows(SedEngineException.class, () -> parser.parse("1{p"));
+        assertThrows(SedEngineException.class, () -> parser.parse("p}"));
+        assertThrows(SedEngineException.class, () -> parser.parse("b nowhere"));
+        assertThrows(SedEngineException.class, () -> parser.parse("1,2q"));
+        assertThrows(SedEngineException.class, () -> parser.parse("y/abc/xy/"));
+        assertThrows(SedEngineException.class, () -> parser.parse("5,0p"));
+        SedEngineException e = assertThrows(SedEngineException.class, () -> parser.parse("w /etc/passwd"));
+        assertTrue(e.getMessage().contains("no file or shell access"));
+    }
+}
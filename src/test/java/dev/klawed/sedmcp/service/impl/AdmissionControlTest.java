@@ -0,0 +1,94 @@
+package dev.klawed.sedmcp.service.impl;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdmissionControlTest {
+
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    void testRequestLargerThanBudgetIsRejected() {
+        AdmissionControl admission = new AdmissionControl(10 * MB, 1000, 4);
+
+        AdmissionControl.Rejected e = assertThrows(AdmissionControl.Rejected.class,
+                () -> admission.admit(MB + 1));
+        assertEquals(AdmissionControl.Reason.TOO_LARGE, e.getReason());
+        assertEquals(0, admission.getReservedBytes());
+    }
+
+    @Test
+    void testReservationIsReleasedOnClose() throws Exception {
+        AdmissionControl admission = new AdmissionControl(100 * MB, 1000, 4);
+
+        AdmissionControl.Ticket ticket = admission.admit(MB);
+        assertEquals(AdmissionControl.estimate(MB), admission.getReservedBytes());
+        ticket.close();
+        ticket.close();
+        assertEquals(0, admission.getReservedBytes());
+    }
+
+    @Test
+    void testRequestWaitsForRoom() throws Exception {
+        AdmissionControl admission = new AdmissionControl(AdmissionControl.estimate(MB), 10_000, 4);
+        AdmissionControl.Ticket first = admission.admit(MB);
+
+        CompletableFuture<AdmissionControl.Ticket> second = CompletableFuture.supplyAsync(() -> {
+            try {
+                return admission.admit(MB);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        while (admission.getQueued() == 0) {
+            Thread.sleep(5);
+        }
+        assertFalse(second.isDone());
+
+        first.close();
+        try (AdmissionControl.Ticket ticket = second.get(5, TimeUnit.SECONDS)) {
+            assertEquals(AdmissionControl.estimate(MB), admission.getReservedBytes());
+        }
+        assertEquals(0, admission.getQueued());
+    }
+
+    @Test
+    void testTicketGrowsForBodiesOfUnknownSize() throws Exception {
+        AdmissionControl admission = new AdmissionControl(AdmissionControl.estimate(10 * MB), 0, 0);
+
+        try (AdmissionControl.Ticket ticket = admission.admit(0)) {
+            assertTrue(ticket.grow(MB) >= MB);
+            assertTrue(admission.getReservedBytes() >= AdmissionControl.estimate(MB));
+            assertTrue(ticket.grow(10 * MB) >= 10 * MB);
+
+            AdmissionControl.Rejected e = assertThrows(AdmissionControl.Rejected.class, () -> ticket.grow(10 * MB + 1));
+            assertEquals(AdmissionControl.Reason.TOO_LARGE, e.getReason());
+        }
+        assertEquals(0, admission.getReservedBytes());
+
+        try (AdmissionControl.Ticket held = admission.admit(9 * MB);
+             AdmissionControl.Ticket ticket = admission.admit(0)) {
+            AdmissionControl.Rejected e = assertThrows(AdmissionControl.Rejected.class, () -> ticket.grow(2 * MB));
+            assertEquals(AdmissionControl.Reason.QUEUE_FULL, e.getReason());
+        }
+    }
+
+    @Test
+    void testWaitTimesOutAndFullQueueRejects() throws Exception {
+        AdmissionControl admission = new AdmissionControl(AdmissionControl.estimate(MB), 50, 0);
+        try (AdmissionControl.Ticket ticket = admission.admit(MB)) {
+            AdmissionControl.Rejected full = assertThrows(AdmissionControl.Rejected.class, () -> admission.admit(MB));
+            assertEquals(AdmissionControl.Reason.QUEUE_FULL, full.getReason());
+        }
+
+        AdmissionControl patient = new AdmissionControl(AdmissionControl.estimate(MB), 50, 4);
+        try (AdmissionControl.Ticket ticket = patient.admit(MB)) {
+            AdmissionControl.Rejected timeout = assertThrows(AdmissionControl.Rejected.class, () -> patient.admit(MB));
+            assertEquals(AdmissionControl.Reason.TIMEOUT, timeout.getReason());
+        }
+    }
+}
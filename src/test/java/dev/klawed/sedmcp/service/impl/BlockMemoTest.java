@@ -0,0 +1,137 @@
+package dev.klawed.sedmcp.service.impl;
+
+import dev.klawed.sedmcp.model.SedOperation;
+import dev.klawed.sedmcp.model.SedResult;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlockMemoTest {
+
+    private static final List<SedOperation> CLEANUP = List.of(
+            substitute("[ \\t]+,", ",", "g"),
+            substitute("foo(\\d+)", "bar$1", "g"),
+            substitute("TODO", "DONE\nNOTE", "g"),
+            substitute("(?:ab)+c", "x", "gi"));
+
+    private static SedOperation substitute(String pattern, String replacement, String flags) {
+        return SedOperation.builder()
+                .operation(SedOperation.OperationType.SUBSTITUTE)
+                .pattern(pattern)
+                .replacement(replacement)
+                .flags(flags)
+                .build();
+    }
+
+    private static String document(int lines) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            sb.append("line ").append(i).append(" foo").append(i % 7).append(" ,ABabc")
+                    .append(i % 13 == 0 ? " TODO" : "").append('\n');
+        }
+        return sb.append("no newline at the end foo1").toString();
+    }
+
+    @Test
+    void testBlockByBlockMatchesWholeText() {
+        RealSedEngine engine = new RealSedEngine(new ResultCache(0));
+        String content = document(3000);
+
+        SedResult batch = engine.executeBatch(content, CLEANUP);
+        String expected = content;
+        List<String> changes = new ArrayList<>();
+        for (SedOperation operation : CLEANUP) {
+            SedResult step = engine.executeOperation(expected, operation);
+            expected = step.getModifiedContent();
+            changes.addAll(step.getChangesApplied());
+        }
+
+        assertTrue(batch.isSuccess());
+        assertEquals(expected, batch.getModifiedContent());
+        assertEquals(changes, batch.getChangesApplied());
+        assertEquals(changes.size(), batch.getLinesModified());
+        assertTrue(engine.getBlockMemo().getComputedBlocks() > 10);
+    }
+
+    @Test
+    void testOneLineEditRecomputesOnlyItsBlock() {
+        RealSedEngine engine = new RealSedEngine(new ResultCache(0));
+        String content = document(30_000);
+        engine.executeBatch(content, CLEANUP);
+        long computed = engine.getBlockMemo().getComputedBlocks();
+
+        String edited = content.replace("line 15000 ", "line 15000 edited foo9 ");
+        SedResult rerun = engine.executeBatch(edited, CLEANUP);
+
+        assertTrue(rerun.getModifiedContent().contains("edited bar9"));
+        assertTrue(engine.getBlockMemo().getComputedBlocks() - computed <= 2);
+        assertTrue(engine.getBlockMemo().getReusedBlocks() > 100);
+    }
+
+    @Test
+    void testOnlyLineLocalPatternsQualify() {
+        assertTrue(lineLocal("foo(\\d+)", "g"));
+        assertTrue(lineLocal("(?:a|b)c\\.", "gi"));
+        assertTrue(lineLocal("\\$x", "g"));
+        assertFalse(lineLocal("foo", ""));
+        assertFalse(lineLocal("^foo", "gm"));
+        assertFalse(lineLocal("foo$", "g"));
+        assertFalse(lineLocal("a\\sb", "g"));
+        assertFalse(lineLocal("[^a]b", "g"));
+        assertFalse(lineLocal("\\bword", "g"));
+        assertFalse(lineLocal("(?<=a)b", "g"));
+        assertFalse(lineLocal("a.b", "gs"));
+        assertFalse(lineLocal("x*", "g"));
+        assertFalse(lineLocal("a\\x0ab", "g"));
+        assertFalse(lineLocal("a[\\t-\\r]b", "g"));
+        assertFalse(lineLocal("[\\a-z]+", "g"));
+        assertFalse(lineLocal("x[\u0001-z]", "g"));
+        assertFalse(lineLocal("\\H+", "g"));
+        assertTrue(lineLocal("[a-z0-9_-]+", "g"));
+        assertTrue(lineLocal("[ -~]x", "g"));
+    }
+
+    @Test
+    void testEveryAcceptedEscapeAgreesWithWholeText() {
+        List<String> patterns = new ArrayList<>();
+        for (char c = '!'; c <= '~'; c++) {
+            patterns.add("\\" + c + "+");
+            patterns.add("[\\" + c + "]+");
+        }
+        patterns.addAll(List.of(".+", "[a-z0-9_-]+", "[ -~]+", "\\Qo f\\E", "[\\w&&[^o]]+"));
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            sb.append("l\u00efne ").append(i).append("\t,\r x_\u0085\u2028\u00a0\u001b\u0007o f \\Q$").append('\n');
+        }
+        String content = sb.toString();
+
+        int accepted = 0;
+        for (String pattern : patterns) {
+            Pattern regex;
+            try {
+                regex = Pattern.compile(pattern);
+            } catch (RuntimeException e) {
+                continue;
+            }
+            SedOperation operation = substitute(pattern, "X", "g");
+            if (!BlockMemo.isLineLocal(operation, regex)) {
+                continue;
+            }
+            accepted++;
+            RealSedEngine engine = new RealSedEngine(new ResultCache(0));
+            SedResult batch = engine.executeBatch(content, List.of(operation));
+            assertTrue(engine.getBlockMemo().getComputedBlocks() > 0, pattern);
+            assertEquals(engine.executeOperation(content, operation).getModifiedContent(),
+                    batch.getModifiedContent(), pattern);
+        }
+        assertTrue(accepted > 50, "only " + accepted + " patterns accepted");
+    }
+
+    private static boolean lineLocal(String pattern, String flags) {
+        return BlockMemo.isLineLocal(substitute(pattern, "", flags), Pattern.compile(pattern));
+    }
+}
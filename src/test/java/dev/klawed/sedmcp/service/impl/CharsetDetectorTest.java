@@ -0,0 +1,98 @@
+package dev.klawed.sedmcp.service.impl;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CharsetDetectorTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testAsciiAndUtf8AreReadAsUtf8() {
+        for (String text : new String[] {"", "a", "plain ascii text\n".repeat(5), "ascii then é", "smile 😀 at the end 🙂"}) {
+            CharsetDetector.Decoded decoded = CharsetDetector.decode(text.getBytes(StandardCharsets.UTF_8));
+            assertEquals(text, decoded.getText());
+            assertEquals(StandardCharsets.UTF_8, decoded.getCharset());
+        }
+    }
+
+    @Test
+    void testByteOrderMarksDecideAndAreDropped() {
+        String text = "héllo";
+        assertDecodes(text, StandardCharsets.UTF_8, 3, bom(new byte[] {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF}, text, StandardCharsets.UTF_8));
+        assertDecodes(text, StandardCharsets.UTF_16LE, 2, bom(new byte[] {(byte) 0xFF, (byte) 0xFE}, text, StandardCharsets.UTF_16LE));
+        assertDecodes(text, StandardCharsets.UTF_16BE, 2, bom(new byte[] {(byte) 0xFE, (byte) 0xFF}, text, StandardCharsets.UTF_16BE));
+        Charset utf32le = Charset.forName("UTF-32LE");
+        assertDecodes(text, utf32le, 4, bom(new byte[] {(byte) 0xFF, (byte) 0xFE, 0, 0}, text, utf32le));
+    }
+
+    @Test
+    void testInvalidUtf8FallsBackToLatin1() {
+        byte[] latin1 = "naïve café, ascii padding past one word".getBytes(StandardCharsets.ISO_8859_1);
+
+        CharsetDetector.Decoded decoded = CharsetDetector.decode(latin1);
+
+        assertEquals("naïve café, ascii padding past one word", decoded.getText());
+        assertEquals(StandardCharsets.ISO_8859_1, decoded.getCharset());
+    }
+
+    @Test
+    void testValidatorRejectsWhatStrictUtf8Does() {
+        assertFalse(utf8(0xC0, 0xAF));              // overlong '/'
+        assertFalse(utf8(0xE0, 0x80, 0xAF));        // overlong three-byte
+        assertFalse(utf8(0xED, 0xA0, 0x80));        // surrogate
+        assertFalse(utf8(0xF4, 0x90, 0x80, 0x80));  // past U+10FFFF
+        assertFalse(utf8(0xE2, 0x82));              // truncated
+        assertFalse(utf8(0x80));                    // stray continuation
+        assertTrue(utf8(0xE2, 0x82, 0xAC));         // €
+        assertTrue(utf8(0xF0, 0x9F, 0x98, 0x80));   // 😀
+    }
+
+    @Test
+    void testAsciiSkipFindsHighByteAtAnyOffset() {
+        for (int at = 0; at < 20; at++) {
+            byte[] bytes = "x".repeat(20).getBytes(StandardCharsets.US_ASCII);
+            bytes[at] = (byte) 0xC3;
+            assertEquals(at, CharsetDetector.skipAscii(bytes, 0, bytes.length));
+        }
+    }
+
+    @Test
+    void testFileServiceReadsLatin1FileWithoutBeingTold() throws Exception {
+        Path file = Files.write(tempDir.resolve("legacy.txt"), "Grüße\n".getBytes(StandardCharsets.ISO_8859_1));
+        LocalFileService files = new LocalFileService(new ContentAddressedBackupStore(tempDir.resolve("backups")));
+
+        assertEquals("Grüße\n", files.readFile(file));
+    }
+
+    private static void assertDecodes(String text, Charset charset, int bomLength, byte[] bytes) {
+        CharsetDetector.Decoded decoded = CharsetDetector.decode(bytes);
+        assertEquals(text, decoded.getText());
+        assertEquals(charset, decoded.getCharset());
+        assertEquals(bomLength, decoded.getBomLength());
+    }
+
+    private static byte[] bom(byte[] bom, String text, Charset charset) {
+        byte[] body = text.getBytes(charset);
+        byte[] bytes = new byte[bom.length + body.length];
+        System.arraycopy(bom, 0, bytes, 0, bom.length);
+        System.arraycopy(body, 0, bytes, bom.length, body.length);
+        return bytes;
+    }
+
+    private static boolean utf8(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return CharsetDetector.decodeUtf8(bytes) != null;
+    }
+}
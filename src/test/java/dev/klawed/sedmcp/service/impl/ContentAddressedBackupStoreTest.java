@@ -0,0 +1,141 @@
+package dev.klawed.sedmcp.service.impl;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ContentAddressedBackupStoreTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testIdenticalContentIsDeduplicated() throws Exception {
+        ContentAddressedBackupStore store = new ContentAddressedBackupStore(tempDir.resolve("backups"));
+        Path a = Files.writeString(tempDir.resolve("a.txt"), "same content");
+        Path b = Files.writeString(tempDir.resolve("b.txt"), "same content");
+
+        Path backupA = store.backup(a);
+        Path backupB = store.backup(b);
+        Path backupAgain = store.backup(a);
+
+        assertEquals(backupA, backupB);
+        assertEquals(backupA, backupAgain);
+        assertEquals(1, store.getBackupCount());
+        assertEquals("same content", Files.readString(backupA));
+        assertEquals(ContentAddressedBackupStore.hash(a), backupA.getFileName().toString());
+        try (var files = Files.walk(tempDir.resolve("backups"))) {
+            assertTrue(files.noneMatch(f -> f.getFileName().toString().endsWith(".tmp")), "temp copies left behind");
+        }
+    }
+
+    @Test
+    void testBackupSurvivesAtomicRewrite() throws Exception {
+        LocalFileService fileService = new LocalFileService(new ContentAddressedBackupStore(tempDir.resolve("backups")));
+        Path file = tempDir.resolve("file.txt");
+        fileService.writeFile(file, "version 1");
+
+        Path backup = fileService.createBackup(file);
+        fileService.writeFile(file, "version 2");
+
+        assertEquals("version 2", fileService.readFile(file));
+        assertEquals("version 1", Files.readString(backup));
+    }
+
+    @Test
+    void testCopyFallbackWhenLinksDisabled() throws Exception {
+        ContentAddressedBackupStore store = new ContentAddressedBackupStore(
+                tempDir.resolve("backups"), 1024, Duration.ofDays(1), false);
+        Path file = Files.writeString(tempDir.resolve("file.txt"), "copied");
+
+        Path backup = store.backup(file);
+        Files.writeString(file, "changed in place");
+
+        assertEquals("copied", Files.readString(backup));
+    }
+
+    @Test
+    void testDefaultStoreCopies() throws Exception {
+        ContentAddressedBackupStore store = new ContentAddressedBackupStore(tempDir.resolve("backups"));
+        Path file = Files.writeString(tempDir.resolve("file.txt"), "copied");
+
+        Path backup = store.backup(file);
+        Files.writeString(file, "changed in place");
+
+        assertEquals("copied", Files.readString(backup));
+    }
+
+    @Test
+    void testLinkedBackupChangedInPlaceIsReplaced() throws Exception {
+        ContentAddressedBackupStore store = new ContentAddressedBackupStore(
+                tempDir.resolve("backups"), 1024, Duration.ofDays(1), true);
+        Path a = Files.writeString(tempDir.resolve("a.txt"), "original");
+        Path b = Files.writeString(tempDir.resolve("b.txt"), "original");
+
+        store.backup(a);
+        Files.writeString(a, "rewritten in place");
+        Path backup = store.backup(b);
+
+        assertEquals("original", Files.readString(backup));
+    }
+
+    @Test
+    void testLastUseSurvivesRestartForLinkedBackups() throws Exception {
+        Path root = tempDir.resolve("backups");
+        Path file = Files.writeString(tempDir.resolve("old.txt"), "untouched for a month");
+        Files.setLastModifiedTime(file, FileTime.from(Instant.now().minus(Duration.ofDays(30))));
+
+        Path backup = new ContentAddressedBackupStore(root, 1024, Duration.ofDays(7), true).backup(file);
+        ContentAddressedBackupStore restarted = new ContentAddressedBackupStore(root, 1024, Duration.ofDays(7), true);
+
+        assertEquals(0, restarted.prune());
+        assertTrue(Files.exists(backup));
+    }
+
+    @Test
+    void testRetentionKeepsStoreWithinBudget() throws Exception {
+        ContentAddressedBackupStore store = new ContentAddressedBackupStore(
+                tempDir.resolve("backups"), 25, Duration.ofDays(1), false);
+        Path file = tempDir.resolve("file.txt");
+
+        for (int i = 0; i < 10; i++) {
+            Files.writeString(file, "version number " + i);
+            store.backup(file);
+        }
+
+        assertTrue(store.getTotalBytes() <= 25);
+        assertEquals(1, store.getBackupCount());
+    }
+
+    @Test
+    void testBackupLargerThanBudgetIsKept() throws Exception {
+        ContentAddressedBackupStore store = new ContentAddressedBackupStore(
+                tempDir.resolve("backups"), 4, Duration.ofDays(1), false);
+        Path file = Files.writeString(tempDir.resolve("file.txt"), "more than four bytes");
+
+        Path backup = store.backup(file);
+
+        assertEquals("more than four bytes", Files.readString(backup));
+        assertEquals(1, store.getBackupCount());
+    }
+
+    @Test
+    void testExpiredBackupsArePruned() throws Exception {
+        ContentAddressedBackupStore store = new ContentAddressedBackupStore(
+                tempDir.resolve("backups"), 1024, Duration.ZERO, false);
+        Path file = Files.writeString(tempDir.resolve("file.txt"), "old news");
+
+        Path backup = store.backup(file);
+        Thread.sleep(5);
+
+        assertEquals(1, store.prune());
+        assertFalse(Files.exists(backup));
+    }
+}
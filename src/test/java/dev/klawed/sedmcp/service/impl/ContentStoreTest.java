@@ -0,0 +1,111 @@
+package dev.klawed.sedmcp.service.impl;
+
+import dev.klawed.sedmcp.model.ContentHandle;
+import dev.klawed.sedmcp.service.SedEngineException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ContentStoreTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testPutAndGetByHandle() {
+        ContentStore store = new ContentStore();
+        ContentHandle handle = store.put("hello world");
+
+        assertEquals("hello world", store.get(handle.toString()));
+        assertEquals(handle, store.put("hello world"));
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    void testHashMismatchIsRejected() {
+        ContentStore store = new ContentStore();
+        ContentHandle handle = store.put("hello world");
+
+        assertThrows(SedEngineException.class, () -> store.get(handle.getId() + "-deadbeef"));
+        assertThrows(SedEngineException.class, () -> store.get("nope-1"));
+    }
+
+    @Test
+    void testEvictionIsWeightedBySize() {
+        ContentStore store = new ContentStore(1500, null, 0);
+        ContentHandle small = store.put("small");
+        ContentHandle big = store.put("x".repeat(400));
+        store.get(small.toString());
+        store.put("y".repeat(300));
+
+        assertTrue(store.getBytes() <= 1500);
+        assertTrue(store.contains(small.toString()));
+        assertFalse(store.contains(big.toString()));
+    }
+
+    @Test
+    void testEvictedContentSpillsToDisk() {
+        ContentStore store = new ContentStore(1000, tempDir, 10_000);
+        ContentHandle first = store.put("a".repeat(400));
+        store.put("b".repeat(400));
+
+        assertTrue(store.getSpilledBytes() > 0);
+        assertEquals("a".repeat(400), store.get(first.toString()));
+    }
+
+    @Test
+    void testStoresSharingASpillDirectoryKeepApart() throws Exception {
+        ContentStore first = new ContentStore(1000, tempDir, 10_000);
+        ContentStore second = new ContentStore(1000, tempDir, 10_000);
+        ContentHandle mine = first.put("a".repeat(400));
+        ContentHandle theirs = second.put("b".repeat(400));
+        first.put("c".repeat(400));
+        second.put("d".repeat(400));
+
+        // both handles are c1, and each store still gets its own text back
+        assertEquals(mine.getId(), theirs.getId());
+        assertEquals("a".repeat(400), first.get(mine.toString()));
+        assertEquals("b".repeat(400), second.get(theirs.toString()));
+
+        Path abandoned = Files.createDirectories(tempDir.resolve("store-dead"));
+        Files.writeString(abandoned.resolve(".lock"), "");
+        Files.writeString(abandoned.resolve("c1.txt"), "someone else's");
+        ContentStore third = new ContentStore(1000, tempDir, 10_000);
+        third.put("e".repeat(400));
+        third.put("f".repeat(400));
+        assertFalse(Files.exists(abandoned));
+
+        first.close();
+        second.close();
+        third.close();
+        try (var left = Files.list(tempDir)) {
+            assertEquals(0, left.count());
+        }
+    }
+
+    @Test
+    void testSpilledContentChangedOnDiskIsNotReturned() throws Exception {
+        ContentStore store = new ContentStore(1000, tempDir, 10_000);
+        ContentHandle first = store.put("a".repeat(400));
+        store.put("b".repeat(400));
+        try (var files = Files.walk(tempDir)) {
+            for (Path file : files.filter(f -> f.toString().endsWith(".txt")).toList()) {
+                Files.writeString(file, "x".repeat(400));
+            }
+        }
+
+        assertThrows(SedEngineException.class, () -> store.get(first.toString()));
+        store.close();
+    }
+
+    @Test
+    void testHashIsStableAndSensitive() {
+        assertEquals(ContentHandle.hash("abcdefg"), ContentHandle.hash(new StringBuilder("abcdefg")));
+        assertNotEquals(ContentHandle.hash("abcdefg"), ContentHandle.hash("abcdefh"));
+        assertNotEquals(ContentHandle.hash("ab"), ContentHandle.hash("ab\0"));
+    }
+}
@@ -0,0 +1,66 @@
+package dev.klawed.sedmcp.service.impl;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileIndexTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testChangedFileIsReindexedBeforeNextRead() throws Exception {
+        Path file = Files.writeString(tempDir.resolve("hot.txt"), "one\ntwo\n");
+        try (FileIndex index = new FileIndex(tempDir, 16)) {
+            FileIndex.Snapshot first = index.get(file);
+            assertEquals(2, first.getLineCount());
+            assertEquals(4, first.lineStart(2));
+            assertEquals(2, first.lineOf(5));
+
+            Files.writeString(file, "one\ntwo\nthree\n");
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (index.getRefreshes() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+
+            FileIndex.Snapshot second = index.get(file);
+            assertEquals("one\ntwo\nthree\n", second.getContent());
+            assertEquals(3, second.getLineCount());
+            assertTrue(index.getRefreshes() > 0);
+        }
+    }
+
+    @Test
+    void testWritesThroughFileServiceKeepIndexWarm() throws Exception {
+        try (FileIndex index = new FileIndex(tempDir, 16)) {
+            LocalFileService files = new LocalFileService(
+                    new ContentAddressedBackupStore(tempDir.resolve("backups")), index);
+            Path file = tempDir.resolve("edited.txt");
+
+            files.writeFile(file, "before");
+            files.writeFile(file, "after");
+
+            assertEquals("after", files.readFile(file));
+            assertEquals(0, index.getMisses());
+            assertEquals(1, index.getHits());
+        }
+    }
+
+    @Test
+    void testIndexIsBoundedAndConfinedToBase() throws Exception {
+        try (FileIndex index = new FileIndex(tempDir.resolve("base"), 2)) {
+            Files.createDirectories(tempDir.resolve("base"));
+            for (int i = 0; i < 3; i++) {
+                index.get(Files.writeString(tempDir.resolve("base/f" + i), "x" + i));
+            }
+
+            assertEquals(2, index.size());
+            assertThrows(SecurityException.class, () -> index.get(tempDir.resolve("base/../outside")));
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package dev.klawed.sedmcp.service.impl;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class LocalFileServiceTest {
+
+    @TempDir
+    Path tempDir;
+
+    private LocalFileService newService() {
+        return new LocalFileService(new ContentAddressedBackupStore(tempDir.resolve("backups")));
+    }
+
+    @Test
+    void testRewriteKeepsPermissions() throws Exception {
+        Path script = Files.writeString(tempDir.resolve("run.sh"), "echo old\n");
+        assumeTrue(Files.getFileAttributeView(script, PosixFileAttributeView.class) != null);
+        Files.setPosixFilePermissions(script, PosixFilePermissions.fromString("rwxr-xr-x"));
+
+        newService().writeFile(script, "echo new\n");
+
+        assertEquals("echo new\n", Files.readString(script));
+        assertEquals("rwxr-xr-x", PosixFilePermissions.toString(Files.getPosixFilePermissions(script)));
+    }
+
+    @Test
+    void testNewFileGetsDefaultModeLikeAnyOther() throws Exception {
+        Path reference = Files.createFile(tempDir.resolve("reference.txt"));
+        assumeTrue(Files.getFileAttributeView(reference, PosixFileAttributeView.class) != null);
+
+        Path created = tempDir.resolve("created.txt");
+        newService().writeFile(created, "new\n");
+
+        assertEquals(Files.getPosixFilePermissions(reference), Files.getPosixFilePermissions(created));
+    }
+
+    @Test
+    void testRewriteThroughSymlinkKeepsTheLink() throws Exception {
+        Path real = Files.writeString(tempDir.resolve("real.txt"), "old\n");
+        Path link;
+        try {
+            link = Files.createSymbolicLink(tempDir.resolve("link.txt"), real.getFileName());
+        } catch (UnsupportedOperationException | IOException e) {
+            assumeTrue(false, "no symlinks here");
+            return;
+        }
+
+        newService().writeFile(link, "new\n");
+
+        assertTrue(Files.isSymbolicLink(link));
+        assertEquals("new\n", Files.readString(real));
+    }
+
+    @Test
+    void testRewriteKeepsCharsetAndBom() throws Exception {
+        LocalFileService service = newService();
+        Path latin1 = Files.write(tempDir.resolve("latin1.txt"), "caf\u00e9\n".getBytes(StandardCharsets.ISO_8859_1));
+        byte[] bom = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+        Path utf8Bom = tempDir.resolve("bom.txt");
+        Files.write(utf8Bom, bom);
+        Files.write(utf8Bom, "na\u00efve\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        Path utf16 = tempDir.resolve("utf16.txt");
+        Files.write(utf16, new byte[] {(byte) 0xFF, (byte) 0xFE});
+        Files.write(utf16, "old\n".getBytes(StandardCharsets.UTF_16LE), StandardOpenOption.APPEND);
+
+        service.writeFile(latin1, service.readFile(latin1).replace("caf", "th"));
+        service.writeFile(utf8Bom, service.readFile(utf8Bom).replace("na", "Na"));
+        service.writeFile(utf16, service.readFile(utf16).replace("old", "new"));
+
+        assertArrayEquals("th\u00e9\n".getBytes(StandardCharsets.ISO_8859_1), Files.readAllBytes(latin1));
+        assertArrayEquals(("\uFEFFNa\u00efve\n").getBytes(StandardCharsets.UTF_8), Files.readAllBytes(utf8Bom));
+        assertArrayEquals(("\uFEFFnew\n").getBytes(StandardCharsets.UTF_16LE), Files.readAllBytes(utf16));
+        assertEquals("Na\u00efve\n", service.readFile(utf8Bom));
+    }
+
+    @Test
+    void testIndexedRewriteKeepsCharsetAndBom() throws Exception {
+        Path utf16 = tempDir.resolve("utf16.txt");
+        Files.write(utf16, ("\uFEFFold\n").getBytes(StandardCharsets.UTF_16BE));
+        try (FileIndex index = new FileIndex(tempDir, 16)) {
+            LocalFileService service = new LocalFileService(
+                    new ContentAddressedBackupStore(tempDir.resolve("backups")), index);
+
+            service.writeFile(utf16, service.readFile(utf16).replace("old", "new"));
+
+            assertArrayEquals(("\uFEFFnew\n").getBytes(StandardCharsets.UTF_16BE), Files.readAllBytes(utf16));
+            assertEquals("new\n", service.readFile(utf16));
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package dev.klawed.sedmcp.service.impl;
+
+import dev.klawed.sedmcp.service.Progress;
+import dev.klawed.sedmcp.service.SedCancelledException;
+import org.junit.jupiter.api.Test;
+
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MatchLocatorTest {
+
+    private static int[][] locations(MatchLocator.Matches matches) {
+        int[][] all = new int[matches.getCount()][];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = new int[] { matches.getLine(i), matches.getColumn(i), matches.getLength(i) };
+        }
+        return all;
+    }
+
+    @Test
+    void testLocationsCountFromOneAndMatchLineByLine() {
+        String text = "foo bar\n\nbaz foo foo\nfoo\n";
+        MatchLocator.Matches matches = MatchLocator.find(text, Pattern.compile("fo+"), 10, Progress.NONE);
+
+        assertArrayEquals(new int[][] { {1, 1, 3}, {3, 5, 3}, {3, 9, 3}, {4, 1, 3} }, locations(matches));
+        assertFalse(matches.isTruncated());
+
+        // anchors are per line, as with p
+        MatchLocator.Matches anchored = MatchLocator.find(text, Pattern.compile("^$|^foo$"), 10, Progress.NONE);
+        assertArrayEquals(new int[][] { {2, 1, 0}, {4, 1, 3} }, locations(anchored));
+    }
+
+    @Test
+    void testStopsAtTheCapAndSaysThereWasMore() {
+        String text = "x\n".repeat(100);
+
+        MatchLocator.Matches capped = MatchLocator.find(text, Pattern.compile("x"), 5, Progress.NONE);
+        assertEquals(5, capped.getCount());
+        assertTrue(capped.isTruncated());
+        assertEquals(5, capped.getLine(4));
+
+        MatchLocator.Matches exact = MatchLocator.find(text, Pattern.compile("x"), 100, Progress.NONE);
+        assertEquals(100, exact.getCount());
+        assertFalse(exact.isTruncated());
+    }
+
+    @Test
+    void testUnboundedRequestIsCappedNotOverflowed() {
+        String text = "x\n".repeat(10);
+
+        MatchLocator.Matches all = MatchLocator.find(text, Pattern.compile("x"), Integer.MAX_VALUE, Progress.NONE);
+        assertEquals(10, all.getCount());
+        assertFalse(all.isTruncated());
+
+        MatchLocator.Matches capped = new RealSedEngine().grep("x".repeat(MatchLocator.MAX_MATCHES + 5), "x", null,
+                Integer.MAX_VALUE, Progress.NONE);
+        assertEquals(MatchLocator.MAX_MATCHES, capped.getCount());
+        assertTrue(capped.isTruncated());
+    }
+
+    @Test
+    void testParallelChunksGiveTheSameAnswer() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 20_000; i++) {
+            sb.append("line ").append(i).append(i % 7 == 0 ? " needle here" : "").append('\n');
+        }
+        String text = sb.toString();
+        Pattern regex = Pattern.compile("needle|\\b9\\d*");
+
+        for (int max : new int[] { 1, 50, 100_000 }) {
+            MatchLocator.Matches serial = MatchLocator.find(text, regex, max, Progress.NONE, false, 1 << 30);
+            MatchLocator.Matches parallel = MatchLocator.find(text, regex, max, Progress.NONE, true, 4096);
+            assertArrayEquals(locations(serial), locations(parallel), "max " + max);
+            assertEquals(serial.isTruncated(), parallel.isTruncated());
+        }
+    }
+
+    @Test
+    void testCancelledSearchThrows() {
+        Progress progress = new Progress(null);
+        progress.cancel();
+
+        assertThrows(SedCancelledException.class,
+                () -> MatchLocator.find("a\n".repeat(10_000), Pattern.compile("a"), 10, progress, true, 1024));
+    }
+}
@@ -0,0 +1,90 @@
+package dev.klawed.sedmcp.service.impl;
+
+import dev.klawed.sedmcp.model.SedOperation;
+import dev.klawed.sedmcp.model.SedResult;
+import dev.klawed.sedmcp.model.SplicedText;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OffHeapTextTest {
+
+    @TempDir
+    Path tempDir;
+
+    private final String text = "héllo wörld\n".repeat(2000);
+
+    @Test
+    void testNativeCopyReadsBackTheSameText() throws Exception {
+        OffHeapText offHeap = OffHeapText.copyOf(text);
+
+        assertEquals(text.length(), offHeap.length());
+        assertEquals('é', offHeap.charAt(1));
+        assertEquals(text, offHeap.toString());
+        assertTrue(offHeap.contentEquals(text));
+        assertFalse(offHeap.contentEquals(text.replace('w', 'v')));
+        assertEquals(text.substring(12, 23), offHeap.subSequence(12, 23).toString());
+        assertThrows(IndexOutOfBoundsException.class, () -> offHeap.charAt(text.length()));
+
+        StringWriter out = new StringWriter();
+        offHeap.writeTo(out);
+        assertEquals(text, out.toString());
+    }
+
+    @Test
+    void testMappedCopyLeavesNoFileBehind() throws Exception {
+        OffHeapText mapped = OffHeapText.mapped(text, tempDir);
+
+        assertEquals(text, mapped.toString());
+        try (var files = Files.list(tempDir)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    void testOnlyTextOverTheThresholdIsOffloaded() {
+        assertSame(text, OffHeapText.offload(text, text.length() + 1, null));
+        assertInstanceOf(OffHeapText.class, OffHeapText.offload(text, text.length(), null));
+        assertInstanceOf(OffHeapText.class, OffHeapText.offload(text, 1, tempDir));
+    }
+
+    @Test
+    void testCachedResultComparesEqualToFreshOne() {
+        SedResult onHeap = SedResult.success(text, text.toUpperCase());
+        SedResult offHeap = SedResult.builder()
+                .success(true)
+                .originalText(OffHeapText.copyOf(text))
+                .modifiedText(OffHeapText.copyOf(text.toUpperCase()))
+                .build();
+
+        assertEquals(onHeap, offHeap);
+        assertEquals(onHeap.hashCode(), offHeap.hashCode());
+        assertTrue(offHeap.isModified());
+        assertEquals(text.toUpperCase(), offHeap.getModifiedContent());
+    }
+
+    @Test
+    void testCacheHitsAreServedFromOffHeap() {
+        String large = "x".repeat(OffHeapText.DEFAULT_THRESHOLD_CHARS);
+        RealSedEngine engine = new RealSedEngine(new ResultCache(64L * 1024 * 1024));
+        SedOperation operation = SedOperation.builder()
+                .operation(SedOperation.OperationType.SUBSTITUTE)
+                .pattern("^x")
+                .replacement("y")
+                .build();
+
+        SedResult miss = engine.executeOperation(large, operation);
+        SedResult hit = engine.executeOperation(large, operation);
+
+        // one replaced span: a splice of the input, which the cache keeps off the heap
+        assertSame(large, assertInstanceOf(SplicedText.class, miss.getModifiedText()).getBase());
+        assertInstanceOf(OffHeapText.class, assertInstanceOf(SplicedText.class, hit.getModifiedText()).getBase());
+        assertEquals(miss.getModifiedContent(), hit.getModifiedContent());
+        assertEquals(1, engine.getResultCache().stats().getHits());
+    }
+}
@@ -2,9 +2,22 @@ package dev.klawed.sedmcp.service.impl;
 
 import dev.klawed.sedmcp.model.SedOperation;
 import dev.klawed.sedmcp.model.SedResult;
+import dev.klawed.sedmcp.model.SplicedText;
+import dev.klawed.sedmcp.script.SedProgram;
+import dev.klawed.sedmcp.script.SedScriptParser;
+import dev.klawed.sedmcp.script.SedStreamExecutor;
+import dev.klawed.sedmcp.service.Progress;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 class RealSedEngineTest {
@@ -124,9 +137,47 @@ class RealSedEngineTest {
         assertTrue(sedEngine.supportsOperation(SedOperation.OperationType.SUBSTITUTE));
         assertTrue(sedEngine.supportsOperation(SedOperation.OperationType.DELETE));
         assertTrue(sedEngine.supportsOperation(SedOperation.OperationType.PRINT));
-        assertFalse(sedEngine.supportsOperation(SedOperation.OperationType.APPEND));
-        assertFalse(sedEngine.supportsOperation(SedOperation.OperationType.INSERT));
-        assertFalse(sedEngine.supportsOperation(SedOperation.OperationType.CHANGE));
+        assertTrue(sedEngine.supportsOperation(SedOperation.OperationType.APPEND));
+        assertTrue(sedEngine.supportsOperation(SedOperation.OperationType.INSERT));
+        assertTrue(sedEngine.supportsOperation(SedOperation.OperationType.CHANGE));
+    }
+
+    @Test
+    void testAppendInsertAndChange() {
+        String content = "[main]\nport=80\n[extra]\nport=81\n";
+        
+        SedResult appended = sedEngine.executeOperation(content, SedOperation.builder()
+                .operation(SedOperation.OperationType.APPEND)
+                .pattern("^\\[")
+                .text("# section")
+                .build());
+        SedResult inserted = sedEngine.executeOperation(content, SedOperation.builder()
+                .operation(SedOperation.OperationType.INSERT)
+                .address("1")
+                .text("# generated")
+                .build());
+        SedResult changed = sedEngine.executeOperation(content, SedOperation.builder()
+                .operation(SedOperation.OperationType.CHANGE)
+                .address("3,$")
+                .text("[removed]")
+                .build());
+        
+        assertEquals("[main]\n# section\nport=80\n[extra]\n# section\nport=81\n", appended.getModifiedContent());
+        assertEquals(2, appended.getLinesModified());
+        assertEquals("# generated\n" + content, inserted.getModifiedContent());
+        assertEquals("[main]\nport=80\n[removed]\n", changed.getModifiedContent());
+        assertEquals(List.of("Changed lines 3-4"), changed.getChangesApplied());
+    }
+
+    @Test
+    void testAppendKeepsMissingTrailingNewlineMissing() {
+        SedResult result = sedEngine.executeOperation("a\nb", SedOperation.builder()
+                .operation(SedOperation.OperationType.APPEND)
+                .address("$")
+                .text("c")
+                .build());
+        
+        assertEquals("a\nb\nc", result.getModifiedContent());
     }
 
     @Test
@@ -156,6 +207,95 @@ class RealSedEngineTest {
         assertTrue(result.getLinesModified() > 0);
     }
 
+    @Test
+    void testBatchEditsOneDocumentAcrossSteps() {
+        String content = "# header\nfoo 1\nbar 2\nfoo 3\n";
+        List<SedOperation> operations = List.of(
+                SedOperation.builder().operation(SedOperation.OperationType.SUBSTITUTE)
+                        .pattern("foo (\\d)").replacement("baz-$1").flags("g").build(),
+                SedOperation.builder().operation(SedOperation.OperationType.INSERT)
+                        .address("2").text("inserted").build(),
+                SedOperation.builder().operation(SedOperation.OperationType.DELETE)
+                        .pattern("^#").build(),
+                SedOperation.builder().operation(SedOperation.OperationType.SUBSTITUTE)
+                        .pattern("bar").replacement("BAR").build());
+        
+        SedResult result = sedEngine.executeBatch(content, operations);
+        
+        assertTrue(result.isSuccess());
+        assertEquals("inserted\nbaz-1\nBAR 2\nbaz-3", result.getModifiedContent());
+        assertEquals(5, result.getLinesModified());
+        
+        SedResult failed = sedEngine.executeBatch(content, List.of(operations.get(0),
+                SedOperation.builder().operation(SedOperation.OperationType.DELETE).pattern("(").build()));
+        assertFalse(failed.isSuccess());
+        assertEquals(content, failed.getModifiedContent());
+        assertTrue(failed.getError().startsWith("Batch operation failed at step 2"));
+    }
+    
+    @Test
+    void testWindowedDeleteRemovesMultiLineBlocks() {
+        String content = "keep 1\n/* one\n   two */\nkeep 2\n/* three */\nkeep 3\n";
+        SedOperation operation = SedOperation.builder()
+                .operation(SedOperation.OperationType.DELETE)
+                .pattern("^/\\*(.|\n)*?\\*/")
+                .window(4)
+                .build();
+        
+        SedResult result = sedEngine.executeOperation(content, operation);
+        
+        assertTrue(result.isSuccess());
+        assertEquals("keep 1\nkeep 2\nkeep 3\n", result.getModifiedContent());
+        assertEquals(2, result.getLinesModified());
+    }
+    
+    @Test
+    void testWindowedSubstituteStreamsAcrossLineBreaks() throws Exception {
+        SedOperation operation = SedOperation.builder()
+                .operation(SedOperation.OperationType.SUBSTITUTE)
+                .pattern("call\\(\n\\s*(\\w+)\\)")
+                .replacement("call($1)")
+                .flags("g")
+                .window(2)
+                .build();
+        StringWriter out = new StringWriter();
+        
+        var stats = sedEngine.executeStream(new StringReader("call(\n  a)\nx\ncall(\n  b)\n"), out, operation);
+        
+        assertEquals("call(a)\nx\ncall(b)\n", out.toString());
+        assertEquals(2, stats.getSubstitutions());
+        assertEquals(5, stats.getLinesRead());
+        
+        SedOperation windowedAppend = SedOperation.builder()
+                .operation(SedOperation.OperationType.APPEND)
+                .text("x")
+                .window(2)
+                .build();
+        assertFalse(sedEngine.executeOperation("a\n", windowedAppend).isSuccess());
+    }
+    
+    @Test
+    void testMetricsTimeCompileAndMatchSeparately() {
+        MeterRegistry registry = new SimpleMeterRegistry();
+        RealSedEngine engine = new RealSedEngine(new ResultCache(), SedStreamExecutor.Limits.DEFAULT, new SedMetrics(registry));
+        SedOperation operation = SedOperation.builder()
+                .operation(SedOperation.OperationType.SUBSTITUTE)
+                .pattern("o")
+                .replacement("0")
+                .flags("g")
+                .build();
+        
+        engine.executeOperation("foo boo", operation);
+        engine.previewOperation("foo boo", operation);
+        
+        // the preview was a cache hit: compiled and matched once, transferred twice
+        assertEquals(1, registry.get("sedmcp.regex.compile").tag("operation", "substitute").timer().count());
+        assertEquals(1, registry.get("sedmcp.match").tag("operation", "substitute").timer().count());
+        assertTrue(registry.get("sedmcp.match").tag("operation", "substitute").timer().totalTime(TimeUnit.NANOSECONDS) > 0);
+        assertEquals(4.0, registry.get("sedmcp.matches").tag("operation", "substitute").counter().count());
+        assertEquals(14.0, registry.get("sedmcp.chars.in").tag("operation", "substitute").counter().count());
+    }
+    
     @Test
     void testPreviewOperation() {
         // Test preview functionality
@@ -171,6 +311,147 @@ class RealSedEngineTest {
         assertTrue(result.isSuccess());
         assertTrue(result.isModified());
         assertEquals("hi world", result.getModifiedContent());
-        assertEquals(0, result.getExecutionTimeMs()); // Previews don't track execution time
+        assertTrue(result.getExecutionTimeMs() >= 0); // timed like an execution
+    }
+
+    @Test
+    void testRepeatedOperationIsServedFromCache() {
+        String content = "hello world\nhello universe";
+        SedOperation operation = SedOperation.builder()
+                .operation(SedOperation.OperationType.SUBSTITUTE)
+                .pattern("hello")
+                .replacement("hi")
+                .flags("g")
+                .build();
+        
+        SedResult preview = sedEngine.previewOperation(content, operation);
+        SedResult executed = sedEngine.executeOperation(new String(content), operation);
+        
+        assertEquals(preview.getModifiedContent(), executed.getModifiedContent());
+        assertEquals(1, sedEngine.getResultCache().stats().getHits());
+        assertEquals(1, sedEngine.getResultCache().stats().getMisses());
+        assertEquals(0.5, sedEngine.getResultCache().stats().getHitRate(), 0.001);
+    }
+    
+    @Test
+    void testOccurrenceFlags() {
+        String content = "a a a\na a a";
+
+        assertEquals("a a X\na a a", substitute(content, "3"));
+        assertEquals("a X X\nX X X", substitute(content, "2g"));
+        assertEquals("a X a\na X a", substitute(content, "2l"));
+        assertEquals("X a a\nX a a", substitute(content, "l"));
+        assertEquals(content, substitute(content, "7"));
+
+        for (String flags : new String[] {"0", "1g2", "2", "l"}) {
+            SedOperation operation = SedOperation.builder()
+                    .operation(SedOperation.OperationType.SUBSTITUTE)
+                    .pattern("a")
+                    .replacement("X")
+                    .flags(flags)
+                    .window(flags.equals("0") || flags.equals("1g2") ? 0 : 2)
+                    .build();
+            assertFalse(sedEngine.executeOperation(content, operation).isSuccess(), flags);
+        }
+    }
+
+    private String substitute(String content, String flags) {
+        SedOperation operation = SedOperation.builder()
+                .operation(SedOperation.OperationType.SUBSTITUTE)
+                .pattern("a")
+                .replacement("X")
+                .flags(flags)
+                .build();
+        SedResult result = sedEngine.executeOperation(content, operation);
+        assertTrue(result.isSuccess(), result.getError());
+        return result.getModifiedContent();
+    }
+
+    @Test
+    void testFirstMatchSubstitutionSplicesTheInput() {
+        String content = "a foo b\n".repeat(1000) + "c foo d\n";
+        SedOperation operation = SedOperation.builder()
+                .operation(SedOperation.OperationType.SUBSTITUTE)
+                .pattern("(o+)")
+                .replacement("[$1]")
+                .build();
+        
+        SedResult result = sedEngine.executeOperation(content, operation);
+        SedResult cached = sedEngine.executeOperation(content, operation);
+        
+        SplicedText splice = assertInstanceOf(SplicedText.class, result.getModifiedText());
+        assertSame(content, splice.getBase());
+        assertEquals(content.replaceFirst("(o+)", "[$1]"), result.getModifiedContent());
+        assertEquals(result.getModifiedContent(), cached.getModifiedContent());
+        assertEquals(1, sedEngine.getResultCache().stats().getHits());
+    }
+    
+    @Test
+    void testExecuteScriptRunsWholePipeline() {
+        String content = "# comment\nfoo 1\nbar 2\nfoo 3\n";
+        SedProgram program = new SedScriptParser().parse("/^#/d; s/foo/baz/g; /bar/a after bar");
+        
+        SedResult result = sedEngine.executeScript(content, program, false);
+        
+        assertTrue(result.isSuccess());
+        assertEquals("baz 1\nbar 2\nafter bar\nbaz 3\n", result.getModifiedContent());
+        assertEquals(2, result.getLinesModified());
+        
+        SedResult again = sedEngine.executeScript(content, new SedScriptParser().parse(program.getSource()), false);
+        assertEquals(result.getModifiedContent(), again.getModifiedContent());
+        assertEquals(1, sedEngine.getResultCache().stats().getHits());
+    }
+
+    @Test
+    void testProgressIsReportedAtChunkBoundaries() {
+        String content = "keep\ndrop\n".repeat(50_000);
+        SedOperation operation = SedOperation.builder()
+                .operation(SedOperation.OperationType.DELETE)
+                .pattern("drop")
+                .build();
+        List<long[]> reports = new ArrayList<>();
+        Progress progress = new Progress((done, total) -> reports.add(new long[] {done, total}), 0);
+
+        SedResult result = sedEngine.executeOperation(content, operation, progress);
+
+        assertTrue(result.isSuccess());
+        assertTrue(reports.size() > 10);
+        for (int i = 1; i < reports.size(); i++) {
+            assertTrue(reports.get(i)[0] >= reports.get(i - 1)[0]);
+            assertEquals(content.length(), reports.get(i)[1]);
+        }
+    }
+
+    @Test
+    void testSubstitutionWithoutMatchesCanBeCancelled() {
+        String content = "x".repeat(1_000_000);
+        SedOperation operation = SedOperation.builder()
+                .operation(SedOperation.OperationType.SUBSTITUTE)
+                .pattern("y")
+                .replacement("z")
+                .build();
+        Progress[] holder = new Progress[1];
+        // cancelled as soon as the run first checks in, at its start
+        holder[0] = new Progress((done, total) -> holder[0].cancel(), 0);
+
+        SedResult result = sedEngine.executeOperation(content, operation, holder[0]);
+
+        assertFalse(result.isSuccess());
+        assertTrue(result.getErrorMessage().startsWith("Cancelled"), result.getErrorMessage());
+    }
+
+    @Test
+    void testCancelledScriptStopsWithoutCaching() {
+        String content = "line\n".repeat(200_000);
+        SedProgram program = new SedScriptParser().parse("s/line/LINE/");
+        Progress progress = new Progress(null);
+        progress.cancel();
+
+        SedResult result = sedEngine.executeScript(content, program, false, progress);
+
+        assertFalse(result.isSuccess());
+        assertTrue(result.getErrorMessage().startsWith("Cancelled"));
+        assertTrue(sedEngine.executeScript(content, program, false).isSuccess());
+        assertEquals(0, sedEngine.getResultCache().stats().getHits());
     }
-}
\ No newline at end of file
+}
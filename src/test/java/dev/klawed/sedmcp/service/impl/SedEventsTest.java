@@ -0,0 +1,60 @@
+package dev.klawed.sedmcp.service.impl;
+
+import dev.klawed.sedmcp.model.SedOperation;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SedEventsTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testEngineEmitsCompileAndExecuteEvents() throws Exception {
+        RealSedEngine engine = new RealSedEngine(new ResultCache(0));
+        SedOperation operation = SedOperation.builder()
+                .operation(SedOperation.OperationType.SUBSTITUTE)
+                .pattern("o+")
+                .replacement("0")
+                .flags("g")
+                .build();
+
+        Path file = tempDir.resolve("sedmcp.jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("dev.klawed.sedmcp.RegexCompile");
+            recording.enable("dev.klawed.sedmcp.Execute");
+            recording.start();
+            engine.executeOperation("foo boo zoo", operation);
+            recording.stop();
+            recording.dump(file);
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+        RecordedEvent compile = events.stream()
+                .filter(e -> e.getEventType().getName().equals("dev.klawed.sedmcp.RegexCompile"))
+                .findFirst().orElseThrow();
+        RecordedEvent execute = events.stream()
+                .filter(e -> e.getEventType().getName().equals("dev.klawed.sedmcp.Execute"))
+                .findFirst().orElseThrow();
+
+        assertEquals("o+", compile.getString("pattern"));
+        assertEquals("substitute", execute.getString("operation"));
+        assertEquals(11, execute.getLong("contentChars"));
+        assertEquals(3, execute.getLong("matches"));
+        assertNotNull(execute.getThread());
+    }
+
+    @Test
+    void testLongPatternsAreTruncated() {
+        assertEquals("abc", SedEvents.truncate("abc"));
+        assertEquals(SedEvents.MAX_PATTERN_CHARS + 3, SedEvents.truncate("x".repeat(1000)).length());
+    }
+}
@@ -0,0 +1,99 @@
+package dev.klawed.sedmcp.service.impl;
+
+import dev.klawed.sedmcp.model.TextPatch;
+import dev.klawed.sedmcp.service.SedEngineException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UndoLogTest {
+
+    private UndoLog undoLog;
+
+    @BeforeEach
+    void setUp() {
+        undoLog = new UndoLog(3, 10);
+    }
+
+    @Test
+    void testUndoAndRedo() {
+        undoLog.record("doc", "hello world", "hi world");
+        undoLog.record("doc", "hi world", "hi there");
+
+        assertEquals("hi world", undoLog.undo("doc", "hi there"));
+        assertEquals("hello world", undoLog.undo("doc", "hi world"));
+        assertEquals("hi world", undoLog.redo("doc", "hello world"));
+        assertEquals(1, undoLog.undoDepth("doc"));
+        assertEquals(1, undoLog.redoDepth("doc"));
+    }
+
+    @Test
+    void testUndoRejectsDriftedContent() {
+        undoLog.record("doc", "a\nb\nc", "a\nc");
+
+        assertThrows(SedEngineException.class, () -> undoLog.undo("doc", "something else"));
+        assertEquals("a\nb\nc", undoLog.undo("doc", "a\nc"));
+    }
+
+    @Test
+    void testHistoryIsBounded() {
+        for (int i = 0; i < 10; i++) {
+            undoLog.record("doc", "v" + i, "v" + (i + 1));
+        }
+
+        assertEquals(3, undoLog.undoDepth("doc"));
+        assertThrows(SedEngineException.class, () -> undoLog.undo("missing", "anything"));
+    }
+
+    @Test
+    void testHistoryIsBoundedByBytes() {
+        String big = "x".repeat(10_000);
+        UndoLog log = new UndoLog(32, 10, 50_000);
+        for (int i = 0; i < 5; i++) {
+            // whole-file rewrites: each patch holds both versions
+            log.record("doc", big + i, "y" + i + big.replace('x', 'z'));
+        }
+        log.record("other", "a", "b");
+
+        assertTrue(log.estimatedBytes() <= 50_000, "over budget: " + log.estimatedBytes());
+        assertEquals(1, log.undoDepth("other"));
+        assertTrue(log.undoDepth("doc") < 5);
+
+        // the newest edit stays even when it alone is over the budget
+        log.record("huge", big.repeat(5), "");
+        assertEquals(1, log.undoDepth("huge"));
+        assertEquals(0, log.undoDepth("doc"));
+    }
+
+    @Test
+    void testPatchSizeTracksChangeNotFile() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            sb.append("line ").append(i).append(" of a fairly large file\n");
+        }
+        String before = sb.toString();
+        String after = before.replace("line 10 of", "LINE 10 of").replace("line 19990 of", "LINE 19990 of");
+
+        TextPatch patch = TextPatch.diff(before, after);
+
+        assertTrue(patch.estimatedBytes() < 1024, "patch should only hold the changed spans");
+        assertEquals(before, patch.revert(after));
+        assertEquals(after, patch.apply(before));
+    }
+
+    @Test
+    void testLineDiffHandlesDeletedLines() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            sb.append(i % 100 == 0 ? "# comment " : "code ").append(i).append('\n');
+        }
+        String before = sb.toString();
+        String after = before.replaceAll("(?m)^# comment \\d+\n", "");
+
+        TextPatch patch = TextPatch.diff(before, after);
+
+        assertEquals(50, patch.getHunks().size());
+        assertEquals(before, patch.revert(after));
+    }
+}